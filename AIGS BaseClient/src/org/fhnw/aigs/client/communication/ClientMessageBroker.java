@@ -1,11 +1,8 @@
 package org.fhnw.aigs.client.communication;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.io.StringReader;
 import java.net.Socket;
 import java.util.Date;
 import java.util.logging.Level;
@@ -14,8 +11,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javafx.application.Platform;
 import javax.swing.JOptionPane;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import org.fhnw.aigs.client.GUI.LoadingWindow;
 import org.fhnw.aigs.client.GUI.SetupWindow;
 import org.fhnw.aigs.client.GUI.SettingsWindow;
@@ -25,16 +21,17 @@ import org.fhnw.aigs.commons.JoinType;
 import org.fhnw.aigs.commons.Player;
 import org.fhnw.aigs.commons.XMLHelper;
 import org.fhnw.aigs.commons.communication.BadInputMessage;
+import org.fhnw.aigs.commons.communication.BinaryCodec;
 import org.fhnw.aigs.commons.communication.ExceptionMessage;
 import org.fhnw.aigs.commons.communication.ForceCloseMessage;
 import org.fhnw.aigs.commons.communication.IdentificationResponseMessage;
 import org.fhnw.aigs.commons.communication.JoinResponseMessage;
 import org.fhnw.aigs.commons.communication.KeepAliveMessage;
 import org.fhnw.aigs.commons.communication.Message;
+import org.fhnw.aigs.commons.communication.MessageDecoder;
+import org.fhnw.aigs.commons.communication.MessageEncoding;
+import org.fhnw.aigs.commons.communication.MessageReader;
 import org.fhnw.aigs.commons.communication.NotifyMessage;
-import org.w3c.dom.Document;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 /**
  * This class is responsible for parsing and handling all messages sent to the
@@ -43,10 +40,15 @@ import org.xml.sax.SAXException;
  * <ul><li>Message receving</li><li>Message handling</li></ul><br>
  * v1.0 Initial release<br>
  * v1.1 Functional changes<br>
- * v1.2 Added new messages and depending handling
+ * v1.2 Added new messages and depending handling<br>
+ * v1.3 Single-pass parsing of the messages (see {@link MessageDecoder})<br>
+ * v1.4 Binary messages if negotiated during the login (see {@link BinaryCodec})<br>
+ * v1.5 Framed XML messages, decoded directly from the buffer of the reader<br>
+ * v1.6 The answer of a KeepAliveMessage carries the answer time<br>
+ * v1.7 Reconnection and resumption of the session after a lost connection
  *
  * @author Matthias Stöckli (v1.0)
- * @version 1.2 (Raphael Stoeckli, 23.10.2014)
+ * @version 1.7
  */
 public class ClientMessageBroker implements Runnable {
 
@@ -55,9 +57,9 @@ public class ClientMessageBroker implements Runnable {
      */
     private static Socket socket;
     /**
-     * The BufferedReader used to read the incoming messages
+     * The reader used to read the incoming messages
      */
-    private static BufferedReader in;
+    private static MessageReader in;
     /**
      * Reference to the ClientGame
      */
@@ -84,7 +86,7 @@ public class ClientMessageBroker implements Runnable {
     public ClientMessageBroker(Socket socket, ClientGame game) throws IOException {
         ClientMessageBroker.clientGame = game;
         ClientMessageBroker.socket = socket;
-        ClientMessageBroker.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        ClientMessageBroker.in = new MessageReader(socket.getInputStream());
     }
 
     /**
@@ -106,13 +108,26 @@ public class ClientMessageBroker implements Runnable {
      */
     private void listenForMessages() {
         try {
-            String inputString = "";
-
-            while ((inputString = in.readLine()) != null) {
-                Message parsedMessage = parseInput(inputString);
-
-                if (parsedMessage instanceof KeepAliveMessage == false) {
-                    printMessage(inputString);
+            while (true) {
+                Message parsedMessage;
+                if (in.getEncoding() != MessageEncoding.xml) {
+                    int length = in.readFrame();
+                    if (length < 0) {
+                        break;
+                    }
+                    parsedMessage = parseFrame(in.getBuffer(), in.getFrameOffset(), length);
+                    if (parsedMessage != null && parsedMessage instanceof KeepAliveMessage == false) {
+                        Logger.getLogger(ClientMessageBroker.class.getName()).log(Level.INFO, "<= ({0}) {1}", new Object[]{in.getEncoding(), parsedMessage.getClass().getName()});
+                    }
+                } else {
+                    String inputString = in.readLine();
+                    if (inputString == null) {
+                        break;
+                    }
+                    parsedMessage = parseInput(inputString);
+                    if (parsedMessage instanceof KeepAliveMessage == false) {
+                        printMessage(inputString);
+                    }
                 }
             //    if (parsedMessage instanceof GameStartMessage) {
             //       clientGame.getGameWindow().removeOverlay();
@@ -130,6 +145,11 @@ public class ClientMessageBroker implements Runnable {
                 clientGame.processGameLogic(parsedMessage);
             }
         } catch (IOException ex) {
+            // Try to resume the session on a new connection (since v1.7)
+            if (ClientCommunication.getInstance().reconnect() == true) {
+                Logger.getLogger(ClientMessageBroker.class.getName()).log(Level.WARNING, "Lost connection to the server. Reconnected, the session will be resumed.");
+                return;
+            }
             // Stops the game in the case of a lost connection.
             Logger.getLogger(ClientMessageBroker.class.getName()).log(Level.SEVERE, "Lost connection to the server. Most probably the server was shut down. The game was closed.");
             System.exit(0);
@@ -153,56 +173,54 @@ public class ClientMessageBroker implements Runnable {
 
     /**
      * This method parses the incoming messages.<br>
-     * It first tries to create a DOMDocument in order to check whether the
-     * string is valid xml and to determine the message type. If the message
-     * cannot be parsed, the client will receive a {@link BadInputMessage}. If
-     * the parsing is successful, the respective message class is loaded via the
-     * system ClassLoader.<br>
-     * In a last step, the {@link Message#parse} method will take care of the
-     * parsing itself.
+     * The message is decoded in one pass by the {@link MessageDecoder}: The
+     * attribute "FullyQualifiedClassName" is read, the respective message class
+     * is loaded via the ClassLoader of the client and the message is
+     * unmarshalled.
      *
      * @param inputString The message as received from the clients.
      * @return The parsed message.
      */
     private Message parseInput(String inputString) {
-        String messageClassPath = null;
         Message parsedMessage = null;
-        Class messageClass = null;
 
-        // Read MessageType for further processing
-        StringReader reader = new StringReader(inputString);                    // Used to create an input source and for parsing
-        InputSource inputSource = new InputSource(reader);                      // Used for DOM Parsing of message (find out the type)
-        // Used to find out the type of message
-        Document DOMDocument;
+        // Try to load and parse the Message Class dynamically by the name provided by the attribute "FullyQualifiedName"
+        // which is provided by every Message.
         try {
-            DOMDocument = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(inputSource);
-            // Read the attribute "classPath" of the sent XML. It represents the qualified name of the class
-            // e.g. "org.fhnw.aigs.commons.TicTacToe.FieldClickMessage" which points to the class "FieldClickMessage"
-            messageClassPath = DOMDocument.getDocumentElement().getAttribute("FullyQualifiedClassName");
-
-        } catch (ParserConfigurationException | SAXException | IOException ex) {
+            parsedMessage = MessageDecoder.decode(inputString, ClientMessageBroker.class.getClassLoader());
+        } catch (XMLStreamException ex) {
             Logger.getLogger(ClientMessageBroker.class.getName()).log(Level.SEVERE, "Could not parse input into xml format", ex);
+        } catch (ClassNotFoundException ex) {
+            Logger.getLogger(ClientMessageBroker.class.getName()).log(Level.SEVERE, "Could not find a matching class. Check the package name, @XmlElement annotations and the jars.", ex);
         }
-        catch (Exception ex) // All other exceptions
+        catch (Exception ex) // All other Exceptions
         {
-            Logger.getLogger(ClientMessageBroker.class.getName()).log(Level.SEVERE, "An unknown Error occurred.", ex);
+            Logger.getLogger(ClientMessageBroker.class.getName()).log(Level.SEVERE, "An unknown error occurred.", ex);
         }
 
-        reader = new StringReader(inputString);                                 // Recreate the reader because the string was read with the last operation
+        return parsedMessage;
+    }
 
-        // Try to load and parse the Message Class dynamically by the name provided by the attribute "FullyQualifiedName"
-        // which is provided by every Message.
+    /**
+     * This method parses the incoming framed messages (see {@link BinaryCodec}).
+     *
+     * @param data The buffer which contains the frame body.
+     * @param offset The position of the frame body in the buffer.
+     * @param length The length of the frame body.
+     * @return The parsed message.
+     * @since v1.4
+     */
+    private Message parseFrame(byte[] data, int offset, int length) {
+        Message parsedMessage = null;
         try {
-            messageClass = Class.forName(messageClassPath);
-            parsedMessage = Message.parse(reader, messageClass);     //
+            parsedMessage = BinaryCodec.decode(data, offset, length, ClientMessageBroker.class.getClassLoader());
         } catch (ClassNotFoundException ex) {
-            Logger.getLogger(ClientMessageBroker.class.getName()).log(Level.SEVERE, "Could not find a matching class. Check the package name, @XmlElement annotations and the jars.", ex);
+            Logger.getLogger(ClientMessageBroker.class.getName()).log(Level.SEVERE, "Could not find a matching class. Check the package name and the jars.", ex);
         }
         catch (Exception ex) // All other Exceptions
         {
-            Logger.getLogger(ClientMessageBroker.class.getName()).log(Level.SEVERE, "An unknown error occurred.", ex);
+            Logger.getLogger(ClientMessageBroker.class.getName()).log(Level.SEVERE, "Could not decode the framed message.", ex);
         }
-
         return parsedMessage;
     }
 
@@ -348,7 +366,7 @@ public class ClientMessageBroker implements Runnable {
                 KeepAliveMessage responseMessage = new KeepAliveMessage();
                 responseMessage.setSentTime(keepAliveMessage.getSentTime());
                 responseMessage.setAnswerTime(new Date());
-                sendMessage(parsedMessage);
+                sendMessage(responseMessage);
                 nonGameMessageReceived = true;        // Was handled
             }
         }
@@ -358,12 +376,26 @@ public class ClientMessageBroker implements Runnable {
      * This method handles the server's response to a client login attempt. It
      * creates a new user file locally, if needed and shows a prompt if the user
      * name has never been typed in or if the user name and password do not
-     * match.
+     * match.<br>
+     * If the server has chosen the binary or the framed XML encoding, all
+     * following messages (in both directions) are framed.
      *
      * @param parsedMessage The {@link IdentificationResponseMessage}.
      */
     private void handleIdentificationResponseMessage(Message parsedMessage) {
         IdentificationResponseMessage identificationResponseMessage = (IdentificationResponseMessage) parsedMessage;
+        ClientCommunication communication = ClientCommunication.getInstance();
+        boolean resuming = communication.isResuming();
+        communication.setResuming(false);
+        if (identificationResponseMessage.getLoginSuccessful() == true) {
+            communication.setSessionToken(identificationResponseMessage.getSessionToken());
+        }
+
+        // The game is lost if the session of a reconnected client was not resumed
+        if (resuming == true && identificationResponseMessage.getResumed() == false) {
+            Logger.getLogger(ClientMessageBroker.class.getName()).log(Level.SEVERE, "Lost connection to the server. The session could not be resumed. The game was closed.");
+            System.exit(0);
+        }
 
         // Check if the login was successful
         if (identificationResponseMessage.getLoginSuccessful() == false) {
@@ -376,6 +408,17 @@ public class ClientMessageBroker implements Runnable {
             SettingsWindow.notifyOfFailure(identificationResponseMessage.getReason());
         } 
         else {
+            MessageEncoding encoding = identificationResponseMessage.getEncoding();
+            if (encoding != null && encoding != MessageEncoding.xml) {
+                in.setEncoding(encoding);
+                Message.setEncoding(socket, encoding);
+            }
+            if (identificationResponseMessage.getResumed() == true) {
+                // Still in the game, the missed messages follow
+                Logger.getLogger(ClientMessageBroker.class.getName()).log(Level.INFO, "Session resumed - Player {0}", clientGame.getPlayer());
+                nonGameMessageReceived = true;                                  // Was handled
+                return;
+            }
             // add player based on the identification
             // this cannot be done earlier due to the fact that 
             // the server may have allocated another name to the user
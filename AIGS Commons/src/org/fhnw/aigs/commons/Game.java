@@ -1,6 +1,7 @@
 package org.fhnw.aigs.commons;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 import org.fhnw.aigs.commons.communication.FieldClickMessage;
 import org.fhnw.aigs.commons.communication.GameEndsMessage;
@@ -26,18 +27,35 @@ import org.fhnw.aigs.commons.communication.PlayerChangedMessage;
  * <code>super("TicTacToe", 2, 2);</code>
  *<br>
  * v1.0 Initial release<br>
- * v1.1 Private game property, version property and toString method added
+ * v1.1 Private game property, version property and toString method added<br>
+ * v1.2 Messages to all players are only marshalled once (broadcast)<br>
+ * v1.3 Thread-safe generation of the game ids (games are created concurrently)<br>
+ * v1.4 Sent messages are reported to a {@link MessageTrafficListener}
  * @author Matthias Stöckli (v1.0)
- * @version v1.1 (Raphael Stoeckli, 21.10.2014)
+ * @version v1.4
  */
 public abstract class Game {
 
     //<editor-fold desc="Attributes area">
     /**
-     * The currently highest game id. This variable is used to generate new game
-     * IDs.
+     * The counter of the game ids. This variable is used to generate new game
+     * IDs, also if games are created by several threads concurrently.
      */
+    private static final AtomicLong idCounter = new AtomicLong();
+    /**
+     * The currently highest game id. It is only kept for existing games which
+     * read it; it mirrors {@link Game#idCounter} and is not used to generate
+     * IDs anymore.
+     * @deprecated The IDs are generated by {@link Game#idCounter}, use
+     * {@link Game#getId()} to get the ID of a game.
+     */
+    @Deprecated
     public static volatile long currentHighestId;
+    /**
+     * Listener of the sent messages of all games (null if none is registered).
+     * @since v1.4
+     */
+    private static volatile MessageTrafficListener trafficListener;
     /**
      * Minimum number of players.
      */
@@ -101,8 +119,8 @@ public abstract class Game {
     public Game(String gameName, int minNumberOfPlayers) {
         this.minNumberOfPlayers = minNumberOfPlayers;
         this.gameName = gameName;
-        this.id = currentHighestId;
-        currentHighestId++;
+        this.id = idCounter.getAndIncrement();
+        currentHighestId = idCounter.get();
     }
     
     /**
@@ -118,8 +136,8 @@ public abstract class Game {
         this.versionString = version;
         this.minNumberOfPlayers = minNumberOfPlayers;
         this.gameName = gameName;
-        this.id = currentHighestId;
-        currentHighestId++;
+        this.id = idCounter.getAndIncrement();
+        currentHighestId = idCounter.get();
     }    
 
     /**
@@ -230,16 +248,38 @@ public abstract class Game {
     /**
      * Sends a message to all players in the current game.<br>
      * The message will not be sent to players with the {@link Player#isAi}
-     * flag.
+     * flag.<br>
+     * The message is only marshalled once for all players (see
+     * {@link Message#broadcast}).
      *
      * @param message The message to be sent.
      */
     public void sendMessageToAllPlayers(Message message) {
+        ArrayList<Player> recipients = getRecipients();
+        message.broadcast(recipients);
+        MessageTrafficListener listener = trafficListener;
+        if (listener != null) {
+            for (Player recipient : recipients) {
+                listener.messageSent(this, recipient, message);
+            }
+        }
+    }
+
+    /**
+     * Gets all players of the game who can receive messages. Players with the
+     * {@link Player#isAi} flag and without socket are omitted.
+     *
+     * @return The receiving players.
+     * @since v1.2
+     */
+    public ArrayList<Player> getRecipients() {
+        ArrayList<Player> recipients = new ArrayList<>(players.size());
         for (Player p : players) {
             if (p.isAi() == false || p.getSocket() != null) {
-                message.send(p.getSocket(), p);
+                recipients.add(p);
             }
         }
+        return recipients;
     }
 
     /**
@@ -252,6 +292,7 @@ public abstract class Game {
     public void sendMessageToPlayer(Message message, Player player) {
         if (player.isAi() == false) {
             message.send(player.getSocket(), player);
+            notifyTrafficListener(message, player);
         }
     }
 
@@ -264,6 +305,32 @@ public abstract class Game {
     public void sendMessageToCurrentPlayer(Message message) {
         if (currentPlayer.isAi() == false) {
             message.send(currentPlayer.getSocket(), currentPlayer);
+            notifyTrafficListener(message, currentPlayer);
+        }
+    }
+
+    /**
+     * Registers the listener of the sent messages of all games. Only one
+     * listener can be registered, null removes the listener.
+     *
+     * @param listener The listener or null.
+     * @since v1.4
+     */
+    public static void setMessageTrafficListener(MessageTrafficListener listener) {
+        trafficListener = listener;
+    }
+
+    /**
+     * Reports a sent message to the registered {@link MessageTrafficListener}.
+     *
+     * @param message The sent message.
+     * @param player The receiving player.
+     * @since v1.4
+     */
+    private void notifyTrafficListener(Message message, Player player) {
+        MessageTrafficListener listener = trafficListener;
+        if (listener != null) {
+            listener.messageSent(this, player, message);
         }
     }
 
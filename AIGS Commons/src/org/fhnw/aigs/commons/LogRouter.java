@@ -6,13 +6,35 @@ import java.util.logging.Logger;
 /**
  * This class is to route the logging of the AIGS Commons project<br>
  * If an instance of AIGS Commons is running on the AIGS server, all log messages will be suppressed to relieve the server-side logging system.<br>
- * Otherwise, a standard logger will be used
+ * Otherwise, a standard logger will be used<br>
+ * v1.0 Initial release<br>
+ * v1.1 The routing decision is only made once
  * 
  * @author Raphael Stoeckli (26.02.2015)
- * @version v1.0
+ * @version v1.1
  */
 public class LogRouter {
     
+    /**
+     * Indicates whether log messages are routed to the standard logger. Null
+     * until the first log message (the packages are loaded at this time)
+     * @since v1.1
+     */
+    private static volatile Boolean enabled = null;
+    
+    /**
+     * Checks whether a log message would be written. Use this method to avoid
+     * building expensive log messages or arguments which would be discarded
+     * @param classname Name of the calling class
+     * @param level Level of the log message
+     * @return True if the message would be written, otherwise false
+     * @since v1.1
+     */
+    public static boolean isLoggable(String classname, Level level)
+    {
+        return isEnabled() == true && Logger.getLogger(classname).isLoggable(level);
+    }
+    
     /**
      * Method to route logs. If an instance of AIGS Commons is running on the AIGS server, all log messages will be suppressed to relieve the server-side logging system.<br>
      * Otherwise, a standard logger will be used
@@ -23,8 +45,7 @@ public class LogRouter {
      */
     public static void log(String classname, Level level, String message, Object arg)
     {
-        Package p = Package.getPackage("org.fhnw.server.common");
-        if (p != null) // Only log if not running on server. User server-side LogRouter to manage logging on server
+        if (isEnabled() == true) // Only log if not running on server. User server-side LogRouter to manage logging on server
         {
            Logger.getLogger(classname).log(level, message, arg);
         }
@@ -40,11 +61,27 @@ public class LogRouter {
      */    
     public static void log(String classname, Level level, String message, Object[] args)
     {
-        Package p = Package.getPackage("org.fhnw.server.common");
-        if (p != null) // Only log if not running on server. User server-side LogRouter to manage logging on server
+        if (isEnabled() == true) // Only log if not running on server. User server-side LogRouter to manage logging on server
         {
            Logger.getLogger(classname).log(level, message, args);
         }
     }
     
+    /**
+     * Decides once whether log messages are routed to the standard logger
+     * @return True if the messages are routed, otherwise false
+     * @since v1.1
+     */
+    private static boolean isEnabled()
+    {
+        Boolean routed = LogRouter.enabled;
+        if (routed == null)
+        {
+            Package p = Package.getPackage("org.fhnw.server.common");
+            routed = p != null;
+            LogRouter.enabled = routed;
+        }
+        return routed;
+    }
+    
 }
@@ -0,0 +1,25 @@
+package org.fhnw.aigs.commons;
+
+import org.fhnw.aigs.commons.communication.Message;
+
+/**
+ * Listener of the messages sent by a game (see {@link Game#sendMessageToPlayer},
+ * {@link Game#sendMessageToCurrentPlayer} and {@link Game#sendMessageToAllPlayers}).
+ * The server registers a listener with {@link Game#setMessageTrafficListener}
+ * to record the outgoing game traffic (e.g. in the structured log).<br>
+ * v1.0 Initial release
+ *
+ * @version 1.0
+ */
+public interface MessageTrafficListener {
+
+    /**
+     * Called after a message was sent to a player. The method is called by
+     * the thread of the game logic and must return quickly.
+     *
+     * @param game The sending game.
+     * @param player The receiving player.
+     * @param message The sent message.
+     */
+    public void messageSent(Game game, Player player, Message message);
+}
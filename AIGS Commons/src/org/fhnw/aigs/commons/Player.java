@@ -12,10 +12,12 @@ import javax.xml.bind.annotation.XmlTransient;
  * for every new game. This is why it is possible to identify every player by
  * his or her {@link socket}. This socket can be used to send messages.<br>
  * v1.0 Initial release<br>
- * v1.1 Change of logon system
+ * v1.1 Change of logon system<br>
+ * v1.2 The socket can be replaced while the player is in a game (resumed
+ * sessions of the server)
  *
  * @author Matthias Stöckli (v1.0)
- * @version v1.1 (Raphael Stoeckli, 23.10.2014)
+ * @version v1.2
  */
 public class Player {
 
@@ -42,10 +44,11 @@ public class Player {
     /**
      * Represents the socket of the player. The socket is used to transfer
      * messages to players. It is set as soon as a player wants to join a game.
-     * It will not be sent in the XML messages.
+     * It will not be sent in the XML messages. The socket is replaced if the
+     * player resumes a session on a new connection.
      */
     @XmlTransient
-    private Socket socket;
+    private volatile Socket socket;
 
     // Default constructor for serializing purposes
     public Player() {
@@ -3,11 +3,16 @@ package org.fhnw.aigs.commons;
 import com.sun.org.apache.xml.internal.serializer.OutputPropertiesFactory;
 import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.fhnw.aigs.commons.communication.Message;
 import java.util.logging.Level;
 import javax.xml.bind.*;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.*;
 import javax.xml.transform.stream.*;
 
@@ -16,13 +21,281 @@ import javax.xml.transform.stream.*;
  * v1.0 Initial release<br>
  * v1.1 Added some further error handling<br>
  * v1.2 Changing of logging<br>
- * v1.3 Adding discard option to avoid problems with malformed xml inputs
+ * v1.3 Adding discard option to avoid problems with malformed xml inputs<br>
+ * v1.4 Cached JAXB contexts and pooled marshallers / unmarshallers<br>
+ * v1.5 Marshalling of XML fragments (used for broadcasts)
  *
  * @author Matthias Stöckli (v1.0)
- * @version v1.3 (Raphael Stoeckli, 21.04.2015)
+ * @version v1.5
  */
 public class XMLHelper {
 
+    /**
+     * Maximum number of idle marshallers and unmarshallers which are pooled per
+     * message class.
+     * @since v1.4
+     */
+    private static final int POOL_SIZE = 16;
+
+    /**
+     * Cached JAXB contexts of the message classes. The contexts are grouped by
+     * the ClassLoader of the message classes, so that all contexts of a game
+     * can be dropped if the classes of the game are reloaded (see
+     * {@link XMLHelper#invalidateContexts}).
+     * @since v1.4
+     */
+    private static final ConcurrentHashMap<ClassLoader, ConcurrentHashMap<Class<?>, CachedContext>> contexts = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the (cached) JAXB context of a class. Creating a JAXBContext is
+     * expensive, therefore every context is only created once per class.
+     *
+     * @param clazz The (message) class.
+     * @return The JAXBContext of the class.
+     * @throws JAXBException Thrown if the context could not be created.
+     * @since v1.4
+     */
+    public static JAXBContext getContext(Class<?> clazz) throws JAXBException {
+        return getCachedContext(clazz).context;
+    }
+
+    /**
+     * Marshals a message into an unformatted XML string (without line breaks).
+     * A pooled marshaller is used.
+     *
+     * @param message The message to marshal.
+     * @return The message as XML string.
+     * @throws JAXBException Thrown if the message could not be marshalled.
+     * @since v1.4
+     */
+    public static String marshal(Message message) throws JAXBException {
+        CachedContext cachedContext = getCachedContext(message.getClass());
+        Marshaller marshaller = borrowMarshaller(cachedContext);
+        StringWriter sw = new StringWriter();
+        marshaller.marshal(message, sw);
+        releaseMarshaller(cachedContext, marshaller);   // Only returned if the marshalling was successful
+        return sw.toString();
+    }
+
+    /**
+     * Marshals a single element as unformatted XML fragment (without XML
+     * declaration). This is used to insert recipient-specific elements (e.g.
+     * the player) into an already marshalled message. A pooled marshaller of
+     * the declared type of the element is used.
+     *
+     * @param element The element to marshal, e.g. the player with the element
+     * name "Player".
+     * @return The element as XML string.
+     * @throws JAXBException Thrown if the element could not be marshalled.
+     * @since v1.5
+     */
+    public static String marshalFragment(JAXBElement<?> element) throws JAXBException {
+        CachedContext cachedContext = getCachedContext(element.getDeclaredType());
+        Marshaller marshaller = borrowMarshaller(cachedContext);
+        StringWriter sw = new StringWriter();
+        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+        marshaller.marshal(element, sw);
+        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.FALSE);
+        releaseMarshaller(cachedContext, marshaller);   // Only returned if the marshalling was successful
+        return sw.toString();
+    }
+
+    /**
+     * Unmarshals a message of a defined class. A pooled unmarshaller is used.
+     *
+     * @param <T> The desired class.
+     * @param reader Reader with the XML of the message.
+     * @param messageClass The desired class.
+     * @return The unmarshalled message.
+     * @throws JAXBException Thrown if the message could not be unmarshalled.
+     * @since v1.4
+     */
+    public static <T> T unmarshal(Reader reader, Class<T> messageClass) throws JAXBException {
+        CachedContext cachedContext = getCachedContext(messageClass);
+        Unmarshaller unmarshaller = borrowUnmarshaller(cachedContext);
+        T result = unmarshaller.unmarshal(new StreamSource(reader), messageClass).getValue();
+        releaseUnmarshaller(cachedContext, unmarshaller);   // Only returned if the unmarshalling was successful
+        return result;
+    }
+
+    /**
+     * Unmarshals a message of a defined class from a StAX reader. The reader
+     * must be positioned on the start tag of the root element. A pooled
+     * unmarshaller is used.
+     *
+     * @param <T> The desired class.
+     * @param reader StAX reader, positioned on the root element.
+     * @param messageClass The desired class.
+     * @return The unmarshalled message.
+     * @throws JAXBException Thrown if the message could not be unmarshalled.
+     * @since v1.4
+     */
+    public static <T> T unmarshal(XMLStreamReader reader, Class<T> messageClass) throws JAXBException {
+        CachedContext cachedContext = getCachedContext(messageClass);
+        Unmarshaller unmarshaller = borrowUnmarshaller(cachedContext);
+        T result = unmarshaller.unmarshal(reader, messageClass).getValue();
+        releaseUnmarshaller(cachedContext, unmarshaller);   // Only returned if the unmarshalling was successful
+        return result;
+    }
+
+    /**
+     * Takes an idle marshaller from the pool or creates a new one.
+     *
+     * @param cachedContext The cache entry of the class.
+     * @return The marshaller.
+     * @throws JAXBException Thrown if the marshaller could not be created.
+     * @since v1.5
+     */
+    private static Marshaller borrowMarshaller(CachedContext cachedContext) throws JAXBException {
+        Marshaller marshaller = cachedContext.marshallers.poll();
+        if (marshaller == null) {
+            return createUnformattedMarshaller(cachedContext.context);
+        }
+        cachedContext.idleMarshallers.decrementAndGet();
+        return marshaller;
+    }
+
+    /**
+     * Returns a marshaller to the pool (if the pool is not full).
+     *
+     * @param cachedContext The cache entry of the class.
+     * @param marshaller The marshaller which is not used anymore.
+     * @since v1.5
+     */
+    private static void releaseMarshaller(CachedContext cachedContext, Marshaller marshaller) {
+        if (cachedContext.idleMarshallers.incrementAndGet() <= POOL_SIZE) {
+            cachedContext.marshallers.add(marshaller);
+        } else {
+            cachedContext.idleMarshallers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Takes an idle unmarshaller from the pool or creates a new one.
+     *
+     * @param cachedContext The cache entry of the class.
+     * @return The unmarshaller.
+     * @throws JAXBException Thrown if the unmarshaller could not be created.
+     * @since v1.4
+     */
+    private static Unmarshaller borrowUnmarshaller(CachedContext cachedContext) throws JAXBException {
+        Unmarshaller unmarshaller = cachedContext.unmarshallers.poll();
+        if (unmarshaller == null) {
+            return cachedContext.context.createUnmarshaller();
+        }
+        cachedContext.idleUnmarshallers.decrementAndGet();
+        return unmarshaller;
+    }
+
+    /**
+     * Returns an unmarshaller to the pool (if the pool is not full).
+     *
+     * @param cachedContext The cache entry of the class.
+     * @param unmarshaller The unmarshaller which is not used anymore.
+     * @since v1.4
+     */
+    private static void releaseUnmarshaller(CachedContext cachedContext, Unmarshaller unmarshaller) {
+        if (cachedContext.idleUnmarshallers.incrementAndGet() <= POOL_SIZE) {
+            cachedContext.unmarshallers.add(unmarshaller);
+        } else {
+            cachedContext.idleUnmarshallers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Removes all cached contexts of classes which were loaded by the passed
+     * ClassLoader. This method must be called if a ClassLoader (e.g. of a
+     * game) is dropped, otherwise the old classes would be used further on.
+     *
+     * @param loader The dropped ClassLoader.
+     * @since v1.4
+     */
+    public static void invalidateContexts(ClassLoader loader) {
+        if (loader != null) {
+            contexts.remove(loader);
+        }
+    }
+
+    /**
+     * Gets or creates the cache entry of a class.
+     *
+     * @param clazz The (message) class.
+     * @return The cache entry.
+     * @throws JAXBException Thrown if the context could not be created.
+     * @since v1.4
+     */
+    private static CachedContext getCachedContext(Class<?> clazz) throws JAXBException {
+        ClassLoader loader = clazz.getClassLoader();
+        if (loader == null) {
+            loader = ClassLoader.getSystemClassLoader();
+        }
+        ConcurrentHashMap<Class<?>, CachedContext> loaderContexts = contexts.get(loader);
+        if (loaderContexts == null) {
+            contexts.putIfAbsent(loader, new ConcurrentHashMap<Class<?>, CachedContext>());
+            loaderContexts = contexts.get(loader);
+        }
+        CachedContext cachedContext = loaderContexts.get(clazz);
+        if (cachedContext == null) {
+            // Several threads could create a context at the same time, but only one will be kept
+            loaderContexts.putIfAbsent(clazz, new CachedContext(JAXBContext.newInstance(clazz)));
+            cachedContext = loaderContexts.get(clazz);
+        }
+        return cachedContext;
+    }
+
+    /**
+     * Creates a marshaller which produces unformatted XML (without line breaks).
+     *
+     * @param context The JAXB context.
+     * @return The marshaller.
+     * @throws JAXBException Thrown if the marshaller could not be created.
+     * @since v1.4
+     */
+    private static Marshaller createUnformattedMarshaller(JAXBContext context) throws JAXBException {
+        Marshaller marshaller = context.createMarshaller();
+        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.FALSE);
+        return marshaller;
+    }
+
+    /**
+     * Cache entry of a class: The JAXB context and the pools of idle
+     * marshallers and unmarshallers (which are not thread-safe and can
+     * therefore only be used by one thread at a time).
+     * @since v1.4
+     */
+    private static class CachedContext {
+
+        /**
+         * The JAXB context of the class.
+         */
+        private final JAXBContext context;
+        /**
+         * Idle marshallers.
+         */
+        private final ConcurrentLinkedQueue<Marshaller> marshallers = new ConcurrentLinkedQueue<>();
+        /**
+         * Number of idle marshallers.
+         */
+        private final AtomicInteger idleMarshallers = new AtomicInteger();
+        /**
+         * Idle unmarshallers.
+         */
+        private final ConcurrentLinkedQueue<Unmarshaller> unmarshallers = new ConcurrentLinkedQueue<>();
+        /**
+         * Number of idle unmarshallers.
+         */
+        private final AtomicInteger idleUnmarshallers = new AtomicInteger();
+
+        /**
+         * Constructor with the JAXB context.
+         *
+         * @param context The JAXB context of the class.
+         */
+        private CachedContext(JAXBContext context) {
+            this.context = context;
+        }
+    }
+
     /**
      * This method returns a {@link javax.xml.bind.Marshaller} . This object
      * belongs to {@link JAXBContext} which is responsible for unmarshalling XML
@@ -31,7 +304,9 @@ public class XMLHelper {
      * unformatted XML output. In consequence, the XML will contain no line
      * breaks. This is useful when sending it to the server or the clients as
      * the client or the server can just read the first line from the buffer and
-     * immediately interpret it as XML.
+     * immediately interpret it as XML.<br>
+     * The context is cached (since v1.4). Use {@link XMLHelper#marshal} to
+     * marshal with a pooled marshaller.
      *
      * @param message The message to be unformatted.
      * @return The resulting Marshaller
@@ -47,11 +322,10 @@ public class XMLHelper {
        for(int i = 0; i < 5; i++)  // In case of an exception, let's try n times and then give up (and handle error message)
        { 
             try {
-                context = JAXBContext.newInstance(message.getClass());
-                marshaller = context.createMarshaller();
+                context = getContext(message.getClass());
 
                 // Set the JAXB_FORMATTED_OUTPUT property.
-                marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.FALSE);
+                marshaller = createUnformattedMarshaller(context);
                 return marshaller;
 
             } catch (JAXBException ex) {
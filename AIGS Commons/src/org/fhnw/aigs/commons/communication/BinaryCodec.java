@@ -0,0 +1,1167 @@
+package org.fhnw.aigs.commons.communication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlElementWrapper;
+import javax.xml.bind.annotation.XmlTransient;
+import javax.xml.stream.XMLStreamException;
+import org.fhnw.aigs.commons.LogRouter;
+import org.fhnw.aigs.commons.XMLHelper;
+
+/**
+ * Compact binary encoding of messages (see {@link MessageEncoding#binary}).
+ * The encoding of a message class is derived from its JAXB annotations: All
+ * properties which JAXB would marshal (public getter / setter pairs and
+ * annotated getters, without {@literal @}XmlTransient) are written in the order
+ * of their names, without any names or tags. Message classes of AIGS Commons
+ * are identified by a fixed type ID, all other classes (e.g. of games) by their
+ * class name.<br>
+ * Classes which cannot be mapped (e.g. with field annotations, adapters or
+ * unsupported types) are embedded as XML into the binary frame. Therefore every
+ * message can be sent, only the size benefit is lost.<br>
+ * Structure of a frame:<br><ul>
+ * <li>4 bytes: Length of the frame body (big-endian), see {@link BinaryCodec#HEADER_LENGTH}</li>
+ * <li>1 byte: Kind of the body (0 = XML, 1 = binary)</li>
+ * <li>XML body: The marshalled message (UTF-8)</li>
+ * <li>Binary body: Type ID (varint, 0 = followed by the class name),
+ * fingerprint of the class (4 bytes) and the values of the properties</li></ul>
+ * The fingerprint protects against different versions of a class on the server
+ * and the client.<br>
+ * The same frames (only with XML bodies) are used by the encoding
+ * {@link MessageEncoding#framedXml}.<br>
+ * v1.0 Initial release<br>
+ * v1.1 Frames with XML bodies for the framed XML encoding
+ *
+ * @version 1.1
+ */
+public class BinaryCodec {
+
+    /**
+     * Length of the frame header (length of the body as 4 byte integer).
+     */
+    public static final int HEADER_LENGTH = 4;
+
+    /**
+     * Kind of a frame body: Embedded XML.
+     */
+    private static final byte KIND_XML = 0;
+    /**
+     * Kind of a frame body: Binary encoded properties.
+     */
+    private static final byte KIND_BINARY = 1;
+    /**
+     * Maximum nesting depth of objects in a message. Deeper messages are sent
+     * as XML, deeper frames are rejected.
+     */
+    private static final int MAX_DEPTH = 32;
+
+    /**
+     * The message classes of AIGS Commons which have a fixed type ID (position
+     * in the array + 1). New classes must only be appended, otherwise older
+     * clients cannot decode the messages anymore.
+     */
+    private static final Class<?>[] KNOWN_CLASSES = new Class<?>[]{
+        BadInputMessage.class, ClientClosedMessage.class, ExceptionMessage.class,
+        FieldChangedMessage.class, FieldClickFeedbackMessage.class, FieldClickMessage.class,
+        ForceCloseMessage.class, GameEndsMessage.class, GameStartMessage.class,
+        IdentificationMessage.class, IdentificationResponseMessage.class, JoinMessage.class,
+        JoinResponseMessage.class, KeepAliveMessage.class, NotifyMessage.class,
+        PlayerChangedMessage.class, ResultMessage.class};
+
+    /**
+     * The type IDs of the known classes.
+     */
+    private static final HashMap<Class<?>, Integer> knownIds = new HashMap<>();
+
+    static {
+        for (int i = 0; i < KNOWN_CLASSES.length; i++) {
+            knownIds.put(KNOWN_CLASSES[i], i + 1);
+        }
+    }
+
+    // Kinds of the values
+    private static final int K_BOOLEAN = 0;
+    private static final int K_BYTE = 1;
+    private static final int K_SHORT = 2;
+    private static final int K_CHAR = 3;
+    private static final int K_INT = 4;
+    private static final int K_LONG = 5;
+    private static final int K_FLOAT = 6;
+    private static final int K_DOUBLE = 7;
+    private static final int K_STRING = 8;
+    private static final int K_ENUM = 9;
+    private static final int K_DATE = 10;
+    private static final int K_BOXED = 11;
+    private static final int K_ARRAY = 12;
+    private static final int K_LIST = 13;
+    private static final int K_BEAN = 14;
+
+    /**
+     * The mapped classes (messages and nested objects).
+     */
+    private static final ConcurrentHashMap<Class<?>, ClassModel> models = new ConcurrentHashMap<>();
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private BinaryCodec() {
+    }
+
+    /**
+     * Encodes a message into a complete frame (including the header).
+     *
+     * @param message The message to encode.
+     * @return The frame.
+     * @throws JAXBException Thrown if the message has to be embedded as XML
+     * and could not be marshalled.
+     */
+    public static byte[] encode(Message message) throws JAXBException {
+        Output out = new Output();
+        ClassModel model = getModel(message.getClass());
+        if (model.supported == true) {
+            try {
+                out.write(KIND_BINARY);
+                Integer typeId = knownIds.get(message.getClass());
+                if (typeId != null) {
+                    out.writeVarInt(typeId);
+                } else {
+                    out.writeVarInt(0);
+                    out.writeString(message.getClass().getName());
+                }
+                out.writeFixedInt(model.fingerprint);
+                writeProperties(out, model, message, 0);
+                return out.toFrame();
+            } catch (NotEncodableException | ReflectiveOperationException ex) {
+                // E.g. a subclass as value of a property -> Embed as XML
+            }
+        }
+        return encodeXml(XMLHelper.marshal(message).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Creates a complete frame (including the header) with an XML body. The
+     * body consists of the passed parts (e.g. head, player and tail of a
+     * broadcast message, see {@link Message#broadcast}).
+     *
+     * @param parts The marshalled message (UTF-8), possibly in several parts.
+     * @return The frame.
+     * @since v1.1
+     */
+    public static byte[] encodeXml(byte[]... parts) {
+        int length = 1;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] frame = new byte[HEADER_LENGTH + length];
+        writeLength(frame, 0, length);
+        frame[HEADER_LENGTH] = KIND_XML;
+        int position = HEADER_LENGTH + 1;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, frame, position, part.length);
+            position += part.length;
+        }
+        return frame;
+    }
+
+    /**
+     * Decodes the body of a frame (without header). The data is completely
+     * processed before the method returns, the array can therefore be reused.
+     *
+     * @param data Array with the frame body.
+     * @param offset Offset of the body in the array.
+     * @param length Length of the body.
+     * @param loader The ClassLoader to load the message class (e.g. the
+     * ClassLoader of the game).
+     * @return The decoded message.
+     * @throws IOException Thrown if the frame is malformed or was encoded with
+     * another version of the message class.
+     * @throws ClassNotFoundException Thrown if the message class could not be
+     * found.
+     * @throws XMLStreamException Thrown if an embedded XML message is malformed.
+     */
+    public static Message decode(byte[] data, int offset, int length, ClassLoader loader) throws IOException, ClassNotFoundException, XMLStreamException {
+        Input in = new Input(data, offset, length);
+        byte kind = in.readByte();
+        if (kind == KIND_XML) {
+            return MessageDecoder.decode(data, offset + 1, length - 1, loader);
+        } else if (kind != KIND_BINARY) {
+            throw new IOException("Unknown kind of frame: " + kind);
+        }
+        int typeId = in.readVarInt();
+        Class<? extends Message> messageClass;
+        if (typeId == 0) {
+            messageClass = MessageDecoder.resolveClass(in.readString(), loader);
+        } else if (typeId <= KNOWN_CLASSES.length) {
+            messageClass = KNOWN_CLASSES[typeId - 1].asSubclass(Message.class);
+        } else {
+            throw new IOException("Unknown type ID: " + typeId);
+        }
+        ClassModel model = getModel(messageClass);
+        if (model.supported == false || in.readFixedInt() != model.fingerprint) {
+            throw new IOException("The class " + messageClass.getName() + " differs from the class of the sender.");
+        }
+        try {
+            Object message = model.constructor.newInstance();
+            readProperties(in, model, message, 0);
+            if (in.remaining() != 0) {
+                throw new IOException("The frame contains unexpected data.");
+            }
+            return (Message) message;
+        } catch (ReflectiveOperationException ex) {
+            throw new IOException("The message " + messageClass.getName() + " could not be created.", ex);
+        }
+    }
+
+    /**
+     * Reads the length of a frame body from the header.
+     *
+     * @param header Array with the header.
+     * @param offset Offset of the header in the array.
+     * @return The length of the frame body.
+     */
+    public static int readLength(byte[] header, int offset) {
+        return ((header[offset] & 0xFF) << 24) | ((header[offset + 1] & 0xFF) << 16)
+                | ((header[offset + 2] & 0xFF) << 8) | (header[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Writes the length of a frame body into the header.
+     *
+     * @param header Array with the header.
+     * @param offset Offset of the header in the array.
+     * @param length The length of the frame body.
+     * @since v1.1
+     */
+    public static void writeLength(byte[] header, int offset, int length) {
+        header[offset] = (byte) (length >>> 24);
+        header[offset + 1] = (byte) (length >>> 16);
+        header[offset + 2] = (byte) (length >>> 8);
+        header[offset + 3] = (byte) length;
+    }
+
+    /**
+     * Removes all mapped classes of a dropped ClassLoader.
+     *
+     * @param loader The dropped ClassLoader.
+     */
+    public static void invalidateClasses(ClassLoader loader) {
+        if (loader == null) {
+            return;
+        }
+        Iterator<Class<?>> i = models.keySet().iterator();
+        while (i.hasNext()) {
+            if (i.next().getClassLoader() == loader) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Writes all properties of an object.
+     *
+     * @param out The output.
+     * @param model The model of the class.
+     * @param object The object.
+     * @param depth The nesting depth of the object.
+     * @throws NotEncodableException Thrown if a value cannot be encoded.
+     * @throws ReflectiveOperationException Thrown if a getter failed.
+     */
+    private static void writeProperties(Output out, ClassModel model, Object object, int depth) throws NotEncodableException, ReflectiveOperationException {
+        if (depth > MAX_DEPTH) {
+            throw new NotEncodableException("The message is nested deeper than " + MAX_DEPTH + " levels");
+        }
+        for (Property property : model.properties) {
+            writeValue(out, property.codec, property.getter.invoke(object), depth);
+        }
+    }
+
+    /**
+     * Reads all properties of an object.
+     *
+     * @param in The input.
+     * @param model The model of the class.
+     * @param object The (new) object.
+     * @param depth The nesting depth of the object.
+     * @throws IOException Thrown if the frame is malformed or nested too deeply.
+     * @throws ReflectiveOperationException Thrown if a setter failed.
+     */
+    private static void readProperties(Input in, ClassModel model, Object object, int depth) throws IOException, ReflectiveOperationException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("The frame is nested deeper than " + MAX_DEPTH + " levels.");
+        }
+        for (Property property : model.properties) {
+            property.setter.invoke(object, readValue(in, property.codec, depth));
+        }
+    }
+
+    /**
+     * Writes one value.
+     *
+     * @param out The output.
+     * @param codec The type of the value.
+     * @param value The value (can be null for reference types).
+     * @param depth The nesting depth of the object which contains the value.
+     * @throws NotEncodableException Thrown if the value cannot be encoded.
+     * @throws ReflectiveOperationException Thrown if a getter failed.
+     */
+    private static void writeValue(Output out, TypeCodec codec, Object value, int depth) throws NotEncodableException, ReflectiveOperationException {
+        switch (codec.kind) {
+            case K_BOOLEAN:
+                out.write((Boolean) value ? 1 : 0);
+                break;
+            case K_BYTE:
+                out.write((Byte) value);
+                break;
+            case K_SHORT:
+                out.writeVarInt(zigZag((Short) value));
+                break;
+            case K_CHAR:
+                out.writeVarInt((Character) value);
+                break;
+            case K_INT:
+                out.writeVarInt(zigZag((Integer) value));
+                break;
+            case K_LONG:
+                out.writeVarLong(zigZag((Long) value));
+                break;
+            case K_FLOAT:
+                out.writeFixedInt(Float.floatToIntBits((Float) value));
+                break;
+            case K_DOUBLE:
+                out.writeFixedLong(Double.doubleToLongBits((Double) value));
+                break;
+            case K_STRING:
+                out.writeString((String) value);
+                break;
+            case K_ENUM:
+                out.writeVarInt(value == null ? 0 : ((Enum<?>) value).ordinal() + 1);
+                break;
+            case K_DATE:
+                if (value == null) {
+                    out.write(0);
+                } else {
+                    out.write(1);
+                    out.writeVarLong(zigZag(((Date) value).getTime()));
+                }
+                break;
+            case K_BOXED:
+                if (value == null) {
+                    out.write(0);
+                } else {
+                    out.write(1);
+                    writeValue(out, codec.element, value, depth);
+                }
+                break;
+            case K_ARRAY:
+                if (value == null) {
+                    out.writeVarInt(0);
+                } else {
+                    int length = Array.getLength(value);
+                    out.writeVarInt(length + 1);
+                    for (int i = 0; i < length; i++) {
+                        writeValue(out, codec.element, Array.get(value, i), depth);
+                    }
+                }
+                break;
+            case K_LIST:
+                if (value == null) {
+                    out.writeVarInt(0);
+                } else {
+                    Collection<?> list = (Collection<?>) value;
+                    out.writeVarInt(list.size() + 1);
+                    for (Object element : list) {
+                        writeValue(out, codec.element, element, depth);
+                    }
+                }
+                break;
+            default: // K_BEAN
+                if (value == null) {
+                    out.write(0);
+                } else {
+                    if (value.getClass() != codec.type) {
+                        throw new NotEncodableException("Subclass " + value.getClass().getName() + " of " + codec.type.getName());
+                    }
+                    out.write(1);
+                    writeProperties(out, codec.bean, value, depth + 1);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Reads one value.
+     *
+     * @param in The input.
+     * @param codec The type of the value.
+     * @param depth The nesting depth of the object which contains the value.
+     * @return The value.
+     * @throws IOException Thrown if the frame is malformed.
+     * @throws ReflectiveOperationException Thrown if an object could not be
+     * created.
+     */
+    private static Object readValue(Input in, TypeCodec codec, int depth) throws IOException, ReflectiveOperationException {
+        switch (codec.kind) {
+            case K_BOOLEAN:
+                return in.readByte() != 0;
+            case K_BYTE:
+                return in.readByte();
+            case K_SHORT:
+                return (short) unZigZag(in.readVarInt());
+            case K_CHAR:
+                return (char) in.readVarInt();
+            case K_INT:
+                return unZigZag(in.readVarInt());
+            case K_LONG:
+                return unZigZag(in.readVarLong());
+            case K_FLOAT:
+                return Float.intBitsToFloat(in.readFixedInt());
+            case K_DOUBLE:
+                return Double.longBitsToDouble(in.readFixedLong());
+            case K_STRING:
+                return in.readString();
+            case K_ENUM: {
+                int ordinal = in.readVarInt();
+                if (ordinal == 0) {
+                    return null;
+                }
+                Object[] constants = codec.type.getEnumConstants();
+                if (ordinal > constants.length) {
+                    throw new IOException("Unknown value of " + codec.type.getName());
+                }
+                return constants[ordinal - 1];
+            }
+            case K_DATE:
+                return in.readByte() == 0 ? null : new Date(unZigZag(in.readVarLong()));
+            case K_BOXED:
+                return in.readByte() == 0 ? null : readValue(in, codec.element, depth);
+            case K_ARRAY: {
+                int length = in.readLength();
+                if (length < 0) {
+                    return null;
+                }
+                Object array = Array.newInstance(codec.element.type, length);
+                for (int i = 0; i < length; i++) {
+                    Array.set(array, i, readValue(in, codec.element, depth));
+                }
+                return array;
+            }
+            case K_LIST: {
+                int length = in.readLength();
+                if (length < 0) {
+                    return null;
+                }
+                ArrayList<Object> list = new ArrayList<>(length);
+                for (int i = 0; i < length; i++) {
+                    list.add(readValue(in, codec.element, depth));
+                }
+                return list;
+            }
+            default: // K_BEAN
+                if (in.readByte() == 0) {
+                    return null;
+                }
+                Object bean = codec.bean.constructor.newInstance();
+                readProperties(in, codec.bean, bean, depth + 1);
+                return bean;
+        }
+    }
+
+    /**
+     * Gets the model of a class. The model is created at the first call.
+     *
+     * @param clazz The class.
+     * @return The model. If the class cannot be mapped, the model is marked
+     * as not supported.
+     */
+    private static ClassModel getModel(Class<?> clazz) {
+        ClassModel model = models.get(clazz);
+        if (model == null) {
+            model = createModel(clazz);
+        }
+        return model;
+    }
+
+    /**
+     * Creates the model of a class and of all nested classes. The models are
+     * only published if the whole class could be mapped.
+     *
+     * @param clazz The class.
+     * @return The model.
+     */
+    private static synchronized ClassModel createModel(Class<?> clazz) {
+        ClassModel model = models.get(clazz);
+        if (model != null) {
+            return model;
+        }
+        HashMap<Class<?>, ClassModel> created = new HashMap<>();
+        try {
+            model = createBeanModel(clazz, created);
+            for (ClassModel createdModel : created.values()) {
+                StringBuilder signature = new StringBuilder();
+                appendSignature(signature, createdModel, new HashSet<Class<?>>());
+                createdModel.fingerprint = signature.toString().hashCode();
+            }
+            models.putAll(created);
+        } catch (NotEncodableException ex) {
+            model = new ClassModel(clazz, null);
+            model.supported = false;
+            models.put(clazz, model);
+            LogRouter.log(BinaryCodec.class.getName(), Level.INFO, "The class {0} will be sent as XML: " + ex.getMessage(), clazz.getName());
+        }
+        return model;
+    }
+
+    /**
+     * Maps a class with JAXB conventions (properties of public getters and
+     * setters). Classes with public fields are not mapped, as JAXB marshals
+     * them too (access type PUBLIC_MEMBER).
+     *
+     * @param clazz The class.
+     * @param created The models created so far (for nested and recursive
+     * classes).
+     * @return The model.
+     * @throws NotEncodableException Thrown if the class cannot be mapped.
+     */
+    private static ClassModel createBeanModel(Class<?> clazz, HashMap<Class<?>, ClassModel> created) throws NotEncodableException {
+        ClassModel model = models.get(clazz);
+        if (model == null) {
+            model = created.get(clazz);
+        }
+        if (model != null) {
+            if (model.supported == false) {
+                throw new NotEncodableException("Class " + clazz.getName() + " cannot be mapped");
+            }
+            return model;
+        }
+        if (clazz.isInterface() || Modifier.isAbstract(clazz.getModifiers()) || clazz.getName().startsWith("java.") || clazz.getName().startsWith("javax.")) {
+            throw new NotEncodableException("Type " + clazz.getName() + " is not supported");
+        }
+        XmlAccessorType accessorType = clazz.getAnnotation(XmlAccessorType.class);
+        if (accessorType != null && accessorType.value() != XmlAccessType.PUBLIC_MEMBER && accessorType.value() != XmlAccessType.PROPERTY) {
+            throw new NotEncodableException("Access type " + accessorType.value() + " of " + clazz.getName());
+        }
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (hasJaxbAnnotation(field.getAnnotations(), false) == true) {
+                    throw new NotEncodableException("Annotated field " + field.getName() + " in " + c.getName());
+                }
+                int modifiers = field.getModifiers();
+                if (accessorType == null || accessorType.value() == XmlAccessType.PUBLIC_MEMBER) {
+                    if (Modifier.isPublic(modifiers) && Modifier.isStatic(modifiers) == false && Modifier.isTransient(modifiers) == false
+                            && field.isAnnotationPresent(XmlTransient.class) == false) {
+                        throw new NotEncodableException("Public field " + field.getName() + " in " + c.getName());
+                    }
+                }
+            }
+        }
+        Constructor<?> constructor;
+        try {
+            constructor = clazz.getDeclaredConstructor();
+            constructor.setAccessible(true);
+        } catch (NoSuchMethodException | SecurityException ex) {
+            throw new NotEncodableException("No empty constructor in " + clazz.getName());
+        }
+        model = new ClassModel(clazz, constructor);
+        created.put(clazz, model);
+
+        ArrayList<Property> properties = new ArrayList<>();
+        for (Method getter : clazz.getMethods()) {
+            String name = getPropertyName(getter);
+            if (name == null || getter.isAnnotationPresent(XmlTransient.class)) {
+                continue;
+            }
+            boolean annotated = hasJaxbAnnotation(getter.getAnnotations(), true);
+            Method setter;
+            try {
+                setter = clazz.getMethod("set" + name, getter.getReturnType());
+            } catch (NoSuchMethodException ex) {
+                setter = null;
+            }
+            if (setter == null || Modifier.isStatic(setter.getModifiers())) {
+                // Read-only properties are ignored by JAXB, unless they are annotated
+                if (annotated == true && (getter.getName().equals("getFullyQualifiedName") && getter.getDeclaringClass() == Message.class) == false) {
+                    throw new NotEncodableException("Read-only property " + name + " in " + clazz.getName());
+                }
+                continue;
+            }
+            if (setter.isAnnotationPresent(XmlTransient.class)) {
+                continue;
+            }
+            if (hasJaxbAnnotation(setter.getAnnotations(), false) == true) {
+                throw new NotEncodableException("Annotated setter of " + name + " in " + clazz.getName());
+            }
+            properties.add(new Property(name, getter, setter, createTypeCodec(getter.getGenericReturnType(), created)));
+        }
+        Collections.sort(properties, new Comparator<Property>() {
+            @Override
+            public int compare(Property p1, Property p2) {
+                return p1.name.compareTo(p2.name);
+            }
+        });
+        model.properties = properties.toArray(new Property[properties.size()]);
+        return model;
+    }
+
+    /**
+     * Gets the property name of a getter.
+     *
+     * @param method The method.
+     * @return The name of the property (e.g. "Player"), or null if the method
+     * is not a getter.
+     */
+    private static String getPropertyName(Method method) {
+        if (Modifier.isStatic(method.getModifiers()) || method.getParameterTypes().length > 0
+                || method.getDeclaringClass() == Object.class || method.getReturnType() == void.class) {
+            return null;
+        }
+        String name = method.getName();
+        if (name.startsWith("get") && name.length() > 3) {
+            return name.substring(3);
+        }
+        if (name.startsWith("is") && name.length() > 2 && method.getReturnType() == boolean.class) {
+            return name.substring(2);
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether JAXB annotations are present.
+     *
+     * @param annotations The annotations of a field or method.
+     * @param allowElements If true, {@literal @}XmlElement, {@literal @}XmlAttribute
+     * and {@literal @}XmlElementWrapper are allowed (they only define names).
+     * @return True if another JAXB annotation is present.
+     */
+    private static boolean hasJaxbAnnotation(Annotation[] annotations, boolean allowElements) {
+        for (Annotation annotation : annotations) {
+            Class<? extends Annotation> type = annotation.annotationType();
+            if (type.getName().startsWith("javax.xml.bind.annotation") == false || type == XmlTransient.class) {
+                continue;
+            }
+            if (allowElements == true && (type == XmlElement.class || type == XmlAttribute.class || type == XmlElementWrapper.class)) {
+                continue;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Creates the codec of a type.
+     *
+     * @param type The (generic) type.
+     * @param created The models created so far.
+     * @return The codec.
+     * @throws NotEncodableException Thrown if the type is not supported.
+     */
+    private static TypeCodec createTypeCodec(Type type, HashMap<Class<?>, ClassModel> created) throws NotEncodableException {
+        if (type instanceof ParameterizedType) {
+            ParameterizedType parameterizedType = (ParameterizedType) type;
+            Type rawType = parameterizedType.getRawType();
+            Type elementType = parameterizedType.getActualTypeArguments()[0];
+            if ((rawType == List.class || rawType == ArrayList.class || rawType == Collection.class) && elementType instanceof Class) {
+                return new TypeCodec(K_LIST, (Class<?>) rawType, createTypeCodec(elementType, created), null);
+            }
+            throw new NotEncodableException("Type " + type + " is not supported");
+        }
+        if (type instanceof Class == false) {
+            throw new NotEncodableException("Type " + type + " is not supported");
+        }
+        Class<?> clazz = (Class<?>) type;
+        if (clazz.isPrimitive()) {
+            return new TypeCodec(getPrimitiveKind(clazz), clazz, null, null);
+        }
+        Class<?> primitive = getPrimitive(clazz);
+        if (primitive != null) {
+            return new TypeCodec(K_BOXED, clazz, new TypeCodec(getPrimitiveKind(primitive), primitive, null, null), null);
+        }
+        if (clazz == String.class) {
+            return new TypeCodec(K_STRING, clazz, null, null);
+        }
+        if (clazz.isEnum()) {
+            return new TypeCodec(K_ENUM, clazz, null, null);
+        }
+        if (clazz == Date.class) {
+            return new TypeCodec(K_DATE, clazz, null, null);
+        }
+        if (clazz.isArray()) {
+            return new TypeCodec(K_ARRAY, clazz, createTypeCodec(clazz.getComponentType(), created), null);
+        }
+        return new TypeCodec(K_BEAN, clazz, null, createBeanModel(clazz, created));
+    }
+
+    /**
+     * Gets the kind of a primitive type.
+     *
+     * @param primitive The primitive type.
+     * @return The kind.
+     * @throws NotEncodableException Thrown if the type is not supported.
+     */
+    private static int getPrimitiveKind(Class<?> primitive) throws NotEncodableException {
+        if (primitive == boolean.class) {
+            return K_BOOLEAN;
+        } else if (primitive == byte.class) {
+            return K_BYTE;
+        } else if (primitive == short.class) {
+            return K_SHORT;
+        } else if (primitive == char.class) {
+            return K_CHAR;
+        } else if (primitive == int.class) {
+            return K_INT;
+        } else if (primitive == long.class) {
+            return K_LONG;
+        } else if (primitive == float.class) {
+            return K_FLOAT;
+        } else if (primitive == double.class) {
+            return K_DOUBLE;
+        }
+        throw new NotEncodableException("Type " + primitive + " is not supported");
+    }
+
+    /**
+     * Gets the primitive type of a wrapper class.
+     *
+     * @param clazz The class.
+     * @return The primitive type or null if the class is no wrapper class.
+     */
+    private static Class<?> getPrimitive(Class<?> clazz) {
+        if (clazz == Boolean.class) {
+            return boolean.class;
+        } else if (clazz == Byte.class) {
+            return byte.class;
+        } else if (clazz == Short.class) {
+            return short.class;
+        } else if (clazz == Character.class) {
+            return char.class;
+        } else if (clazz == Integer.class) {
+            return int.class;
+        } else if (clazz == Long.class) {
+            return long.class;
+        } else if (clazz == Float.class) {
+            return float.class;
+        } else if (clazz == Double.class) {
+            return double.class;
+        }
+        return null;
+    }
+
+    /**
+     * Appends the signature of a class (names and types of all properties,
+     * including nested classes) to calculate the fingerprint.
+     *
+     * @param signature The signature so far.
+     * @param model The model of the class.
+     * @param visited The classes which were already appended.
+     */
+    private static void appendSignature(StringBuilder signature, ClassModel model, HashSet<Class<?>> visited) {
+        signature.append(model.type.getName());
+        if (visited.add(model.type) == false) {
+            return;
+        }
+        signature.append('{');
+        for (Property property : model.properties) {
+            signature.append(property.name).append(':');
+            for (TypeCodec codec = property.codec; codec != null; codec = codec.element) {
+                signature.append(codec.type.getName()).append('/');
+                if (codec.bean != null) {
+                    appendSignature(signature, codec.bean, visited);
+                }
+            }
+            signature.append(';');
+        }
+        signature.append('}');
+    }
+
+    /**
+     * ZigZag encoding of an integer (small negative values get small codes).
+     */
+    private static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * ZigZag encoding of a long.
+     */
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * ZigZag decoding of an integer.
+     */
+    private static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * ZigZag decoding of a long.
+     */
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Mapping of a class: Its constructor and properties.
+     */
+    private static class ClassModel {
+
+        /**
+         * The mapped class.
+         */
+        private final Class<?> type;
+        /**
+         * The empty constructor of the class.
+         */
+        private final Constructor<?> constructor;
+        /**
+         * The properties, ordered by their names.
+         */
+        private Property[] properties = new Property[0];
+        /**
+         * Hash of the names and types of all properties.
+         */
+        private int fingerprint;
+        /**
+         * False if the class cannot be mapped and is sent as XML.
+         */
+        private boolean supported = true;
+
+        /**
+         * Constructor of the model.
+         *
+         * @param type The mapped class.
+         * @param constructor The empty constructor of the class.
+         */
+        private ClassModel(Class<?> type, Constructor<?> constructor) {
+            this.type = type;
+            this.constructor = constructor;
+        }
+    }
+
+    /**
+     * One property of a class.
+     */
+    private static class Property {
+
+        /**
+         * The name of the property.
+         */
+        private final String name;
+        /**
+         * The getter of the property.
+         */
+        private final Method getter;
+        /**
+         * The setter of the property.
+         */
+        private final Method setter;
+        /**
+         * The codec of the property type.
+         */
+        private final TypeCodec codec;
+
+        /**
+         * Constructor of the property.
+         *
+         * @param name The name of the property.
+         * @param getter The getter of the property.
+         * @param setter The setter of the property.
+         * @param codec The codec of the property type.
+         */
+        private Property(String name, Method getter, Method setter, TypeCodec codec) {
+            this.name = name;
+            this.getter = getter;
+            this.setter = setter;
+            this.codec = codec;
+        }
+    }
+
+    /**
+     * Encoding of a type.
+     */
+    private static class TypeCodec {
+
+        /**
+         * Kind of the type (K_...).
+         */
+        private final int kind;
+        /**
+         * The type.
+         */
+        private final Class<?> type;
+        /**
+         * The codec of the elements (arrays and lists) or of the primitive
+         * type (wrapper classes).
+         */
+        private final TypeCodec element;
+        /**
+         * The model of a nested class.
+         */
+        private final ClassModel bean;
+
+        /**
+         * Constructor of the codec.
+         *
+         * @param kind Kind of the type.
+         * @param type The type.
+         * @param element The codec of the elements or null.
+         * @param bean The model of a nested class or null.
+         */
+        private TypeCodec(int kind, Class<?> type, TypeCodec element, ClassModel bean) {
+            this.kind = kind;
+            this.type = type;
+            this.element = element;
+            this.bean = bean;
+        }
+    }
+
+    /**
+     * Output buffer of a frame. The first bytes are reserved for the header.
+     */
+    private static class Output extends ByteArrayOutputStream {
+
+        /**
+         * Creates the buffer and reserves the header.
+         */
+        private Output() {
+            super(256);
+            count = HEADER_LENGTH;
+        }
+
+        /**
+         * Writes a variable-length integer (7 bits per byte).
+         */
+        private void writeVarInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        /**
+         * Writes a variable-length long (7 bits per byte).
+         */
+        private void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        /**
+         * Writes a 4 byte integer (big-endian).
+         */
+        private void writeFixedInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        /**
+         * Writes an 8 byte long (big-endian).
+         */
+        private void writeFixedLong(long value) {
+            writeFixedInt((int) (value >>> 32));
+            writeFixedInt((int) value);
+        }
+
+        /**
+         * Writes a string (length + 1 as varint, 0 = null, followed by UTF-8).
+         */
+        private void writeString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length + 1);
+            write(bytes, 0, bytes.length);
+        }
+
+        /**
+         * Completes the frame by writing the header.
+         *
+         * @return The frame.
+         */
+        private byte[] toFrame() {
+            byte[] frame = toByteArray();
+            writeLength(frame, 0, frame.length - HEADER_LENGTH);
+            return frame;
+        }
+    }
+
+    /**
+     * Input of a frame body. All reads are checked against the end of the frame.
+     */
+    private static class Input {
+
+        /**
+         * The data.
+         */
+        private final byte[] data;
+        /**
+         * The current position.
+         */
+        private int position;
+        /**
+         * The end of the frame.
+         */
+        private final int limit;
+
+        /**
+         * Constructor of the input.
+         *
+         * @param data The data.
+         * @param offset Offset of the frame body.
+         * @param length Length of the frame body.
+         */
+        private Input(byte[] data, int offset, int length) {
+            this.data = data;
+            this.position = offset;
+            this.limit = offset + length;
+        }
+
+        /**
+         * Number of remaining bytes.
+         */
+        private int remaining() {
+            return limit - position;
+        }
+
+        /**
+         * Reads one byte.
+         */
+        private byte readByte() throws EOFException {
+            if (position >= limit) {
+                throw new EOFException("The frame is truncated.");
+            }
+            return data[position++];
+        }
+
+        /**
+         * Reads a variable-length integer.
+         */
+        private int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed variable-length integer.");
+        }
+
+        /**
+         * Reads a variable-length long.
+         */
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed variable-length long.");
+        }
+
+        /**
+         * Reads a 4 byte integer (big-endian).
+         */
+        private int readFixedInt() throws EOFException {
+            if (remaining() < 4) {
+                throw new EOFException("The frame is truncated.");
+            }
+            int value = BinaryCodec.readLength(data, position);
+            position += 4;
+            return value;
+        }
+
+        /**
+         * Reads an 8 byte long (big-endian).
+         */
+        private long readFixedLong() throws EOFException {
+            return ((long) readFixedInt() << 32) | (readFixedInt() & 0xFFFFFFFFL);
+        }
+
+        /**
+         * Reads the length of an array, list or string (length + 1, 0 = null).
+         * Every element has at least one byte, therefore the length is checked
+         * against the remaining bytes (protection against huge allocations).
+         *
+         * @return The length or -1 for null.
+         */
+        private int readLength() throws IOException {
+            int length = readVarInt() - 1;
+            if (length > remaining() || length < -1) {
+                throw new IOException("Invalid length in frame: " + length);
+            }
+            return length;
+        }
+
+        /**
+         * Reads a string.
+         */
+        private String readString() throws IOException {
+            int length = readLength();
+            if (length < 0) {
+                return null;
+            }
+            String value = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+
+    /**
+     * Thrown if a class or value cannot be encoded binary.
+     */
+    private static class NotEncodableException extends Exception {
+
+        /**
+         * Version of the serialized form.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructor with the reason.
+         *
+         * @param message The reason.
+         */
+        private NotEncodableException(String message) {
+            super(message);
+        }
+    }
+}
@@ -11,10 +11,12 @@ import javax.xml.bind.annotation.*;
  * There is a test user called "test" having the
  * {@link IdentificationMessage#password} "1".<br>
  * v1.0 Initial release<br>
- * v1.1 added login name (split up of name into display and login name)
+ * v1.1 added login name (split up of name into display and login name)<br>
+ * v1.2 Supported encodings of the client (see {@link MessageEncoding})<br>
+ * v1.3 Session token to resume a session after a lost connection
  *
  * @author Matthias Stöckli (v1.0)
- * @version v1.1 (Raphael Stockli, 20.10.2014)
+ * @version v1.3
  */
 @XmlRootElement(name = "IdentificationMessage")
 public class IdentificationMessage extends Message {
@@ -34,6 +36,26 @@ public class IdentificationMessage extends Message {
      */
     private String playerName;
 
+    /**
+     * The encodings which are supported by the client, in the order of
+     * preference. The server decides which encoding is used after the login
+     * (see {@link IdentificationResponseMessage#getEncoding}). Is null with
+     * older clients, which only support XML.
+     * @since v1.2
+     */
+    private MessageEncoding[] supportedEncodings;
+
+    /**
+     * The session token of a previous connection (see
+     * {@link IdentificationResponseMessage#getSessionToken}). If the server
+     * still holds the session, the player is reattached to his or her game
+     * and the messages sent in the meantime are delivered. Otherwise a normal
+     * login with the login name and password takes place. Is null for new
+     * sessions.
+     * @since v1.3
+     */
+    private String sessionToken;
+
     /**
      * Empty constructor. This is needed for JAXB parsing.
      */
@@ -77,6 +99,25 @@ public class IdentificationMessage extends Message {
         return playerName;
     }
 
+    /**
+     * See {@link supportedEncodings}
+     * @since v1.2
+     */
+    @XmlElementWrapper(name = "SupportedEncodings")
+    @XmlElement(name = "Encoding")
+    public MessageEncoding[] getSupportedEncodings() {
+        return supportedEncodings;
+    }
+
+    /**
+     * See {@link sessionToken}
+     * @since v1.3
+     */
+    @XmlElement(name = "SessionToken")
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
     /**
      * See {@link password}
      */
@@ -99,4 +140,39 @@ public class IdentificationMessage extends Message {
         this.playerName = playerName;
                 
     }
+
+    /**
+     * See {@link supportedEncodings}
+     * @since v1.2
+     */
+    public void setSupportedEncodings(MessageEncoding[] supportedEncodings) {
+        this.supportedEncodings = supportedEncodings;
+    }
+
+    /**
+     * See {@link sessionToken}
+     * @since v1.3
+     */
+    public void setSessionToken(String sessionToken) {
+        this.sessionToken = sessionToken;
+    }
+
+    /**
+     * Checks whether the client supports an encoding.
+     *
+     * @param encoding The encoding.
+     * @return True if the encoding was offered by the client.
+     * @since v1.2
+     */
+    public boolean supportsEncoding(MessageEncoding encoding) {
+        if (supportedEncodings == null) {
+            return encoding == MessageEncoding.xml;
+        }
+        for (MessageEncoding supported : supportedEncodings) {
+            if (supported == encoding) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -7,10 +7,12 @@ import javax.xml.bind.annotation.*;
  * {@link IdentificationMessage}. It contains details about the success of the
  * log in process.<br>
  * v1.0 Initial release<br>
- * v1.1 added login name (split up of name into display and login name)
+ * v1.1 added login name (split up of name into display and login name)<br>
+ * v1.2 Encoding of the following messages (see {@link MessageEncoding})<br>
+ * v1.3 Session token and flag for resumed sessions
  *
  * @author Matthias Stöckli (v1.0)
- * @version v1.1 (Raphael Stoeckli, 23.10.2014)
+ * @version v1.3
  */
 @XmlRootElement(name = "IdentificationResponseMessage")
 public class IdentificationResponseMessage extends Message {
@@ -35,6 +37,29 @@ public class IdentificationResponseMessage extends Message {
      * Flag that shows whether the login was successful or not
      */
     private boolean loginSuccessful;
+    /**
+     * The encoding of all following messages (in both directions), chosen by
+     * the server from the encodings offered in the
+     * {@link IdentificationMessage}. This message itself is always sent as
+     * XML. Null means XML.
+     * @since v1.2
+     */
+    private MessageEncoding encoding;
+    /**
+     * Token which allows the client to resume the session after a lost
+     * connection (see {@link IdentificationMessage#getSessionToken}). A new
+     * token is issued with every successful login. Is null if the server does
+     * not support resumable sessions.
+     * @since v1.3
+     */
+    private String sessionToken;
+    /**
+     * Flag that shows whether a previous session was resumed. In this case
+     * the player is still in his or her game (no new join is necessary) and
+     * the messages which could not be delivered are sent after this message.
+     * @since v1.3
+     */
+    private boolean resumed;
 
     /**
      * Empty constructor. This is needed for JAXB parsing.
@@ -100,6 +125,33 @@ public class IdentificationResponseMessage extends Message {
         return password;
     }
 
+    /**
+     * See {@link IdentificationResponseMessage#encoding}.
+     * @since v1.2
+     */
+    @XmlElement(name = "Encoding")
+    public MessageEncoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * See {@link IdentificationResponseMessage#sessionToken}.
+     * @since v1.3
+     */
+    @XmlElement(name = "SessionToken")
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
+    /**
+     * See {@link IdentificationResponseMessage#resumed}.
+     * @since v1.3
+     */
+    @XmlElement(name = "Resumed")
+    public boolean getResumed() {
+        return resumed;
+    }
+
     /**
      * See {@link IdentificationResponseMessage#loginSuccessful}.
      */
@@ -134,4 +186,28 @@ public class IdentificationResponseMessage extends Message {
     public void setPassword(String password) {
         this.password = password;
     }
+
+    /**
+     * See {@link IdentificationResponseMessage#encoding}.
+     * @since v1.2
+     */
+    public void setEncoding(MessageEncoding encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * See {@link IdentificationResponseMessage#sessionToken}.
+     * @since v1.3
+     */
+    public void setSessionToken(String sessionToken) {
+        this.sessionToken = sessionToken;
+    }
+
+    /**
+     * See {@link IdentificationResponseMessage#resumed}.
+     * @since v1.3
+     */
+    public void setResumed(boolean resumed) {
+        this.resumed = resumed;
+    }
 }
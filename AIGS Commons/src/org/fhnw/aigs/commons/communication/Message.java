@@ -2,9 +2,13 @@ package org.fhnw.aigs.commons.communication;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import javax.xml.bind.*;
 import javax.xml.bind.annotation.*;
+import javax.xml.namespace.QName;
 import org.fhnw.aigs.commons.LogRouter;
 import org.fhnw.aigs.commons.Player;
 import org.fhnw.aigs.commons.XMLHelper;
@@ -46,9 +50,17 @@ import org.fhnw.aigs.commons.XMLHelper;
  * v1.0 Initial release<br>
  * v1.1 Functional changes<br>
  * v1.2 Changing of logging<br>
- * v1.3 Fixed issues with malformed input for the xml logger
+ * v1.3 Fixed issues with malformed input for the xml logger<br>
+ * v1.4 Support of registered outbound channels (e.g. non-blocking connections),
+ * cached JAXB contexts and pooled marshallers (see {@link XMLHelper})<br>
+ * v1.5 Broadcast of a message to several players with only one marshalling<br>
+ * v1.6 Negotiated encoding per connection (XML or binary, see {@link MessageEncoding})<br>
+ * v1.7 XML in length-prefixed frames (see {@link MessageEncoding#framedXml})<br>
+ * v1.8 Conditional removal and lookup of outbound channels (channels can be
+ * replaced, e.g. by a buffer while a connection is resumed)<br>
+ * v1.9 Sent messages are only pretty printed if they are logged
  * @author Matthias Stöckli (v1.0)
- * @version 1.3 (Raphael Stoeckli, 23.04.2015)
+ * @version 1.9
  */
 public abstract class Message {
 
@@ -58,6 +70,26 @@ public abstract class Message {
      */
     protected Player player;
 
+    /**
+     * Registered outbound channels, mapped by their socket. Sockets without a
+     * registered channel are written directly via their output stream.
+     * @since v1.4
+     */
+    private static final ConcurrentHashMap<Socket, OutboundChannel> outboundChannels = new ConcurrentHashMap<>();
+
+    /**
+     * Negotiated encodings of the connections, mapped by their socket. Sockets
+     * without entry use XML.
+     * @since v1.6
+     */
+    private static final ConcurrentHashMap<Socket, MessageEncoding> encodings = new ConcurrentHashMap<>();
+
+    /**
+     * The line terminator of XML messages (encoding {@link MessageEncoding#xml}).
+     * @since v1.7
+     */
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
     /**
      * Every message <b>must</b> possess an empty constructor due to the
      * mechanisms of how JAXB, the framework which takes care of the XML
@@ -88,6 +120,90 @@ public abstract class Message {
     public void setPlayer(Player player) {
         this.player = player;
     }
+
+    /**
+     * Registers an {@link OutboundChannel} for a socket. All further messages
+     * sent to this socket will be written to the channel.
+     *
+     * @param socket The socket of the connection.
+     * @param channel The channel which takes over the writing.
+     * @since v1.4
+     */
+    public static void registerOutboundChannel(Socket socket, OutboundChannel channel) {
+        outboundChannels.put(socket, channel);
+    }
+
+    /**
+     * Removes the {@link OutboundChannel} and the encoding of a socket (if
+     * registered).
+     *
+     * @param socket The socket of the connection.
+     * @since v1.4
+     */
+    public static void unregisterOutboundChannel(Socket socket) {
+        outboundChannels.remove(socket);
+        encodings.remove(socket);
+    }
+
+    /**
+     * Removes the {@link OutboundChannel} and the encoding of a socket, but
+     * only if the passed channel is still registered for the socket. If the
+     * channel was replaced in the meantime, nothing is removed.
+     *
+     * @param socket The socket of the connection.
+     * @param channel The channel which is expected to be registered.
+     * @since v1.8
+     */
+    public static void unregisterOutboundChannel(Socket socket, OutboundChannel channel) {
+        if (outboundChannels.remove(socket, channel) == true) {
+            encodings.remove(socket);
+        }
+    }
+
+    /**
+     * Gets the {@link OutboundChannel} of a socket.
+     *
+     * @param socket The socket of the connection.
+     * @return The channel or null if the socket is written directly.
+     * @since v1.8
+     */
+    public static OutboundChannel getOutboundChannel(Socket socket) {
+        if (socket == null) {
+            return null;
+        }
+        return outboundChannels.get(socket);
+    }
+
+    /**
+     * Sets the encoding of all further messages sent to a socket. The encoding
+     * must have been negotiated (see {@link IdentificationMessage#getSupportedEncodings}).
+     *
+     * @param socket The socket of the connection.
+     * @param encoding The encoding.
+     * @since v1.6
+     */
+    public static void setEncoding(Socket socket, MessageEncoding encoding) {
+        if (encoding == null || encoding == MessageEncoding.xml) {
+            encodings.remove(socket);
+        } else {
+            encodings.put(socket, encoding);
+        }
+    }
+
+    /**
+     * Gets the encoding of the messages sent to a socket.
+     *
+     * @param socket The socket of the connection.
+     * @return The encoding (XML if nothing else was negotiated).
+     * @since v1.6
+     */
+    public static MessageEncoding getEncoding(Socket socket) {
+        MessageEncoding encoding = socket == null ? null : encodings.get(socket);
+        if (encoding == null) {
+            return MessageEncoding.xml;
+        }
+        return encoding;
+    }
    
     /**
      * Sends a message to a player using a socket.<br>
@@ -112,19 +228,25 @@ public abstract class Message {
                     throw new IOException("No socket available - could not send message!");
                 }
                 this.player = player;
-                // Marshal/turn the message into XML and create a {@link StringWriter} out of it.
-                Marshaller marshaller = XMLHelper.getUnformattedXMLMarshaller(this);
-                StringWriter sw = new StringWriter();
-                marshaller.marshal(this, sw);
-
-                // Write the message to a {@link OutputStreamWriter} / {@link PrintWriter}
-                // and print the message to the client. Then send/flush the writer.
-                PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
-                String xmlString = sw.toString();
-                writer.println(xmlString);
-                writer.flush();
-                //Logger.getLogger(Message.class.getName()).log(Level.INFO, "=> \n {0}", XMLHelper.prettyPrintXml(xmlString));
-                LogRouter.log(Message.class.getName(), Level.INFO, "=> \n {0}", XMLHelper.prettyPrintXml(xmlString, false));
+                MessageEncoding encoding = getEncoding(socket);
+                if (encoding == MessageEncoding.binary) {
+                    // Binary frame (negotiated with the identification, since v1.6)
+                    write(socket, BinaryCodec.encode(this));
+                    LogRouter.log(Message.class.getName(), Level.INFO, "=> (binary) {0}", getClass().getName());
+                } else {
+                    // Marshal/turn the message into XML (using a cached context and a pooled marshaller)
+                    // and send it as one line or as frame (since v1.7).
+                    String xmlString = XMLHelper.marshal(this);
+                    if (encoding == MessageEncoding.framedXml) {
+                        write(socket, BinaryCodec.encodeXml(xmlString.getBytes("UTF-8")));
+                    } else {
+                        write(socket, (xmlString + System.lineSeparator()).getBytes("UTF-8"));
+                    }
+                    //Logger.getLogger(Message.class.getName()).log(Level.INFO, "=> \n {0}", XMLHelper.prettyPrintXml(xmlString));
+                    if (LogRouter.isLoggable(Message.class.getName(), Level.INFO) == true) { // Pretty print only if logged
+                        LogRouter.log(Message.class.getName(), Level.INFO, "=> \n {0}", XMLHelper.prettyPrintXml(xmlString, false));
+                    }
+                }
                 processingError = false;
                 break;
 
@@ -155,6 +277,145 @@ public abstract class Message {
        }
     }      
 
+    /**
+     * Sends the message to several players (broadcast).<br>
+     * Contrary to {@link Message#send}, the XML of the message is only
+     * marshalled once (without player). Only the small, recipient-specific
+     * element "Player" is marshalled per recipient and inserted before the
+     * closing tag of the root element. Recipients with the binary encoding
+     * (see {@link BinaryCodec}) get their own, cheap binary frame. The message
+     * is logged once per broadcast.
+     *
+     * @param recipients The receiving players.
+     * @since v1.5
+     */
+    public void broadcast(Collection<Player> recipients) {
+        if (recipients.isEmpty() == true) {
+            return;
+        }
+        Player originalPlayer = this.player;
+        String xmlString = null;
+        byte[][] xmlParts = null;   // Head and tail of the XML
+        int binaryRecipients = 0;
+        for (Player recipient : recipients) {
+            try {
+                Socket socket = recipient.getSocket();
+                // It is not possible to send a message without a socket
+                if (socket == null) {
+                    throw new IOException("No socket available - could not send message!");
+                }
+                byte[] data;
+                MessageEncoding encoding = getEncoding(socket);
+                if (encoding == MessageEncoding.binary) {
+                    this.player = recipient;
+                    data = BinaryCodec.encode(this);
+                    binaryRecipients++;
+                } else {
+                    if (xmlParts == null) {
+                        this.player = null;
+                        xmlString = XMLHelper.marshal(this).trim();
+                        xmlParts = splitRootElement(xmlString);
+                    }
+                    byte[] playerBytes = XMLHelper.marshalFragment(new JAXBElement<>(new QName("Player"), Player.class, recipient)).getBytes("UTF-8");
+                    if (encoding == MessageEncoding.framedXml) {
+                        data = BinaryCodec.encodeXml(xmlParts[0], playerBytes, xmlParts[1]);
+                    } else {
+                        data = concat(xmlParts[0], playerBytes, xmlParts[1], LINE_SEPARATOR);
+                    }
+                }
+                write(socket, data);
+            } catch (JAXBException ex) {
+                LogRouter.log(Message.class.getName(), Level.SEVERE, "Message could not be parsed.", ex);
+            } catch (IOException ex) {
+                LogRouter.log(Message.class.getName(), Level.SEVERE, "Could not send the message, socket is missing. Game will be terminated.", ex);
+            } catch (Exception ex) // All other errors
+            {
+                LogRouter.log(Message.class.getName(), Level.SEVERE, "An unknown error occurred.", ex);
+            }
+        }
+        this.player = originalPlayer;
+        if (xmlString != null && LogRouter.isLoggable(Message.class.getName(), Level.INFO) == true) { // Pretty print only if logged
+            LogRouter.log(Message.class.getName(), Level.INFO, "=> ({0} players) \n {1}", new Object[]{recipients.size() - binaryRecipients, XMLHelper.prettyPrintXml(xmlString, false)});
+        }
+        if (binaryRecipients > 0 && LogRouter.isLoggable(Message.class.getName(), Level.INFO) == true) {
+            LogRouter.log(Message.class.getName(), Level.INFO, "=> ({0} players, binary) {1}", new Object[]{binaryRecipients, getClass().getName()});
+        }
+    }
+
+    /**
+     * Splits marshalled XML before the closing tag of the root element, so
+     * that further elements can be inserted.
+     *
+     * @param xmlString The marshalled message (without leading or trailing
+     * whitespaces).
+     * @return The head and the tail as UTF-8.
+     * @throws UnsupportedEncodingException Thrown if UTF-8 is not supported.
+     * @since v1.6
+     */
+    private static byte[][] splitRootElement(String xmlString) throws UnsupportedEncodingException {
+        String head;
+        String tail;
+        if (xmlString.endsWith("/>") == true) {
+            // Empty root element: <Name ... /> -> <Name ...> [Player] </Name>
+            int rootStart = xmlString.indexOf('<', xmlString.startsWith("<?") ? xmlString.indexOf("?>") + 2 : 0);
+            int nameEnd = rootStart + 1;
+            while (nameEnd < xmlString.length() && " \t\r\n/>".indexOf(xmlString.charAt(nameEnd)) < 0) {
+                nameEnd++;
+            }
+            head = xmlString.substring(0, xmlString.length() - 2) + ">";
+            tail = "</" + xmlString.substring(rootStart + 1, nameEnd) + ">";
+        } else {
+            int rootEnd = xmlString.lastIndexOf("</");
+            head = xmlString.substring(0, rootEnd);
+            tail = xmlString.substring(rootEnd);
+        }
+        return new byte[][]{head.getBytes("UTF-8"), tail.getBytes("UTF-8")};
+    }
+
+    /**
+     * Concatenates several byte arrays.
+     *
+     * @param parts The arrays.
+     * @return The concatenated array.
+     * @since v1.7
+     */
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] data = new byte[length];
+        int position = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, data, position, part.length);
+            position += part.length;
+        }
+        return data;
+    }
+
+    /**
+     * Writes an encoded message (including the line terminator or frame
+     * header) to a socket. If an {@link OutboundChannel} is registered for the
+     * socket, the channel takes over the writing.
+     *
+     * @param socket The socket.
+     * @param data The encoded message.
+     * @throws IOException Thrown if the message could not be written.
+     * @since v1.6
+     */
+    private static void write(Socket socket, byte[] data) throws IOException {
+        OutboundChannel channel = outboundChannels.get(socket);
+        if (channel != null) {
+            // The connection takes care of the writing (e.g. non-blocking channels)
+            channel.write(data);
+        } else {
+            // One write per message
+            OutputStream stream = socket.getOutputStream();
+            stream.write(data);
+            stream.flush();
+        }
+    }
+
     /**
      * Turns a plain text xml message in a StringReader into a message object.
      * Usually it should not be necessary to call this method as the messages
@@ -187,7 +448,7 @@ public abstract class Message {
        {  
          try
         {
-            parsedMessage = JAXB.unmarshal(reader, messageClass);
+            parsedMessage = XMLHelper.unmarshal(reader, messageClass);  // Cached context, pooled unmarshaller
             processingError = false;
             break;
         }
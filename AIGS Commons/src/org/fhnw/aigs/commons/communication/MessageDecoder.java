@@ -0,0 +1,163 @@
+package org.fhnw.aigs.commons.communication;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.fhnw.aigs.commons.XMLHelper;
+
+/**
+ * Single-pass decoder of incoming messages. The decoder reads the attribute
+ * "FullyQualifiedClassName" of the root element with a StAX reader, resolves
+ * the message class and unmarshals the message from the same reader. The
+ * message is therefore only parsed once, and no DOM is built.<br>
+ * The resolved classes are cached per ClassLoader. If a ClassLoader (e.g. of a
+ * game) is dropped, {@link MessageDecoder#invalidateClasses} must be called.<br>
+ * v1.0 Initial release<br>
+ * v1.1 Decoding directly from the buffer of a frame
+ *
+ * @version 1.1
+ */
+public class MessageDecoder {
+
+    /**
+     * Name of the attribute which contains the class name of the message.
+     */
+    private static final String CLASS_ATTRIBUTE = "FullyQualifiedClassName";
+
+    /**
+     * One StAX factory per thread. Creating a factory is expensive.
+     */
+    private static final ThreadLocal<XMLInputFactory> inputFactory = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            // Messages never contain a DTD or external entities
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+            return factory;
+        }
+    };
+
+    /**
+     * The resolved message classes, grouped by ClassLoader and mapped by their
+     * fully qualified name.
+     */
+    private static final ConcurrentHashMap<ClassLoader, ConcurrentHashMap<String, Class<?>>> classes = new ConcurrentHashMap<>();
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private MessageDecoder() {
+    }
+
+    /**
+     * Decodes a message (one line of XML).
+     *
+     * @param input The message as received.
+     * @param loader The ClassLoader to load the message class (e.g. the
+     * ClassLoader of the game).
+     * @return The decoded message. If the message class cannot be handled by
+     * JAXB, a {@link ForceCloseMessage} is returned (see {@link Message#parse}).
+     * @throws XMLStreamException Thrown if the input is not valid XML.
+     * @throws ClassNotFoundException Thrown if the message class is missing or
+     * could not be found.
+     */
+    public static Message decode(String input, ClassLoader loader) throws XMLStreamException, ClassNotFoundException {
+        XMLStreamReader reader = inputFactory.get().createXMLStreamReader(new StringReader(input));
+        Class<? extends Message> messageClass;
+        try {
+            reader.nextTag();       // Root element
+            messageClass = resolveClass(reader.getAttributeValue(null, CLASS_ATTRIBUTE), loader);
+            try {
+                return XMLHelper.unmarshal(reader, messageClass);
+            } catch (JAXBException ex) {
+                if (ex.getLinkedException() instanceof XMLStreamException) {
+                    throw (XMLStreamException) ex.getLinkedException();     // Malformed input
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        // Fallback with the error handling of the classic parsing
+        return Message.parse(new StringReader(input), messageClass);
+    }
+
+    /**
+     * Decodes a message directly from the buffer of a frame (UTF-8), without
+     * creating a string first.
+     *
+     * @param data The buffer which contains the message.
+     * @param offset The position of the message in the buffer.
+     * @param length The length of the message.
+     * @param loader The ClassLoader to load the message class.
+     * @return The decoded message, see {@link MessageDecoder#decode(String, ClassLoader)}.
+     * @throws XMLStreamException Thrown if the input is not valid XML.
+     * @throws ClassNotFoundException Thrown if the message class is missing or
+     * could not be found.
+     * @since v1.1
+     */
+    public static Message decode(byte[] data, int offset, int length, ClassLoader loader) throws XMLStreamException, ClassNotFoundException {
+        XMLStreamReader reader = inputFactory.get().createXMLStreamReader(new ByteArrayInputStream(data, offset, length), "UTF-8");
+        try {
+            reader.nextTag();       // Root element
+            Class<? extends Message> messageClass = resolveClass(reader.getAttributeValue(null, CLASS_ATTRIBUTE), loader);
+            try {
+                return XMLHelper.unmarshal(reader, messageClass);
+            } catch (JAXBException ex) {
+                if (ex.getLinkedException() instanceof XMLStreamException) {
+                    throw (XMLStreamException) ex.getLinkedException();     // Malformed input
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        // Fallback with the error handling of the classic parsing
+        return decode(new String(data, offset, length, StandardCharsets.UTF_8), loader);
+    }
+
+    /**
+     * Resolves a message class by its fully qualified name. The classes are
+     * cached.
+     *
+     * @param className The fully qualified name of the class.
+     * @param loader The ClassLoader to load the class.
+     * @return The message class.
+     * @throws ClassNotFoundException Thrown if the class could not be found or
+     * is not a message class.
+     */
+    public static Class<? extends Message> resolveClass(String className, ClassLoader loader) throws ClassNotFoundException {
+        if (className == null) {
+            throw new ClassNotFoundException("The message has no attribute '" + CLASS_ATTRIBUTE + "'.");
+        }
+        ConcurrentHashMap<String, Class<?>> loaderClasses = classes.get(loader);
+        if (loaderClasses == null) {
+            classes.putIfAbsent(loader, new ConcurrentHashMap<String, Class<?>>());
+            loaderClasses = classes.get(loader);
+        }
+        Class<?> clazz = loaderClasses.get(className);
+        if (clazz == null) {
+            clazz = Class.forName(className, true, loader);
+            if (Message.class.isAssignableFrom(clazz) == false) {
+                throw new ClassNotFoundException("The class " + className + " is not a message class.");
+            }
+            loaderClasses.put(className, clazz);
+        }
+        return clazz.asSubclass(Message.class);
+    }
+
+    /**
+     * Removes all cached classes of a dropped ClassLoader.
+     *
+     * @param loader The dropped ClassLoader.
+     */
+    public static void invalidateClasses(ClassLoader loader) {
+        if (loader != null) {
+            classes.remove(loader);
+        }
+    }
+}
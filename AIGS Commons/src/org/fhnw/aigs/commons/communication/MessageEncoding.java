@@ -0,0 +1,21 @@
+package org.fhnw.aigs.commons.communication;
+
+/**
+ * This enumerator defines how the messages of a connection are encoded on the
+ * wire. The encoding is negotiated with the {@link IdentificationMessage} (the
+ * client offers its supported encodings) and the
+ * {@link IdentificationResponseMessage} (the server decides). Until then, and
+ * with clients which do not offer any encoding, XML is used.<br>
+ * <ul>
+ * <li>xml: Every message is one line of XML (classic protocol)</li>
+ * <li>binary: Every message is a length-prefixed binary frame, see {@link BinaryCodec}</li>
+ * <li>framedXml: Every message is XML in a length-prefixed frame (no restriction
+ * to one line, the size is known in advance)</li>
+ * </ul>
+ * @version v1.0
+ */
+public enum MessageEncoding {
+    xml,
+    binary,
+    framedXml
+}
@@ -0,0 +1,288 @@
+package org.fhnw.aigs.commons.communication;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the incoming messages of a blocking connection. Depending on the
+ * {@link MessageEncoding} of the connection, the messages are read as lines
+ * (XML) or as length-prefixed frames (see {@link BinaryCodec}). Contrary to a
+ * BufferedReader, the encoding can be switched between two messages without
+ * losing already buffered bytes.<br>
+ * The size of a message is limited (see {@link MessageReader#getMaxMessageSize}).
+ * Larger lines or frames are rejected before they are buffered completely.
+ * Frames are read into the (reused) buffer of the reader and passed to the
+ * decoder without copying.<br>
+ * v1.0 Initial release<br>
+ * v1.1 Maximum message size, frames are read into the reused buffer
+ *
+ * @version 1.1
+ */
+public class MessageReader implements Closeable {
+
+    /**
+     * Initial size of the buffer.
+     */
+    private static final int BUFFER_SIZE = 8192;
+    /**
+     * Default maximum size of a message in bytes (16 MB). The default is used
+     * by the clients, which only read messages of the server (e.g. large game
+     * states). The server reads messages of unknown clients and uses the
+     * smaller limit of its configuration (MaxMessageSize, 1 MB by default).
+     * @since v1.1
+     */
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 16777216;
+
+    /**
+     * The input stream of the socket.
+     */
+    private final InputStream in;
+    /**
+     * The buffer with the received bytes.
+     */
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    /**
+     * Position of the first unread byte in the buffer.
+     */
+    private int position = 0;
+    /**
+     * Position after the last received byte in the buffer.
+     */
+    private int limit = 0;
+    /**
+     * The current encoding of the incoming messages.
+     */
+    private volatile MessageEncoding encoding = MessageEncoding.xml;
+    /**
+     * The maximum size of a message (line or frame body) in bytes.
+     */
+    private final int maxMessageSize;
+    /**
+     * Position of the body of the last read frame in the buffer.
+     */
+    private int frameOffset = 0;
+
+    /**
+     * Creates a reader with the default maximum message size
+     * ({@link MessageReader#DEFAULT_MAX_MESSAGE_SIZE}).
+     *
+     * @param in The input stream of the socket.
+     */
+    public MessageReader(InputStream in) {
+        this(in, DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    /**
+     * Creates a reader.
+     *
+     * @param in The input stream of the socket.
+     * @param maxMessageSize The maximum size of a message (line or frame body)
+     * in bytes.
+     * @since v1.1
+     */
+    public MessageReader(InputStream in, int maxMessageSize) {
+        this.in = in;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Gets the maximum size of a message (line or frame body) in bytes. If a
+     * larger message is received, an IOException is thrown.
+     *
+     * @return The maximum size.
+     * @since v1.1
+     */
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * Gets the current encoding of the incoming messages.
+     *
+     * @return The encoding.
+     */
+    public MessageEncoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Sets the encoding of the following incoming messages (after the
+     * negotiation, see {@link IdentificationResponseMessage#getEncoding}).
+     *
+     * @param encoding The encoding.
+     */
+    public void setEncoding(MessageEncoding encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * Reads one line (without line terminator).
+     *
+     * @return The line or null if the end of the stream was reached.
+     * @throws IOException Thrown if the stream could not be read or the line
+     * exceeds the maximum message size.
+     */
+    public String readLine() throws IOException {
+        shrinkBuffer();
+        int scanned = position;
+        while (true) {
+            for (int i = scanned; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    int end = i;
+                    if (end > position && buffer[end - 1] == '\r') {
+                        end--;
+                    }
+                    if (end - position > maxMessageSize) {   // Received completely with one read
+                        throw new IOException("The message exceeds the maximum size of " + maxMessageSize + " bytes.");
+                    }
+                    String line = new String(buffer, position, end - position, StandardCharsets.UTF_8);
+                    position = i + 1;
+                    return line;
+                }
+            }
+            if (limit - position > maxMessageSize) {
+                throw new IOException("The message exceeds the maximum size of " + maxMessageSize + " bytes.");
+            }
+            scanned = limit - position;     // Relative, the buffer is compacted by fill
+            if (fill(1) == false) {
+                if (limit > position) {     // Last line without terminator
+                    String line = new String(buffer, position, limit - position, StandardCharsets.UTF_8);
+                    position = limit;
+                    return line;
+                }
+                return null;
+            }
+            scanned += position;
+        }
+    }
+
+    /**
+     * Reads one frame (see {@link BinaryCodec}) into the buffer of the reader.
+     * The body of the frame is located in {@link MessageReader#getBuffer} at
+     * {@link MessageReader#getFrameOffset}. It is only valid until the next
+     * read and must therefore be decoded before.
+     *
+     * @return The length of the frame body (without header) or -1 if the end
+     * of the stream was reached.
+     * @throws IOException Thrown if the stream could not be read, the frame is
+     * truncated or exceeds the maximum message size.
+     */
+    public int readFrame() throws IOException {
+        shrinkBuffer();
+        if (ensureAvailable(BinaryCodec.HEADER_LENGTH) == false) {
+            if (limit > position) {
+                throw new EOFException("The frame header is truncated.");
+            }
+            return -1;
+        }
+        int length = BinaryCodec.readLength(buffer, position);
+        if (length < 0) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        if (length > maxMessageSize) {
+            throw new IOException("The message exceeds the maximum size of " + maxMessageSize + " bytes.");
+        }
+        position += BinaryCodec.HEADER_LENGTH;
+        if (ensureAvailable(length) == false) {
+            throw new EOFException("The frame is truncated.");
+        }
+        frameOffset = position;
+        position += length;
+        return length;
+    }
+
+    /**
+     * Gets the buffer of the reader, which contains the body of the last read
+     * frame (see {@link MessageReader#readFrame}).
+     *
+     * @return The buffer.
+     * @since v1.1
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Gets the position of the body of the last read frame in the buffer.
+     *
+     * @return The position.
+     * @since v1.1
+     */
+    public int getFrameOffset() {
+        return frameOffset;
+    }
+
+    /**
+     * Closes the input stream.
+     *
+     * @throws IOException Thrown if the stream could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Replaces an enlarged buffer by a buffer of the initial size, as soon as
+     * the large message was consumed and the unread bytes fit into it. Called
+     * before the next message is read, because the body of the last frame is
+     * valid until then.
+     */
+    private void shrinkBuffer() {
+        int unread = limit - position;
+        if (buffer.length > BUFFER_SIZE && unread <= BUFFER_SIZE) {
+            byte[] newBuffer = new byte[BUFFER_SIZE];
+            System.arraycopy(buffer, position, newBuffer, 0, unread);
+            buffer = newBuffer;
+            position = 0;
+            limit = unread;
+        }
+    }
+
+    /**
+     * Ensures that a number of bytes is available in the buffer.
+     *
+     * @param count Number of bytes.
+     * @return False if the end of the stream was reached before.
+     * @throws IOException Thrown if the stream could not be read.
+     */
+    private boolean ensureAvailable(int count) throws IOException {
+        while (limit - position < count) {
+            if (fill(count - (limit - position)) == false) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads further bytes into the buffer. The unread bytes are moved to the
+     * beginning of the buffer, the buffer is enlarged if necessary.
+     *
+     * @param minimumSpace Minimum number of bytes which must fit into the buffer.
+     * @return False if the end of the stream was reached.
+     * @throws IOException Thrown if the stream could not be read.
+     */
+    private boolean fill(int minimumSpace) throws IOException {
+        int unread = limit - position;
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, unread);
+            position = 0;
+            limit = unread;
+        }
+        if (buffer.length - limit < minimumSpace || limit == buffer.length) {
+            byte[] newBuffer = new byte[Math.max(buffer.length * 2, limit + minimumSpace)];
+            System.arraycopy(buffer, 0, newBuffer, 0, limit);
+            buffer = newBuffer;
+        }
+        int count = in.read(buffer, limit, buffer.length - limit);
+        if (count < 0) {
+            return false;
+        }
+        limit += count;
+        return true;
+    }
+}
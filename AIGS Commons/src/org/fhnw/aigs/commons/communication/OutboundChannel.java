@@ -0,0 +1,30 @@
+package org.fhnw.aigs.commons.communication;
+
+import java.io.IOException;
+
+/**
+ * Abstraction of the outgoing side of a connection. By default a message is
+ * written directly to the output stream of the socket (see
+ * {@link Message#send}). If a connection is not driven by a blocking socket
+ * stream (e.g. a non-blocking NIO channel of the server), an OutboundChannel
+ * can be registered for the socket with
+ * {@link Message#registerOutboundChannel}. All messages sent to this socket are
+ * then passed to the channel instead.<br>
+ * v1.0 Initial release<br>
+ * v1.1 The passed data is already framed (depends on the {@link MessageEncoding})
+ *
+ * @version 1.1
+ */
+public interface OutboundChannel {
+
+    /**
+     * Writes one encoded message to the connection. The passed data is
+     * already framed according to the {@link MessageEncoding} of the
+     * connection (XML line with line terminator or binary frame with header)
+     * and must be written unchanged.
+     *
+     * @param data The encoded message.
+     * @throws IOException Thrown if the message could not be written.
+     */
+    public void write(byte[] data) throws IOException;
+}
@@ -0,0 +1,197 @@
+package org.fhnw.aigs.commons.communication;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.bind.annotation.XmlRootElement;
+import org.fhnw.aigs.commons.GameMode;
+import org.fhnw.aigs.commons.JoinType;
+import org.fhnw.aigs.commons.XMLHelper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests of the {@link BinaryCodec}: Round trips of binary frames and the
+ * fallback to XML bodies for classes which cannot be mapped.
+ */
+public class BinaryCodecTest {
+
+    /**
+     * Kind of a frame body with an embedded XML message.
+     */
+    private static final byte KIND_XML = 0;
+    /**
+     * Kind of a frame body with a binary message.
+     */
+    private static final byte KIND_BINARY = 1;
+
+    /**
+     * A game message which follows the JAXB conventions (getter / setter
+     * pairs), thus it is encoded binary with its class name.
+     */
+    @XmlRootElement(name = "ScoreMessage")
+    public static class ScoreMessage extends Message {
+
+        /**
+         * The score.
+         */
+        private int score;
+        /**
+         * The name of the scoring player.
+         */
+        private String name;
+        /**
+         * The scores of the previous rounds.
+         */
+        private List<Integer> rounds = new ArrayList<>();
+
+        /**
+         * See {@link ScoreMessage#score}.
+         */
+        public int getScore() {
+            return score;
+        }
+
+        /**
+         * See {@link ScoreMessage#score}.
+         */
+        public void setScore(int score) {
+            this.score = score;
+        }
+
+        /**
+         * See {@link ScoreMessage#name}.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * See {@link ScoreMessage#name}.
+         */
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        /**
+         * See {@link ScoreMessage#rounds}.
+         */
+        public List<Integer> getRounds() {
+            return rounds;
+        }
+
+        /**
+         * See {@link ScoreMessage#rounds}.
+         */
+        public void setRounds(List<Integer> rounds) {
+            this.rounds = rounds;
+        }
+    }
+
+    /**
+     * Decodes a complete frame (including the header).
+     *
+     * @param frame The frame.
+     * @return The decoded message.
+     * @throws Exception Thrown if the frame could not be decoded.
+     */
+    private static Message decodeFrame(byte[] frame) throws Exception {
+        assertEquals(frame.length - BinaryCodec.HEADER_LENGTH, BinaryCodec.readLength(frame, 0));
+        return BinaryCodec.decode(frame, BinaryCodec.HEADER_LENGTH, frame.length - BinaryCodec.HEADER_LENGTH, BinaryCodecTest.class.getClassLoader());
+    }
+
+    /**
+     * A message of AIGS Commons is encoded binary and decoded with all its
+     * properties.
+     */
+    @Test
+    public void testKnownMessageRoundTrip() throws Exception {
+        JoinMessage message = new JoinMessage("TicTacToe", GameMode.Multiplayer, "Friends", JoinType.CreateNewPrivateGame);
+
+        byte[] frame = BinaryCodec.encode(message);
+
+        assertEquals(KIND_BINARY, frame[BinaryCodec.HEADER_LENGTH]);
+        JoinMessage decoded = (JoinMessage) decodeFrame(frame);
+        assertEquals("TicTacToe", decoded.getGameName());
+        assertEquals(GameMode.Multiplayer, decoded.getGameMode());
+        assertEquals("Friends", decoded.getPartyName());
+        assertEquals(JoinType.CreateNewPrivateGame, decoded.getJoinType());
+        assertEquals(message.getJoinTime(), decoded.getJoinTime());
+    }
+
+    /**
+     * A game message is encoded binary with its class name and decoded with
+     * the passed ClassLoader.
+     */
+    @Test
+    public void testGameMessageRoundTrip() throws Exception {
+        ScoreMessage message = new ScoreMessage();
+        message.setScore(-42);
+        message.setName("Grün");
+        message.getRounds().add(7);
+        message.getRounds().add(Integer.MAX_VALUE);
+
+        byte[] frame = BinaryCodec.encode(message);
+
+        assertEquals(KIND_BINARY, frame[BinaryCodec.HEADER_LENGTH]);
+        ScoreMessage decoded = (ScoreMessage) decodeFrame(frame);
+        assertEquals(-42, decoded.getScore());
+        assertEquals("Grün", decoded.getName());
+        assertEquals(message.getRounds(), decoded.getRounds());
+    }
+
+    /**
+     * A message with a public field is embedded as XML, so that the field is
+     * not lost.
+     */
+    @Test
+    public void testPublicFieldFallsBackToXml() throws Exception {
+        PublicFieldMessage message = new PublicFieldMessage();
+        message.value = "kept";
+
+        byte[] frame = BinaryCodec.encode(message);
+
+        assertEquals(KIND_XML, frame[BinaryCodec.HEADER_LENGTH]);
+        PublicFieldMessage decoded = (PublicFieldMessage) decodeFrame(frame);
+        assertEquals("kept", decoded.value);
+    }
+
+    /**
+     * The XML frames of the framed XML encoding are decoded like embedded
+     * XML messages.
+     */
+    @Test
+    public void testXmlFrameRoundTrip() throws Exception {
+        byte[] xml = XMLHelper.marshal(new NotifyMessage("Hello")).getBytes(StandardCharsets.UTF_8);
+
+        byte[] frame = BinaryCodec.encodeXml(xml);
+
+        assertEquals(KIND_XML, frame[BinaryCodec.HEADER_LENGTH]);
+        assertEquals("Hello", ((NotifyMessage) decodeFrame(frame)).getMessage());
+    }
+
+    /**
+     * A frame with an unknown kind of body is rejected.
+     */
+    @Test(expected = IOException.class)
+    public void testUnknownKindIsRejected() throws Exception {
+        BinaryCodec.decode(new byte[]{7, 1, 2, 3}, 0, 4, BinaryCodecTest.class.getClassLoader());
+    }
+
+    /**
+     * A truncated binary frame is rejected instead of creating an incomplete
+     * message.
+     */
+    @Test
+    public void testTruncatedFrameIsRejected() throws Exception {
+        byte[] frame = BinaryCodec.encode(new NotifyMessage("A message which is cut off"));
+        try {
+            BinaryCodec.decode(frame, BinaryCodec.HEADER_LENGTH, frame.length - BinaryCodec.HEADER_LENGTH - 5, BinaryCodecTest.class.getClassLoader());
+            fail("A truncated frame must not be decoded");
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+}
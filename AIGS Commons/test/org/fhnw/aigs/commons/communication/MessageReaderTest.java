@@ -0,0 +1,152 @@
+package org.fhnw.aigs.commons.communication;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests of the {@link MessageReader}: Lines and frames, the maximum message
+ * size and the shrinking of the buffer after a large message.
+ */
+public class MessageReaderTest {
+
+    /**
+     * Initial size of the buffer of the reader.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Creates a reader of the passed bytes.
+     *
+     * @param maxMessageSize The maximum message size.
+     * @param parts The received bytes.
+     * @return The reader.
+     */
+    private static MessageReader createReader(int maxMessageSize, byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return new MessageReader(new ByteArrayInputStream(out.toByteArray()), maxMessageSize);
+    }
+
+    /**
+     * Creates a frame with a body of the passed size. The bytes of the body
+     * are numbered.
+     *
+     * @param length The length of the body.
+     * @return The frame (including the header).
+     */
+    private static byte[] createFrame(int length) {
+        byte[] frame = new byte[BinaryCodec.HEADER_LENGTH + length];
+        BinaryCodec.writeLength(frame, 0, length);
+        for (int i = 0; i < length; i++) {
+            frame[BinaryCodec.HEADER_LENGTH + i] = (byte) i;
+        }
+        return frame;
+    }
+
+    /**
+     * Gets the body of the last read frame.
+     *
+     * @param reader The reader.
+     * @param length The length of the body.
+     * @return A copy of the body.
+     */
+    private static byte[] getBody(MessageReader reader, int length) {
+        return Arrays.copyOfRange(reader.getBuffer(), reader.getFrameOffset(), reader.getFrameOffset() + length);
+    }
+
+    /**
+     * Lines are split at LF and CRLF, a last line without terminator is
+     * returned too.
+     */
+    @Test
+    public void testReadLines() throws Exception {
+        MessageReader reader = createReader(1024, "first\r\nsecond\nlast".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("first", reader.readLine());
+        assertEquals("second", reader.readLine());
+        assertEquals("last", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    /**
+     * A line longer than the maximum message size is rejected before it is
+     * buffered completely.
+     */
+    @Test
+    public void testLineExceedsMaximumSize() throws Exception {
+        byte[] line = new byte[5000];
+        Arrays.fill(line, (byte) 'x');
+        MessageReader reader = createReader(1000, line, "\n".getBytes(StandardCharsets.UTF_8));
+        try {
+            reader.readLine();
+            fail("The line exceeds the maximum size");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("1000"));
+        }
+    }
+
+    /**
+     * Frames are read into the buffer of the reader, one after the other.
+     */
+    @Test
+    public void testReadFrames() throws Exception {
+        MessageReader reader = createReader(1024, createFrame(10), createFrame(0), createFrame(3));
+
+        assertEquals(10, reader.readFrame());
+        assertArrayEquals(Arrays.copyOfRange(createFrame(10), BinaryCodec.HEADER_LENGTH, BinaryCodec.HEADER_LENGTH + 10), getBody(reader, 10));
+        assertEquals(0, reader.readFrame());
+        assertEquals(3, reader.readFrame());
+        assertArrayEquals(new byte[]{0, 1, 2}, getBody(reader, 3));
+        assertEquals(-1, reader.readFrame());
+    }
+
+    /**
+     * A frame with a length above the maximum message size is rejected by its
+     * header.
+     */
+    @Test(expected = IOException.class)
+    public void testFrameExceedsMaximumSize() throws Exception {
+        createReader(1024, createFrame(1025)).readFrame();
+    }
+
+    /**
+     * A frame which ends before its announced length is reported as
+     * truncated.
+     */
+    @Test(expected = EOFException.class)
+    public void testTruncatedFrame() throws Exception {
+        byte[] frame = createFrame(100);
+        createReader(1024, Arrays.copyOf(frame, 50)).readFrame();
+    }
+
+    /**
+     * The buffer is enlarged for a large frame and replaced by a buffer of the
+     * initial size before the next message is read.
+     */
+    @Test
+    public void testBufferShrinksAfterLargeFrame() throws Exception {
+        int large = 100000;
+        MessageReader reader = createReader(1000000, createFrame(large), createFrame(20), "line\n".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(large, reader.readFrame());
+        assertTrue(reader.getBuffer().length >= large);
+        assertEquals((byte) (large - 1), reader.getBuffer()[reader.getFrameOffset() + large - 1]);
+
+        assertEquals(20, reader.readFrame());
+        assertEquals(BUFFER_SIZE, reader.getBuffer().length);
+        assertArrayEquals(Arrays.copyOfRange(createFrame(20), BinaryCodec.HEADER_LENGTH, BinaryCodec.HEADER_LENGTH + 20), getBody(reader, 20));
+        assertEquals("line", reader.readLine());
+    }
+}
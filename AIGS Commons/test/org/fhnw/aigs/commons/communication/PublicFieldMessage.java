@@ -0,0 +1,18 @@
+package org.fhnw.aigs.commons.communication;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * A game message with a public field, which JAXB marshals (access type
+ * PUBLIC_MEMBER), thus the {@link BinaryCodec} must embed it as XML (see
+ * {@link BinaryCodecTest}). It is a top-level class, as embedded XML messages
+ * are resolved by their canonical class name.
+ */
+@XmlRootElement(name = "PublicFieldMessage")
+public class PublicFieldMessage extends Message {
+
+    /**
+     * A value without getter and setter.
+     */
+    public String value;
+}
@@ -11,6 +11,7 @@ import org.fhnw.aigs.commons.Player;
 import org.fhnw.aigs.server.communication.ServerCommunication;
 import org.fhnw.aigs.server.gameHandling.GameLoader;
 import org.fhnw.aigs.server.gameHandling.GameManager;
+import org.fhnw.aigs.server.gameHandling.LatencyMonitor;
 import org.fhnw.aigs.server.gameHandling.RecompileClassesAction;
 
 /**
@@ -19,9 +20,12 @@ import org.fhnw.aigs.server.gameHandling.RecompileClassesAction;
  * v1.0 Initial release<br>
  * v1.1 Functional changes<br>
  * v1.2 Functional changes<br>
- * v1.3 Changes of logging
+ * v1.3 Changes of logging<br>
+ * v1.4 Command to show the round-trip times of the players<br>
+ * v1.5 Games are looked up by id in the {@link GameManager}<br>
+ * v1.6 Installed games are listed with their metadata
  * @author Matthias Stöckli (v1.0)
- * @version 1.3 (Raphael Stoeckli, 24.02.2015)
+ * @version 1.6
  */
 public class AIGSConsoleHandler {
     
@@ -54,11 +58,12 @@ public class AIGSConsoleHandler {
             
             // If the user types in "exit", the server will
             // shut down, "help" will show which console commands can be used,
-            // "recompile" will terminate all games and recompile/reload the games,
+            // "recompile" will recompile/reload the games (running games keep their version),
             // "list" prints out a list of all the games and "terminate"
             // ends a game.
             // "start" and "stop" are starting or stopping the service.
             // "games" shows a list of installed games on the server
+            // "latency" shows the round-trip times of the game types and players
             if(currentInput.startsWith("exit")){
                 shutdownServer();
             }else if(currentInput.startsWith("start")){
@@ -80,6 +85,8 @@ public class AIGSConsoleHandler {
                 listActiveGames();
             }else if(currentInput.startsWith("terminate")){
                 terminateGame(currentInput);
+            }else if(currentInput.startsWith("latency")){
+                showLatency();
             }
             
         }
@@ -129,7 +136,7 @@ public class AIGSConsoleHandler {
         System.out.println("Installed games:\r\n----------------------");
         for(String game : games)
         {
-        System.out.println(game);    
+        System.out.println(GameLoader.getGameDescription(game));    
         }        
     }
     
@@ -160,13 +167,22 @@ public class AIGSConsoleHandler {
         System.out.println("stop: Stop the service of the server.\r\n");
         System.out.println("exit: Shut down server.\r\n");
         System.out.println("logs: Open the logs folder.\r\n");
-        System.out.println("recompile: Stops all games and recompiles\reloads the game chars. \r\n");
+        System.out.println("recompile: Recompiles/reloads the game jars. Running games keep their version. \r\n");
         System.out.println("list: Show a list of all waiting or running games.\r\n");
         System.out.println("games: Show a list of all installed games on the server.\r\n");
+        System.out.println("latency: Show the round-trip times (p50, p99, max) of the game types and players.\r\n");
         System.out.println("Terminate [gameID]: Stops the game with the specified"
                 + "game ID. Use 'all' to termiante  all games. \r\n");
     }
 
+    /**
+     * Shows the round-trip times of the game types and players
+     * @since v1.4
+     */
+    private void showLatency() {
+        System.out.println(LatencyMonitor.getReport());
+    }
+
     /**
      * Terminate all games and reload classes.
      */
@@ -184,7 +200,7 @@ public class AIGSConsoleHandler {
         //LOG//Logger.getLogger(AIGSConsoleHandler.class.getName()).log(Level.INFO, "List waiting and active games...");
         LogRouter.log(AIGSConsoleHandler.class.getName(), LoggingLevel.system, "List waiting and active games...");
         System.out.println("Waiting games:\r\n----------------------");
-        for(Game game : GameManager.waitingGames){
+        for(Game game : GameManager.getWaitingGames()){
             System.out.println(game.toString());
             System.out.println("Participants:");
             for(Player player : game.getPlayers()){
@@ -194,7 +210,7 @@ public class AIGSConsoleHandler {
         }
         
         System.out.println("Running games:\r\n----------------------");
-        for(Game game : GameManager.runningGames){
+        for(Game game : GameManager.getRunningGames()){
             System.out.println(game.toString());
             System.out.println("Participants:");
             for(Player player : game.getPlayers()){
@@ -230,10 +246,10 @@ public class AIGSConsoleHandler {
     private void terminateAllGames() {
         //LOG//Logger.getLogger(AIGSConsoleHandler.class.getName()).log(Level.INFO, "Terminate all games...");
         LogRouter.log(AIGSConsoleHandler.class.getName(), LoggingLevel.system, "Terminate all games...");
-        for(Game game : GameManager.waitingGames){
+        for(Game game : GameManager.getWaitingGames()){
             GameManager.terminateGame(game, "Termination requested by administrator.");
         }
-        for(Game game : GameManager.runningGames){
+        for(Game game : GameManager.getRunningGames()){
             GameManager.terminateGame(game, "Termination requested by administrator.");
         }
     }
@@ -246,18 +262,9 @@ public class AIGSConsoleHandler {
         try{
             int id = Integer.parseInt(toBeTerminated);
             
-            for(int i = 0; i < GameManager.waitingGames.size(); i++){
-                Game game = GameManager.waitingGames.get(i);
-                if(game.getId() == id){
-                    GameManager.terminateGame(game, "Termination requested by administrator.");
-                }
-            }
-            
-            for (int i = 0; i < GameManager.runningGames.size(); i++) {
-                Game game = GameManager.runningGames.get(i);
-                if (game.getId() == id) {
-                    GameManager.terminateGame(game, "Termination requested by administrator.");
-                }
+            Game game = GameManager.getGameById(id);
+            if(game != null){
+                GameManager.terminateGame(game, "Termination requested by administrator.");
             }
             
         }catch(NumberFormatException ex){
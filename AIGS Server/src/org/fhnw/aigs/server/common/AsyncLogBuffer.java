@@ -0,0 +1,226 @@
+package org.fhnw.aigs.server.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Preallocated ring buffer of the asynchronous logging (see {@link LogRouter}).
+ * Any thread (e.g. a broker thread handling a game message) publishes log
+ * entries into the buffer without locking, a single consumer thread formats
+ * and writes them (see {@link LogRouter#dispatch}). The entries are reused,
+ * publishing an entry does not allocate anything except the parameter array
+ * of the caller.<br>
+ * If the buffer is full, the {@link LogOverflowPolicy} is applied. The number
+ * of dropped entries is logged as soon as the buffer is drained.<br>
+ * v1.0 Initial release
+ *
+ * @version 1.0
+ */
+final class AsyncLogBuffer {
+
+    /**
+     * Maximum time in ms the consumer sleeps before it checks the buffer
+     * again (in case a wake-up was missed).
+     */
+    private static final long MAX_SLEEP_TIME = 10;
+
+    /**
+     * A (reusable) log entry of the buffer.
+     */
+    private static final class Entry {
+
+        /**
+         * Name of the calling class.
+         */
+        private String className;
+        /**
+         * Logging level of the entry.
+         */
+        private LoggingLevel level;
+        /**
+         * The unprocessed message.
+         */
+        private String message;
+        /**
+         * The parameters of the message or null.
+         */
+        private Object[] params;
+        /**
+         * Time of the log call.
+         */
+        private long millis;
+        /**
+         * ID of the logging thread.
+         */
+        private int threadId;
+        /**
+         * Sequence number of the published entry. The entry is readable by
+         * the consumer as soon as the sequence number is written.
+         */
+        private volatile long sequence = -1;
+    }
+
+    /**
+     * The entries (the number of entries is a power of two).
+     */
+    private final Entry[] entries;
+    /**
+     * Mask to map a sequence number to an entry.
+     */
+    private final int mask;
+    /**
+     * The next sequence number to be claimed by a publisher.
+     */
+    private final AtomicLong claimed = new AtomicLong();
+    /**
+     * The next sequence number to be consumed. All entries before are free.
+     */
+    private volatile long consumed;
+    /**
+     * Number of entries dropped due to a full buffer.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+    /**
+     * The policy if the buffer is full.
+     */
+    private final LogOverflowPolicy overflowPolicy;
+    /**
+     * The consumer thread.
+     */
+    private final Thread consumer;
+    /**
+     * True while the consumer waits for entries.
+     */
+    private volatile boolean sleeping;
+
+    /**
+     * Creates the buffer and starts the consumer thread.
+     *
+     * @param capacity The minimum number of entries (rounded up to a power of
+     * two).
+     * @param overflowPolicy The policy if the buffer is full.
+     */
+    AsyncLogBuffer(int capacity, LogOverflowPolicy overflowPolicy) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        entries = new Entry[size];
+        for (int i = 0; i < size; i++) {
+            entries[i] = new Entry();
+        }
+        mask = size - 1;
+        this.overflowPolicy = overflowPolicy;
+        consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        });
+        consumer.setName("LogWriterThread");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Publishes a log entry. Entries logged by the consumer thread itself
+     * (e.g. by a log handler) are written immediately.
+     *
+     * @param className Name of the calling class.
+     * @param level Logging level of the entry.
+     * @param message The unprocessed message.
+     * @param params The parameters of the message or null.
+     */
+    void publish(String className, LoggingLevel level, String message, Object[] params) {
+        long millis = System.currentTimeMillis();
+        int threadId = (int) Thread.currentThread().getId();
+        if (Thread.currentThread() == consumer) {
+            LogRouter.dispatch(className, level, message, params, millis, threadId);
+            return;
+        }
+        long sequence;
+        while (true) {
+            sequence = claimed.get();
+            if (sequence - consumed >= entries.length) {
+                // Buffer full
+                if (overflowPolicy == LogOverflowPolicy.drop
+                        || (overflowPolicy == LogOverflowPolicy.dropUnimportant && level != LoggingLevel.severe && level != LoggingLevel.waring)) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                LockSupport.unpark(consumer);
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+                continue;
+            }
+            if (claimed.compareAndSet(sequence, sequence + 1) == true) {
+                break;
+            }
+        }
+        Entry entry = entries[(int) (sequence & mask)];
+        entry.className = className;
+        entry.level = level;
+        entry.message = message;
+        entry.params = params;
+        entry.millis = millis;
+        entry.threadId = threadId;
+        entry.sequence = sequence;      // Publish
+        if (sleeping == true) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Waits until all entries published so far are written.
+     *
+     * @param timeout Maximum time to wait in ms.
+     * @return True if all entries were written, false if the time elapsed.
+     */
+    boolean flush(long timeout) {
+        long target = claimed.get();
+        long deadline = System.currentTimeMillis() + timeout;
+        while (consumed < target) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            LockSupport.unpark(consumer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return true;
+    }
+
+    /**
+     * Loop of the consumer thread. Writes the entries in the order of their
+     * sequence numbers.
+     */
+    private void consume() {
+        long next = 0;
+        while (true) {
+            Entry entry = entries[(int) (next & mask)];
+            if (entry.sequence == next) {
+                try {
+                    LogRouter.dispatch(entry.className, entry.level, entry.message, entry.params, entry.millis, entry.threadId);
+                } catch (Exception ex) // All exceptions, the consumer must not stop
+                {
+                    Logger.getLogger(AsyncLogBuffer.class.getName()).log(Level.SEVERE, "Could not write a log entry.", ex);
+                }
+                entry.className = null;
+                entry.message = null;
+                entry.params = null;
+                next++;
+                consumed = next;        // Release the entry
+                continue;
+            }
+            long droppedEntries = dropped.getAndSet(0);
+            if (droppedEntries > 0) {
+                LogRouter.dispatch(AsyncLogBuffer.class.getName(), LoggingLevel.waring, "{0} log entries were dropped, because the log buffer was full.",
+                        new Object[]{droppedEntries}, System.currentTimeMillis(), (int) Thread.currentThread().getId());
+                continue;
+            }
+            sleeping = true;
+            if (entry.sequence != next) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(MAX_SLEEP_TIME));
+            }
+            sleeping = false;
+        }
+    }
+}
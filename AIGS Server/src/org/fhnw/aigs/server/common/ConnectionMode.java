@@ -0,0 +1,49 @@
+package org.fhnw.aigs.server.common;
+
+/**
+ * Enum to define how the server handles the client connections
+ * @version 1.0
+ */
+public enum ConnectionMode {
+
+    /**
+     * Every connection gets its own thread with a blocking
+     * {@link org.fhnw.aigs.server.communication.ServerMessageBroker} (classic behavior)
+     */
+    threadPerConnection("Thread per connection"),
+    /**
+     * Every connection gets its own virtual thread with a blocking
+     * {@link org.fhnw.aigs.server.communication.ServerMessageBroker}. Requires
+     * Java 21 or higher, otherwise normal threads are used
+     */
+    virtualThreadPerConnection("Virtual thread per connection"),
+    /**
+     * All connections are handled by a small, fixed number of non-blocking
+     * selector threads (NIO). Use this if many clients are connected at the same time
+     */
+    selector("Selector (NIO)");
+
+    /**
+     * Identifier of the enum value
+     */
+    private final String identifier;
+
+    /**
+     * Constructor of the enum
+     * @param identifier Identifier string
+     */
+    private ConnectionMode(String identifier)
+    {
+        this.identifier = identifier;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return identifier;
+    }
+
+}
@@ -1,21 +1,30 @@
 package org.fhnw.aigs.server.common;
 
 import java.io.*;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.text.MessageFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
-import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.MissingResourceException;
 import java.util.ResourceBundle;
 import java.util.logging.Formatter;
 import java.util.logging.LogRecord;
 import sun.util.logging.LoggingSupport;
 
 /**
- * Custom formatter for logging. This class can switch the logging style ad hoc 
+ * Custom formatter for logging. This class can switch the logging style ad hoc
  * at runtime. Implemented is XML format, simple format and a compressed format.<br>
- * Most parts of XML and simple format are copied from the original Java SE sources.
- * 
- * @version 1.0
+ * Most parts of XML and simple format are copied from the original Java SE sources.<br>
+ * The formatter is thread-safe without locking: Timestamps are formatted once per
+ * second and cached, each thread reuses its own StringBuilder and the message is
+ * written directly into this builder. Several handlers can therefore format
+ * records in parallel.<br>
+ * v1.0 Initial release<br>
+ * v1.1 Lock-free formatting with cached timestamps and thread-local buffers
+ *
+ * @version 1.1
  * @author Raphael Stoeckli (26.02.2015)
  */
 public class CustomFormatter extends Formatter {
@@ -24,22 +33,123 @@ public class CustomFormatter extends Formatter {
      *  Format string of simple format
      */
     private static final String format = LoggingSupport.getSimpleFormat();
-    
+
+    /**
+     * Default format string of the simple format of Java SE. If the simple
+     * format is not overridden by the property java.util.logging.SimpleFormatter.format,
+     * the simple format is built without String.format
+     * @since v1.1
+     */
+    private static final String DEFAULT_SIMPLE_FORMAT = "%1$tb %1$td, %1$tY %1$tl:%1$tM:%1$tS %1$Tp %2$s%n%4$s: %5$s%6$s%n";
+
+    /**
+     * Line separator of the simple format
+     * @since v1.1
+     */
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    /**
+     * Initial capacity of the thread-local StringBuilders
+     * @since v1.1
+     */
+    private static final int INITIAL_BUFFER_SIZE = 512;
+
+    /**
+     * Maximum capacity of a reused StringBuilder. Larger builders (e.g. after a
+     * long stack trace) are discarded to release the memory
+     * @since v1.1
+     */
+    private static final int MAX_BUFFER_SIZE = 16384;
+
+    /**
+     * Reusable StringBuilder of each thread. The builder is removed while in use,
+     * thus a nested call (e.g. logging in a toString method of a parameter) gets
+     * its own builder
+     * @since v1.1
+     */
+    private static final ThreadLocal<StringBuilder> buffers = new ThreadLocal<>();
+
+    /**
+     * Reusable StringBuilder of each thread for the message of the XML format.
+     * The message is formatted into this builder and then escaped into the
+     * builder of the record
+     * @since v1.1
+     */
+    private static final ThreadLocal<StringBuilder> messageBuffers = new ThreadLocal<>();
+
+    /**
+     * Formatter of the date and time of the compressed format
+     * @since v1.1
+     */
+    private static final DateTimeFormatter compressedDateFormat = DateTimeFormatter.ofPattern("yyyy.MM.dd HH:mm:ss");
+
+    /**
+     * Formatter of the date and time in ISO 8601 format (XML format)
+     * @since v1.1
+     */
+    private static final DateTimeFormatter isoDateFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+
+    /**
+     * Formatter of the date and time of the default simple format
+     * @since v1.1
+     */
+    private static final DateTimeFormatter simpleDateFormat = DateTimeFormatter.ofPattern("MMM dd, yyyy h:mm:ss", Locale.getDefault(Locale.Category.FORMAT));
+
+    /**
+     * Formatter of the AM/PM marker of the default simple format
+     * @since v1.1
+     */
+    private static final DateTimeFormatter simpleMarkerFormat = DateTimeFormatter.ofPattern("a", Locale.getDefault(Locale.Category.FORMAT));
+
+    /**
+     * Immutable formatted timestamp of one second
+     * @since v1.1
+     */
+    private static final class CachedSecond {
+
+        /**
+         * Second since the epoch
+         */
+        private final long second;
+        /**
+         * Formatted date and time of the second
+         */
+        private final String text;
+
+        /**
+         * Constructor
+         * @param second Second since the epoch
+         * @param text Formatted date and time of the second
+         */
+        private CachedSecond(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
     /**
-     * Date object of logging date and time
+     * Last formatted timestamp of the compressed format
+     * @since v1.1
      */
-    private final Date dat = new Date();
-    
+    private volatile CachedSecond compressedDate = new CachedSecond(Long.MIN_VALUE, "");
+
     /**
-     * Format object of simple SimpleDateFormat
+     * Last formatted timestamp of the XML format
+     * @since v1.1
      */
-    SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy.MM.dd HH:mm:ss");
-    
+    private volatile CachedSecond isoDate = new CachedSecond(Long.MIN_VALUE, "");
+
+    /**
+     * Last formatted timestamp of the simple format
+     * @since v1.1
+     */
+    private volatile CachedSecond simpleDate = new CachedSecond(Long.MIN_VALUE, "");
+
     /**
      * Current logging style of the formatter
      */
-    private LoggingStyle loggingStyle = LoggingStyle.plainCompact;
-    
+    private volatile LoggingStyle loggingStyle = LoggingStyle.plainCompact;
+
     /**
      * Getter of the logging style
      * @return Current logging style of the formatter
@@ -55,7 +165,7 @@ public class CustomFormatter extends Formatter {
     public void setLoggingStyle(LoggingStyle loggingStyle) {
         this.loggingStyle = loggingStyle;
     }
-    
+
     /**
      * Constructor with definition of the logging style
      * @param style Logging style for the formatter
@@ -64,69 +174,90 @@ public class CustomFormatter extends Formatter {
     {
         super();
         this.loggingStyle = style;
-    }    
-    
+    }
+
     /**
      * Method to format an incoming log record according the current {@link CustomFormatter#loggingStyle}
      * @param record Log record to process
      * @return Processed log record as string
      */
     @Override
-    public synchronized String format(LogRecord record) {
-        if (this.loggingStyle == LoggingStyle.plainFull )
+    public String format(LogRecord record) {
+        LoggingStyle style = this.loggingStyle;
+        if (style != LoggingStyle.plainFull && style != LoggingStyle.xmlFull && style != LoggingStyle.compressed)
         {
-            return getSimpleFormat(record);
+            return ""; // Discard
+        }
+        StringBuilder sb = acquireBuffer(buffers);
+        try
+        {
+            if (style == LoggingStyle.plainFull )
+            {
+                appendSimpleFormat(sb, record);
+            }
+            else if (style == LoggingStyle.xmlFull )
+            {
+                appendXmlFormat(sb, record);
+            }
+            else
+            {
+                appendCompressedFormat(sb, record);
+            }
+            return sb.toString();
         }
-        else if (this.loggingStyle == LoggingStyle.xmlFull )
+        finally
         {
-            return getXmlFormat(record);
+            releaseBuffer(buffers, sb);
         }
-        else if (this.loggingStyle == LoggingStyle.compressed )
+    }
+
+    /**
+     * Formats the message of the record with its parameters (localized if a
+     * resource bundle is defined). Replaces {@link Formatter#formatMessage(java.util.logging.LogRecord)},
+     * which is synchronized
+     * @param record Log record to process
+     * @return Formatted message
+     * @since v1.1
+     */
+    @Override
+    public String formatMessage(LogRecord record) {
+        StringBuilder sb = acquireBuffer(buffers);
+        try
         {
-            return getCompressedFormat(record);
+            appendMessage(sb, record);
+            return sb.toString();
         }
-        else
+        finally
         {
-            return ""; // Discard
+            releaseBuffer(buffers, sb);
         }
     }
-    
+
     /**
-     * Method to format an incoming log record in a compressed style
+     * Appends a compressed formatted log record
+     * @param sb String builder object
      * @param record Log record to process
-     * @return Processed log record as string
+     * @since v1.1
      */
-    private String getCompressedFormat(LogRecord record)
+    private void appendCompressedFormat(StringBuilder sb, LogRecord record)
     {
-        StringBuilder sb = new StringBuilder();
-        dat.setTime(record.getMillis());
-        sb.append(dateFormat.format(dat));
-        sb.append("\t");
+        sb.append(getCompressedDate(record.getMillis()));
+        sb.append('\t');
         sb.append(record.getLevel().getLocalizedName());
-        sb.append("\t");
-        sb.append(formatMessage(record));
-        sb.append("\n");
-        return sb.toString();
+        sb.append('\t');
+        appendMessage(sb, record);
+        sb.append('\n');
     }
-    
+
     /**
-     * Method to format an incoming log record in a simple style
+     * Appends a log record in the simple format. If a custom format string is
+     * defined, String.format is used
+     * @param sb String builder object
      * @param record Log record to process
-     * @return Processed log record as string
+     * @since v1.1
      */
-    private String getSimpleFormat(LogRecord record)
+    private void appendSimpleFormat(StringBuilder sb, LogRecord record)
     {
-         dat.setTime(record.getMillis());
-        String source;
-        if (record.getSourceClassName() != null) {
-            source = record.getSourceClassName();
-            if (record.getSourceMethodName() != null) {
-               source += " " + record.getSourceMethodName();
-            }
-        } else {
-            source = record.getLoggerName();
-        }
-        String message = formatMessage(record);
         String throwable = "";
         if (record.getThrown() != null) {
             StringWriter sw = new StringWriter();
@@ -136,27 +267,55 @@ public class CustomFormatter extends Formatter {
             pw.close();
             throwable = sw.toString();
         }
-        return String.format(format,
-                             dat,
-                             source,
-                             record.getLoggerName(),
-                             record.getLevel().getLocalizedName(),
-                             message,
-                             throwable);    
-        
+        if (DEFAULT_SIMPLE_FORMAT.equals(format) == false)
+        {
+            String source;
+            if (record.getSourceClassName() != null) {
+                source = record.getSourceClassName();
+                if (record.getSourceMethodName() != null) {
+                   source += " " + record.getSourceMethodName();
+                }
+            } else {
+                source = record.getLoggerName();
+            }
+            sb.append(String.format(format,
+                                 new Date(record.getMillis()),
+                                 source,
+                                 record.getLoggerName(),
+                                 record.getLevel().getLocalizedName(),
+                                 formatMessage(record),
+                                 throwable));
+            return;
+        }
+        sb.append(getSimpleDate(record.getMillis()));
+        sb.append(' ');
+        if (record.getSourceClassName() != null) {
+            sb.append(record.getSourceClassName());
+            if (record.getSourceMethodName() != null) {
+               sb.append(' ').append(record.getSourceMethodName());
+            }
+        } else {
+            sb.append(record.getLoggerName());
+        }
+        sb.append(LINE_SEPARATOR);
+        sb.append(record.getLevel().getLocalizedName());
+        sb.append(": ");
+        appendMessage(sb, record);
+        sb.append(throwable);
+        sb.append(LINE_SEPARATOR);
     }
-    
+
     /**
-     * Method to format an incoming log record in XML style
+     * Appends a log record in XML format
+     * @param sb String builder object
      * @param record Log record to process
-     * @return Processed log record as string
+     * @since v1.1
      */
-    private String getXmlFormat(LogRecord record) {
-        StringBuilder sb = new StringBuilder(500);
+    private void appendXmlFormat(StringBuilder sb, LogRecord record) {
         sb.append("<record>\n");
 
         sb.append("  <date>");
-        appendISO8601(sb, record.getMillis());
+        sb.append(getIsoDate(record.getMillis()));
         sb.append("</date>\n");
 
         sb.append("  <millis>");
@@ -196,9 +355,14 @@ public class CustomFormatter extends Formatter {
 
         if (record.getMessage() != null) {
             // Format the message string and its accompanying parameters.
-            String message = formatMessage(record);
             sb.append("  <message>");
-            escape(sb, message);
+            StringBuilder message = acquireBuffer(messageBuffers);
+            try {
+                appendMessage(message, record);
+                escape(sb, message);
+            } finally {
+                releaseBuffer(messageBuffers, message);
+            }
             sb.append("</message>");
             sb.append("\n");
         }
@@ -264,69 +428,174 @@ public class CustomFormatter extends Formatter {
         }
 
         sb.append("</record>\n");
-        return sb.toString();
-    }    
+    }
+
+    /**
+     * Appends the (localized) message of the record with its parameters. The
+     * message is appended directly if there are no parameters
+     * @param sb String builder object
+     * @param record Log record to process
+     * @since v1.1
+     */
+    private void appendMessage(StringBuilder sb, LogRecord record) {
+        String message = record.getMessage();
+        ResourceBundle catalog = record.getResourceBundle();
+        if (catalog != null && message != null) {
+            try {
+                message = catalog.getString(message);
+            } catch (MissingResourceException ex) {
+                // Use the message as it is
+            }
+        }
+        Object parameters[] = record.getParameters();
+        if (parameters == null || parameters.length == 0 || message == null) {
+            sb.append(message);
+            return;
+        }
+        try {
+            if (message.indexOf("{0") >= 0 || message.indexOf("{1") >= 0
+                    || message.indexOf("{2") >= 0 || message.indexOf("{3") >= 0) {
+                sb.append(MessageFormat.format(message, parameters));
+                return;
+            }
+        } catch (Exception ex) // All exceptions, same as the Java SE formatter
+        {
+            // Use the message as it is
+        }
+        sb.append(message);
+    }
 
-    // Append to the given StringBuilder an escaped version of the
-    // given text string where XML special characters have been escaped.
-    // For a null string we append "<null>"
-    
     /**
      * Append to the given StringBuilder an escaped version of the
-     * given text string where XML special characters have been escaped. 
+     * given text string where XML special characters have been escaped.
+     * Unescaped parts are appended as a whole.
      * For a null string we append "&lt;null&gt;"
      * @param sb String builder object
      * @param text Given text
      */
-    private void escape(StringBuilder sb, String text) {
+    private void escape(StringBuilder sb, CharSequence text) {
         if (text == null) {
             text = "<null>";
         }
+        int start = 0;
         for (int i = 0; i < text.length(); i++) {
-            char ch = text.charAt(i);
-            if (ch == '<') {
-                sb.append("&lt;");
-            } else if (ch == '>') {
-                sb.append("&gt;");
-            } else if (ch == '&') {
-                sb.append("&amp;");
-            } else {
-                sb.append(ch);
+            String replacement = getEscapeSequence(text.charAt(i));
+            if (replacement != null) {
+                sb.append(text, start, i);
+                sb.append(replacement);
+                start = i + 1;
             }
         }
-    }    
-    
+        sb.append(text, start, text.length());
+    }
+
     /**
-     * Append the time and date in ISO 8601 format
-     * @param sb String builder object
-     * @param millis milliseconds to append
-     */
-    private void appendISO8601(StringBuilder sb, long millis) {
-        GregorianCalendar cal = new GregorianCalendar();
-        cal.setTimeInMillis(millis);
-        sb.append(cal.get(Calendar.YEAR));
-        sb.append('-');
-        a2(sb, cal.get(Calendar.MONTH) + 1);
-        sb.append('-');
-        a2(sb, cal.get(Calendar.DAY_OF_MONTH));
-        sb.append('T');
-        a2(sb, cal.get(Calendar.HOUR_OF_DAY));
-        sb.append(':');
-        a2(sb, cal.get(Calendar.MINUTE));
-        sb.append(':');
-        a2(sb, cal.get(Calendar.SECOND));
+     * Gets the escape sequence of a XML special character
+     * @param ch Character to check
+     * @return Escape sequence or null if the character is not escaped
+     * @since v1.1
+     */
+    private static String getEscapeSequence(char ch) {
+        switch (ch) {
+            case '<':
+                return "&lt;";
+            case '>':
+                return "&gt;";
+            case '&':
+                return "&amp;";
+            default:
+                return null;
+        }
     }
-    
+
     /**
-     * Appends a two digit number.
-     * @param sb String builder object
-     * @param x number to append
+     * Gets the date and time of the compressed format. The value is cached per second
+     * @param millis Time in milliseconds since the epoch
+     * @return Formatted date and time
+     * @since v1.1
+     */
+    private String getCompressedDate(long millis) {
+        CachedSecond cached = compressedDate;
+        long second = Math.floorDiv(millis, 1000L);
+        if (cached.second != second) {
+            cached = new CachedSecond(second, formatSecond(compressedDateFormat, second));
+            compressedDate = cached;
+        }
+        return cached.text;
+    }
+
+    /**
+     * Gets the date and time in ISO 8601 format. The value is cached per second
+     * @param millis Time in milliseconds since the epoch
+     * @return Formatted date and time
+     * @since v1.1
+     */
+    private String getIsoDate(long millis) {
+        CachedSecond cached = isoDate;
+        long second = Math.floorDiv(millis, 1000L);
+        if (cached.second != second) {
+            cached = new CachedSecond(second, formatSecond(isoDateFormat, second));
+            isoDate = cached;
+        }
+        return cached.text;
+    }
+
+    /**
+     * Gets the date and time of the default simple format. The value is cached per second
+     * @param millis Time in milliseconds since the epoch
+     * @return Formatted date and time
+     * @since v1.1
      */
-    private void a2(StringBuilder sb, int x) {
-        if (x < 10) {
-            sb.append('0');
+    private String getSimpleDate(long millis) {
+        CachedSecond cached = simpleDate;
+        long second = Math.floorDiv(millis, 1000L);
+        if (cached.second != second) {
+            // %Tp of the Java SE format is upper case
+            cached = new CachedSecond(second, formatSecond(simpleDateFormat, second) + " "
+                    + formatSecond(simpleMarkerFormat, second).toUpperCase(Locale.getDefault(Locale.Category.FORMAT)));
+            simpleDate = cached;
         }
-        sb.append(x);
-    }   
-    
+        return cached.text;
+    }
+
+    /**
+     * Formats a second in the default time zone
+     * @param formatter Formatter to use
+     * @param second Second since the epoch
+     * @return Formatted date and time
+     * @since v1.1
+     */
+    private static String formatSecond(DateTimeFormatter formatter, long second) {
+        return formatter.format(Instant.ofEpochSecond(second).atZone(ZoneId.systemDefault()));
+    }
+
+    /**
+     * Gets the reusable StringBuilder of the current thread (or a new one if the
+     * builder is already in use by an outer call)
+     * @param pool Thread-local storage of the builder
+     * @return Empty StringBuilder
+     * @since v1.1
+     */
+    private static StringBuilder acquireBuffer(ThreadLocal<StringBuilder> pool) {
+        StringBuilder sb = pool.get();
+        if (sb == null) {
+            return new StringBuilder(INITIAL_BUFFER_SIZE);
+        }
+        pool.set(null);
+        sb.setLength(0);
+        return sb;
+    }
+
+    /**
+     * Returns the StringBuilder to the current thread for reuse
+     * @param pool Thread-local storage of the builder
+     * @param sb StringBuilder acquired by {@link CustomFormatter#acquireBuffer}
+     * @since v1.1
+     */
+    private static void releaseBuffer(ThreadLocal<StringBuilder> pool, StringBuilder sb) {
+        if (sb.capacity() <= MAX_BUFFER_SIZE) {
+            pool.set(sb);
+        }
+    }
+
 }
@@ -0,0 +1,43 @@
+package org.fhnw.aigs.server.common;
+
+/**
+ * Enum to define how the server handles players whose round-trip time exceeds
+ * the maximum latency of the {@link ServerConfiguration}
+ * @version 1.0
+ */
+public enum HighLatencyPolicy {
+
+    /**
+     * The player is logged and marked in the latency statistics. The game
+     * continues
+     */
+    flagPlayer("Flag player"),
+    /**
+     * The game of the player is terminated and the connection is closed
+     */
+    terminateGame("Terminate game");
+
+    /**
+     * Identifier of the enum value
+     */
+    private final String identifier;
+
+    /**
+     * Constructor of the enum
+     * @param identifier Identifier string
+     */
+    private HighLatencyPolicy(String identifier)
+    {
+        this.identifier = identifier;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return identifier;
+    }
+
+}
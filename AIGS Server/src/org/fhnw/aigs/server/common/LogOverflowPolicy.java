@@ -0,0 +1,49 @@
+package org.fhnw.aigs.server.common;
+
+/**
+ * Enum to define how the server handles log entries if the buffer of the
+ * asynchronous logging is full (see {@link AsyncLogBuffer}), e.g. if the log
+ * file cannot be written as fast as entries are logged
+ * @version 1.0
+ */
+public enum LogOverflowPolicy {
+
+    /**
+     * The logging thread waits until the entry can be buffered. No entry is
+     * lost, but the game can be slowed down
+     */
+    block("Block"),
+    /**
+     * Severe entries and warnings wait until they can be buffered, all other
+     * entries are dropped
+     */
+    dropUnimportant("Drop unimportant entries"),
+    /**
+     * All entries are dropped while the buffer is full
+     */
+    drop("Drop entries");
+
+    /**
+     * Identifier of the enum value
+     */
+    private final String identifier;
+
+    /**
+     * Constructor of the enum
+     * @param identifier Identifier string
+     */
+    private LogOverflowPolicy(String identifier)
+    {
+        this.identifier = identifier;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return identifier;
+    }
+
+}
@@ -2,21 +2,33 @@ package org.fhnw.aigs.server.common;
  
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
+import org.fhnw.aigs.commons.Game;
+import org.fhnw.aigs.commons.MessageTrafficListener;
+import org.fhnw.aigs.commons.Player;
 import org.fhnw.aigs.commons.XMLHelper;
+import org.fhnw.aigs.commons.communication.Message;
 
 /**
  * Class to manage the server-side logging. It supersede standard logging for better control of the formats, outputs and levels of the logs.<br>
  * The class uses the Java SE standard logger in the backend.<br>
  * Possible log levels are Severe, Warning, System (messages of the AIGS server), Game (messages of AIGS games on the server) and Info.<br>
  * v1.0 Inital release<br>
- * v1.1 Fixed issues with malformed input for the xml logger
- * @version 1.1
+ * v1.1 Fixed issues with malformed input for the xml logger<br>
+ * v1.2 Asynchronous logging: Log entries are published into a ring buffer
+ * (see {@link AsyncLogBuffer}) and processed and written by a log writer thread<br>
+ * v1.3 Decision table of threshold and level, entries below the threshold are
+ * discarded before anything is built or buffered<br>
+ * v1.4 Structured logging of the game traffic into memory-mapped segments
+ * (see {@link LoggingStyle#structured} and {@link StructuredLogHandler})
+ * @version 1.4
  * @author Raphael Stoeckli (23.04.2015)
  */
 public class LogRouter {
@@ -24,12 +36,32 @@ public class LogRouter {
     /**
      * Singleton object of the logging threshold
      */
-    private static LoggingThreshold threshold = null;
+    private static volatile LoggingThreshold threshold = null;
     
     /**
      * Singleton object of the logging style
      */
-    private static LoggingStyle style = null;
+    private static volatile LoggingStyle style = null;
+    
+    /**
+     * Buffer of the asynchronous logging (null until the logging is set up)
+     * @since v1.2
+     */
+    private static volatile AsyncLogBuffer buffer = null;
+    
+    /**
+     * Decision table of the current threshold: The level of the Java SE
+     * logger for each {@link LoggingLevel} (by ordinal) or null if entries of
+     * the level are discarded. Null until the threshold is initialized
+     * @since v1.3
+     */
+    private static volatile Level[] javaLevels = null;
+    
+    /**
+     * Name of the log files (text logs) or segments (structured log)
+     * @since v1.4
+     */
+    private static final String LOG_NAME = "aigs";
     
     /**
      * Setter for the singleton instance of the logging threshold
@@ -38,6 +70,7 @@ public class LogRouter {
     public static void SetThreshold(LoggingThreshold threshold)
     {
         LogRouter.threshold = threshold;
+        LogRouter.javaLevels = createLevelTable(threshold);
     }
     
     /**
@@ -58,6 +91,7 @@ public class LogRouter {
     {
         LogRouter.threshold = threshold;
         LogRouter.style = style;
+        LogRouter.javaLevels = createLevelTable(threshold);
     }
     
     /**
@@ -72,7 +106,9 @@ public class LogRouter {
      * This method is responsible for the logging by setting a FileHandler.
      * Usually the log files will be saved to the folder "logs", under the name
      * "aigs.log". Logs which exceed 10 MB in size will trigger the creation of
-     * a new logfile.
+     * a new logfile.<br>
+     * With the logging style {@link LoggingStyle#structured}, the records are
+     * written into the segments "aigs-NUMBER.alog" instead (see {@link StructuredLogHandler})
      */
     public static void setUpLogging() {       
         // Get the standard logger (root logger) from which all loggers inherit
@@ -90,24 +126,34 @@ public class LogRouter {
                 rootLogger.removeHandler(h);
             }
 
-            // Add a filehandler to the root logger. All logging activity will
-            // be saved to the file "logs/aigs.log". If the file exceeds 10 MB
-            // a new file will be created (up to 10).
-            FileHandler fileHandler = new FileHandler(logDirectory + "/aigs.log", 1073741824, 10);
-            fileHandler.setEncoding("UTF-8");
+            if (ServerConfiguration.getInstance().getLoggerStyle() == LoggingStyle.structured) // Binary segments (v1.4)
+            {
+                StructuredLogHandler structuredHandler = new StructuredLogHandler(new File(logDirectory), LOG_NAME,
+                        ServerConfiguration.getInstance().getLogSegmentSize() * 1048576, ServerConfiguration.getInstance().getLogSegmentCount());
+                structuredHandler.setLevel(Level.ALL); // Filtering will be done adHoc in the log() method
+                rootLogger.addHandler(structuredHandler);
+            }
+            else
+            {
+                // Add a filehandler to the root logger. All logging activity will
+                // be saved to the file "logs/aigs.log". If the file exceeds 10 MB
+                // a new file will be created (up to 10).
+                FileHandler fileHandler = new FileHandler(logDirectory + "/" + LOG_NAME + ".log", 1073741824, 10);
+                fileHandler.setEncoding("UTF-8");
 
-            // Decides which logging format will be used.
-            /*
-            if (ServerConfiguration.getInstance().getIsXMLlogging()) {
-                fileHandler.setFormatter(new XMLFormatter());
-                fileHandler.setLevel(Level.ALL);
-            } else {
-                fileHandler.setFormatter(new SimpleFormatter());
+                // Decides which logging format will be used.
+                /*
+                if (ServerConfiguration.getInstance().getIsXMLlogging()) {
+                    fileHandler.setFormatter(new XMLFormatter());
+                    fileHandler.setLevel(Level.ALL);
+                } else {
+                    fileHandler.setFormatter(new SimpleFormatter());
+                }
+                */
+                fileHandler.setFormatter(new CustomFormatter(ServerConfiguration.getInstance().getLoggerStyle()));
+                fileHandler.setLevel(Level.ALL); // Filtering will be done adHoc in the log() method
+                rootLogger.addHandler(fileHandler);
             }
-            */
-            fileHandler.setFormatter(new CustomFormatter(ServerConfiguration.getInstance().getLoggerStyle()));
-            fileHandler.setLevel(Level.ALL); // Filtering will be done adHoc in the log() method
-            rootLogger.addHandler(fileHandler);
 
             // Add a Console handler so all logs will also be shown on the console.
             ConsoleHandler consoleHandler = new ConsoleHandler();
@@ -124,6 +170,19 @@ public class LogRouter {
         {
             Logger.getLogger(Main.class.getName()).log(Level.SEVERE, "An unknown error occured.", ex);
         }
+        if (LogRouter.buffer == null) // Start the asynchronous logging (v1.2)
+        {
+            LogRouter.buffer = new AsyncLogBuffer(ServerConfiguration.getInstance().getLogBufferSize(), ServerConfiguration.getInstance().getLogOverflowPolicy());
+        }
+        Game.setMessageTrafficListener(new MessageTrafficListener() { // Outgoing game traffic (v1.4)
+            @Override
+            public void messageSent(Game game, Player player, Message message) {
+                if (isLoggable(LoggingLevel.info) == true && LogRouter.style == LoggingStyle.structured)
+                {
+                    logTraffic(Game.class.getName(), LoggingLevel.info, new TrafficRecord(TrafficDirection.outgoing, game.getId(), player.getName(), message.getClass().getName()), "=> {0}", new Object[]{message.getClass().getName()});
+                }
+            }
+        });
         Logger.getLogger(Main.class.getName()).log(Level.INFO, "Now logging...");
     }
     
@@ -136,124 +195,48 @@ public class LogRouter {
      */
     public static void log(String className, LoggingLevel level, String customMessage, Object param)
     {
-        if (LogRouter.threshold == null) // Init (store threshold for better performance)
-        {
-            LogRouter.threshold = ServerConfiguration.getInstance().getLoggerThreshold();
-        }
-        if (LogRouter.style == null) // Init (store style for better performance)
-        {
-            LogRouter.style = ServerConfiguration.getInstance().getLoggerStyle();
-        }
-        customMessage = processMessage(customMessage);
-        if (LogRouter.threshold == LoggingThreshold.off || level == LoggingLevel.none) { return; } // Discard
-        else if (LogRouter.threshold == LoggingThreshold.all) // Sys, severe, warn, info
-        {
-            if (level == LoggingLevel.severe)
-            {
-                Logger.getLogger(className).log(Level.SEVERE, customMessage, param);
-            }
-            else if (level == LoggingLevel.waring)
-            {
-                Logger.getLogger(className).log(Level.WARNING, customMessage, param);
-            }
-            else //if (level == LoggingLevel.info) // Info
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage, param);
-            }
-        }
-        else if (LogRouter.threshold == LoggingThreshold.warningSevereSystemGame) // Game, Sys, severe, warn
-        {
-             if (level == LoggingLevel.severe)
-            {
-                Logger.getLogger(className).log(Level.SEVERE, customMessage, param);
-            }
-            else if (level == LoggingLevel.waring)
-            {
-                Logger.getLogger(className).log(Level.WARNING, customMessage, param);
-            }
-            else if (level == LoggingLevel.system)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage, param);
-            }
-            else if (level == LoggingLevel.game)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage, param);
-            } 
-        }        
-        else if (LogRouter.threshold == LoggingThreshold.warningSevereSystem) // Sys, severe, warn
-        {
-             if (level == LoggingLevel.severe)
-            {
-                Logger.getLogger(className).log(Level.SEVERE, customMessage, param);
-            }
-            else if (level == LoggingLevel.waring)
-            {
-                Logger.getLogger(className).log(Level.WARNING, customMessage, param);
-            }
-            else if (level == LoggingLevel.system)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage, param);
-            }
-        }
-        else if (LogRouter.threshold == LoggingThreshold.waringSevere) // Severe, warn
-        {
-             if (level == LoggingLevel.severe)
-            {
-                Logger.getLogger(className).log(Level.SEVERE, customMessage, param);
-            }
-            else if (level == LoggingLevel.waring)
-            {
-                Logger.getLogger(className).log(Level.WARNING, customMessage, param);
-            }           
-        }
-        else if (LogRouter.threshold == LoggingThreshold.severeSystem) // Sys, severe
-        {
-             if (level == LoggingLevel.severe)
-            {
-                Logger.getLogger(className).log(Level.SEVERE, customMessage, param);
-            }
-            else if (level == LoggingLevel.system)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage, param);
-            }            
-        }
-        else if (LogRouter.threshold == LoggingThreshold.severeSystemGame) // Game, Sys, severe
-        {
-             if (level == LoggingLevel.severe)
-            {
-                Logger.getLogger(className).log(Level.SEVERE, customMessage, param);
-            }
-            else if (level == LoggingLevel.system)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage, param);
-            }
-            else if (level == LoggingLevel.game)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage, param);
-            }
-        }        
-        else if (LogRouter.threshold == LoggingThreshold.severe) // Severe
-        {
-             if (level == LoggingLevel.severe)
-            {
-                Logger.getLogger(className).log(Level.SEVERE, customMessage, param);
-            }
-        }
-        else if (LogRouter.threshold == LoggingThreshold.system) // Sys
-        {
-            if (level == LoggingLevel.system)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage, param);
-            }           
-        }
-        else if (LogRouter.threshold == LoggingThreshold.game) // Game
+        if (isLoggable(level) == false) { return; } // Discard before the parameters are wrapped
+        publish(className, level, customMessage, new Object[]{param});
+    }    
+    
+    /**
+     * Method to process a log entry of the game traffic (a received or sent
+     * message). The traffic record is appended to the parameters: The
+     * structured log (see {@link LoggingStyle#structured}) stores its fields
+     * instead of the message, the text based styles ignore it
+     * @param className Name of the calling class
+     * @param level Logging level of the entry
+     * @param traffic Direction, game, player and class of the message
+     * @param customMessage Message, can contain {NUMBERS} which will be resolved with the content of the parameters (params)
+     * @param params Array of parameter of the log entry
+     * @since v1.4
+     */
+    public static void logTraffic(String className, LoggingLevel level, TrafficRecord traffic, String customMessage, Object[] params)
+    {
+        if (isLoggable(level) == false) { return; } // Discard before the parameters are copied
+        Object[] trafficParams = Arrays.copyOf(params, params.length + 1);
+        trafficParams[params.length] = traffic;
+        publish(className, level, customMessage, trafficParams);
+    }
+    
+    /**
+     * Checks whether entries of a logging level are written with the current
+     * logging threshold. Use this method to avoid building expensive log
+     * messages or parameters which would be discarded
+     * @param level Logging level of the entry
+     * @return True if entries of the level are written, otherwise false
+     * @since v1.3
+     */
+    public static boolean isLoggable(LoggingLevel level)
+    {
+        Level[] table = LogRouter.javaLevels;
+        if (table == null) // Init (store threshold for better performance)
         {
-            if (level == LoggingLevel.game)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage, param);
-            }           
+            initRules();
+            table = LogRouter.javaLevels;
         }
-    }    
+        return table[level.ordinal()] != null;
+    }
     
     /**
      * Method to process a log entry
@@ -264,253 +247,183 @@ public class LogRouter {
      */
     public static void log(String className, LoggingLevel level, String customMessage, Object[] params)
     {
-        if (LogRouter.threshold == null) // Init (store threshold for better performance)
-        {
-            LogRouter.threshold = ServerConfiguration.getInstance().getLoggerThreshold();
-        }
-        if (LogRouter.style == null) // Init (store style for better performance)
+        publish(className, level, customMessage, params);
+    }
+    
+    /**
+     * Method to process a log entry
+     * @param className Name of the calling class
+     * @param level Logging level of the entry
+     * @param customMessage Message to display (no further parameters)
+     */
+    public static void log(String className, LoggingLevel level, String customMessage)
+    {
+        publish(className, level, customMessage, null);
+    }    
+    
+    /**
+     * Waits until all buffered log entries are written and flushes the log
+     * handlers (e.g. before the server shuts down)
+     * @param timeout Maximum time to wait in ms
+     * @since v1.2
+     */
+    public static void flush(long timeout)
+    {
+        AsyncLogBuffer currentBuffer = LogRouter.buffer;
+        if (currentBuffer != null)
         {
-            LogRouter.style = ServerConfiguration.getInstance().getLoggerStyle();
+            currentBuffer.flush(timeout);
         }
-        customMessage = processMessage(customMessage);
-        if (LogRouter.threshold == LoggingThreshold.off || level == LoggingLevel.none) { return; } // Discard
-        else if (LogRouter.threshold == LoggingThreshold.all) // Sys, severe, warn, info
+        for (Handler handler : Logger.getLogger("").getHandlers())
         {
-            if (level == LoggingLevel.severe)
-            {
-                Logger.getLogger(className).log(Level.SEVERE, customMessage, params);
-            }
-            else if (level == LoggingLevel.waring)
-            {
-                Logger.getLogger(className).log(Level.WARNING, customMessage, params);
-            }
-            else //if (level == LoggingLevel.info) // Info
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage, params);
-            }
+            handler.flush();
         }
-        else if (LogRouter.threshold == LoggingThreshold.warningSevereSystemGame) // Game, Sys, severe, warn
-        {
-             if (level == LoggingLevel.severe)
-            {
-                Logger.getLogger(className).log(Level.SEVERE, customMessage, params);
-            }
-            else if (level == LoggingLevel.waring)
-            {
-                Logger.getLogger(className).log(Level.WARNING, customMessage, params);
-            }
-            else if (level == LoggingLevel.system)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage, params);
-            }
-            else if (level == LoggingLevel.game)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage, params);
-            } 
-        }        
-        else if (LogRouter.threshold == LoggingThreshold.warningSevereSystem) // Sys, severe, warn
+    }
+    
+    /**
+     * Publishes a log entry into the buffer of the asynchronous logging. The
+     * entry is processed and written by the log writer thread (see
+     * {@link LogRouter#dispatch}). Before the logging is set up, the entry is
+     * written immediately
+     * @param className Name of the calling class
+     * @param level Logging level of the entry
+     * @param customMessage Message, can contain {NUMBERS} which will be resolved with the content of the parameters (params)
+     * @param params Array of parameter of the log entry or null
+     * @since v1.2
+     */
+    private static void publish(String className, LoggingLevel level, String customMessage, Object[] params)
+    {
+        if (isLoggable(level) == false) { return; } // Discard (decision table, v1.3)
+        AsyncLogBuffer currentBuffer = LogRouter.buffer;
+        if (currentBuffer == null) // Not set up yet
         {
-             if (level == LoggingLevel.severe)
-            {
-                Logger.getLogger(className).log(Level.SEVERE, customMessage, params);
-            }
-            else if (level == LoggingLevel.waring)
-            {
-                Logger.getLogger(className).log(Level.WARNING, customMessage, params);
-            }
-            else if (level == LoggingLevel.system)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage, params);
-            }
+            dispatch(className, level, customMessage, params, System.currentTimeMillis(), (int) Thread.currentThread().getId());
         }
-        else if (LogRouter.threshold == LoggingThreshold.waringSevere) // Severe, warn
+        else
         {
-             if (level == LoggingLevel.severe)
-            {
-                Logger.getLogger(className).log(Level.SEVERE, customMessage, params);
-            }
-            else if (level == LoggingLevel.waring)
-            {
-                Logger.getLogger(className).log(Level.WARNING, customMessage, params);
-            }           
+            currentBuffer.publish(className, level, customMessage, params);
         }
-        else if (LogRouter.threshold == LoggingThreshold.severeSystem) // Sys, severe
+    }
+    
+    /**
+     * Processes a log entry and passes it to the Java SE logger if it is
+     * within the logging threshold. Called by the log writer thread
+     * @param className Name of the calling class
+     * @param level Logging level of the entry
+     * @param customMessage Message, can contain {NUMBERS} which will be resolved with the content of the parameters (params)
+     * @param params Array of parameter of the log entry or null
+     * @param millis Time of the log call
+     * @param threadId ID of the logging thread
+     * @since v1.2
+     */
+    static void dispatch(String className, LoggingLevel level, String customMessage, Object[] params, long millis, int threadId)
+    {
+        if (isLoggable(level) == false) { return; } // Discard (threshold changed in the meantime)
+        Level javaLevel = LogRouter.javaLevels[level.ordinal()];
+        LogRecord record = new LogRecord(javaLevel, processMessage(customMessage));
+        record.setLoggerName(className);
+        record.setSourceClassName(className);
+        record.setParameters(params);
+        record.setMillis(millis);
+        record.setThreadID(threadId);
+        Logger.getLogger(className).log(record);
+    }
+    
+    /**
+     * Initializes threshold and style from the server configuration
+     * @since v1.3
+     */
+    private static synchronized void initRules()
+    {
+        if (LogRouter.style == null) // Init (store style for better performance)
         {
-             if (level == LoggingLevel.severe)
-            {
-                Logger.getLogger(className).log(Level.SEVERE, customMessage, params);
-            }
-            else if (level == LoggingLevel.system)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage, params);
-            }            
+            LogRouter.style = ServerConfiguration.getInstance().getLoggerStyle();
         }
-        else if (LogRouter.threshold == LoggingThreshold.severeSystemGame) // Game, Sys, severe
-        {
-             if (level == LoggingLevel.severe)
-            {
-                Logger.getLogger(className).log(Level.SEVERE, customMessage, params);
-            }
-            else if (level == LoggingLevel.system)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage, params);
-            }
-            else if (level == LoggingLevel.game)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage, params);
-            }
-        }        
-        else if (LogRouter.threshold == LoggingThreshold.severe) // Severe
+        if (LogRouter.threshold == null) // Init (store threshold for better performance)
         {
-             if (level == LoggingLevel.severe)
-            {
-                Logger.getLogger(className).log(Level.SEVERE, customMessage, params);
-            }
+            LogRouter.threshold = ServerConfiguration.getInstance().getLoggerThreshold();
         }
-        else if (LogRouter.threshold == LoggingThreshold.system) // Sys
+        if (LogRouter.javaLevels == null)
         {
-            if (level == LoggingLevel.system)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage, params);
-            }           
+            LogRouter.javaLevels = createLevelTable(LogRouter.threshold);
         }
-        else if (LogRouter.threshold == LoggingThreshold.game) // Game
+    }
+    
+    /**
+     * Creates the decision table of a logging threshold
+     * @param threshold Logging threshold
+     * @return The level of the Java SE logger for each {@link LoggingLevel} (by ordinal) or null if entries of the level are discarded
+     * @since v1.3
+     */
+    private static Level[] createLevelTable(LoggingThreshold threshold)
+    {
+        LoggingLevel[] levels = LoggingLevel.values();
+        Level[] table = new Level[levels.length];
+        for (LoggingLevel level : levels)
         {
-            if (level == LoggingLevel.game)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage, params);
-            }           
+            table[level.ordinal()] = getJavaLevel(threshold, level);
         }
-
+        return table;
     }
     
     /**
-     * Method to process a log entry
-     * @param className Name of the calling class
+     * Maps the logging level of an entry to the level of the Java SE logger,
+     * according to a logging threshold
+     * @param threshold Logging threshold
      * @param level Logging level of the entry
-     * @param customMessage Message to display (no further parameters)
+     * @return Level of the Java SE logger or null if the entry is discarded
+     * @since v1.2
      */
-    public static void log(String className, LoggingLevel level, String customMessage)
+    private static Level getJavaLevel(LoggingThreshold threshold, LoggingLevel level)
     {
-        if (LogRouter.threshold == null) // Init (store threshold for better performance)
+        if (threshold == null || threshold == LoggingThreshold.off || level == LoggingLevel.none) { return null; } // Discard
+        else if (threshold == LoggingThreshold.all) // Sys, severe, warn, info
         {
-            LogRouter.threshold = ServerConfiguration.getInstance().getLoggerThreshold();
+            if (level == LoggingLevel.severe) { return Level.SEVERE; }
+            else if (level == LoggingLevel.waring) { return Level.WARNING; }
+            else { return Level.INFO; } // Info
         }
-        if (LogRouter.style == null) // Init (store style for better performance)
+        else if (threshold == LoggingThreshold.warningSevereSystemGame) // Game, Sys, severe, warn
         {
-            LogRouter.style = ServerConfiguration.getInstance().getLoggerStyle();
+            if (level == LoggingLevel.severe) { return Level.SEVERE; }
+            else if (level == LoggingLevel.waring) { return Level.WARNING; }
+            else if (level == LoggingLevel.system || level == LoggingLevel.game) { return Level.INFO; }
         }
-        customMessage = processMessage(customMessage);
-        if (LogRouter.threshold == LoggingThreshold.off || level == LoggingLevel.none) { return; } // Discard
-        else if (LogRouter.threshold == LoggingThreshold.all) // Sys, severe, warn, info
+        else if (threshold == LoggingThreshold.warningSevereSystem) // Sys, severe, warn
         {
-            if (level == LoggingLevel.severe)
-            {
-                Logger.getLogger(className).log(Level.SEVERE, customMessage);
-            }
-            else if (level == LoggingLevel.waring)
-            {
-                Logger.getLogger(className).log(Level.WARNING, customMessage);
-            }
-            else //if (level == LoggingLevel.info) // Info
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage);
-            }
+            if (level == LoggingLevel.severe) { return Level.SEVERE; }
+            else if (level == LoggingLevel.waring) { return Level.WARNING; }
+            else if (level == LoggingLevel.system) { return Level.INFO; }
         }
-        else if (LogRouter.threshold == LoggingThreshold.warningSevereSystemGame) // Game, Sys, severe, warn
+        else if (threshold == LoggingThreshold.waringSevere) // Severe, warn
         {
-            if (level == LoggingLevel.severe)
-            {
-                Logger.getLogger(className).log(Level.SEVERE, customMessage);
-            }
-            else if (level == LoggingLevel.waring)
-            {
-                Logger.getLogger(className).log(Level.WARNING, customMessage);
-            }
-            else if (level == LoggingLevel.system)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage);
-            }
-            else if (level == LoggingLevel.game)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage);
-            } 
-        }        
-        else if (LogRouter.threshold == LoggingThreshold.warningSevereSystem) // Sys, severe, warn
-        {
-            if (level == LoggingLevel.severe)
-            {
-                Logger.getLogger(className).log(Level.SEVERE, customMessage);
-            }
-            else if (level == LoggingLevel.waring)
-            {
-                Logger.getLogger(className).log(Level.WARNING, customMessage);
-            }
-            else if (level == LoggingLevel.system)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage);
-            }
+            if (level == LoggingLevel.severe) { return Level.SEVERE; }
+            else if (level == LoggingLevel.waring) { return Level.WARNING; }
         }
-        else if (LogRouter.threshold == LoggingThreshold.waringSevere) // Severe, warn
+        else if (threshold == LoggingThreshold.severeSystem) // Sys, severe
         {
-            if (level == LoggingLevel.severe)
-            {
-                Logger.getLogger(className).log(Level.SEVERE, customMessage);
-            }
-            else if (level == LoggingLevel.waring)
-            {
-                Logger.getLogger(className).log(Level.WARNING, customMessage);
-            }           
+            if (level == LoggingLevel.severe) { return Level.SEVERE; }
+            else if (level == LoggingLevel.system) { return Level.INFO; }
         }
-        else if (LogRouter.threshold == LoggingThreshold.severeSystem) // Sys, severe
+        else if (threshold == LoggingThreshold.severeSystemGame) // Game, Sys, severe
         {
-            if (level == LoggingLevel.severe)
-            {
-                Logger.getLogger(className).log(Level.SEVERE, customMessage);
-            }
-            else if (level == LoggingLevel.system)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage);
-            }            
+            if (level == LoggingLevel.severe) { return Level.SEVERE; }
+            else if (level == LoggingLevel.system || level == LoggingLevel.game) { return Level.INFO; }
         }
-        else if (LogRouter.threshold == LoggingThreshold.severeSystemGame) // Game, Sys, severe
+        else if (threshold == LoggingThreshold.severe) // Severe
         {
-            if (level == LoggingLevel.severe)
-            {
-                Logger.getLogger(className).log(Level.SEVERE, customMessage);
-            }
-            else if (level == LoggingLevel.system)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage);
-            }
-            else if (level == LoggingLevel.game)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage);
-            }
-        }        
-        else if (LogRouter.threshold == LoggingThreshold.severe) // Severe
-        {
-            if (level == LoggingLevel.severe)
-            {
-                Logger.getLogger(className).log(Level.SEVERE, customMessage);
-            }
+            if (level == LoggingLevel.severe) { return Level.SEVERE; }
         }
-        else if (LogRouter.threshold == LoggingThreshold.system) // Sys
+        else if (threshold == LoggingThreshold.system) // Sys
         {
-            if (level == LoggingLevel.system)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage);
-            }           
+            if (level == LoggingLevel.system) { return Level.INFO; }
         }
-        else if (LogRouter.threshold == LoggingThreshold.game) // Game
+        else if (threshold == LoggingThreshold.game) // Game
         {
-            if (level == LoggingLevel.game)
-            {
-                Logger.getLogger(className).log(Level.INFO, customMessage);
-            }           
+            if (level == LoggingLevel.game) { return Level.INFO; }
         }
-
-    }    
+        return null;
+    }
     
     /**
      * Method to route the custom message. In case of XML style, {@link XMLHelper#prettyPrintXml(java.lang.String)} will be used. 
@@ -522,7 +435,7 @@ public class LogRouter {
     {
         if (input == null) { return null;}
         if (LogRouter.style == LoggingStyle.discard){ return "";}
-        else if ( LogRouter.style == LoggingStyle.compressed) { return input; }
+        else if ( LogRouter.style == LoggingStyle.compressed || LogRouter.style == LoggingStyle.structured) { return input; }
         else if ( LogRouter.style == LoggingStyle.xmlFull || LogRouter.style == LoggingStyle.plainFull )
         {
             return input; 
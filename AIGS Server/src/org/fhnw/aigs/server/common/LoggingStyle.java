@@ -1,8 +1,10 @@
 package org.fhnw.aigs.server.common;
 
 /**
- * Enum to define the Style of logging
- * @version 1.0
+ * Enum to define the Style of logging<br>
+ * v1.0 Initial release<br>
+ * v1.1 Structured (binary) logging
+ * @version 1.1
  * @author Raphael Stoeckli (26.02.2015)
  */
 public enum LoggingStyle {
@@ -30,7 +32,14 @@ public enum LoggingStyle {
     /**
      * All messages will be discared. Use this to detect logging events without recording the actual messages
      */
-    discard("Discard");
+    discard("Discard"),
+    /**
+     * Compact binary records with fixed fields (time, thread, game, player,
+     * message class and direction) in memory-mapped segment files. The files
+     * can be exported with {@link StructuredLogReader}. Requires a restart of the server
+     * @since v1.1
+     */
+    structured("Structured (binary)");
 
     /**
      * Identifier of the enum value
@@ -14,9 +14,17 @@ import javax.xml.bind.annotation.XmlTransient;
  * v1.1 Functional changes<br>
  * v1.2 Features added and default values changed<br>
  * v1.2.1 Minor Changes in presets<br>
- * v1.3 Changes due to new log-handling
+ * v1.3 Changes due to new log-handling<br>
+ * v1.4 Selectable connection mode (thread per connection or NIO selector)<br>
+ * v1.5 Watermarks and policy of the outbound queues (slow clients)<br>
+ * v1.6 Binary message encoding can be disabled<br>
+ * v1.7 Maximum size of incoming messages<br>
+ * v1.8 Maximum latency of the players and policy if it is exceeded<br>
+ * v1.9 Grace period and buffer size of resumable sessions<br>
+ * v1.10 Buffer size and overflow policy of the asynchronous logging<br>
+ * v1.11 Segment size and count of the structured log
  * @author Matthias Stöckli (v1.0)
- * @version 1.3 (Raphael Stoeckli, 24.02.2015)
+ * @version 1.11
  */
 @XmlRootElement(name="Configuration")
 public class ServerConfiguration {
@@ -137,6 +145,137 @@ public class ServerConfiguration {
      */    
     private int linesToLog;
     
+    /**
+     * Defines how the client connections are handled. See {@link ConnectionMode}.<br>
+     * Default: threadPerConnection
+     * @since v1.4
+     */
+    private ConnectionMode connectionMode;
+    
+    /**
+     * Number of selector (I/O) threads if the connection mode is 
+     * {@link ConnectionMode#selector}. If 0, the number of available processors is used.<br>
+     * Default: 0
+     * @since v1.4
+     */
+    private int selectorThreads;
+    
+    /**
+     * Maximum number of queued outgoing bytes per client. If a client cannot
+     * keep up and more bytes are queued, the {@link SlowConsumerPolicy} is applied.<br>
+     * Default: 1048576 (1 MB)
+     * @since v1.5
+     */
+    private int outboundHighWatermark;
+    
+    /**
+     * Number of queued outgoing bytes below which a client is considered as
+     * recovered (only relevant for {@link SlowConsumerPolicy#dropMessages}).<br>
+     * Default: 262144 (256 KB)
+     * @since v1.5
+     */
+    private int outboundLowWatermark;
+    
+    /**
+     * Defines what happens with clients which cannot keep up with the outgoing
+     * messages. See {@link SlowConsumerPolicy}.<br>
+     * Default: terminateGame
+     * @since v1.5
+     */
+    private SlowConsumerPolicy slowConsumerPolicy;
+    
+    /**
+     * If true, the binary message encoding is used with clients which offer it
+     * during the login (see {@link org.fhnw.aigs.commons.communication.MessageEncoding}).
+     * If false, all clients use XML.<br>
+     * Default: true
+     * @since v1.6
+     */
+    private Boolean isBinaryEncodingAllowed;
+    
+    /**
+     * Maximum size of an incoming message in bytes. Connections of clients
+     * which send larger messages are closed before the message is buffered
+     * completely. The limit is smaller than the default of the clients
+     * ({@link org.fhnw.aigs.commons.communication.MessageReader#DEFAULT_MAX_MESSAGE_SIZE},
+     * 16 MB), as clients only send small messages (e.g. moves), but the
+     * server has to buffer the messages of all connections.<br>
+     * Default: 1048576 (1 MB)
+     * @since v1.7
+     */
+    private int maxMessageSize;
+    
+    /**
+     * Maximum median round-trip time of a player in milliseconds (see
+     * {@link org.fhnw.aigs.server.gameHandling.LatencyMonitor}). Players with
+     * a higher latency are handled according to the highLatencyPolicy. 0
+     * disables the check.<br>
+     * Default: 0
+     * @since v1.8
+     */
+    private int maxLatency;
+    
+    /**
+     * Defines how players are handled whose latency exceeds the maxLatency.<br>
+     * Default: flagPlayer
+     * @since v1.8
+     */
+    private HighLatencyPolicy highLatencyPolicy;
+    
+    /**
+     * Time in milliseconds during which the game of a player with a lost
+     * connection is kept alive. The client can reconnect with its session
+     * token within this time and resumes the game (see
+     * {@link org.fhnw.aigs.server.communication.SessionRegistry}). 0 disables
+     * resumable sessions (the game is terminated immediately).<br>
+     * Default: 30000
+     * @since v1.9
+     */
+    private int sessionResumeTimeOut;
+    
+    /**
+     * Maximum number of messages which are buffered for a player with a lost
+     * connection. If more messages are sent to the player during the grace
+     * period, the session cannot be resumed and the game is terminated.<br>
+     * Default: 256
+     * @since v1.9
+     */
+    private int resumeBufferSize;
+    
+    /**
+     * Number of log entries which can be buffered for the log writer thread
+     * (see {@link AsyncLogBuffer}). Rounded up to a power of two.<br>
+     * Default: 8192
+     * @since v1.10
+     */
+    private int logBufferSize;
+    
+    /**
+     * Defines what happens with log entries if the log buffer is full. See
+     * {@link LogOverflowPolicy}.<br>
+     * Default: dropUnimportant
+     * @since v1.10
+     */
+    private LogOverflowPolicy logOverflowPolicy;
+    
+    /**
+     * Size of a segment file of the structured log in MB (see
+     * {@link LoggingStyle#structured}). The files are created with this size.
+     * A segment is mapped into memory at once, thus the size is limited to
+     * 2047 MB.<br>
+     * Default: 64
+     * @since v1.11
+     */
+    private int logSegmentSize;
+    
+    /**
+     * Maximum number of segment files of the structured log. The oldest
+     * segments are deleted.<br>
+     * Default: 10
+     * @since v1.11
+     */
+    private int logSegmentCount;
+    
     
     /** The sole instance of the ServerConfiguration */
     private static ServerConfiguration instance;
@@ -186,6 +325,138 @@ public class ServerConfiguration {
         return linesToLog;
     }    
     
+    /** See {@link ServerConfiguration#connectionMode}. */
+    @XmlElement(name = "ConnectionMode")
+    public ConnectionMode getConnectionMode() {
+        if (connectionMode == null) { // Not defined in older configuration files
+            return ConnectionMode.threadPerConnection;
+        }
+        return connectionMode;
+    }
+    
+    /** See {@link ServerConfiguration#selectorThreads}. */
+    @XmlElement(name = "SelectorThreads")
+    public int getSelectorThreads() {
+        return selectorThreads;
+    }    
+    
+    /** See {@link ServerConfiguration#outboundHighWatermark}. */
+    @XmlElement(name = "OutboundHighWatermark")
+    public int getOutboundHighWatermark() {
+        if (outboundHighWatermark <= 0) { // Not defined in older configuration files
+            return 1048576;
+        }
+        return outboundHighWatermark;
+    }
+    
+    /** See {@link ServerConfiguration#outboundLowWatermark}. */
+    @XmlElement(name = "OutboundLowWatermark")
+    public int getOutboundLowWatermark() {
+        if (outboundLowWatermark <= 0) { // Not defined in older configuration files
+            return 262144;
+        }
+        return outboundLowWatermark;
+    }
+    
+    /** See {@link ServerConfiguration#slowConsumerPolicy}. */
+    @XmlElement(name = "SlowConsumerPolicy")
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        if (slowConsumerPolicy == null) { // Not defined in older configuration files
+            return SlowConsumerPolicy.terminateGame;
+        }
+        return slowConsumerPolicy;
+    }
+    
+    /** See {@link ServerConfiguration#isBinaryEncodingAllowed}. */
+    @XmlElement(name = "IsBinaryEncodingAllowed")
+    public boolean getIsBinaryEncodingAllowed() {
+        if (isBinaryEncodingAllowed == null) { // Not defined in older configuration files
+            return true;
+        }
+        return isBinaryEncodingAllowed;
+    }
+    
+    /** See {@link ServerConfiguration#maxMessageSize}. */
+    @XmlElement(name = "MaxMessageSize")
+    public int getMaxMessageSize() {
+        if (maxMessageSize <= 0) { // Not defined in older configuration files
+            return 1048576;
+        }
+        return maxMessageSize;
+    }
+    
+    /** See {@link ServerConfiguration#maxLatency}. */
+    @XmlElement(name = "MaxLatency")
+    public int getMaxLatency() {
+        if (maxLatency < 0) {
+            return 0;
+        }
+        return maxLatency;
+    }
+    
+    /** See {@link ServerConfiguration#highLatencyPolicy}. */
+    @XmlElement(name = "HighLatencyPolicy")
+    public HighLatencyPolicy getHighLatencyPolicy() {
+        if (highLatencyPolicy == null) { // Not defined in older configuration files
+            return HighLatencyPolicy.flagPlayer;
+        }
+        return highLatencyPolicy;
+    }
+    
+    /** See {@link ServerConfiguration#sessionResumeTimeOut}. */
+    @XmlElement(name = "SessionResumeTimeOut")
+    public int getSessionResumeTimeOut() {
+        if (sessionResumeTimeOut < 0) {
+            return 0;
+        }
+        return sessionResumeTimeOut;
+    }
+    
+    /** See {@link ServerConfiguration#resumeBufferSize}. */
+    @XmlElement(name = "ResumeBufferSize")
+    public int getResumeBufferSize() {
+        if (resumeBufferSize <= 0) { // Not defined in older configuration files
+            return 256;
+        }
+        return resumeBufferSize;
+    }
+    
+    /** See {@link ServerConfiguration#logBufferSize}. */
+    @XmlElement(name = "LogBufferSize")
+    public int getLogBufferSize() {
+        if (logBufferSize <= 0) { // Not defined in older configuration files
+            return 8192;
+        }
+        return logBufferSize;
+    }
+    
+    /** See {@link ServerConfiguration#logOverflowPolicy}. */
+    @XmlElement(name = "LogOverflowPolicy")
+    public LogOverflowPolicy getLogOverflowPolicy() {
+        if (logOverflowPolicy == null) { // Not defined in older configuration files
+            return LogOverflowPolicy.dropUnimportant;
+        }
+        return logOverflowPolicy;
+    }
+    
+    /** See {@link ServerConfiguration#logSegmentSize}. */
+    @XmlElement(name = "LogSegmentSize")
+    public int getLogSegmentSize() {
+        if (logSegmentSize <= 0) { // Not defined in older configuration files
+            return 64;
+        }
+        return Math.min(logSegmentSize, Integer.MAX_VALUE / 1048576);  // At most 2047 MB can be mapped
+    }
+    
+    /** See {@link ServerConfiguration#logSegmentCount}. */
+    @XmlElement(name = "LogSegmentCount")
+    public int getLogSegmentCount() {
+        if (logSegmentCount <= 0) { // Not defined in older configuration files
+            return 10;
+        }
+        return logSegmentCount;
+    }
+    
     /** See {@link ServerConfiguration#keepAliveTimeOut}. */
     @XmlElement(name = "KeepAliveTimeOut")
     public int getKeepAliveTimeOut() {
@@ -281,6 +552,81 @@ public class ServerConfiguration {
         this.linesToLog = linesToLog;
     }    
     
+    /** See {@link ServerConfiguration#connectionMode}. */
+    public void setConnectionMode(ConnectionMode connectionMode) {
+        this.connectionMode = connectionMode;
+    }
+    
+    /** See {@link ServerConfiguration#selectorThreads}. */
+    public void setSelectorThreads(int selectorThreads) {
+        this.selectorThreads = selectorThreads;
+    }    
+    
+    /** See {@link ServerConfiguration#outboundHighWatermark}. */
+    public void setOutboundHighWatermark(int outboundHighWatermark) {
+        this.outboundHighWatermark = outboundHighWatermark;
+    }
+    
+    /** See {@link ServerConfiguration#outboundLowWatermark}. */
+    public void setOutboundLowWatermark(int outboundLowWatermark) {
+        this.outboundLowWatermark = outboundLowWatermark;
+    }
+    
+    /** See {@link ServerConfiguration#slowConsumerPolicy}. */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+    
+    /** See {@link ServerConfiguration#isBinaryEncodingAllowed}. */
+    public void setIsBinaryEncodingAllowed(boolean isBinaryEncodingAllowed) {
+        this.isBinaryEncodingAllowed = isBinaryEncodingAllowed;
+    }
+    
+    /** See {@link ServerConfiguration#maxMessageSize}. */
+    public void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+    
+    /** See {@link ServerConfiguration#maxLatency}. */
+    public void setMaxLatency(int maxLatency) {
+        this.maxLatency = maxLatency;
+    }
+    
+    /** See {@link ServerConfiguration#highLatencyPolicy}. */
+    public void setHighLatencyPolicy(HighLatencyPolicy highLatencyPolicy) {
+        this.highLatencyPolicy = highLatencyPolicy;
+    }
+    
+    /** See {@link ServerConfiguration#sessionResumeTimeOut}. */
+    public void setSessionResumeTimeOut(int sessionResumeTimeOut) {
+        this.sessionResumeTimeOut = sessionResumeTimeOut;
+    }
+    
+    /** See {@link ServerConfiguration#resumeBufferSize}. */
+    public void setResumeBufferSize(int resumeBufferSize) {
+        this.resumeBufferSize = resumeBufferSize;
+    }
+    
+    /** See {@link ServerConfiguration#logBufferSize}. */
+    public void setLogBufferSize(int logBufferSize) {
+        this.logBufferSize = logBufferSize;
+    }
+    
+    /** See {@link ServerConfiguration#logOverflowPolicy}. */
+    public void setLogOverflowPolicy(LogOverflowPolicy logOverflowPolicy) {
+        this.logOverflowPolicy = logOverflowPolicy;
+    }
+    
+    /** See {@link ServerConfiguration#logSegmentSize}. */
+    public void setLogSegmentSize(int logSegmentSize) {
+        this.logSegmentSize = logSegmentSize;
+    }
+    
+    /** See {@link ServerConfiguration#logSegmentCount}. */
+    public void setLogSegmentCount(int logSegmentCount) {
+        this.logSegmentCount = logSegmentCount;
+    }
+    
     /** See {@link ServerConfiguration#hidesOnClose}. */
     public void setHidesOnClose(boolean hidesOnClose){
         this.hidesOnClose = hidesOnClose;
@@ -391,6 +737,21 @@ public class ServerConfiguration {
         instance.loggerThreshold = LoggingThreshold.severeSystemGame;
         instance.loggerStyle = LoggingStyle.compressed;
         instance.linesToLog = 500;
+        instance.connectionMode = ConnectionMode.threadPerConnection;
+        instance.selectorThreads = 0;
+        instance.outboundHighWatermark = 1048576;
+        instance.outboundLowWatermark = 262144;
+        instance.slowConsumerPolicy = SlowConsumerPolicy.terminateGame;
+        instance.isBinaryEncodingAllowed = true;
+        instance.maxMessageSize = 1048576;
+        instance.maxLatency = 0;
+        instance.highLatencyPolicy = HighLatencyPolicy.flagPlayer;
+        instance.sessionResumeTimeOut = 30000;
+        instance.resumeBufferSize = 256;
+        instance.logBufferSize = 8192;
+        instance.logOverflowPolicy = LogOverflowPolicy.dropUnimportant;
+        instance.logSegmentSize = 64;
+        instance.logSegmentCount = 10;
         instance.tempLogsDirectory = ""; // Must be empty at starup. Only used if directory changed
         
         saveConfiguration(instance, "conf", "ServerConfig.xml");
@@ -449,7 +810,22 @@ public class ServerConfiguration {
             gameSourcesDirectory,
             loggerThreshold,
             loggerStyle,
-            linesToLog
+            linesToLog,
+            getConnectionMode(),
+            selectorThreads,
+            getOutboundHighWatermark(),
+            getOutboundLowWatermark(),
+            getSlowConsumerPolicy(),
+            getIsBinaryEncodingAllowed(),
+            getMaxMessageSize(),
+            getMaxLatency(),
+            getHighLatencyPolicy(),
+            getSessionResumeTimeOut(),
+            getResumeBufferSize(),
+            getLogBufferSize(),
+            getLogOverflowPolicy(),
+            getLogSegmentSize(),
+            getLogSegmentCount()
        };
 
         //LOG//    
@@ -467,7 +843,22 @@ public class ServerConfiguration {
                     + "GameSourcesDirecory: {10}\n"
                     + "loggerThreshold: {11}\n"
                     + "loggerStyle: {12}\n"
-                    + "linesToLog: {13}\n";
+                    + "linesToLog: {13}\n"
+                    + "connectionMode: {14}\n"
+                    + "selectorThreads: {15}\n"
+                    + "outboundHighWatermark: {16}\n"
+                    + "outboundLowWatermark: {17}\n"
+                    + "slowConsumerPolicy: {18}\n"
+                    + "isBinaryEncodingAllowed: {19}\n"
+                    + "maxMessageSize: {20}\n"
+                    + "maxLatency: {21}\n"
+                    + "highLatencyPolicy: {22}\n"
+                    + "sessionResumeTimeOut: {23}\n"
+                    + "resumeBufferSize: {24}\n"
+                    + "logBufferSize: {25}\n"
+                    + "logOverflowPolicy: {26}\n"
+                    + "logSegmentSize: {27}\n"
+                    + "logSegmentCount: {28}\n";
         LogRouter.log(ServerConfiguration.class.getName(), LoggingLevel.system, text, configurationItems);
         
     }
@@ -1,16 +1,21 @@
 package org.fhnw.aigs.server.common;
 
 import org.fhnw.aigs.commons.communication.ForceCloseMessage;
+import org.fhnw.aigs.server.communication.ServerCommunication;
 import org.fhnw.aigs.server.gameHandling.GameManager;
+import org.fhnw.aigs.server.gameHandling.User;
 
 /**
  * If the server shuts down, the {@link ServerShutdownCleanUp#run} method of
  * this class will send a {@link ForceCloseMessage} will be sent to all clients.<br>
  * v1.0 Initial release<br>
- * v1.1 Changing of logging
+ * v1.1 Changing of logging<br>
+ * v1.3 Waits until the messages were written (asynchronous sending)<br>
+ * v1.4 Closes the user journal<br>
+ * v1.5 Waits until the log entries were written (asynchronous logging)
  *
  * @author Matthias Stöckli
- * @version 1.2 (Raphael Stoeckli, 24.02.2015)
+ * @version 1.5
  */
 public class ServerShutdownCleanUp implements Runnable {
 
@@ -20,12 +25,18 @@ public class ServerShutdownCleanUp implements Runnable {
     }
 
     /**
-     * Send a {@link ForceCloseMessage} to all players.
+     * Send a {@link ForceCloseMessage} to all players and close the user
+     * journal.
      */
     private void runCleanup() {
         ForceCloseMessage forceCloseMessage = new ForceCloseMessage("Server was shut down.");
         GameManager.sendMessageToAllPlayersOnServer(forceCloseMessage);
+        // The messages are sent asynchronously
+        ServerCommunication.awaitOutgoingMessages(2000);
+        User.closeUserStore();
         //LOG//java.util.logging.Logger.getLogger(ServerShutdownCleanUp.class.getName()).info("Server shuts down - informed all clients.");
         LogRouter.log(ServerShutdownCleanUp.class.getName(), LoggingLevel.system, "Server shuts down - informed all clients.");
+        // The log entries are written asynchronously
+        LogRouter.flush(2000);
     }
 }
\ No newline at end of file
@@ -0,0 +1,43 @@
+package org.fhnw.aigs.server.common;
+
+/**
+ * Enum to define how the server handles clients which cannot keep up with the
+ * outgoing messages (e.g. due to a stalled network connection)
+ * @version 1.0
+ */
+public enum SlowConsumerPolicy {
+
+    /**
+     * Further messages to the client are dropped until the queued messages
+     * were written down to the low watermark. The game continues
+     */
+    dropMessages("Drop messages"),
+    /**
+     * The game of the client is terminated and the connection is closed
+     */
+    terminateGame("Terminate game");
+
+    /**
+     * Identifier of the enum value
+     */
+    private final String identifier;
+
+    /**
+     * Constructor of the enum
+     * @param identifier Identifier string
+     */
+    private SlowConsumerPolicy(String identifier)
+    {
+        this.identifier = identifier;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return identifier;
+    }
+
+}
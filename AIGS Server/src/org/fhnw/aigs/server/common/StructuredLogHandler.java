@@ -0,0 +1,340 @@
+package org.fhnw.aigs.server.common;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+/**
+ * Log handler of the structured logging (see {@link LoggingStyle#structured}).
+ * Each log record is written as a compact binary record into a memory-mapped
+ * segment file. The segment files are pre-sized; if a segment is full, the
+ * next one is created and the oldest segments are deleted.<br>
+ * Layout of a segment: Magic number (int), format version (short), reserved
+ * (short), then the records until a record length of 0 (the unused rest of
+ * the file is zero). Layout of a record (big endian):<br>
+ * <ul>
+ * <li>Length of the record in bytes, including this field (int)</li>
+ * <li>Time in ms since the epoch (long)</li>
+ * <li>Thread ID (int)</li>
+ * <li>Level of the Java SE logger (int)</li>
+ * <li>Direction: 0 = no traffic, 1 = incoming, 2 = outgoing (byte)</li>
+ * <li>Game ID (long)</li>
+ * <li>Player, message class, logging class and message: Each as length
+ * (unsigned short) and UTF-8 bytes</li>
+ * </ul>
+ * The message is omitted for records of the game traffic (see {@link TrafficRecord}),
+ * the fixed fields describe the message. The length of a record is written
+ * last, thus a partially written record is never read (see {@link StructuredLogReader}).<br>
+ * v1.0 Initial release
+ *
+ * @version 1.0
+ */
+final class StructuredLogHandler extends Handler {
+
+    /**
+     * Magic number at the beginning of each segment ("AIGS")
+     */
+    static final int MAGIC = 0x41494753;
+    /**
+     * Version of the record format
+     */
+    static final short FORMAT_VERSION = 1;
+    /**
+     * Size of the header of a segment in bytes
+     */
+    static final int HEADER_SIZE = 8;
+    /**
+     * Size of the fixed fields of a record in bytes (length, time, thread,
+     * level, direction, game and the four string lengths)
+     */
+    static final int FIXED_RECORD_SIZE = 4 + 8 + 4 + 4 + 1 + 8 + 4 * 2;
+    /**
+     * Maximum length of a string field in bytes
+     */
+    static final int MAX_STRING_LENGTH = 0xFFFF;
+    /**
+     * File extension of the segments
+     */
+    static final String FILE_EXTENSION = ".alog";
+    /**
+     * Minimum size of a segment. A record is at most about 256 KB
+     */
+    private static final int MIN_SEGMENT_SIZE = 1048576;
+
+    /**
+     * Directory of the segments
+     */
+    private final File directory;
+    /**
+     * Name of the segments (without sequence number and extension)
+     */
+    private final String name;
+    /**
+     * Size of a segment in bytes
+     */
+    private final int segmentSize;
+    /**
+     * Maximum number of segments to keep
+     */
+    private final int maxSegments;
+    /**
+     * Sequence number of the current segment
+     */
+    private long sequence;
+    /**
+     * The current segment (null if the handler is closed)
+     */
+    private MappedByteBuffer segment;
+
+    /**
+     * Constructor. Creates a new segment after the existing ones
+     * @param directory Directory of the segments
+     * @param name Name of the segments (without sequence number and extension)
+     * @param segmentSize Size of a segment in bytes (at least 1 MB)
+     * @param maxSegments Maximum number of segments to keep
+     * @throws IOException Thrown if the segment could not be created
+     */
+    StructuredLogHandler(File directory, String name, int segmentSize, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.name = name;
+        this.segmentSize = Math.max(segmentSize, MIN_SEGMENT_SIZE);
+        this.maxSegments = Math.max(maxSegments, 1);
+        this.setFormatter(new CustomFormatter(LoggingStyle.structured)); // Used to format the messages
+        directory.mkdirs();
+        File[] existing = listSegments(directory, name);
+        this.sequence = existing.length == 0 ? 0 : getSequence(existing[existing.length - 1], name);
+        openNextSegment();
+    }
+
+    /**
+     * Writes a log record into the current segment
+     * @param record Log record to write
+     */
+    @Override
+    public synchronized void publish(LogRecord record) {
+        if (segment == null || isLoggable(record) == false) {
+            return;
+        }
+        try {
+            TrafficRecord traffic = getTrafficRecord(record);
+            byte[] player = encode(traffic == null ? null : traffic.getPlayer());
+            byte[] messageClass = encode(traffic == null ? null : traffic.getMessageClass());
+            byte[] loggingClass = encode(record.getSourceClassName());
+            byte[] message = traffic != null ? encode(null) : encode(formatMessage(record));
+            int length = FIXED_RECORD_SIZE + player.length + messageClass.length + loggingClass.length + message.length;
+            if (segment.remaining() < length) {
+                rotate();
+            }
+            int position = segment.position();
+            segment.position(position + 4);
+            segment.putLong(record.getMillis());
+            segment.putInt(record.getThreadID());
+            segment.putInt(record.getLevel().intValue());
+            segment.put(traffic == null ? 0 : (byte) (traffic.getDirection().ordinal() + 1));
+            segment.putLong(traffic == null ? 0 : traffic.getGameId());
+            putString(player);
+            putString(messageClass);
+            putString(loggingClass);
+            putString(message);
+            segment.putInt(position, length); // Publish the record
+        } catch (Exception ex) // All exceptions, the logging must not fail
+        {
+            reportError("Could not write a structured log record.", ex, ErrorManager.WRITE_FAILURE);
+        }
+    }
+
+    /**
+     * Forces the current segment to the storage device
+     */
+    @Override
+    public synchronized void flush() {
+        if (segment != null) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Forces the current segment to the storage device and closes the handler
+     */
+    @Override
+    public synchronized void close() throws SecurityException {
+        flush();
+        MappedByteBuffer closed = segment;
+        segment = null;
+        if (closed != null) {
+            unmap(closed);
+        }
+    }
+
+    /**
+     * Gets the traffic record of a log record (see {@link LogRouter#logTraffic}),
+     * which is the last parameter
+     * @param record Log record
+     * @return Traffic record or null if the log record does not describe game traffic
+     */
+    private static TrafficRecord getTrafficRecord(LogRecord record) {
+        Object[] params = record.getParameters();
+        if (params != null && params.length > 0 && params[params.length - 1] instanceof TrafficRecord) {
+            return (TrafficRecord) params[params.length - 1];
+        }
+        return null;
+    }
+
+    /**
+     * Formats the message of a log record with its parameters. The exception
+     * is appended (without stack trace)
+     * @param record Log record
+     * @return Formatted message
+     */
+    private String formatMessage(LogRecord record) {
+        String message = getFormatter().formatMessage(record);
+        if (record.getThrown() != null) {
+            message = message + "\n" + record.getThrown().toString();
+        }
+        return message;
+    }
+
+    /**
+     * Encodes a string field as UTF-8, limited to {@link StructuredLogHandler#MAX_STRING_LENGTH} bytes
+     * @param value String to encode or null
+     * @return Encoded string (empty if null)
+     */
+    private static byte[] encode(String value) {
+        if (value == null) {
+            return new byte[0];
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_LENGTH) {
+            return Arrays.copyOf(bytes, MAX_STRING_LENGTH);
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes a string field (length and bytes) into the current segment
+     * @param bytes Encoded string
+     */
+    private void putString(byte[] bytes) {
+        segment.putShort((short) bytes.length);
+        segment.put(bytes);
+    }
+
+    /**
+     * Closes the current segment, creates the next one and deletes the oldest
+     * segments
+     * @throws IOException Thrown if the segment could not be created
+     */
+    private void rotate() throws IOException {
+        MappedByteBuffer full = segment;
+        full.force();
+        openNextSegment();
+        unmap(full);
+        File[] segments = listSegments(directory, name);
+        for (int i = 0; i < segments.length - maxSegments; i++) {
+            if (segments[i].delete() == false) {
+                LogRouter.log(StructuredLogHandler.class.getName(), LoggingLevel.waring, "Could not delete the log segment {0}.", segments[i]);
+            }
+        }
+    }
+
+    /**
+     * Creates and maps the next segment and writes its header
+     * @throws IOException Thrown if the segment could not be created
+     */
+    private void openNextSegment() throws IOException {
+        sequence++;
+        File file = new File(directory, String.format("%s-%06d%s", name, sequence, FILE_EXTENSION));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(segmentSize);
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize); // Remains valid after closing
+        }
+        segment.putInt(MAGIC);
+        segment.putShort(FORMAT_VERSION);
+        segment.putShort((short) 0);
+    }
+
+    /**
+     * Releases the mapping of a segment, so that the file can be deleted and
+     * its address space is freed without waiting for the garbage collection.
+     * The JDK has no public API for this, the cleaner of the buffer is invoked
+     * by reflection (sun.misc.Unsafe.invokeCleaner since Java 9, the cleaner
+     * of the buffer in Java 8). If this fails, the mapping is released by the
+     * garbage collection. The buffer must not be used afterwards
+     * @param buffer Mapped segment
+     */
+    private void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException ex) // Java 8
+            {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (Exception ex) // All exceptions, the mapping is released by the garbage collection
+        {
+            reportError("Could not unmap a structured log segment.", ex, ErrorManager.CLOSE_FAILURE);
+        }
+    }
+
+    /**
+     * Lists the segments of a structured log, ordered by their sequence number
+     * @param directory Directory of the segments
+     * @param name Name of the segments (without sequence number and extension)
+     * @return Segment files (empty if there are none)
+     */
+    static File[] listSegments(File directory, final String name) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String fileName) {
+                return fileName.startsWith(name + "-") && fileName.endsWith(FILE_EXTENSION) && getSequence(new File(dir, fileName), name) > 0;
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                return Long.compare(getSequence(file1, name), getSequence(file2, name));
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Gets the sequence number of a segment
+     * @param file Segment file
+     * @param name Name of the segments (without sequence number and extension)
+     * @return Sequence number or 0 if the file name is not valid
+     */
+    private static long getSequence(File file, String name) {
+        String fileName = file.getName();
+        try {
+            return Long.parseLong(fileName.substring(name.length() + 1, fileName.length() - FILE_EXTENSION.length()));
+        } catch (Exception ex) // All exceptions, invalid file name
+        {
+            return 0;
+        }
+    }
+}
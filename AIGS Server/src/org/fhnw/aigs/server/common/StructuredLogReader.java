@@ -0,0 +1,407 @@
+package org.fhnw.aigs.server.common;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * Offline reader of the structured log (see {@link LoggingStyle#structured} and
+ * {@link StructuredLogHandler}). The reader can be started as program and
+ * prints the records of segment files as JSON lines, optionally filtered:<br>
+ * <code>java -cp AIGS_Server.jar org.fhnw.aigs.server.common.StructuredLogReader
+ * [-game ID] [-player NAME] [-class MESSAGECLASS] [-direction incoming|outgoing]
+ * [-traffic] FILE_OR_DIRECTORY...</code><br>
+ * If a directory is passed, all segments in it are read in the order of their
+ * sequence numbers.<br>
+ * v1.0 Initial release
+ *
+ * @version 1.0
+ */
+public class StructuredLogReader {
+
+    /**
+     * Formatter of the date and time of the JSON lines
+     */
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+
+    /**
+     * One record of the structured log
+     */
+    public static final class Entry {
+
+        /**
+         * Time in ms since the epoch
+         */
+        private final long millis;
+        /**
+         * Thread ID
+         */
+        private final int threadId;
+        /**
+         * Level of the Java SE logger
+         */
+        private final Level level;
+        /**
+         * Direction of the message or null if the record is not game traffic
+         */
+        private final TrafficDirection direction;
+        /**
+         * Game ID (0 if unknown)
+         */
+        private final long gameId;
+        /**
+         * Name of the player (empty if unknown)
+         */
+        private final String player;
+        /**
+         * Class name of the message (empty if unknown)
+         */
+        private final String messageClass;
+        /**
+         * Name of the logging class
+         */
+        private final String loggingClass;
+        /**
+         * Formatted message (empty for game traffic)
+         */
+        private final String message;
+
+        /**
+         * Constructor
+         * @param millis Time in ms since the epoch
+         * @param threadId Thread ID
+         * @param level Level of the Java SE logger
+         * @param direction Direction of the message or null if the record is not game traffic
+         * @param gameId Game ID (0 if unknown)
+         * @param player Name of the player (empty if unknown)
+         * @param messageClass Class name of the message (empty if unknown)
+         * @param loggingClass Name of the logging class
+         * @param message Formatted message (empty for game traffic)
+         */
+        private Entry(long millis, int threadId, Level level, TrafficDirection direction, long gameId, String player, String messageClass, String loggingClass, String message) {
+            this.millis = millis;
+            this.threadId = threadId;
+            this.level = level;
+            this.direction = direction;
+            this.gameId = gameId;
+            this.player = player;
+            this.messageClass = messageClass;
+            this.loggingClass = loggingClass;
+            this.message = message;
+        }
+
+        /**
+         * Getter of the time
+         * @return Time in ms since the epoch
+         */
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * Getter of the thread ID
+         * @return Thread ID
+         */
+        public int getThreadId() {
+            return threadId;
+        }
+
+        /**
+         * Getter of the level
+         * @return Level of the Java SE logger
+         */
+        public Level getLevel() {
+            return level;
+        }
+
+        /**
+         * Getter of the direction
+         * @return Direction of the message or null if the record is not game traffic
+         */
+        public TrafficDirection getDirection() {
+            return direction;
+        }
+
+        /**
+         * Getter of the game ID
+         * @return Game ID (0 if unknown)
+         */
+        public long getGameId() {
+            return gameId;
+        }
+
+        /**
+         * Getter of the player
+         * @return Name of the player (empty if unknown)
+         */
+        public String getPlayer() {
+            return player;
+        }
+
+        /**
+         * Getter of the message class
+         * @return Class name of the message (empty if unknown)
+         */
+        public String getMessageClass() {
+            return messageClass;
+        }
+
+        /**
+         * Getter of the logging class
+         * @return Name of the logging class
+         */
+        public String getLoggingClass() {
+            return loggingClass;
+        }
+
+        /**
+         * Getter of the message
+         * @return Formatted message (empty for game traffic)
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * Gets the record as JSON object (one line)
+         * @return JSON object
+         */
+        public String toJson() {
+            StringBuilder sb = new StringBuilder(256);
+            sb.append("{\"time\":\"").append(DATE_FORMAT.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault())));
+            sb.append("\",\"millis\":").append(millis);
+            sb.append(",\"thread\":").append(threadId);
+            sb.append(",\"level\":");
+            appendJsonString(sb, level.getName());
+            sb.append(",\"direction\":");
+            if (direction == null) {
+                sb.append("null");
+            } else {
+                appendJsonString(sb, direction.name());
+            }
+            sb.append(",\"game\":").append(gameId);
+            sb.append(",\"player\":");
+            appendJsonString(sb, player);
+            sb.append(",\"messageClass\":");
+            appendJsonString(sb, messageClass);
+            sb.append(",\"class\":");
+            appendJsonString(sb, loggingClass);
+            sb.append(",\"message\":");
+            appendJsonString(sb, message);
+            sb.append('}');
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Reads all records of a segment. The reading stops at the end of the
+     * written records and at the first corrupt record (e.g. a field beyond the
+     * end of its record or an unknown direction)
+     * @param file Segment file
+     * @return Records in the order they were written
+     * @throws IOException Thrown if the file could not be read or is not a segment of the structured log
+     */
+    public static List<Entry> read(File file) throws IOException {
+        long remaining = file.length();
+        List<Entry> entries = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (remaining < StructuredLogHandler.HEADER_SIZE || in.readInt() != StructuredLogHandler.MAGIC) {
+                throw new IOException("The file " + file + " is not a segment of the structured log.");
+            }
+            short version = in.readShort();
+            if (version != StructuredLogHandler.FORMAT_VERSION) {
+                throw new IOException("The format version " + version + " of the file " + file + " is not supported.");
+            }
+            in.readShort(); // Reserved
+            remaining -= StructuredLogHandler.HEADER_SIZE;
+            while (remaining >= StructuredLogHandler.FIXED_RECORD_SIZE) {
+                int length = in.readInt();
+                if (length < StructuredLogHandler.FIXED_RECORD_SIZE || length > remaining) {
+                    break; // End of the written records (or incomplete record)
+                }
+                ByteBuffer record = ByteBuffer.allocate(length - 4);
+                in.readFully(record.array());
+                remaining -= length;
+                long millis = record.getLong();
+                int threadId = record.getInt();
+                Level level = Level.parse(Integer.toString(record.getInt()));
+                byte direction = record.get();
+                if (direction < 0 || direction > TrafficDirection.values().length) {
+                    break; // Corrupt record
+                }
+                long gameId = record.getLong();
+                String player = getString(record);
+                String messageClass = player == null ? null : getString(record);
+                String loggingClass = messageClass == null ? null : getString(record);
+                String message = loggingClass == null ? null : getString(record);
+                if (message == null) {
+                    break; // Corrupt record
+                }
+                entries.add(new Entry(millis, threadId, level, direction == 0 ? null : TrafficDirection.values()[direction - 1], gameId, player, messageClass, loggingClass, message));
+            }
+        } catch (EOFException ex) {
+            // The file was truncated meanwhile, the records read so far are complete
+        }
+        return entries;
+    }
+
+    /**
+     * Reads a string field (length and UTF-8 bytes)
+     * @param record Record (without the length field) at the position of the field
+     * @return String (empty if the field is empty) or null if the field exceeds the record
+     */
+    private static String getString(ByteBuffer record) {
+        if (record.remaining() < 2) {
+            return null;
+        }
+        int length = record.getShort() & 0xFFFF;
+        if (record.remaining() < length) {
+            return null;
+        }
+        String value = new String(record.array(), record.position(), length, StandardCharsets.UTF_8);
+        record.position(record.position() + length);
+        return value;
+    }
+
+    /**
+     * Appends a string as JSON string (quoted and escaped)
+     * @param sb String builder object
+     * @param text Text to append
+     */
+    private static void appendJsonString(StringBuilder sb, String text) {
+        sb.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            switch (ch) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (ch < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) ch));
+                    } else {
+                        sb.append(ch);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Prints the records of the passed segments (or directories with
+     * segments) as JSON lines. See the class description for the options
+     * @param args Options and files
+     */
+    public static void main(String[] args) {
+        Long game = null;
+        String player = null;
+        String messageClass = null;
+        TrafficDirection direction = null;
+        boolean trafficOnly = false;
+        List<File> files = new ArrayList<>();
+        PrintStream out = System.out;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-game")) {
+                    game = Long.parseLong(args[++i]);
+                } else if (args[i].equals("-player")) {
+                    player = args[++i];
+                } else if (args[i].equals("-class")) {
+                    messageClass = args[++i];
+                } else if (args[i].equals("-direction")) {
+                    direction = TrafficDirection.valueOf(args[++i]);
+                } else if (args[i].equals("-traffic")) {
+                    trafficOnly = true;
+                } else {
+                    File file = new File(args[i]);
+                    if (file.isDirectory() == true) {
+                        for (File segment : listSegments(file)) {
+                            files.add(segment);
+                        }
+                    } else {
+                        files.add(file);
+                    }
+                }
+            }
+        } catch (Exception ex) // Missing or invalid option value
+        {
+            files.clear();
+        }
+        if (files.isEmpty() == true) {
+            System.err.println("Usage: StructuredLogReader [-game ID] [-player NAME] [-class MESSAGECLASS] [-direction incoming|outgoing] [-traffic] FILE_OR_DIRECTORY...");
+            System.exit(1);
+        }
+        for (File file : files) {
+            try {
+                for (Entry entry : read(file)) {
+                    if ((trafficOnly == true && entry.getDirection() == null)
+                            || (game != null && entry.getGameId() != game)
+                            || (player != null && entry.getPlayer().equals(player) == false)
+                            || (messageClass != null && entry.getMessageClass().equals(messageClass) == false && entry.getMessageClass().endsWith("." + messageClass) == false)
+                            || (direction != null && entry.getDirection() != direction)) {
+                        continue;
+                    }
+                    out.println(entry.toJson());
+                }
+            } catch (IOException ex) {
+                System.err.println("Could not read " + file + ": " + ex.getMessage());
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Lists the segments of all structured logs in a directory, ordered by
+     * their name and sequence number
+     * @param directory Directory of the segments
+     * @return Segment files
+     */
+    private static List<File> listSegments(File directory) {
+        List<File> segments = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return segments;
+        }
+        List<String> names = new ArrayList<>();
+        for (File file : files) {
+            String fileName = file.getName();
+            int separator = fileName.lastIndexOf('-');
+            if (fileName.endsWith(StructuredLogHandler.FILE_EXTENSION) == true && separator > 0 && names.contains(fileName.substring(0, separator)) == false) {
+                names.add(fileName.substring(0, separator));
+            }
+        }
+        Collections.sort(names);
+        for (String name : names) {
+            for (File segment : StructuredLogHandler.listSegments(directory, name)) {
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
+}
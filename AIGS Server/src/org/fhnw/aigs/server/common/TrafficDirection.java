@@ -0,0 +1,41 @@
+package org.fhnw.aigs.server.common;
+
+/**
+ * Enum to define the direction of a message of the game traffic (see {@link TrafficRecord})
+ * @version 1.0
+ */
+public enum TrafficDirection {
+
+    /**
+     * The message was received from a client
+     */
+    incoming("Incoming"),
+    /**
+     * The message was sent to a client
+     */
+    outgoing("Outgoing");
+
+    /**
+     * Identifier of the enum value
+     */
+    private final String identifier;
+
+    /**
+     * Constructor of the enum
+     * @param identifier Identifier string
+     */
+    private TrafficDirection(String identifier)
+    {
+        this.identifier = identifier;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return identifier;
+    }
+
+}
@@ -0,0 +1,86 @@
+package org.fhnw.aigs.server.common;
+
+/**
+ * Describes one message of the game traffic: Direction, game, player and class
+ * of the message. A traffic record is passed to {@link LogRouter#logTraffic} and
+ * stored as fixed fields by the structured log (see {@link LoggingStyle#structured}).
+ * The text based logging styles ignore the record.<br>
+ * v1.0 Initial release
+ *
+ * @version 1.0
+ */
+public final class TrafficRecord {
+
+    /**
+     * Direction of the message
+     */
+    private final TrafficDirection direction;
+    /**
+     * ID of the game or 0 if the connection has no game (yet)
+     */
+    private final long gameId;
+    /**
+     * Name of the player or null if the player is not identified (yet)
+     */
+    private final String player;
+    /**
+     * Fully qualified class name of the message or null if the message could not be parsed
+     */
+    private final String messageClass;
+
+    /**
+     * Constructor
+     * @param direction Direction of the message
+     * @param gameId ID of the game or 0 if the connection has no game
+     * @param player Name of the player or null if the player is not identified
+     * @param messageClass Fully qualified class name of the message or null if unknown
+     */
+    public TrafficRecord(TrafficDirection direction, long gameId, String player, String messageClass)
+    {
+        this.direction = direction;
+        this.gameId = gameId;
+        this.player = player;
+        this.messageClass = messageClass;
+    }
+
+    /**
+     * Getter of the direction
+     * @return Direction of the message
+     */
+    public TrafficDirection getDirection() {
+        return direction;
+    }
+
+    /**
+     * Getter of the game ID
+     * @return ID of the game or 0 if the connection has no game
+     */
+    public long getGameId() {
+        return gameId;
+    }
+
+    /**
+     * Getter of the player
+     * @return Name of the player or null if the player is not identified
+     */
+    public String getPlayer() {
+        return player;
+    }
+
+    /**
+     * Getter of the message class
+     * @return Fully qualified class name of the message or null if unknown
+     */
+    public String getMessageClass() {
+        return messageClass;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return (direction == TrafficDirection.incoming ? "<= " : "=> ") + "[game " + gameId + ", " + player + "] " + messageClass;
+    }
+}
@@ -0,0 +1,390 @@
+package org.fhnw.aigs.server.communication;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.fhnw.aigs.commons.communication.Message;
+import org.fhnw.aigs.commons.communication.OutboundChannel;
+import org.fhnw.aigs.server.common.LogRouter;
+import org.fhnw.aigs.server.common.LoggingLevel;
+import org.fhnw.aigs.server.common.ServerConfiguration;
+import org.fhnw.aigs.server.common.SlowConsumerPolicy;
+
+/**
+ * Asynchronous outbound queue of a blocking client connection. Every message
+ * sent to the client (see {@link Message#send}) is only queued, the calling
+ * thread (e.g. the game logic) returns immediately. The queued messages are
+ * written one after another by a writer thread, and the socket is only flushed
+ * if the queue is empty (several messages are written with one flush).<br>
+ * If a client cannot keep up (e.g. stalled network connection) and more bytes
+ * than the high watermark are queued, the {@link SlowConsumerPolicy} of the
+ * {@link ServerConfiguration} is applied. Other players are never blocked by a
+ * slow client.<br>
+ * While messages are queued, the connection has a writer thread of its own,
+ * thus a stalled client only blocks its own writer. If the queue is not
+ * drained within {@link OutboundQueue#WRITE_DEADLINE} ms (stalled or
+ * trickle-reading client) or a graceful close does not complete within the
+ * same time, the socket is closed, so that the writer thread is released.<br>
+ * v1.0 Initial release<br>
+ * v1.1 A replaced outbound channel (resumable session) is not unregistered
+ *
+ * @version 1.1
+ */
+class OutboundQueue implements OutboundChannel, Runnable {
+
+    /**
+     * Size of the write buffer of each connection.
+     */
+    private static final int BUFFER_SIZE = 8192;
+    /**
+     * Maximum time in ms to drain the queue (write all queued messages) or to
+     * close the queue gracefully. Afterwards the socket is closed.
+     */
+    private static final long WRITE_DEADLINE = 30000;
+
+    /**
+     * The writer threads of all connections. A queue is drained by one thread
+     * at a time and a drain never waits for another connection: A thread is
+     * created if no idle one is available. Idle threads terminate after 60 s.
+     * A stalled client blocks only its own writer thread until the deadline.
+     */
+    private static final ThreadPoolExecutor writers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task);
+            thread.setName("OutboundWriterThread" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Thread which checks the write deadlines and terminates the games of
+     * slow clients.
+     */
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task);
+            thread.setName("OutboundWatchdogThread");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * The queues whose socket is not yet closed (checked by the watchdog).
+     */
+    private static final Set<OutboundQueue> openQueues = ConcurrentHashMap.newKeySet();
+
+    static {
+        watchdog.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkDeadlines();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Number of queued bytes of all connections.
+     */
+    private static final AtomicLong totalQueuedBytes = new AtomicLong();
+
+    /**
+     * The socket of the client.
+     */
+    private final Socket socket;
+    /**
+     * The buffered output stream of the socket.
+     */
+    private final OutputStream stream;
+    /**
+     * The broker of the connection (used to terminate the game of a slow client).
+     */
+    private final ServerMessageBroker broker;
+    /**
+     * The queued messages (already framed, see {@link OutboundChannel#write}).
+     */
+    private final ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<>();
+    /**
+     * Number of queued bytes.
+     */
+    private final AtomicLong queuedBytes = new AtomicLong();
+    /**
+     * Indicates whether the queue is scheduled on (or drained by) a writer thread.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    /**
+     * Indicates whether the socket was already closed.
+     */
+    private final AtomicBoolean socketClosed = new AtomicBoolean(false);
+    /**
+     * See {@link ServerConfiguration#getOutboundHighWatermark}.
+     */
+    private final int highWatermark;
+    /**
+     * See {@link ServerConfiguration#getOutboundLowWatermark}.
+     */
+    private final int lowWatermark;
+    /**
+     * See {@link ServerConfiguration#getSlowConsumerPolicy}.
+     */
+    private final SlowConsumerPolicy policy;
+    /**
+     * Indicates whether messages are currently dropped (policy
+     * {@link SlowConsumerPolicy#dropMessages}).
+     */
+    private volatile boolean dropping = false;
+    /**
+     * Indicates whether the queue accepts no further messages.
+     */
+    private volatile boolean closed = false;
+    /**
+     * Time (System.currentTimeMillis) until the current drain has to be
+     * completed, 0 if the queue is not drained.
+     */
+    private volatile long writeDeadline = 0;
+    /**
+     * Time (System.currentTimeMillis) until the graceful close has to be
+     * completed, 0 if the queue is not closed.
+     */
+    private volatile long closeDeadline = 0;
+
+    /**
+     * Creates the queue of a connection.
+     *
+     * @param socket The socket of the client.
+     * @param broker The broker of the connection.
+     * @throws IOException Thrown if the output stream of the socket is not
+     * available.
+     */
+    OutboundQueue(Socket socket, ServerMessageBroker broker) throws IOException {
+        this.socket = socket;
+        this.stream = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        this.broker = broker;
+        ServerConfiguration configuration = ServerConfiguration.getInstance();
+        this.highWatermark = configuration.getOutboundHighWatermark();
+        this.lowWatermark = Math.min(configuration.getOutboundLowWatermark(), highWatermark);
+        this.policy = configuration.getSlowConsumerPolicy();
+        openQueues.add(this);
+    }
+
+    /**
+     * Queues a message. The message is written asynchronously.
+     *
+     * @param payload The encoded message (already framed).
+     * @throws IOException Thrown if the connection is already closed.
+     */
+    @Override
+    public void write(byte[] payload) throws IOException {
+        if (closed == true) {
+            throw new IOException("The connection is already closed.");
+        }
+        // The bytes are reserved atomically, concurrent senders cannot exceed the watermark
+        long queued;
+        do {
+            queued = queuedBytes.get();
+            if (dropping == true) {
+                if (queued > lowWatermark) {
+                    return;
+                }
+                dropping = false;
+                LogRouter.log(OutboundQueue.class.getName(), LoggingLevel.info, "The client {0} has recovered, messages are sent again.", socket.getRemoteSocketAddress());
+            }
+            // A single large message is always accepted if nothing is queued
+            if (queued > 0 && queued + payload.length > highWatermark) {
+                if (policy == SlowConsumerPolicy.dropMessages) {
+                    dropping = true;
+                    LogRouter.log(OutboundQueue.class.getName(), LoggingLevel.waring, "The client {0} cannot keep up, messages are dropped.", socket.getRemoteSocketAddress());
+                } else {
+                    abort();
+                    terminateSlowConsumer(broker, socket);
+                }
+                return;
+            }
+        } while (queuedBytes.compareAndSet(queued, queued + payload.length) == false);
+        totalQueuedBytes.addAndGet(payload.length);
+        queue.add(payload);
+        if (socketClosed.get() == true) {
+            discardQueued();            // Aborted in the meantime
+            return;
+        }
+        schedule();
+    }
+
+    /**
+     * Closes the queue gracefully. No further messages are accepted, the
+     * already queued messages are written and the socket is closed afterwards.
+     */
+    void close() {
+        if (closeDeadline == 0) {
+            closeDeadline = System.currentTimeMillis() + WRITE_DEADLINE;
+        }
+        closed = true;
+        schedule();
+    }
+
+    /**
+     * Closes the queue and the socket immediately. Queued messages are
+     * discarded.
+     */
+    void abort() {
+        closed = true;
+        closeSocket();
+        discardQueued();
+    }
+
+    /**
+     * Removes all queued messages.
+     */
+    private void discardQueued() {
+        byte[] payload;
+        while ((payload = queue.poll()) != null) {
+            queuedBytes.addAndGet(-payload.length);
+            totalQueuedBytes.addAndGet(-payload.length);
+        }
+    }
+
+    /**
+     * Closes the sockets of all queues whose current drain or graceful close
+     * exceeded the deadline (called by the watchdog). The blocked writer
+     * thread is released with an exception.
+     */
+    private static void checkDeadlines() {
+        long now = System.currentTimeMillis();
+        for (OutboundQueue outboundQueue : openQueues) {
+            try {
+                long writeDeadline = outboundQueue.writeDeadline;
+                long closeDeadline = outboundQueue.closeDeadline;
+                if ((writeDeadline != 0 && now > writeDeadline) || (closeDeadline != 0 && now > closeDeadline)) {
+                    LogRouter.log(OutboundQueue.class.getName(), LoggingLevel.waring, "The client {0} did not receive the messages in time, the connection will be closed.", outboundQueue.socket.getRemoteSocketAddress());
+                    outboundQueue.abort();
+                }
+            } catch (Exception ex) // All exceptions, the watchdog must not stop
+            {
+                LogRouter.log(OutboundQueue.class.getName(), LoggingLevel.severe, "Could not close the connection of a stalled client", ex);
+            }
+        }
+    }
+
+    /**
+     * Waits until the queued messages of all connections were written, e.g.
+     * before the server shuts down.
+     *
+     * @param timeout Maximum time to wait in milliseconds.
+     * @return True if all messages were written, false if the timeout elapsed.
+     */
+    static boolean awaitAllWritten(long timeout) {
+        long end = System.currentTimeMillis() + timeout;
+        while (totalQueuedBytes.get() > 0) {
+            if (System.currentTimeMillis() >= end) {
+                return false;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ex) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Terminates the game of a client which cannot keep up with the outgoing
+     * messages. The termination is executed by the watchdog thread, because
+     * the calling thread could be the game logic or a selector thread.
+     *
+     * @param broker The broker of the connection.
+     * @param socket The socket of the client (only used for logging).
+     */
+    static void terminateSlowConsumer(final ServerMessageBroker broker, Socket socket) {
+        LogRouter.log(OutboundQueue.class.getName(), LoggingLevel.waring, "The client {0} cannot keep up, the game will be terminated.", socket.getRemoteSocketAddress());
+        watchdog.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    broker.connectionLost("A player could not keep up with the game.");
+                } catch (Exception ex) // All exceptions, the watchdog must not stop
+                {
+                    LogRouter.log(OutboundQueue.class.getName(), LoggingLevel.severe, "Could not terminate the game of a slow client", ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Schedules the queue on a writer thread if it is not already scheduled.
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            writers.execute(this);
+        }
+    }
+
+    /**
+     * Writes the queued messages (called by a writer thread). The stream is
+     * flushed as soon as the queue is empty. The whole drain has to be
+     * completed within {@link OutboundQueue#WRITE_DEADLINE} ms.
+     */
+    @Override
+    public void run() {
+        writeDeadline = System.currentTimeMillis() + WRITE_DEADLINE;
+        try {
+            byte[] payload;
+            while ((payload = queue.poll()) != null) {
+                queuedBytes.addAndGet(-payload.length);
+                totalQueuedBytes.addAndGet(-payload.length);
+                stream.write(payload);
+                if (queue.isEmpty() == true) {
+                    stream.flush();
+                }
+            }
+        } catch (IOException ex) {
+            // The reading side of the broker will notice the broken connection
+            LogRouter.log(OutboundQueue.class.getName(), LoggingLevel.info, "Could not write to client socket", ex);
+            abort();
+        } finally {
+            writeDeadline = 0;
+            if (closed == true && queue.isEmpty() == true) {
+                closeSocket();
+            }
+            scheduled.set(false);
+            // Messages could have been queued (or the queue closed) after the last poll
+            if (socketClosed.get() == false && (queue.isEmpty() == false || closed == true)) {
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * Closes the socket (only once) and unregisters the queue.
+     */
+    private void closeSocket() {
+        if (socketClosed.compareAndSet(false, true) == false) {
+            return;
+        }
+        openQueues.remove(this);
+        Message.unregisterOutboundChannel(socket, this);                // The channel may have been replaced (resumable session)
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            LogRouter.log(OutboundQueue.class.getName(), LoggingLevel.waring, "Could not close client socket", ex);
+        }
+    }
+}
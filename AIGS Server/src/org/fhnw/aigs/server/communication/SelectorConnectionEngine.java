@@ -0,0 +1,663 @@
+package org.fhnw.aigs.server.communication;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.fhnw.aigs.commons.communication.BinaryCodec;
+import org.fhnw.aigs.commons.communication.Message;
+import org.fhnw.aigs.commons.communication.MessageEncoding;
+import org.fhnw.aigs.commons.communication.OutboundChannel;
+import org.fhnw.aigs.server.common.LogRouter;
+import org.fhnw.aigs.server.common.LoggingLevel;
+import org.fhnw.aigs.server.common.ServerConfiguration;
+import org.fhnw.aigs.server.common.SlowConsumerPolicy;
+
+/**
+ * Non-blocking connection engine, used if the connection mode is
+ * {@link org.fhnw.aigs.server.common.ConnectionMode#selector}. Instead of one
+ * thread per connection, a small fixed number of selector (reactor) threads
+ * handle all connections. The incoming bytes are split into lines (one message
+ * per line) or length-prefixed frames (binary encoding) and passed to a
+ * {@link ServerMessageBroker} per connection, which takes care of the parsing
+ * and the game logic.<br>
+ * Outgoing messages are written without blocking. If the socket buffer of a
+ * client is full, the remaining bytes are queued and written by the selector
+ * thread as soon as the client is ready again. If a client cannot keep up, the
+ * {@link SlowConsumerPolicy} is applied (like in the {@link OutboundQueue} of
+ * the blocking connections).<br>
+ * v1.0 Initial release<br>
+ * v1.1 Watermarks of the queued outgoing bytes (slow clients)<br>
+ * v1.2 Reading of length-prefixed frames (binary encoding)<br>
+ * v1.3 Maximum message size, reuse of the buffer for incomplete messages<br>
+ * v1.4 Lost connections can be resumed, a replaced outbound channel is kept
+ *
+ * @version 1.4
+ */
+class SelectorConnectionEngine {
+
+    /**
+     * Size of the (shared) read buffer of each selector thread.
+     */
+    private static final int READ_BUFFER_SIZE = 16384;
+    /**
+     * Pause after a failed accept in ms (e.g. if no file descriptors are
+     * left), so that the failing accept is not repeated in a busy loop.
+     */
+    private static final long ACCEPT_RETRY_DELAY = 100;
+
+    /**
+     * The server channel which accepts the new connections.
+     */
+    private final ServerSocketChannel serverChannel;
+    /**
+     * The selector threads (reactors).
+     */
+    private final Reactor[] reactors;
+    /**
+     * All open connections.
+     */
+    private final Set<SelectorConnection> connections = ConcurrentHashMap.newKeySet();
+    /**
+     * Index of the reactor which gets the next accepted connection.
+     */
+    private int nextReactor = 0;
+    /**
+     * The running state of the engine.
+     */
+    private volatile boolean running;
+    /**
+     * See {@link ServerConfiguration#getOutboundHighWatermark}.
+     */
+    private final int highWatermark;
+    /**
+     * See {@link ServerConfiguration#getOutboundLowWatermark}.
+     */
+    private final int lowWatermark;
+    /**
+     * See {@link ServerConfiguration#getSlowConsumerPolicy}.
+     */
+    private final SlowConsumerPolicy policy;
+
+    /**
+     * Creates the engine and opens the selectors.
+     *
+     * @param serverChannel The (bound) server channel.
+     * @param threads Number of selector threads. If 0 or less, the number of
+     * available processors is used.
+     * @throws IOException Thrown if a selector could not be opened.
+     */
+    SelectorConnectionEngine(ServerSocketChannel serverChannel, int threads) throws IOException {
+        this.serverChannel = serverChannel;
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        this.reactors = new Reactor[threads];
+        for (int i = 0; i < threads; i++) {
+            reactors[i] = new Reactor(Selector.open());
+        }
+        ServerConfiguration configuration = ServerConfiguration.getInstance();
+        this.highWatermark = configuration.getOutboundHighWatermark();
+        this.lowWatermark = Math.min(configuration.getOutboundLowWatermark(), highWatermark);
+        this.policy = configuration.getSlowConsumerPolicy();
+    }
+
+    /**
+     * Starts the selector threads and accepts new connections until the server
+     * channel is closed. The accepted connections are assigned to the selector
+     * threads in turn. If a connection cannot be accepted, the error is
+     * logged and the next connection is accepted after a short pause.
+     *
+     * @throws IOException Thrown if the server channel was closed.
+     */
+    void run() throws IOException {
+        running = true;
+        for (int i = 0; i < reactors.length; i++) {
+            Thread reactorThread = new Thread(reactors[i]);
+            reactorThread.setName("SelectorThread" + i);
+            reactorThread.start();
+        }
+        LogRouter.log(SelectorConnectionEngine.class.getName(), LoggingLevel.system, "Started {0} selector threads.", reactors.length);
+        while (running) {
+            SocketChannel clientChannel = null;
+            try {
+                clientChannel = serverChannel.accept();   // Blocking
+                clientChannel.configureBlocking(false);
+            } catch (IOException ex) {
+                if (ex instanceof ClosedChannelException || running == false || serverChannel.isOpen() == false) {
+                    throw ex;
+                }
+                LogRouter.log(SelectorConnectionEngine.class.getName(), LoggingLevel.waring, "Could not accept a connection.", ex);
+                if (clientChannel != null) {
+                    try {
+                        clientChannel.close();
+                    } catch (IOException ex2) {
+                        // The channel is discarded anyway
+                    }
+                }
+                try {
+                    Thread.sleep(ACCEPT_RETRY_DELAY);
+                } catch (InterruptedException ex3) {
+                    Thread.currentThread().interrupt();
+                    throw new ClosedByInterruptException();
+                }
+                continue;
+            }
+            LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.info, "New connection established! Address: {0}", clientChannel.socket().getInetAddress());
+            SelectorConnection connection = new SelectorConnection(clientChannel, reactors[nextReactor]);
+            connections.add(connection);
+            nextReactor = (nextReactor + 1) % reactors.length;
+            connection.reactor.register(connection);
+        }
+    }
+
+    /**
+     * Stops the selector threads and closes all connections.
+     */
+    void stop() {
+        running = false;
+        for (SelectorConnection connection : connections) {
+            connection.close();
+        }
+        for (Reactor reactor : reactors) {
+            reactor.selector.wakeup();
+        }
+    }
+
+    /**
+     * A selector thread. Reads from all connections assigned to it and writes
+     * the pending outgoing bytes.
+     */
+    private class Reactor implements Runnable {
+
+        /**
+         * The selector of this thread.
+         */
+        private final Selector selector;
+        /**
+         * Connections to register with the selector (registration must be
+         * done on the selector thread).
+         */
+        private final ConcurrentLinkedQueue<SelectorConnection> newConnections = new ConcurrentLinkedQueue<>();
+        /**
+         * Read buffer, shared by all connections of this thread.
+         */
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        /**
+         * Constructor with the selector of the thread
+         *
+         * @param selector The selector
+         */
+        Reactor(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Passes a new connection to the thread.
+         *
+         * @param connection The new connection.
+         */
+        void register(SelectorConnection connection) {
+            newConnections.add(connection);
+            selector.wakeup();
+        }
+
+        /**
+         * Selection loop.
+         */
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    registerNewConnections();
+                    Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+                    while (i.hasNext()) {
+                        SelectionKey key = i.next();
+                        i.remove();
+                        SelectorConnection connection = (SelectorConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable() && connection.flushPendingWrites() == false) {
+                                // Must not be called while holding the lock of the connection
+                                connection.broker.connectionLost("An I/O exception occured.");
+                                connection.close();
+                                continue;
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read(readBuffer);
+                            }
+                        } catch (CancelledKeyException ex) {
+                            connection.close();
+                        } catch (Exception ex) // All other exceptions, only this connection is affected
+                        {
+                            LogRouter.log(SelectorConnectionEngine.class.getName(), LoggingLevel.severe, "An unknown exception occurred while handling a connection", ex);
+                            try {
+                                connection.broker.connectionLost("An unknown exception occured.");
+                            } finally {
+                                connection.close();
+                            }
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                LogRouter.log(SelectorConnectionEngine.class.getName(), LoggingLevel.severe, "Selector thread stopped due to an error", ex);
+            } catch (Exception ex) // All other exceptions
+            {
+                LogRouter.log(SelectorConnectionEngine.class.getName(), LoggingLevel.severe, "An unknown exception occurred in a selector thread", ex);
+            } finally {
+                try {
+                    selector.close();
+                } catch (IOException ex) {
+                    LogRouter.log(SelectorConnectionEngine.class.getName(), LoggingLevel.waring, "Could not close selector", ex);
+                }
+            }
+        }
+
+        /**
+         * Registers the connections passed by the accepting thread.
+         */
+        private void registerNewConnections() {
+            SelectorConnection connection;
+            while ((connection = newConnections.poll()) != null) {
+                try {
+                    connection.attach(connection.channel.register(selector, SelectionKey.OP_READ, connection));
+                } catch (ClosedChannelException ex) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * One non-blocking client connection. Splits the incoming bytes into lines
+     * and queues outgoing bytes which could not be written immediately.
+     */
+    private class SelectorConnection implements OutboundChannel, Closeable {
+
+        /**
+         * The channel of the client.
+         */
+        private final SocketChannel channel;
+        /**
+         * The socket of the channel (used as identifier of the player).
+         */
+        private final Socket socket;
+        /**
+         * The selector thread which handles this connection.
+         */
+        private final Reactor reactor;
+        /**
+         * The broker which processes the incoming messages.
+         */
+        private final ServerMessageBroker broker;
+        /**
+         * Bytes of an incomplete line or frame (received with the last reads).
+         * Only allocated if a message is split over several reads, and kept
+         * for the next messages unless it is larger than the read buffer.
+         */
+        private byte[] partialLine;
+        /**
+         * Number of used bytes in {@link SelectorConnection#partialLine}.
+         */
+        private int partialLength;
+        /**
+         * Length of the currently received frame (framed encodings), -1 if
+         * the header was not yet received.
+         */
+        private int frameLength = -1;
+        /**
+         * See {@link ServerConfiguration#getMaxMessageSize}.
+         */
+        private final int maxMessageSize;
+        /**
+         * Outgoing bytes which could not be written yet.
+         */
+        private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+        /**
+         * Number of bytes in {@link SelectorConnection#pendingWrites}.
+         */
+        private long pendingBytes;
+        /**
+         * Indicates whether messages are currently dropped (policy
+         * {@link SlowConsumerPolicy#dropMessages}).
+         */
+        private boolean dropping;
+        /**
+         * Indicates whether the game of the client is terminated because the
+         * client could not keep up (policy {@link SlowConsumerPolicy#terminateGame}).
+         */
+        private boolean terminating;
+        /**
+         * The selection key (set after the registration).
+         */
+        private SelectionKey key;
+        /**
+         * Indicates whether the connection is closed.
+         */
+        private boolean closed;
+
+        /**
+         * Constructor of the connection
+         *
+         * @param channel The (non-blocking) channel of the client.
+         * @param reactor The selector thread which handles this connection.
+         */
+        SelectorConnection(SocketChannel channel, Reactor reactor) {
+            this.channel = channel;
+            this.socket = channel.socket();
+            this.reactor = reactor;
+            this.maxMessageSize = ServerConfiguration.getInstance().getMaxMessageSize();
+            this.broker = new ServerMessageBroker(channel, this);
+            Message.registerOutboundChannel(socket, this);
+        }
+
+        /**
+         * Sets the selection key after the registration.
+         *
+         * @param key The selection key.
+         */
+        synchronized void attach(SelectionKey key) {
+            this.key = key;
+            if (pendingWrites.isEmpty() == false) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        /**
+         * Reads the available bytes and passes every complete line or frame
+         * (depending on the negotiated encoding) to the broker.
+         *
+         * @param buffer Read buffer of the selector thread.
+         */
+        void read(ByteBuffer buffer) {
+            buffer.clear();
+            int count;
+            try {
+                count = channel.read(buffer);
+            } catch (IOException ex) {
+                broker.connectionLost("An I/O exception occured.", true);
+                close();
+                return;
+            }
+            if (count < 0) {
+                broker.connectionLost("The connection was closed by the client.", true);
+                close();
+                return;
+            }
+            byte[] data = buffer.array();
+            int position = 0;
+            while (position < count) {
+                // The encoding can change after every message (negotiation)
+                if (broker.getInputEncoding() != MessageEncoding.xml) {
+                    position = readFrame(data, position, count);
+                } else {
+                    position = readLine(data, position, count);
+                }
+                if (broker.isConnectionOpen() == false) {
+                    close();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Reads the bytes up to the next line break and passes the line to
+         * the broker. Bytes of an incomplete line are kept.
+         *
+         * @param data The received bytes.
+         * @param position Position of the first unprocessed byte.
+         * @param count Number of received bytes.
+         * @return Position of the next unprocessed byte.
+         */
+        private int readLine(byte[] data, int position, int count) {
+            for (int i = position; i < count; i++) {
+                if (data[i] != '\n') {
+                    continue;
+                }
+                if (partialLength + i - position > maxMessageSize) {
+                    messageTooLarge();
+                    return count;
+                }
+                String line;
+                if (partialLength > 0) {
+                    appendPartial(data, position, i - position);
+                    line = decodeLine(partialLine, 0, partialLength);
+                    releasePartial();
+                } else {
+                    line = decodeLine(data, position, i - position);
+                }
+                try {
+                    broker.processInput(line);
+                } catch (Exception ex) // All exceptions
+                {
+                    broker.connectionLost("An unknown exception occured.");
+                }
+                return i + 1;
+            }
+            if (partialLength + count - position > maxMessageSize) {
+                messageTooLarge();
+                return count;
+            }
+            appendPartial(data, position, count - position);
+            return count;
+        }
+
+        /**
+         * Reads the bytes of a length-prefixed frame (see {@link BinaryCodec})
+         * and passes the complete frame to the broker. If the frame is
+         * completely in the read buffer, it is passed without copying.
+         *
+         * @param data The received bytes.
+         * @param position Position of the first unprocessed byte.
+         * @param count Number of received bytes.
+         * @return Position of the next unprocessed byte.
+         */
+        private int readFrame(byte[] data, int position, int count) {
+            if (frameLength < 0) {
+                int headerBytes = Math.min(BinaryCodec.HEADER_LENGTH - partialLength, count - position);
+                appendPartial(data, position, headerBytes);
+                position += headerBytes;
+                if (partialLength < BinaryCodec.HEADER_LENGTH) {
+                    return position;
+                }
+                frameLength = BinaryCodec.readLength(partialLine, 0);
+                partialLength = 0;
+                if (frameLength < 0) {
+                    broker.connectionLost("An invalid frame was received.");
+                    return count;
+                }
+                if (frameLength > maxMessageSize) {
+                    messageTooLarge();
+                    return count;
+                }
+            }
+            byte[] frame;
+            int offset;
+            if (partialLength == 0 && count - position >= frameLength) {
+                frame = data;
+                offset = position;
+                position += frameLength;
+            } else {
+                int bodyBytes = Math.min(frameLength - partialLength, count - position);
+                appendPartial(data, position, bodyBytes);
+                position += bodyBytes;
+                if (partialLength < frameLength) {
+                    return position;
+                }
+                frame = partialLine;
+                offset = 0;
+            }
+            int length = frameLength;
+            frameLength = -1;
+            try {
+                broker.processFrame(frame, offset, length);
+            } catch (Exception ex) // All exceptions
+            {
+                broker.connectionLost("An unknown exception occured.");
+            }
+            if (frame == partialLine) {
+                releasePartial();       // Decoded, the buffer can be reused
+            }
+            return position;
+        }
+
+        /**
+         * Resets the buffer of incomplete messages. The buffer is kept for
+         * the next messages, unless it has grown beyond the size of the read
+         * buffer (rare large messages should not occupy memory permanently).
+         */
+        private void releasePartial() {
+            partialLength = 0;
+            if (partialLine != null && partialLine.length > READ_BUFFER_SIZE) {
+                partialLine = null;
+            }
+        }
+
+        /**
+         * Terminates the connection after a message which exceeds the
+         * maximum message size. The message is not buffered any further.
+         */
+        private void messageTooLarge() {
+            LogRouter.log(SelectorConnectionEngine.class.getName(), LoggingLevel.waring, "The client {0} sent a message larger than {1} bytes, the connection will be closed.", new Object[]{socket.getRemoteSocketAddress(), maxMessageSize});
+            releasePartial();
+            broker.connectionLost("A player sent a message which is too large.");
+        }
+
+        /**
+         * Appends bytes of an incomplete line or frame.
+         *
+         * @param data Source array.
+         * @param offset Offset in the source array.
+         * @param length Number of bytes to append.
+         */
+        private void appendPartial(byte[] data, int offset, int length) {
+            if (partialLine == null) {
+                partialLine = new byte[Math.max(length, 256)];
+            } else if (partialLength + length > partialLine.length) {
+                byte[] newPartialLine = new byte[Math.max(partialLength + length, partialLine.length * 2)];
+                System.arraycopy(partialLine, 0, newPartialLine, 0, partialLength);
+                partialLine = newPartialLine;
+            }
+            System.arraycopy(data, offset, partialLine, partialLength, length);
+            partialLength += length;
+        }
+
+        /**
+         * Decodes a line (UTF-8) and removes a trailing carriage return.
+         *
+         * @param data Source array.
+         * @param offset Offset in the source array.
+         * @param length Length of the line.
+         * @return The decoded line.
+         */
+        private String decodeLine(byte[] data, int offset, int length) {
+            if (length > 0 && data[offset + length - 1] == '\r') {
+                length--;
+            }
+            return new String(data, offset, length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Writes a message (already framed) to the channel. If the
+         * message cannot be written completely, the rest is queued and written
+         * by the selector thread. If too many bytes are queued, the
+         * {@link SlowConsumerPolicy} is applied.
+         *
+         * @param payload The encoded message.
+         * @throws IOException Thrown if the connection is closed.
+         */
+        @Override
+        public synchronized void write(byte[] payload) throws IOException {
+            if (closed == true || terminating == true) {
+                throw new IOException("The connection is already closed.");
+            }
+            if (dropping == true) {
+                if (pendingBytes > lowWatermark) {
+                    return;
+                }
+                dropping = false;
+                LogRouter.log(SelectorConnectionEngine.class.getName(), LoggingLevel.info, "The client {0} has recovered, messages are sent again.", socket.getRemoteSocketAddress());
+            }
+            // A single large message is always accepted if nothing is queued
+            if (pendingBytes > 0 && pendingBytes + payload.length > highWatermark) {
+                if (policy == SlowConsumerPolicy.dropMessages) {
+                    dropping = true;
+                    LogRouter.log(SelectorConnectionEngine.class.getName(), LoggingLevel.waring, "The client {0} cannot keep up, messages are dropped.", socket.getRemoteSocketAddress());
+                } else {
+                    terminating = true;
+                    pendingWrites.clear();
+                    pendingBytes = 0;
+                    OutboundQueue.terminateSlowConsumer(broker, socket);
+                }
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            if (pendingWrites.isEmpty()) {
+                channel.write(buffer);
+                if (buffer.hasRemaining() == false) {
+                    return;
+                }
+            }
+            pendingWrites.add(buffer);
+            pendingBytes += buffer.capacity();
+            if (key != null) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                reactor.selector.wakeup();
+            }
+        }
+
+        /**
+         * Writes the queued bytes as long as the channel accepts them.
+         *
+         * @return False if the bytes could not be written due to an I/O error.
+         */
+        synchronized boolean flushPendingWrites() {
+            try {
+                while (pendingWrites.isEmpty() == false) {
+                    ByteBuffer buffer = pendingWrites.peek();
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        return true;     // Try again if the channel is writable
+                    }
+                    pendingWrites.poll();
+                    pendingBytes -= buffer.capacity();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+                return true;
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+
+        /**
+         * Closes the connection and releases its resources.
+         */
+        @Override
+        public synchronized void close() {
+            if (closed == true) {
+                return;
+            }
+            closed = true;
+            pendingWrites.clear();
+            pendingBytes = 0;
+            Message.unregisterOutboundChannel(socket, this);            // The channel may have been replaced (resumable session)
+            connections.remove(this);
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.waring, "Could not close client socket", ex);
+            }
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package org.fhnw.aigs.server.communication;
 
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
 import javax.swing.JOptionPane;
+import org.fhnw.aigs.server.common.ConnectionMode;
 import org.fhnw.aigs.server.common.LogRouter;
 import org.fhnw.aigs.server.common.LoggingLevel;
 import org.fhnw.aigs.server.common.ServerConfiguration;
@@ -16,8 +19,11 @@ import org.fhnw.aigs.server.common.ServerConfiguration;
  * instead.<br>
  * v1.0 Initial release<br>
  * v1.1 Functional changes<br>
- * v1.2 Changing of logging
- * @version 1.2 (Raphael Stoeckli, 24.02.2015)
+ * v1.2 Changing of logging<br>
+ * v1.3 Added non-blocking connection mode (see {@link SelectorConnectionEngine})<br>
+ * v1.4 Added connection mode with virtual threads<br>
+ * v1.5 Messages are sent asynchronously (see {@link OutboundQueue})
+ * @version 1.5
  * @author Matthias Stöckli (v1.0)
  */
 public class ServerCommunication implements Runnable {
@@ -69,13 +75,43 @@ public class ServerCommunication implements Runnable {
      * The client (sockets) which are registered.
      */
     private static ArrayList<Socket> clientSockets = new ArrayList<Socket>();
+    /**
+     * The non-blocking connection engine. Only used if the connection mode is
+     * {@link ConnectionMode#selector}.
+     * @since v1.3
+     */
+    private SelectorConnectionEngine selectorEngine = null;
+    /**
+     * The method <code>Thread.ofVirtual()</code> and the method
+     * <code>Thread.Builder.unstarted(Runnable)</code> of the runtime. The
+     * server is compiled for Java 8, therefore virtual threads (Java 21) can
+     * only be created by reflection. Null if not available.
+     * @since v1.4
+     */
+    private static final Method[] virtualThreadMethods = getVirtualThreadMethods();
 
     @Override
     public void run() {
         runState = true;
-        establishConnection();
+        if (serverSocket.getChannel() != null) {
+            establishSelectorConnections();
+        } else {
+            establishConnection();
+        }
     }
     
+    /**
+     * Waits until all queued outgoing messages were written to the clients
+     * (see {@link OutboundQueue}), e.g. before the server shuts down.
+     * @param timeout Maximum time to wait in milliseconds
+     * @return True if all messages were written, false if the timeout elapsed
+     * @since v1.5
+     */
+    public static boolean awaitOutgoingMessages(long timeout)
+    {
+        return OutboundQueue.awaitAllWritten(timeout);
+    }
+
     /**
      * Stops the server and closes all connections
      * @since v1.1
@@ -84,6 +120,11 @@ public class ServerCommunication implements Runnable {
     {
         runState = false; // While-Loop will end
         cleanupThreads(true); // Stop all and clean up
+        if (selectorEngine != null)
+        {
+            selectorEngine.stop();
+            selectorEngine = null;
+        }
         try
         {
         serverSocket.close();
@@ -135,6 +176,9 @@ public class ServerCommunication implements Runnable {
      */
     private void establishConnection() {
         cleanupThreads(true); // Stop all and clean up
+        if (ServerConfiguration.getInstance().getConnectionMode() == ConnectionMode.virtualThreadPerConnection && virtualThreadMethods == null) {
+            LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.waring, "Virtual threads are not supported by this Java runtime (Java 21 or higher required). Normal threads are used instead.");
+        }
         try {
             while (runState) {
                 //Accept new client sockets
@@ -145,7 +189,7 @@ public class ServerCommunication implements Runnable {
                 LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.info, "New connection established! Address: {0}", clientSocket.getInetAddress());
 
                 // Create new Thread of ServerMessageBroker for new connection and start the thread
-                Thread serverMessageBrokerThread = new Thread(new ServerMessageBroker(clientSocket));
+                Thread serverMessageBrokerThread = createBrokerThread(new ServerMessageBroker(clientSocket));
                 serverMessageBrokerThread.setName("ServerMessageBrokerThread" + clientSocket.getInetAddress().toString());
                 serverMessageBrokerThread.start();
             }
@@ -170,7 +214,75 @@ public class ServerCommunication implements Runnable {
     }
 
     /**
-     * Connects to the server using a {@link ServerSocket}.
+     * Creates the (not yet started) thread of a {@link ServerMessageBroker}.
+     * If the connection mode is {@link ConnectionMode#virtualThreadPerConnection}
+     * and the runtime supports virtual threads, a virtual thread is created,
+     * otherwise a normal thread.
+     *
+     * @param broker The broker to run.
+     * @return The created thread.
+     * @since v1.4
+     */
+    private static Thread createBrokerThread(ServerMessageBroker broker) {
+        if (ServerConfiguration.getInstance().getConnectionMode() == ConnectionMode.virtualThreadPerConnection && virtualThreadMethods != null) {
+            try {
+                Object builder = virtualThreadMethods[0].invoke(null);
+                return (Thread) virtualThreadMethods[1].invoke(builder, broker);
+            } catch (Exception ex) // All exceptions
+            {
+                LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.waring, "Could not create a virtual thread, a normal thread is used instead", ex);
+            }
+        }
+        return new Thread(broker);
+    }
+
+    /**
+     * Resolves the methods to create virtual threads (see {@link ServerCommunication#virtualThreadMethods}).
+     *
+     * @return The methods <code>Thread.ofVirtual()</code> and
+     * <code>Thread.Builder.unstarted(Runnable)</code> or null if the runtime
+     * does not support virtual threads (older than Java 21).
+     * @since v1.4
+     */
+    private static Method[] getVirtualThreadMethods() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Method unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+            return new Method[]{ofVirtual, unstarted};
+        } catch (ClassNotFoundException | NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Handles all connections with the {@link SelectorConnectionEngine}
+     * (non-blocking mode). This method will run until the server is stopped.
+     * @since v1.3
+     */
+    private void establishSelectorConnections() {
+        try {
+            selectorEngine = new SelectorConnectionEngine(serverSocket.getChannel(), ServerConfiguration.getInstance().getSelectorThreads());
+            selectorEngine.run();
+        } catch (IOException ex) {
+            if (runState) // Error while running
+            {
+            LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.severe, "Could not establish connection", ex);
+            }
+            else // Connection closed
+            {
+             LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.waring, "Connection was interrupted due to shutdown", ex);   
+            }
+        }
+        catch (Exception ex) // All other Exceptions
+        {
+            LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.severe, "An unknown exception occurred while establishing connection", ex);
+        }
+    }
+
+    /**
+     * Connects to the server using a {@link ServerSocket}. If the connection
+     * mode is {@link ConnectionMode#selector}, the server socket is created by
+     * a (non-blocking capable) {@link ServerSocketChannel}.
      */
     public static void setUpServerSocket() {
         boolean serverSetupSuccessful = false;
@@ -180,7 +292,13 @@ public class ServerCommunication implements Runnable {
             try {
                 //LOG//Logger.getLogger(ServerCommunication.class.getName()).log(Level.INFO, "Try to connect to port {0}", port);
                 LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.info, "Try to connect to port {0}", port);
-                serverSocket = new ServerSocket(port);                          // Tries to establish a connection on the standard port
+                if (ServerConfiguration.getInstance().getConnectionMode() == ConnectionMode.selector) {
+                    ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                    serverChannel.socket().bind(new InetSocketAddress(port));  // Tries to establish a connection on the standard port
+                    serverSocket = serverChannel.socket();
+                } else {
+                    serverSocket = new ServerSocket(port);                      // Tries to establish a connection on the standard port
+                }
                 serverSetupSuccessful = true;
                 continue;
             } catch (IOException ex) {
@@ -1,18 +1,26 @@
 package org.fhnw.aigs.server.communication;
 
 import org.fhnw.aigs.server.common.ServerConfiguration;
+import org.fhnw.aigs.server.common.HighLatencyPolicy;
 import org.fhnw.aigs.commons.communication.*;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.*;
-import javax.xml.parsers.*;
+import javax.xml.stream.XMLStreamException;
 import org.fhnw.aigs.commons.*;
 import org.fhnw.aigs.server.common.LogRouter;
 import org.fhnw.aigs.server.common.LoggingLevel;
+import org.fhnw.aigs.server.common.TrafficDirection;
+import org.fhnw.aigs.server.common.TrafficRecord;
 import org.fhnw.aigs.server.gameHandling.GameManager;
-import org.w3c.dom.Document;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 import org.fhnw.aigs.server.gameHandling.*;
 
 /**
@@ -24,25 +32,69 @@ import org.fhnw.aigs.server.gameHandling.*;
  * v1.0   Initial release<br>
  * v1.1   Functional changes<br>
  * v1.1.1 Minor changes (due to changes in other classes)<br>
- * v1.2 Changing of logging
+ * v1.2 Changing of logging<br>
+ * v1.3 Processing of single inputs separated from the listening loop (used by
+ * the {@link SelectorConnectionEngine}), joins of non-blocking connections are
+ * processed by a join worker instead of the selector thread<br>
+ * v1.4 Game messages are processed by the {@link GameExecutor} of the game,
+ * single-pass parsing of the messages (see {@link MessageDecoder})<br>
+ * v1.5 Asynchronous sending of the messages in blocking mode (see {@link OutboundQueue})<br>
+ * v1.6 Negotiation of the message encoding, binary messages (see {@link BinaryCodec})<br>
+ * v1.7 Framed XML messages, maximum message size (see {@link ServerConfiguration#getMaxMessageSize})<br>
+ * v1.8 Heartbeat of the connection (see {@link KeepAliveManager})<br>
+ * v1.9 Termination of games with a too high latency (see {@link LatencyMonitor})<br>
+ * v1.10 Resumable sessions after a lost connection (see {@link SessionRegistry})<br>
+ * v1.11 Messages are loaded by the ClassLoader version of the game<br>
+ * v1.12 Received frames are only described if they are logged<br>
+ * v1.13 Received messages are logged as game traffic (see {@link TrafficRecord})
  *
  * @author Matthias Stöckli (v1.0)
- * @version 1.2 (Raphael Stoeckli, 24.02.2015)
+ * @version 1.13
  */
 public class ServerMessageBroker implements Runnable {
 
+    /**
+     * The join workers of the non-blocking connections. A join can load and
+     * instantiate a game (see {@link GameManager#joinGame}), thus it is not
+     * processed by the selector thread, which would stall all its
+     * connections meanwhile. Idle threads terminate after 60 s.
+     * @since v1.3
+     */
+    private static final ExecutorService joinWorkers = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task);
+            thread.setName("JoinWorkerThread" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     /**
      * The socket which connects the server to the client.
      */
     private Socket socket;
     /**
-     * The BufferedReader used to read the incoming messages.
+     * The reader used to read the incoming messages. Is null if the
+     * connection is driven by the {@link SelectorConnectionEngine}.
+     */
+    private MessageReader in;
+    /**
+     * The encoding of the incoming messages. Is changed after a successful
+     * login, see {@link ServerMessageBroker#handledentificationMessage}.
      */
-    private BufferedReader in;
+    private volatile MessageEncoding inputEncoding = MessageEncoding.xml;
     /**
      * The game to which this connection is connected to.
      */
     private Game game;
+    /**
+     * The executor of the game, which processes the game messages one after
+     * another.
+     */
+    private GameExecutor gameExecutor;
     /**
      * The player using this connection.
      */
@@ -64,7 +116,47 @@ public class ServerMessageBroker implements Runnable {
      * A flag that indicates whether the current connection is still open, this
      * variable can help tracking exceptions.
      */
-    private boolean connectionOpen = true;
+    private volatile boolean connectionOpen = true;
+    /**
+     * The connection of the {@link SelectorConnectionEngine} which has to be
+     * closed instead of the socket. Is null in blocking mode.
+     */
+    private Closeable selectorConnection;
+    /**
+     * The queue of the outgoing messages. Is null if the connection is driven
+     * by the {@link SelectorConnectionEngine}.
+     */
+    private OutboundQueue outboundQueue;
+    /**
+     * The heartbeat of the connection. Is null before the login or if the
+     * {@link KeepAliveManager} is not running.
+     */
+    private volatile KeepAliveManager.Heartbeat heartbeat;
+    /**
+     * The session token of the logged in player (see {@link SessionRegistry}).
+     * Is null before the login or if resumable sessions are disabled.
+     * @since v1.10
+     */
+    private volatile String sessionToken;
+    /**
+     * Indicates whether the loss of the connection was already handled (see
+     * {@link ServerMessageBroker#connectionLost(java.lang.String, boolean)}).
+     * @since v1.10
+     */
+    private final AtomicBoolean lost = new AtomicBoolean(false);
+    /**
+     * Lock of {@link ServerMessageBroker#deferredInputs}.
+     * @since v1.3
+     */
+    private final Object deferredLock = new Object();
+    /**
+     * Inputs of a non-blocking connection which were received while a join
+     * worker processes a join. They are processed by the join worker after
+     * the join, in the order of their reception. Is null if no join is
+     * processed.
+     * @since v1.3
+     */
+    private ArrayDeque<Runnable> deferredInputs;
    
     /**
      * Initializes the ServerMessageBroker and sets up a {@link Socket}.<br>
@@ -76,7 +168,27 @@ public class ServerMessageBroker implements Runnable {
      */
     public ServerMessageBroker(Socket socket) throws IOException {
         this.socket = socket;       
-        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        this.in = new MessageReader(socket.getInputStream(), ServerConfiguration.getInstance().getMaxMessageSize());
+        // Messages to this client are written asynchronously (since v1.5)
+        this.outboundQueue = new OutboundQueue(socket, this);
+        Message.registerOutboundChannel(socket, outboundQueue);
+    }
+
+    /**
+     * Initializes the ServerMessageBroker for a non-blocking connection. The
+     * broker does not read by itself, the inputs are passed by the
+     * {@link SelectorConnectionEngine} via {@link ServerMessageBroker#processInput}
+     * and {@link ServerMessageBroker#processFrame}.
+     *
+     * @param channel Channel which connects the client to the server.
+     * @param selectorConnection The connection of the engine, which is closed
+     * if this broker closes the connection.
+     * @since v1.3
+     */
+    ServerMessageBroker(SocketChannel channel, Closeable selectorConnection) {
+        this.socket = channel.socket();
+        this.in = null;
+        this.selectorConnection = selectorConnection;
     }
 
     /**
@@ -98,106 +210,408 @@ public class ServerMessageBroker implements Runnable {
      * {@link org.fhnw.aigs.commons.Game#processGameLogic} method.
      */
     private void listenForMessages() {
-        String inputString = "";
         try {
-            while (connectionOpen == true && (inputString = in.readLine()) != null) {
-                Message parsedMessage = parseInput(inputString);
+            while (connectionOpen == true) {
+                if (in.getEncoding() != MessageEncoding.xml) {
+                    // The frame is decoded directly from the buffer of the reader
+                    int length = in.readFrame();
+                    if (length < 0) {
+                        break;
+                    }
+                    processFrame(in.getBuffer(), in.getFrameOffset(), length);
+                } else {
+                    String inputString = in.readLine();
+                    if (inputString == null) {
+                        break;
+                    }
+                    processInput(inputString);
+                }
+            }
+        } catch (IOException ex) {
+            LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.info, "Could not read from client socket: {0}", ex.getMessage());
+            connectionLost("An I/O exception occured.", true);
+        }
+        catch (Exception ex) // All other exceptions
+        {
+            connectionLost("An unknown exception occured.");
+        }
+    }
+
+    /**
+     * Processes one incoming message (one line). The message is parsed using
+     * {@link ServerMessageBroker#parseInput}. System messages will be handled
+     * by {@link ServerMessageBroker#checkForNonGameMessages}. All other
+     * messages are then queued in the {@link GameExecutor} of the game, see
+     * {@link ServerMessageBroker#processGameMessage}.
+     *
+     * @param inputString The message as received from the client.
+     * @since v1.3
+     */
+    void processInput(final String inputString) {
+        synchronized (deferredLock) {
+            if (deferredInputs != null) {
+                deferredInputs.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleInput(inputString);
+                    }
+                });
+                return;
+            }
+        }
+        dispatchMessage(parseAndLogInput(inputString));
+    }
+
+    /**
+     * Parses and handles one incoming message (one line) without deferring
+     * it (see {@link ServerMessageBroker#processInput}).
+     *
+     * @param inputString The message as received from the client.
+     * @since v1.3
+     */
+    private void handleInput(String inputString) {
+        processMessage(parseAndLogInput(inputString));
+    }
+
+    /**
+     * Parses one incoming message (one line) and logs it.
+     *
+     * @param inputString The message as received from the client.
+     * @return The parsed message (null if it was not valid).
+     * @since v1.3
+     */
+    private Message parseAndLogInput(String inputString) {
+        Message parsedMessage = parseInput(inputString);
 
-                if (parsedMessage instanceof KeepAliveMessage == false) {
-                    //printMessage(inputString);
-                    LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.info, "<= {0}", inputString);
+        if (parsedMessage instanceof KeepAliveMessage == false && LogRouter.isLoggable(LoggingLevel.info) == true) {
+            //printMessage(inputString);
+            LogRouter.logTraffic(ServerMessageBroker.class.getName(), LoggingLevel.info, createTrafficRecord(parsedMessage), "<= {0}", new Object[]{inputString});
+        }
+        return parsedMessage;
+    }
+
+    /**
+     * Handles a parsed message. In non-blocking mode a {@link JoinMessage} is
+     * passed to a join worker (see {@link ServerMessageBroker#joinWorkers}),
+     * the following inputs are deferred until the join was processed. All
+     * other messages are handled directly (see
+     * {@link ServerMessageBroker#processMessage}).
+     *
+     * @param parsedMessage The parsed message (null if it was not valid).
+     * @since v1.3
+     */
+    private void dispatchMessage(final Message parsedMessage) {
+        if (selectorConnection == null || parsedMessage instanceof JoinMessage == false || isGameInitialized == true) {
+            processMessage(parsedMessage);
+            return;
+        }
+        synchronized (deferredLock) {
+            deferredInputs = new ArrayDeque<>();
+        }
+        joinWorkers.execute(new Runnable() {
+            @Override
+            public void run() {
+                processJoin(parsedMessage);
+            }
+        });
+    }
+
+    /**
+     * Processes a join and afterwards the deferred inputs of a non-blocking
+     * connection (executed by a join worker). If the join failed or the
+     * connection was lost meanwhile, the connection is closed.
+     *
+     * @param joinMessage The {@link JoinMessage}.
+     * @since v1.3
+     */
+    private void processJoin(Message joinMessage) {
+        Runnable deferred = null;
+        while (true) {
+            try {
+                if (deferred == null) {
+                    processMessage(joinMessage);
+                } else {
+                    deferred.run();
                 }
-                checkForNonGameMessages(parsedMessage);
-                
-                // Stop the processing if a non game message was
-                // handled or if there is no game or the message is not valid.
-                if (nonGameMessageReceived || game == null) {
-                    nonGameMessageReceived = false;
-                    continue;
+                if (lost.get() == true && game != null) {
+                    // Lost during the join, terminateGame has no effect if it was already terminated
+                    GameManager.terminateGame(game, player, "The connection was lost.");
+                    reclaimUser();
                 }
-
-                // Check for any kind of exception. In the case of an exception
-                // the game will be terminated and the clients will be informed.
-                try {
-                    game.processGameLogic(parsedMessage, player);
-                    game.checkForWinningCondition();
+                if (isConnectionOpen() == false) {
+                    closeConnection();
                 }
-                catch (StackOverflowError stackOverFlow) { // If the game throws an Exception, inform the clients.
-                    // Handle StackOverFlowErrors
-                    GameManager.terminateGame(game, player, "An error (something really bad) occured.");
-                    ForceCloseMessage forceCloseMessage = new ForceCloseMessage("You caused a StackOverflowError (something really bad).");
-                    forceCloseMessage.send(socket, player);
-                    socket.close();
-                    in.close();
-                    connectionOpen = false;
-                }                
-                catch (Exception ex) {
-                    ExceptionMessage exceptionMessage = new ExceptionMessage(ex);
-                    exceptionMessage.send(socket, player);
-                    GameManager.terminateGame(game, player, "An exception occured.");
-                    socket.close();
-                    in.close();
-                    connectionOpen = false;
-                    //LOGLogger.getLogger(ServerMessageBroker.class.getName()).log(Level.SEVERE, "An exception in the game forced the server to close the following game: " + game.toString(), ex);
-                    LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.severe, "An exception in the game forced the server to close the following game: " + game.toString(), ex);
-                } 
+            } catch (Exception ex) // All exceptions, the worker must not stop
+            {
+                LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.severe, "An unknown exception occurred while processing a join", ex);
+                connectionLost("An unknown exception occured.");
             }
-        } catch (IOException ex) {
-            GameManager.terminateGame(game, player, "An I/O exception occured.");
-            try {
-                socket.close();
-                in.close();
-                connectionOpen = false;
-            } catch (IOException ex2) {
-                //LOG//Logger.getLogger(ServerMessageBroker.class.getName()).log(Level.SEVERE, "The connection could not be closed", ex2);
-                LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.severe, "The connection could not be closed", ex2);
+            synchronized (deferredLock) {
+                deferred = deferredInputs.poll();
+                if (deferred == null) {
+                    deferredInputs = null;  // The selector thread processes the next inputs
+                    return;
+                }
             }
         }
-        catch (Exception ex) // All other exceptions
-        {
-            GameManager.terminateGame(game, player, "An unknown exception occured.");
+    }
+
+    /**
+     * Processes one incoming framed message (one frame without header, see
+     * {@link BinaryCodec}) with a binary or XML body. The message is handled
+     * like the messages of {@link ServerMessageBroker#processInput}. The frame
+     * is completely decoded before this method returns, so the buffer can be
+     * reused by the caller.
+     *
+     * @param data The buffer which contains the frame.
+     * @param offset The position of the frame in the buffer.
+     * @param length The length of the frame.
+     * @since v1.6
+     */
+    void processFrame(byte[] data, int offset, int length) {
+        synchronized (deferredLock) {
+            if (deferredInputs != null) {
+                final byte[] frame = Arrays.copyOfRange(data, offset, offset + length);
+                deferredInputs.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        processMessage(parseAndLogFrame(frame, 0, frame.length));
+                    }
+                });
+                return;
+            }
+        }
+        dispatchMessage(parseAndLogFrame(data, offset, length));
+    }
+
+    /**
+     * Parses one incoming framed message and logs it.
+     *
+     * @param data The buffer which contains the frame.
+     * @param offset The position of the frame in the buffer.
+     * @param length The length of the frame.
+     * @return The parsed message (null if it was not valid).
+     * @since v1.6
+     */
+    private Message parseAndLogFrame(byte[] data, int offset, int length) {
+        Message parsedMessage = parseFrame(data, offset, length);
+
+        if (parsedMessage != null && parsedMessage instanceof KeepAliveMessage == false && LogRouter.isLoggable(LoggingLevel.info) == true) {
+            LogRouter.logTraffic(ServerMessageBroker.class.getName(), LoggingLevel.info, createTrafficRecord(parsedMessage), "<= ({0}) {1}", new Object[]{inputEncoding, parsedMessage.getClass().getName()});
+        }
+        return parsedMessage;
+    }
+
+    /**
+     * Describes a received message as game traffic (for the structured log).
+     *
+     * @param parsedMessage The parsed message (null if it was not valid).
+     * @return The traffic record with the game and player of the connection.
+     * @since v1.13
+     */
+    private TrafficRecord createTrafficRecord(Message parsedMessage) {
+        Game currentGame = game;
+        Player currentPlayer = player;
+        return new TrafficRecord(TrafficDirection.incoming, currentGame == null ? 0 : currentGame.getId(),
+                currentPlayer == null ? null : currentPlayer.getName(), parsedMessage == null ? null : parsedMessage.getClass().getName());
+    }
+
+    /**
+     * Handles a parsed message. System messages will be handled by
+     * {@link ServerMessageBroker#checkForNonGameMessages}. All other messages
+     * are queued in the {@link GameExecutor} of the game.
+     *
+     * @param parsedMessage The parsed message (null if it was not valid).
+     * @since v1.3
+     */
+    private void processMessage(Message parsedMessage) {
+        // Every message proves that the client is alive
+        KeepAliveManager.Heartbeat currentHeartbeat = heartbeat;
+        if (currentHeartbeat != null) {
+            currentHeartbeat.touch();
+        }
+        checkForNonGameMessages(parsedMessage);
+
+        // Stop the processing if a non game message was
+        // handled or if there is no game or the message is not valid.
+        if (nonGameMessageReceived || game == null) {
+            nonGameMessageReceived = false;
+            return;
+        }
+
+        // The game logic of one game is never executed concurrently
+        final Game currentGame = game;
+        final Player currentPlayer = player;
+        final Message gameMessage = parsedMessage;
+        gameExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                processGameMessage(currentGame, currentPlayer, gameMessage);
+            }
+        });
+    }
+
+    /**
+     * Passes a game message to the
+     * {@link org.fhnw.aigs.commons.Game#processGameLogic} method. This method
+     * is executed by the {@link GameExecutor} of the game.
+     *
+     * @param game The game of the connection.
+     * @param player The player of the connection.
+     * @param parsedMessage The parsed message.
+     * @since v1.4
+     */
+    private void processGameMessage(Game game, Player player, Message parsedMessage) {
+        // Check for any kind of exception. In the case of an exception
+        // the game will be terminated and the clients will be informed.
+        try {
             try {
-                socket.close();
-                in.close();
+                game.processGameLogic(parsedMessage, player);
+                game.checkForWinningCondition();
+            }
+            catch (StackOverflowError stackOverFlow) { // If the game throws an Exception, inform the clients.
+                // Handle StackOverFlowErrors
+                GameManager.terminateGame(game, player, "An error (something really bad) occured.");
+                ForceCloseMessage forceCloseMessage = new ForceCloseMessage("You caused a StackOverflowError (something really bad).");
+                forceCloseMessage.send(socket, player);
+                connectionOpen = false;
+                closeConnection();
+            }
+            catch (Exception ex) {
+                ExceptionMessage exceptionMessage = new ExceptionMessage(ex);
+                exceptionMessage.send(socket, player);
+                GameManager.terminateGame(game, player, "An exception occured.");
                 connectionOpen = false;
-            } catch (IOException ex2) {
-                //LOG//Logger.getLogger(ServerMessageBroker.class.getName()).log(Level.SEVERE, "The connection could not be closed", ex2);
-                LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.severe, "The connection could not be closed", ex2);
-            }            
+                closeConnection();
+                //LOGLogger.getLogger(ServerMessageBroker.class.getName()).log(Level.SEVERE, "An exception in the game forced the server to close the following game: " + game.toString(), ex);
+                LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.severe, "An exception in the game forced the server to close the following game: " + game.toString(), ex);
+            }
+        } catch (IOException ex2) {
+            //LOG//Logger.getLogger(ServerMessageBroker.class.getName()).log(Level.SEVERE, "The connection could not be closed", ex2);
+            LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.severe, "The connection could not be closed", ex2);
         }
     }
 
+    /**
+     * Terminates the game of this connection and closes the connection after
+     * the connection was lost or could not be read anymore.
+     *
+     * @param reason The reason which is passed to the other players.
+     * @since v1.3
+     */
+    void connectionLost(String reason) {
+        connectionLost(reason, false);
+    }
+
+    /**
+     * Closes the connection after the connection was lost or could not be
+     * read anymore. If the connection was lost by a network problem
+     * (resumable) and the player is in a game, the session is suspended (see
+     * {@link SessionRegistry#suspend}), so that the client can reconnect and
+     * resume the game. Otherwise the game of this connection is terminated.
+     * Only the first call has an effect.
+     *
+     * @param reason The reason which is passed to the other players.
+     * @param resumable If true, the session can be resumed by the client.
+     * @since v1.10
+     */
+    void connectionLost(String reason, boolean resumable) {
+        if (lost.compareAndSet(false, true) == false) {
+            return;                         // Already handled (e.g. reader and heartbeat)
+        }
+        SessionRegistry.unregister(sessionToken, this);
+        // The session must be suspended before the connection is closed
+        if (resumable == false || SessionRegistry.suspend(sessionToken, player, game, socket, inputEncoding, reason) == false) {
+            GameManager.terminateGame(game, player, reason);
+            reclaimUser();
+        }
+        try {
+            closeConnection();
+            connectionOpen = false;
+        } catch (IOException ex2) {
+            //LOG//Logger.getLogger(ServerMessageBroker.class.getName()).log(Level.SEVERE, "The connection could not be closed", ex2);
+            LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.severe, "The connection could not be closed", ex2);
+        }
+    }
+
+    /**
+     * Removes the user of the closed connection if he or she is
+     * non-persistent and in no game (see {@link User#reclaimUserByName}).
+     *
+     * @since v1.9
+     */
+    private void reclaimUser() {
+        Player currentPlayer = player;
+        if (currentPlayer != null) {
+            User.reclaimUserByName(currentPlayer.getLoginName());
+        }
+    }
+
+    /**
+     * Closes the socket and (if present) the reader of the connection. In
+     * non-blocking mode the connection of the {@link SelectorConnectionEngine}
+     * is closed. If an {@link OutboundQueue} is used, the socket is closed as
+     * soon as the already queued messages were written.
+     *
+     * @throws IOException Thrown if the socket could not be closed.
+     * @since v1.3
+     */
+    private void closeConnection() throws IOException {
+        if (heartbeat != null) {
+            heartbeat.cancel();
+        }
+        if (selectorConnection != null) {
+            selectorConnection.close();
+            return;
+        }
+        if (outboundQueue != null) {
+            outboundQueue.close();  // Closes the socket and therefore the reader
+            return;
+        }
+        socket.close();
+        if (in != null) {
+            in.close();
+        }
+    }
+
+    /**
+     * Indicates whether the connection is still open, i.e. whether further
+     * inputs should be processed.
+     *
+     * @return True if further inputs should be processed.
+     * @since v1.3
+     */
+    boolean isConnectionOpen() {
+        return connectionOpen == true && socket.isClosed() == false;
+    }
+
     /**
      * This method parses the incoming messages.<br>
-     * It first tries to create a DOMDocument in order to check whether the
-     * string is valid xml and to determine the message type. If the message
-     * cannot be parsed, the client will receive a {@link BadInputMessage}. If
-     * the parsing is successful, the respective message class is loaded via the
-     * game's ClassLoader, see {@link GameLoader}.<br>
-     * In a last step, the {@link Message#parse} method will take care of the
-     * parsing.
+     * The message is decoded in one pass by the {@link MessageDecoder}: The
+     * attribute "FullyQualifiedClassName" is read, the respective message class
+     * is loaded via the game's ClassLoader (see {@link GameLoader}) and the
+     * message is unmarshalled. If the message is not valid XML, the client will
+     * receive a {@link BadInputMessage}.
      *
      * @param inputString The message as received from the clients.
      * @return The parsed message.
      */
     private Message parseInput(String inputString) {
-        // Used to create an input source and for parsing.
-        StringReader reader = new StringReader(inputString);
-        String messageClassPath = extractMessageClassPath(new InputSource(reader), inputString);
-
-        // Recreate the reader because the reader was read with the last operation
-        reader = new StringReader(inputString);
-
         // If the game has not yet been initialized, use the System class loader
         // to get to the messages in AIGS commons otherwise use the classloader
         // of the current game.
         ClassLoader loader = getClassLoader();
 
         // Try to load and parse the Message Class dynamically by the loginName provided
-        // by the attribute "classPath" which is part of every message.
+        // by the attribute "FullyQualifiedClassName" which is part of every message.
         try {
-            Class messageClass = Class.forName(messageClassPath, true, loader);
-            return Message.parse(reader, messageClass);
+            return MessageDecoder.decode(inputString, loader);
+        } catch (XMLStreamException ex) {
+            //LOG//Logger.getLogger(ServerMessageBroker.class.getName()).log(Level.SEVERE, "Could not parse input into xml format." + "Client sent the following string: \n{0}", inputString);
+            LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.waring, "Could not parse input into xml format." + "Client sent the following string: \n{0}", inputString);
+            BadInputMessage badInputMessage = new BadInputMessage(inputString);
+            badInputMessage.send(socket, player);
+            return null;
         } catch (ClassNotFoundException ex) {
             //LOG//Logger.getLogger(ServerMessageBroker.class.getName()).log(Level.SEVERE, "Could not find a matching class. Check the package name, @XmlElement annotations and the jars.", ex);
             LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.waring, "Could not find a matching class. Check the package name, @XmlElement annotations and the jars.", ex);
@@ -212,41 +626,39 @@ public class ServerMessageBroker implements Runnable {
     }
 
     /**
-     * Uses a {@link org.w3c.dom.Document} to get the attribute "FullyQualifiedClassName"
-     * of a message. The value of this attribute is inherent to every message.
-     * By extracting it, messages can be instantiated by using reflection.
+     * This method parses the incoming framed messages (see {@link BinaryCodec}).
+     * If the frame is invalid, it is logged and ignored.
      *
-     * @param inputSource The incoming message as an InputSource
-     * @param inputString The incoming message as an InputString (for exception
-     * handling purposes only)
-     * @return The value of the attribute "FullyQualifiedClassName".
-     */
-    private String extractMessageClassPath(InputSource inputSource, String inputString) {
-        //  Using a DOMDocument we can extract an attribute.
-        Document DOMDocument;
+     * @param data The buffer which contains the frame.
+     * @param offset The position of the frame in the buffer.
+     * @param length The length of the frame.
+     * @return The parsed message or null if the frame is invalid.
+     * @since v1.6
+     */
+    private Message parseFrame(byte[] data, int offset, int length) {
         try {
-            DOMDocument = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(inputSource);
-            // Read the attribute "classPath" of the sent XML. It represents the qualified loginName of the class
-            // e.g. "org.fhnw.aigs.commons.TicTacToe.FieldClickMessage" which points to the class "FieldClickMessage".
-            return DOMDocument.getDocumentElement().getAttribute("FullyQualifiedClassName");
-
-        } catch (ParserConfigurationException | SAXException | IOException ex) {
-            //LOG//Logger.getLogger(ServerMessageBroker.class.getName()).log(Level.SEVERE, "Could not parse input into xml format." + "Client sent the following string: \n{0}", inputString);
-            LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.waring, "Could not parse input into xml format." + "Client sent the following string: \n{0}", inputString);
-            BadInputMessage badInputMessage = new BadInputMessage(inputString);
-            badInputMessage.send(socket, player);
+            return BinaryCodec.decode(data, offset, length, getClassLoader());
+        } catch (ClassNotFoundException ex) {
+            LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.waring, "Could not find a matching class. Check the package name and the jars.", ex);
             return null;
         }
-        catch (Exception ex) // All other Exceptions
+        catch (Exception ex) // All other exceptions
         {
-            //LOG//Logger.getLogger(ServerMessageBroker.class.getName()).log(Level.SEVERE, "An unknonw error occurred.", ex);
-            LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.waring, "An unknonw error occurred.", ex);
-            BadInputMessage badInputMessage = new BadInputMessage(inputString);
-            badInputMessage.send(socket, player);
-            return null;            
+            LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.waring, "Could not decode the framed message.", ex);
+            return null;
         }
     }
 
+    /**
+     * Gets the encoding of the incoming messages.
+     *
+     * @return The encoding.
+     * @since v1.6
+     */
+    MessageEncoding getInputEncoding() {
+        return inputEncoding;
+    }
+
     /**
      * Gets the {@link ClassLoader} of a game.
      *
@@ -255,7 +667,7 @@ public class ServerMessageBroker implements Runnable {
      */
     private ClassLoader getClassLoader() {
         if (isGameInitialized) {
-            return GameLoader.getClassLoaderByName(game.getGameName());
+            return GameLoader.getClassLoaderOfGame(game);   // The version of the running game
         } else {
             return ClassLoader.getSystemClassLoader();
         }
@@ -287,12 +699,24 @@ public class ServerMessageBroker implements Runnable {
 
     /**
      * Checks whether the {@link IdentificationMessage} received from a client
-     * is valid. Then do the necessary steps to authentificate the user.
+     * is valid. Then do the necessary steps to authentificate the user.<br>
+     * After a successful login, the binary encoding is used for all following
+     * messages if the client offered it and the server allows it (see
+     * {@link ServerConfiguration#getIsBinaryEncodingAllowed}). Otherwise framed
+     * XML is used if the client offered it. The response itself is always sent
+     * as XML line.
      *
      * @param parsedMessage
      */
     private void handledentificationMessage(Message parsedMessage) {
         IdentificationMessage identificationMessage = (IdentificationMessage) parsedMessage;
+        if (identificationMessage.getSessionToken() != null && player == null && SessionRegistry.isEnabled() == true) {
+            if (resumeSession(identificationMessage) == true) {
+                nonGameMessageReceived = true;    // Was handled
+                return;
+            }
+            // Otherwise the session is lost, a normal login takes place
+        }
         String loginName = identificationMessage.getLoginName();
         String password = identificationMessage.getPassword();
         String playerName = identificationMessage.getPlayerName();
@@ -311,10 +735,121 @@ public class ServerMessageBroker implements Runnable {
         IdentificationResponseMessage identificationResponseMessage = User.identify(loginName, password, playerName, isMultiLoginAllowed);
         this.player = new Player(identificationResponseMessage.getLoginName(), identificationResponseMessage.getPlayerName(), false);
         this.player.setSocket(socket);
+        MessageEncoding encoding = MessageEncoding.xml;
+        if (identificationResponseMessage.getLoginSuccessful() == true) {
+            if (ServerConfiguration.getInstance().getIsBinaryEncodingAllowed() == true
+                    && identificationMessage.supportsEncoding(MessageEncoding.binary) == true) {
+                encoding = MessageEncoding.binary;
+            } else if (identificationMessage.supportsEncoding(MessageEncoding.framedXml) == true) {
+                encoding = MessageEncoding.framedXml;
+            }
+        }
+        if (encoding != MessageEncoding.xml) {
+            identificationResponseMessage.setEncoding(encoding);
+        }
+        if (identificationResponseMessage.getLoginSuccessful() == true && SessionRegistry.isEnabled() == true && sessionToken == null) {
+            sessionToken = SessionRegistry.register(this);
+            identificationResponseMessage.setSessionToken(sessionToken);
+        }
         identificationResponseMessage.send(socket, player);
+        if (identificationResponseMessage.getLoginSuccessful() == true && heartbeat == null) {
+            // Idle clients are detected from now on, whether they are in a game or not
+            registerHeartbeat();
+        }
+        if (encoding != MessageEncoding.xml) {
+            setEncoding(encoding);
+        }
         nonGameMessageReceived = true;        // Was handled
     }
 
+    /**
+     * Resumes a suspended session (see {@link SessionRegistry}) on this
+     * connection. The player is reattached to his or her game, the encoding of
+     * the session is used and the messages buffered since the connection was
+     * lost are delivered after the {@link IdentificationResponseMessage}.
+     *
+     * @param identificationMessage The identification with the session token.
+     * @return True if the session was resumed, false if there is no such
+     * session (a normal login has to take place).
+     * @since v1.10
+     */
+    private boolean resumeSession(IdentificationMessage identificationMessage) {
+        SessionRegistry.Session session = SessionRegistry.resume(identificationMessage.getSessionToken(), identificationMessage.getLoginName());
+        if (session == null) {
+            return false;
+        }
+        MessageEncoding encoding = session.getEncoding();
+        if (identificationMessage.supportsEncoding(encoding) == false) {
+            // The buffered messages cannot be decoded by the client
+            SessionRegistry.discard(session);
+            return false;
+        }
+        GameExecutor executor = GameExecutor.getExecutor(session.getGame());
+        if (executor == null) {
+            // The game was terminated in the meantime
+            SessionRegistry.discard(session);
+            return false;
+        }
+        this.player = session.getPlayer();
+        this.game = session.getGame();
+        this.gameExecutor = executor;
+        this.isGameInitialized = true;
+        this.sessionToken = SessionRegistry.register(this);
+
+        IdentificationResponseMessage identificationResponseMessage = new IdentificationResponseMessage(player.getLoginName(), player.getName(), null, null, true);
+        identificationResponseMessage.setResumed(true);
+        identificationResponseMessage.setSessionToken(sessionToken);
+        if (encoding != MessageEncoding.xml) {
+            identificationResponseMessage.setEncoding(encoding);
+        }
+        identificationResponseMessage.send(socket, player);
+        if (heartbeat == null) {
+            registerHeartbeat();
+        }
+        if (encoding != MessageEncoding.xml) {
+            setEncoding(encoding);
+        }
+        if (SessionRegistry.reattach(session, socket) == false) {
+            connectionOpen = false;         // The game was terminated
+        }
+        return true;
+    }
+
+    /**
+     * Registers the heartbeat of this connection at the {@link KeepAliveManager}.
+     * Idle clients are detected from then on, whether they are in a game or
+     * not.
+     *
+     * @since v1.10
+     */
+    private void registerHeartbeat() {
+        heartbeat = KeepAliveManager.register(player, new Runnable() {
+            @Override
+            public void run() {
+                connectionLost("One of the players did not answer.", true);
+            }
+        });
+        if (heartbeat != null && game != null) {
+            heartbeat.setGameName(game.getGameName());
+        }
+    }
+
+    /**
+     * Switches the encoding of all following messages (in both directions).
+     * Must be called after the {@link IdentificationResponseMessage} was sent.
+     *
+     * @param encoding The negotiated encoding.
+     * @since v1.10
+     */
+    private void setEncoding(MessageEncoding encoding) {
+        // The response was already encoded, all following messages are framed
+        Message.setEncoding(socket, encoding);
+        inputEncoding = encoding;
+        if (in != null) {
+            in.setEncoding(encoding);
+        }
+    }
+
     /**
      * If the client closed the window (or the client was closed out of another
      * reason), this method closes the connection, logs off the user and
@@ -325,15 +860,17 @@ public class ServerMessageBroker implements Runnable {
     private void handleClientClosedMessage(Message parsedMessage) {
         ClientClosedMessage clientClosedMessage = (ClientClosedMessage) parsedMessage;
         try {
-            socket.close();
-            in.close();
+            closeConnection();
             //LOG//Logger.getLogger(ServerMessageBroker.class.getName()).log(Level.INFO, "Connection successfully closed.");
             LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.info, "Connection successfully closed.");
         } catch (IOException ex) {
             //LOG//Logger.getLogger(ServerMessageBroker.class.getName()).log(Level.SEVERE, null, ex);
             LogRouter.log(ServerMessageBroker.class.getName(), LoggingLevel.severe, null, ex);
         }
+        lost.set(true);                       // Closed on purpose, the session cannot be resumed
+        SessionRegistry.unregister(sessionToken, this);
         GameManager.terminateGame(game, player, clientClosedMessage.getReason());
+        reclaimUser();
         connectionOpen = true;
         nonGameMessageReceived = true;
     }
@@ -349,11 +886,17 @@ public class ServerMessageBroker implements Runnable {
         JoinMessage joinMessage = (JoinMessage) parsedMessage;
         // Ignore JoinMessages if there already is a game going on.
         if (isGameInitialized == false) {
-            game = GameManager.joinGame(joinMessage, player, joinMessage.getPartyName());
-            if (game == null) {
-                connectionOpen = false;
+            Game joinedGame = GameManager.joinGame(joinMessage, player, joinMessage.getPartyName());
+            GameExecutor executor = joinedGame == null ? null : GameExecutor.getExecutor(joinedGame);
+            if (executor == null) {
+                connectionOpen = false;     // Join failed or the game was already terminated
             } else {
+                game = joinedGame;
+                gameExecutor = executor;
                 isGameInitialized = true;
+                if (heartbeat != null) {
+                    heartbeat.setGameName(game.getGameName());
+                }
             }
         }
         nonGameMessageReceived = true;
@@ -361,13 +904,17 @@ public class ServerMessageBroker implements Runnable {
 
     /**
      * Handles the client's answers of {@link KeepAliveMessage}s. The response
-     * is simply forwarded to the {@link KeepAliveManager}.
+     * is simply forwarded to the {@link KeepAliveManager} together with the
+     * heartbeat of the connection. If the latency of the player is too high
+     * and the {@link HighLatencyPolicy} demands it, the game is terminated.
      *
      * @param parsedMessage The {@link KeepAliveMessage}.
      */
     private void handleKeepAliveMessage(Message parsedMessage) {
         KeepAliveMessage keepAliveMessage = (KeepAliveMessage) parsedMessage;
-        KeepAliveManager.handleResponse(keepAliveMessage);
+        if (KeepAliveManager.handleResponse(heartbeat, keepAliveMessage) == true) {
+            connectionLost("The latency of a player was too high.");
+        }
         nonGameMessageReceived = true;
     }
     
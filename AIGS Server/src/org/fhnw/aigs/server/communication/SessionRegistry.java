@@ -0,0 +1,400 @@
+package org.fhnw.aigs.server.communication;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.fhnw.aigs.commons.Game;
+import org.fhnw.aigs.commons.Player;
+import org.fhnw.aigs.commons.communication.Message;
+import org.fhnw.aigs.commons.communication.MessageEncoding;
+import org.fhnw.aigs.commons.communication.OutboundChannel;
+import org.fhnw.aigs.server.common.LogRouter;
+import org.fhnw.aigs.server.common.LoggingLevel;
+import org.fhnw.aigs.server.common.ServerConfiguration;
+import org.fhnw.aigs.server.gameHandling.GameManager;
+
+/**
+ * Registry of the resumable sessions. Every successful login gets a session
+ * token (see {@link org.fhnw.aigs.commons.communication.IdentificationResponseMessage#getSessionToken}).
+ * If the connection of a player in a game is lost (e.g. a short network
+ * outage), the game is not terminated immediately. The session is suspended
+ * for a grace period (see {@link ServerConfiguration#getSessionResumeTimeOut}):
+ * The game and the player are kept alive and all messages sent to the player
+ * are buffered (up to {@link ServerConfiguration#getResumeBufferSize}
+ * messages). If the client reconnects with the token within the grace period,
+ * the player is reattached to the game on the new connection and the buffered
+ * messages are delivered. Otherwise (or if the buffer overflows) the game is
+ * terminated as without resumable sessions.<br>
+ * The buffer is registered as {@link OutboundChannel} for the socket of the
+ * lost connection, so the games can send messages to the player as usual.<br>
+ * v1.0 Initial release
+ *
+ * @version 1.0
+ */
+final class SessionRegistry {
+
+    /**
+     * A suspended session. The session buffers the messages sent to the
+     * socket of the lost connection until it is resumed or expires. After the
+     * session was resumed, late messages are forwarded to the new connection.
+     */
+    static final class Session implements OutboundChannel {
+
+        /**
+         * The session token.
+         */
+        private final String token;
+        /**
+         * The player of the lost connection.
+         */
+        private final Player player;
+        /**
+         * The game of the player.
+         */
+        private final Game game;
+        /**
+         * The socket of the lost connection.
+         */
+        private final Socket socket;
+        /**
+         * The encoding of the buffered messages.
+         */
+        private final MessageEncoding encoding;
+        /**
+         * The reason of the termination if the session expires.
+         */
+        private final String reason;
+        /**
+         * The buffered messages (already encoded).
+         */
+        private final ArrayDeque<byte[]> buffer = new ArrayDeque<>();
+        /**
+         * Maximum number of buffered messages.
+         */
+        private final int capacity;
+        /**
+         * The channel of the new connection after the session was resumed.
+         */
+        private OutboundChannel target;
+        /**
+         * Indicates whether more messages were sent than could be buffered.
+         */
+        private boolean overflowed;
+        /**
+         * The scheduled expiry of the session.
+         */
+        private ScheduledFuture<?> expiry;
+
+        /**
+         * Creates a suspended session.
+         *
+         * @param token The session token.
+         * @param player The player of the lost connection.
+         * @param game The game of the player.
+         * @param socket The socket of the lost connection.
+         * @param encoding The negotiated encoding of the lost connection.
+         * @param reason The reason of the termination if the session expires.
+         * @param capacity Maximum number of buffered messages.
+         */
+        private Session(String token, Player player, Game game, Socket socket, MessageEncoding encoding, String reason, int capacity) {
+            this.token = token;
+            this.player = player;
+            this.game = game;
+            this.socket = socket;
+            this.encoding = encoding;
+            this.reason = reason;
+            this.capacity = capacity;
+        }
+
+        /**
+         * Buffers a message which is sent to the player of the session (or
+         * forwards it to the new connection if the session was resumed). If
+         * the buffer is full, the session expires immediately.
+         *
+         * @param data The encoded message.
+         * @throws IOException Thrown if a forwarded message could not be
+         * written.
+         */
+        @Override
+        public synchronized void write(byte[] data) throws IOException {
+            if (target != null) {
+                target.write(data);
+                return;
+            }
+            if (overflowed == true) {
+                return;
+            }
+            if (buffer.size() >= capacity) {
+                overflowed = true;
+                buffer.clear();
+                // Not terminated in this thread, the game is probably just sending
+                timer.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        expire(Session.this);
+                    }
+                });
+                return;
+            }
+            buffer.add(data);
+        }
+
+        /**
+         * See {@link Session#player}.
+         */
+        Player getPlayer() {
+            return player;
+        }
+
+        /**
+         * See {@link Session#game}.
+         */
+        Game getGame() {
+            return game;
+        }
+
+        /**
+         * See {@link Session#encoding}.
+         */
+        MessageEncoding getEncoding() {
+            return encoding;
+        }
+
+        /**
+         * Delivers the buffered messages to the new connection and forwards
+         * all further messages to it.
+         *
+         * @param channel The channel of the new connection.
+         * @return The number of delivered messages.
+         * @throws IOException Thrown if the messages could not be written.
+         */
+        private synchronized int attach(OutboundChannel channel) throws IOException {
+            int count = buffer.size();
+            while (buffer.isEmpty() == false) {
+                channel.write(buffer.poll());
+            }
+            target = channel;
+            return count;
+        }
+
+        /**
+         * Checks whether more messages were sent than could be buffered.
+         *
+         * @return True if messages were lost.
+         */
+        private synchronized boolean isOverflowed() {
+            return overflowed;
+        }
+    }
+
+    /**
+     * Number of random bits of a session token.
+     */
+    private static final int TOKEN_BITS = 130;
+
+    /**
+     * The generator of the session tokens.
+     */
+    private static final SecureRandom random = new SecureRandom();
+    /**
+     * The brokers of the connected players, mapped by their session token.
+     */
+    private static final ConcurrentHashMap<String, ServerMessageBroker> brokers = new ConcurrentHashMap<>();
+    /**
+     * The suspended sessions, mapped by their session token.
+     */
+    private static final ConcurrentHashMap<String, Session> suspendedSessions = new ConcurrentHashMap<>();
+    /**
+     * The thread which terminates the expired sessions.
+     */
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task);
+            thread.setName("SessionExpiryThread");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private SessionRegistry() {
+    }
+
+    /**
+     * Checks whether resumable sessions are enabled.
+     *
+     * @return True if sessions can be resumed.
+     */
+    static boolean isEnabled() {
+        return ServerConfiguration.getInstance().getSessionResumeTimeOut() > 0;
+    }
+
+    /**
+     * Registers the broker of a logged in player and issues a new session
+     * token.
+     *
+     * @param broker The broker of the connection.
+     * @return The session token.
+     */
+    static String register(ServerMessageBroker broker) {
+        String token = new BigInteger(TOKEN_BITS, random).toString(32);
+        brokers.put(token, broker);
+        return token;
+    }
+
+    /**
+     * Removes the broker of a closed connection.
+     *
+     * @param token The session token (can be null).
+     * @param broker The broker of the connection.
+     */
+    static void unregister(String token, ServerMessageBroker broker) {
+        if (token != null) {
+            brokers.remove(token, broker);
+        }
+    }
+
+    /**
+     * Suspends the session of a lost connection. From now on, the messages
+     * sent to the socket of the connection are buffered. The socket must
+     * not yet be closed by the broker (the outbound channel is replaced).
+     *
+     * @param token The session token (can be null).
+     * @param player The player of the connection.
+     * @param game The game of the player (can be null).
+     * @param socket The socket of the connection.
+     * @param encoding The negotiated encoding of the connection.
+     * @param reason The reason of the termination if the session expires.
+     * @return True if the session was suspended, false if it cannot be
+     * resumed (the game has to be terminated).
+     */
+    static boolean suspend(String token, Player player, Game game, Socket socket, MessageEncoding encoding, String reason) {
+        if (token == null || game == null || player == null || isEnabled() == false
+                || GameManager.getGameById(game.getId()) != game) {
+            return false;                   // Not logged in, not in a game or game already terminated
+        }
+        final Session session = new Session(token, player, game, socket, encoding, reason, ServerConfiguration.getInstance().getResumeBufferSize());
+        Message.registerOutboundChannel(socket, session);
+        Message.setEncoding(socket, encoding);     // The channel of the connection may already be removed with its encoding
+        suspendedSessions.put(token, session);
+        synchronized (session) {
+            session.expiry = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    expire(session);
+                }
+            }, ServerConfiguration.getInstance().getSessionResumeTimeOut(), TimeUnit.MILLISECONDS);
+        }
+        LogRouter.log(SessionRegistry.class.getName(), LoggingLevel.game, "The connection of the player {0} was lost, the session can be resumed within {1} ms.", new Object[]{player, ServerConfiguration.getInstance().getSessionResumeTimeOut()});
+        return true;
+    }
+
+    /**
+     * Takes a suspended session which is resumed on a new connection. If the
+     * connection of the session was not yet detected as lost (e.g. the client
+     * reconnected faster than the heartbeat), the old connection is closed and
+     * its session is suspended first.
+     *
+     * @param token The session token sent by the client.
+     * @param loginName The login name sent by the client.
+     * @return The session or null if there is no resumable session with this
+     * token (unknown, expired or the game is already terminated).
+     */
+    static Session resume(String token, String loginName) {
+        ServerMessageBroker oldBroker = brokers.get(token);
+        if (oldBroker != null) {
+            oldBroker.connectionLost("The player reconnected.", true);
+        }
+        Session session = suspendedSessions.get(token);
+        if (session == null || session.player.getLoginName().equals(loginName) == false
+                || suspendedSessions.remove(token, session) == false) {
+            return null;
+        }
+        synchronized (session) {
+            if (session.expiry != null) {   // Otherwise not yet scheduled, the expiry will find no session
+                session.expiry.cancel(false);
+            }
+        }
+        if (session.isOverflowed() == true || GameManager.getGameById(session.game.getId()) != session.game) {
+            terminate(session);
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Reattaches the player of a resumed session to a new connection. The
+     * buffered messages are delivered and the socket of the player is
+     * replaced. The encoding of the new connection must already be set to
+     * the encoding of the session (see {@link Session#getEncoding}).
+     *
+     * @param session The resumed session.
+     * @param socket The socket of the new connection.
+     * @return True if the player was reattached, false if the buffered
+     * messages could not be delivered (the game is terminated).
+     */
+    static boolean reattach(Session session, Socket socket) {
+        OutboundChannel channel = Message.getOutboundChannel(socket);
+        try {
+            if (channel == null) {
+                throw new IOException("No outbound channel registered for the new connection.");
+            }
+            int count = session.attach(channel);
+            session.player.setSocket(socket);
+            Message.unregisterOutboundChannel(session.socket, session);
+            LogRouter.log(SessionRegistry.class.getName(), LoggingLevel.game, "The player {0} resumed the session, {1} buffered messages were delivered.", new Object[]{session.player, count});
+            return true;
+        } catch (IOException ex) {
+            LogRouter.log(SessionRegistry.class.getName(), LoggingLevel.waring, "The session could not be resumed.", ex);
+            terminate(session);
+            return false;
+        }
+    }
+
+    /**
+     * Drops a resumed session which cannot be reattached (e.g. the client does
+     * not support the encoding of the buffered messages). The game is
+     * terminated.
+     *
+     * @param session The resumed session.
+     */
+    static void discard(Session session) {
+        terminate(session);
+    }
+
+    /**
+     * Terminates the game of a session whose grace period is over (or whose
+     * buffer overflowed), unless the session was resumed in the meantime.
+     *
+     * @param session The session.
+     */
+    private static void expire(Session session) {
+        if (suspendedSessions.remove(session.token, session) == false) {
+            return;                         // Already resumed or terminated
+        }
+        LogRouter.log(SessionRegistry.class.getName(), LoggingLevel.game, "The session of the player {0} was not resumed.", session.player);
+        terminate(session);
+    }
+
+    /**
+     * Removes the buffer of a session and terminates its game.
+     *
+     * @param session The session (already removed from the suspended
+     * sessions).
+     */
+    private static void terminate(Session session) {
+        Message.unregisterOutboundChannel(session.socket, session);
+        GameManager.terminateGame(session.game, session.player, session.reason);
+    }
+}
@@ -175,7 +175,7 @@ public class AIGSConsoleHandler {
     private void listActiveGames() {
         Logger.getLogger(AIGSConsoleHandler.class.getName()).log(Level.INFO, "List waiting and active games...");
         System.out.println("Waiting games:\r\n----------------------");
-        for(Game game : GameManager.waitingGames){
+        for(Game game : GameManager.getWaitingGames()){
             System.out.println(game.toString());
             System.out.println("Participants:");
             for(Player player : game.getPlayers()){
@@ -185,7 +185,7 @@ public class AIGSConsoleHandler {
         }
         
         System.out.println("Running games:\r\n----------------------");
-        for(Game game : GameManager.runningGames){
+        for(Game game : GameManager.getRunningGames()){
             System.out.println(game.toString());
             System.out.println("Participants:");
             for(Player player : game.getPlayers()){
@@ -220,10 +220,10 @@ public class AIGSConsoleHandler {
      */
     private void terminateAllGames() {
         Logger.getLogger(AIGSConsoleHandler.class.getName()).log(Level.INFO, "Terminate all games...");
-        for(Game game : GameManager.waitingGames){
+        for(Game game : GameManager.getWaitingGames()){
             GameManager.terminateGame(game, "Termination requested by administrator.");
         }
-        for(Game game : GameManager.runningGames){
+        for(Game game : GameManager.getRunningGames()){
             GameManager.terminateGame(game, "Termination requested by administrator.");
         }
     }
@@ -236,18 +236,9 @@ public class AIGSConsoleHandler {
         try{
             int id = Integer.parseInt(toBeTerminated);
             
-            for(int i = 0; i < GameManager.waitingGames.size(); i++){
-                Game game = GameManager.waitingGames.get(i);
-                if(game.getId() == id){
-                    GameManager.terminateGame(game, "Termination requested by administrator.");
-                }
-            }
-            
-            for (int i = 0; i < GameManager.runningGames.size(); i++) {
-                Game game = GameManager.runningGames.get(i);
-                if (game.getId() == id) {
-                    GameManager.terminateGame(game, "Termination requested by administrator.");
-                }
+            Game game = GameManager.getGameById(id);
+            if(game != null){
+                GameManager.terminateGame(game, "Termination requested by administrator.");
             }
             
         }catch(NumberFormatException ex){
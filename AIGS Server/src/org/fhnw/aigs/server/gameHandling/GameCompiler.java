@@ -0,0 +1,486 @@
+package org.fhnw.aigs.server.gameHandling;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import org.fhnw.aigs.server.common.LogRouter;
+import org.fhnw.aigs.server.common.LoggingLevel;
+import org.fhnw.aigs.server.common.ServerConfiguration;
+
+/**
+ * In-process compiler of the game sources (see {@link GameLoader#rebuildClasses}).
+ * Every folder in the game sources folder (games) is a game project with the
+ * sources in the folder "src" and the libraries in the folder "lib". The
+ * server and commons classes of a project are compiled with the system Java
+ * compiler into memory and written into the jar of the game in the gamelibs
+ * folder. The client classes are not needed by the server and are skipped.<br>
+ * Every jar contains a fingerprint (SHA-256) of the sources, resources and
+ * libraries of its project in the manifest. Only games with a changed
+ * fingerprint are recompiled, independent games are compiled in parallel.<br>
+ * The manifest also contains the metadata of the game (see {@link GamePluginRegistry}),
+ * which is copied from the manifest.mf file of the project (the manifest of
+ * the NetBeans project), e.g.:
+ * <pre>
+ * AIGS-Game-Name: TicTacToe
+ * AIGS-Game-Version: v1.1.1
+ * AIGS-Min-Players: 2
+ * </pre>
+ * v1.0 Initial release<br>
+ * v1.1 The metadata of the game is written into the manifest
+ *
+ * @version 1.1
+ */
+final class GameCompiler {
+
+    /**
+     * Name of the manifest attribute with the fingerprint of the sources.
+     */
+    private static final Attributes.Name FINGERPRINT_ATTRIBUTE = new Attributes.Name("AIGS-Source-Fingerprint");
+    /**
+     * Options of the compiler.
+     */
+    private static final List<String> COMPILER_OPTIONS = Arrays.asList("-encoding", "UTF-8", "-g", "-nowarn", "-proc:none");
+    /**
+     * Name of the descriptor file with the metadata of a game project.
+     * @since v1.1
+     */
+    private static final String DESCRIPTOR = "manifest.mf";
+    /**
+     * Attributes of the descriptor which are copied into the manifest of the
+     * jar.
+     * @since v1.1
+     */
+    private static final List<Attributes.Name> METADATA_ATTRIBUTES = Arrays.asList(
+            GamePluginRegistry.NAME_ATTRIBUTE, GamePluginRegistry.VERSION_ATTRIBUTE, GamePluginRegistry.MIN_PLAYERS_ATTRIBUTE);
+
+    /**
+     * Result of a compilation run.
+     */
+    static final class Result {
+
+        /**
+         * Indicates whether all games were compiled successfully.
+         */
+        private boolean successful = true;
+
+        /**
+         * Indicates whether all games were compiled successfully.
+         *
+         * @return True if no compilation failed, otherwise false.
+         */
+        boolean isSuccessful() {
+            return successful;
+        }
+    }
+
+    /**
+     * File manager which keeps the compiled classes in memory.
+     */
+    private static final class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+
+        /**
+         * The compiled classes, mapped by their path in the jar.
+         */
+        private final TreeMap<String, ByteArrayOutputStream> classes = new TreeMap<>();
+
+        /**
+         * Creates a file manager.
+         *
+         * @param fileManager The standard file manager (sources and libraries).
+         */
+        private MemoryFileManager(StandardJavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) throws IOException {
+            if (kind != JavaFileObject.Kind.CLASS) {
+                return super.getJavaFileForOutput(location, className, kind, sibling);
+            }
+            String path = className.replace('.', '/') + kind.extension;
+            final ByteArrayOutputStream content = new ByteArrayOutputStream();
+            classes.put(path, content);
+            return new SimpleJavaFileObject(URI.create("mem:///" + path), kind) {
+                @Override
+                public OutputStream openOutputStream() {
+                    return content;
+                }
+            };
+        }
+    }
+
+    /**
+     * Private constructor (static class).
+     */
+    private GameCompiler() {
+    }
+
+    /**
+     * Checks whether a Java compiler is available (i.e. the server runs on a
+     * JDK and not only on a JRE).
+     *
+     * @return True if the compiler is available, otherwise false.
+     */
+    static boolean isAvailable() {
+        return ToolProvider.getSystemJavaCompiler() != null;
+    }
+
+    /**
+     * Compiles all games whose sources have changed since their jar was
+     * written. The games are compiled in parallel.
+     *
+     * @return The result of the compilation.
+     */
+    static synchronized Result compileChangedGames() {
+        final Result result = new Result();
+        File[] projects = new File(ServerConfiguration.getInstance().getGameSourcesDirectory()).listFiles();
+        final File gamelibsDirectory = new File(ServerConfiguration.getInstance().getGamelibsDirectory());
+        if (projects == null) {
+            return result;
+        }
+        ArrayList<Callable<Boolean>> tasks = new ArrayList<>();
+        final ArrayList<File> changedProjects = new ArrayList<>();
+        for (final File project : projects) {
+            if (new File(project, "src").isDirectory() == false) {
+                continue;                   // Not a game project
+            }
+            final String fingerprint;
+            try {
+                fingerprint = createFingerprint(project);
+            } catch (IOException ex) {
+                LogRouter.log(GameCompiler.class.getName(), LoggingLevel.severe, "Could not read the sources of the game " + project.getName(), ex);
+                result.successful = false;
+                continue;
+            }
+            final File jar = new File(gamelibsDirectory, project.getName() + ".jar");
+            if (fingerprint.equals(readFingerprint(jar)) == true) {
+                continue;                   // Unchanged
+            }
+            changedProjects.add(project);
+            tasks.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return compileGame(project, jar, fingerprint);
+                }
+            });
+        }
+        if (tasks.isEmpty() == true) {
+            LogRouter.log(GameCompiler.class.getName(), LoggingLevel.system, "All games are up to date.");
+            return result;
+        }
+
+        ExecutorService compilers = Executors.newFixedThreadPool(Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task);
+                thread.setName("GameCompilerThread" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            List<Future<Boolean>> futures = compilers.invokeAll(tasks);
+            for (int i = 0; i < futures.size(); i++) {
+                String gameName = changedProjects.get(i).getName();
+                try {
+                    if (futures.get(i).get() == false) {
+                        result.successful = false;
+                    }
+                } catch (ExecutionException ex) {
+                    LogRouter.log(GameCompiler.class.getName(), LoggingLevel.severe, "Could not compile the game " + gameName, ex.getCause());
+                    result.successful = false;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            result.successful = false;
+        } finally {
+            compilers.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * Compiles one game and writes its jar.
+     *
+     * @param project The folder of the game project.
+     * @param jar The jar of the game in the gamelibs folder.
+     * @param fingerprint The fingerprint of the sources.
+     * @return True if the game was compiled, false if there were compile
+     * errors.
+     * @throws IOException Thrown if the sources could not be read or the jar
+     * could not be written.
+     */
+    private static boolean compileGame(File project, File jar, String fingerprint) throws IOException {
+        long start = System.currentTimeMillis();
+        File sourceDirectory = new File(project, "src");
+        ArrayList<File> sources = new ArrayList<>();
+        TreeMap<String, File> resources = new TreeMap<>();
+        collectFiles(sourceDirectory, "", sources, resources);
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager standardFileManager = compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8);
+        MemoryFileManager fileManager = new MemoryFileManager(standardFileManager);
+        try {
+            ArrayList<String> options = new ArrayList<>(COMPILER_OPTIONS);
+            options.add("-classpath");
+            options.add(createClasspath(project));
+            Boolean compiled = compiler.getTask(null, fileManager, diagnostics, options, null,
+                    standardFileManager.getJavaFileObjectsFromFiles(sources)).call();
+            if (compiled == false) {
+                for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                    if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                        LogRouter.log(GameCompiler.class.getName(), LoggingLevel.severe, "{0}: {1}", new Object[]{project.getName(), diagnostic.toString()});
+                    }
+                }
+                return false;
+            }
+        } finally {
+            fileManager.close();
+        }
+
+        writeJar(jar, createManifest(project, fingerprint), fileManager.classes, resources);
+        LogRouter.log(GameCompiler.class.getName(), LoggingLevel.system, "Compiled the game {0} ({1} classes) in {2} ms.", new Object[]{project.getName(), fileManager.classes.size(), System.currentTimeMillis() - start});
+        return true;
+    }
+
+    /**
+     * Creates the manifest of a game jar with the fingerprint and the metadata
+     * of the game. The metadata is copied from the descriptor of the project,
+     * the file manifest.mf in the project folder (see {@link GameCompiler#DESCRIPTOR}),
+     * the game code is not executed. If the descriptor or the name attribute
+     * is missing, the name of the project is written as name.
+     *
+     * @param project The folder of the game project.
+     * @param fingerprint The fingerprint of the sources.
+     * @return The manifest.
+     * @since v1.1
+     */
+    private static Manifest createManifest(File project, String fingerprint) {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.put(FINGERPRINT_ATTRIBUTE, fingerprint);
+        attributes.put(GamePluginRegistry.NAME_ATTRIBUTE, project.getName());
+        File descriptor = new File(project, DESCRIPTOR);
+        if (descriptor.isFile() == false) {
+            return manifest;
+        }
+        try (InputStream in = new FileInputStream(descriptor)) {
+            Attributes metadata = new Manifest(in).getMainAttributes();
+            for (Attributes.Name name : METADATA_ATTRIBUTES) {
+                String value = metadata.getValue(name);
+                if (value != null) {
+                    attributes.put(name, value.trim());
+                }
+            }
+        } catch (IOException ex) {
+            LogRouter.log(GameCompiler.class.getName(), LoggingLevel.waring, "Could not read the metadata of the game " + project.getName(), ex);
+        }
+        return manifest;
+    }
+
+    /**
+     * Writes the jar of a game. The jar is written into a temporary file which
+     * replaces the old jar atomically.
+     *
+     * @param jar The jar.
+     * @param manifest The manifest of the jar.
+     * @param classes The compiled classes, mapped by their path in the jar.
+     * @param resources The resources, mapped by their path in the jar.
+     * @throws IOException Thrown if the jar could not be written.
+     */
+    private static void writeJar(File jar, Manifest manifest, Map<String, ByteArrayOutputStream> classes, Map<String, File> resources) throws IOException {
+        File tempFile = new File(jar.getPath() + ".tmp");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(tempFile), manifest)) {
+            for (Map.Entry<String, ByteArrayOutputStream> entry : classes.entrySet()) {
+                out.putNextEntry(new JarEntry(entry.getKey()));
+                entry.getValue().writeTo(out);
+                out.closeEntry();
+            }
+            for (Map.Entry<String, File> entry : resources.entrySet()) {
+                out.putNextEntry(new JarEntry(entry.getKey()));
+                Files.copy(entry.getValue().toPath(), out);
+                out.closeEntry();
+            }
+        }
+        Files.move(tempFile.toPath(), jar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the fingerprint of the sources from the manifest of a jar.
+     *
+     * @param jar The jar.
+     * @return The fingerprint or null if the jar or the fingerprint does not
+     * exist.
+     */
+    private static String readFingerprint(File jar) {
+        if (jar.isFile() == false) {
+            return null;
+        }
+        try (JarFile jarFile = new JarFile(jar)) {
+            Manifest manifest = jarFile.getManifest();
+            if (manifest == null) {
+                return null;
+            }
+            return manifest.getMainAttributes().getValue(FINGERPRINT_ATTRIBUTE);
+        } catch (IOException ex) {
+            return null;                    // Unreadable jar, compile again
+        }
+    }
+
+    /**
+     * Creates the fingerprint of a game project. The fingerprint covers the
+     * paths and contents of the compiled sources, the resources, the
+     * libraries and the descriptor (manifest.mf).
+     *
+     * @param project The folder of the game project.
+     * @return The fingerprint (SHA-256 as hex string).
+     * @throws IOException Thrown if a file could not be read.
+     */
+    private static String createFingerprint(File project) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);    // SHA-256 is always supported
+        }
+        ArrayList<File> sources = new ArrayList<>();
+        TreeMap<String, File> files = new TreeMap<>();
+        collectFiles(new File(project, "src"), "", sources, files);
+        for (File source : sources) {
+            files.put(source.getPath(), source);
+        }
+        for (File library : getLibraries(project)) {
+            files.put(library.getPath(), library);
+        }
+        File descriptor = new File(project, DESCRIPTOR);
+        if (descriptor.isFile() == true) {
+            files.put(descriptor.getPath(), descriptor);
+        }
+        byte[] buffer = new byte[8192];
+        for (Map.Entry<String, File> entry : files.entrySet()) {
+            digest.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+            try (InputStream in = new FileInputStream(entry.getValue())) {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Collects the sources and resources of a game. The client packages and
+     * their resources are skipped.
+     *
+     * @param directory The current folder.
+     * @param path The path of the folder in the jar (empty or ending with a
+     * slash).
+     * @param sources The collected sources.
+     * @param resources The collected resources, mapped by their path in the
+     * jar.
+     */
+    private static void collectFiles(File directory, String path, List<File> sources, Map<String, File> resources) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory() == true) {
+                if (file.getName().equals("client") == false) {
+                    collectFiles(file, path + file.getName() + "/", sources, resources);
+                }
+            } else if (file.getName().endsWith(".java") == true) {
+                sources.add(file);
+            } else {
+                resources.put(path + file.getName(), file);
+            }
+        }
+    }
+
+    /**
+     * Gets the libraries of a game project. The AIGS Commons library of the
+     * server is always used, the copy in the project is skipped.
+     *
+     * @param project The folder of the game project.
+     * @return The libraries (the AIGS Commons library of the server first).
+     */
+    private static List<File> getLibraries(File project) {
+        ArrayList<File> libraries = new ArrayList<>();
+        libraries.add(new File("lib/AIGS_Commons.jar"));
+        File[] files = new File(project, "lib").listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.getName().toLowerCase().endsWith(".jar") == true && file.getName().equals("AIGS_Commons.jar") == false) {
+                    libraries.add(file);
+                }
+            }
+        }
+        return Collections.unmodifiableList(libraries);
+    }
+
+    /**
+     * Creates the classpath of a game project.
+     *
+     * @param project The folder of the game project.
+     * @return The classpath.
+     */
+    private static String createClasspath(File project) {
+        StringBuilder classpath = new StringBuilder();
+        for (File library : getLibraries(project)) {
+            if (classpath.length() > 0) {
+                classpath.append(File.pathSeparatorChar);
+            }
+            classpath.append(library.getAbsolutePath());
+        }
+        return classpath.toString();
+    }
+}
@@ -0,0 +1,194 @@
+package org.fhnw.aigs.server.gameHandling;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.fhnw.aigs.commons.Game;
+import org.fhnw.aigs.server.common.LogRouter;
+import org.fhnw.aigs.server.common.LoggingLevel;
+
+/**
+ * Serialized executor (mailbox) of a game. Every game gets its own executor.
+ * All tasks of a game, e.g. the processing of incoming game messages, are
+ * queued in the mailbox of the game and executed one after another on a shared
+ * pool of worker threads. Therefore the game logic of one game is never
+ * executed concurrently, even if several players send messages at the same
+ * time. Game authors do not have to care about locking.<br>
+ * This includes the start and the termination of the game: The
+ * initialization is queued by the joining thread, and the termination is the
+ * last task of the mailbox (see {@link GameExecutor#terminate}). Tasks which
+ * are queued afterwards are discarded.<br>
+ * The number of worker threads is bounded by the number of available
+ * processors, independently of the number of games.<br>
+ * v1.0 Initial release
+ *
+ * @version 1.0
+ */
+public class GameExecutor implements Runnable {
+
+    /**
+     * Maximum number of tasks which are executed in one turn. Afterwards the
+     * worker thread is released for other games (fairness).
+     */
+    private static final int TASKS_PER_TURN = 32;
+
+    /**
+     * The shared worker threads of all games.
+     */
+    private static final ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task);
+            thread.setName("GameWorkerThread" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * The executors of all active games. The key is the game's ID.
+     */
+    private static final ConcurrentHashMap<Long, GameExecutor> executors = new ConcurrentHashMap<>();
+
+    /**
+     * The queued tasks of the game.
+     */
+    private final ConcurrentLinkedQueue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+    /**
+     * Indicates whether the executor is scheduled on (or running in) a worker thread.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    /**
+     * The ID of the game (only used for logging).
+     */
+    private final long gameId;
+    /**
+     * Indicates whether the termination task of the game was executed. All
+     * following tasks are discarded.
+     */
+    private volatile boolean terminated;
+
+    /**
+     * Private constructor. Use {@link GameExecutor#getExecutor} instead.
+     *
+     * @param gameId The ID of the game.
+     */
+    private GameExecutor(long gameId) {
+        this.gameId = gameId;
+    }
+
+    /**
+     * Gets the executor of a game. If the game has no executor yet, a new one
+     * is created. No executor is created for a game which was already removed
+     * from the waiting and running games (terminated).
+     *
+     * @param game The game.
+     * @return The executor of the game or null if the game was terminated.
+     */
+    public static GameExecutor getExecutor(Game game) {
+        if (GameManager.isActive(game) == false) {
+            return null;
+        }
+        GameExecutor executor = executors.get(game.getId());
+        if (executor == null) {
+            GameExecutor newExecutor = new GameExecutor(game.getId());
+            executor = executors.putIfAbsent(game.getId(), newExecutor);
+            if (executor == null) {
+                executor = newExecutor;
+            }
+        }
+        // The game could have been terminated in the meantime. The game is
+        // removed before its executor, so the executor is either found by
+        // the termination or removed here.
+        if (GameManager.isActive(game) == false) {
+            executors.remove(game.getId(), executor);
+            return null;
+        }
+        return executor;
+    }
+
+    /**
+     * Removes the executor of a terminated game and queues the termination as
+     * its last task. Already queued tasks will still be executed before, all
+     * tasks which are queued afterwards are discarded. If the game has no
+     * executor, the termination is executed by the calling thread. Must be
+     * called after the game was removed from the waiting and running games.
+     *
+     * @param game The terminated game.
+     * @param termination The termination task (e.g. notification of the players).
+     */
+    public static void terminate(Game game, final Runnable termination) {
+        final GameExecutor executor = executors.remove(game.getId());
+        if (executor == null) {
+            termination.run();
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    termination.run();
+                } finally {
+                    executor.terminated = true;
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues a task in the mailbox of the game. The task is executed after all
+     * previously queued tasks of the game. The task is discarded if the game
+     * was already terminated.
+     *
+     * @param task The task to execute.
+     */
+    public void execute(Runnable task) {
+        if (terminated == true) {
+            return;
+        }
+        mailbox.add(task);
+        schedule();
+    }
+
+    /**
+     * Schedules the executor on a worker thread if it is not already scheduled.
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            workers.execute(this);
+        }
+    }
+
+    /**
+     * Executes the queued tasks (called by a worker thread).
+     */
+    @Override
+    public void run() {
+        try {
+            Runnable task;
+            for (int i = 0; i < TASKS_PER_TURN && (task = mailbox.poll()) != null; i++) {
+                if (terminated == true) {
+                    continue;               // Discarded, the game is terminated
+                }
+                try {
+                    task.run();
+                } catch (Exception ex) // All exceptions
+                {
+                    LogRouter.log(GameExecutor.class.getName(), LoggingLevel.severe, "An unhandled exception occurred in a task of the game with the ID " + gameId, ex);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            // Tasks could have been queued after the last poll
+            if (mailbox.isEmpty() == false) {
+                schedule();
+            }
+        }
+    }
+}
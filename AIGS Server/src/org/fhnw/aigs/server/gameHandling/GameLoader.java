@@ -3,14 +3,24 @@ package org.fhnw.aigs.server.gameHandling;
 import org.fhnw.aigs.server.common.Main;
 import org.fhnw.aigs.server.common.ServerConfiguration;
 import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.tools.ant.*;
+import org.fhnw.aigs.commons.Game;
+import org.fhnw.aigs.commons.XMLHelper;
+import org.fhnw.aigs.commons.communication.BinaryCodec;
+import org.fhnw.aigs.commons.communication.MessageDecoder;
 import org.fhnw.aigs.server.common.LogRouter;
 import org.fhnw.aigs.server.common.LoggingLevel;
 
@@ -25,13 +35,27 @@ import org.fhnw.aigs.server.common.LoggingLevel;
  * jar containing all the game classes. If that is not the case, a new class
  * loader will be created and added to the {@link GameLoader#allClassLoaders}
  * collection.<br>
+ * The ClassLoaders are versioned: Every ClassLoader loads copies of the jars
+ * (in the folder ".versions" of the gamelibs folder), so the jars can be
+ * rebuilt while games are running. After a rebuild (see
+ * {@link GameLoader#rebuildClasses}), new games get a new version of the
+ * ClassLoader, while the existing games keep running on their version. A
+ * version is released as soon as its last game was terminated.<br>
  * v1.0 Initial release<br>
  * v1.1 Functional changes<br>
  * v1.2 Added new methods<br>
- * v1.3 Changing of logging
+ * v1.3 Changing of logging<br>
+ * v1.4 Cached JAXB contexts and message classes of dropped ClassLoaders are invalidated<br>
+ * v1.5 Cached binary message models of dropped ClassLoaders are invalidated<br>
+ * v1.6 Versioned ClassLoaders, games are not terminated by a rebuild, new
+ * versions are created without holding the loader lock, the use of a version
+ * is counted by the version itself<br>
+ * v1.7 Changed games are compiled in-process (see {@link GameCompiler})<br>
+ * v1.8 Games are looked up in the {@link GamePluginRegistry} instead of
+ * listing the gamelibs folder
  *
  * @author Matthias Stöckli (v1.0)
- * @version 1.3 (Raphael Stoeckli, 24.02.2015)
+ * @version 1.8
  */
 public class GameLoader extends URLClassLoader {
 
@@ -44,93 +68,312 @@ public class GameLoader extends URLClassLoader {
      * it is adviced to ensure that the game is named consistently throught all
      * classes.
      */
-    private static HashMap<String, URLClassLoader> allClassLoaders = new HashMap<String, URLClassLoader>();
+    private static final ConcurrentHashMap<String, LoaderVersion> allClassLoaders = new ConcurrentHashMap<>();
 
     /**
-     * This method loads a ClassLoader which can then be used to load a game.
+     * All versions of the ClassLoaders (current and retired ones), mapped by
+     * their ClassLoader (ClassLoaders are compared by identity).
+     * @since v1.6
+     */
+    private static final ConcurrentHashMap<ClassLoader, LoaderVersion> allVersions = new ConcurrentHashMap<>();
+    /**
+     * Lock of the publication and retirement of the current versions. It is
+     * only taken when a new version is published or versions are retired,
+     * never while jars are copied.
+     * @since v1.6
+     */
+    private static final Object loaderLock = new Object();
+    /**
+     * The last assigned version number.
+     * @since v1.6
+     */
+    private static final AtomicInteger lastVersion = new AtomicInteger();
+    /**
+     * Number of retirements (see {@link GameLoader#retireVersions}). A new
+     * version is only published if no versions were retired while it was
+     * created, as it may contain copies of the old jars. Changed while
+     * holding the {@link GameLoader#loaderLock}.
+     * @since v1.6
+     */
+    private static volatile int retirements;
+    /**
+     * Indicates whether the versions folder was emptied (versions of a
+     * previous run). Guarded by the class.
+     * @since v1.6
+     */
+    private static boolean versionsDirectoryCleared;
+
+    /**
+     * A version of the ClassLoader of a game.
+     * @since v1.6
+     */
+    private static final class LoaderVersion {
+
+        /**
+         * The name of the game (lower case).
+         */
+        private final String name;
+        /**
+         * The version number.
+         */
+        private final int version;
+        /**
+         * The ClassLoader.
+         */
+        private final URLClassLoader loader;
+        /**
+         * The folder with the copies of the jars.
+         */
+        private final File directory;
+        /**
+         * Number of games which use this version. Guarded by the version.
+         */
+        private int games;
+        /**
+         * Indicates whether a newer version exists (the version is released
+         * with its last game). Guarded by the version.
+         */
+        private boolean retired;
+
+        /**
+         * Creates a version.
+         *
+         * @param name The name of the game (lower case).
+         * @param version The version number.
+         * @param loader The ClassLoader.
+         * @param directory The folder with the copies of the jars.
+         */
+        private LoaderVersion(String name, int version, URLClassLoader loader, File directory) {
+            this.name = name;
+            this.version = version;
+            this.loader = loader;
+            this.directory = directory;
+        }
+    }
+
+    /**
+     * Gets the current ClassLoader of a game in order to create a new game.
+     * The version of the ClassLoader is kept until the game is released with
+     * {@link GameLoader#releaseClassLoader}.
      *
      * @param name The name/key to load a game's classes.
      * @return The URLClassLoader containing all classes of the given game.
+     * @since v1.6
+     */
+    public static URLClassLoader acquireClassLoader(String name) {
+        while (true) {
+            LoaderVersion version = getCurrentVersion(name);
+            synchronized (version) {
+                if (version.retired == false) {
+                    version.games++;
+                    return version.loader;
+                }
+            }
+            // Retired in the meantime, use the next version
+        }
+    }
+
+    /**
+     * Releases the ClassLoader of a terminated (or discarded) game. If the
+     * ClassLoader is an old version and this was its last game, the version is
+     * disposed.
+     *
+     * @param loader The ClassLoader of the game, see
+     * {@link GameLoader#getClassLoaderOfGame}.
+     * @since v1.6
+     */
+    public static void releaseClassLoader(ClassLoader loader) {
+        LoaderVersion version = allVersions.get(loader);
+        if (version == null) {
+            return;                         // Not a game ClassLoader
+        }
+        boolean disposed;
+        synchronized (version) {
+            version.games--;
+            disposed = version.games <= 0 && version.retired == true;
+        }
+        if (disposed == true && allVersions.remove(loader, version) == true) {
+            disposeVersion(version);
+        }
+    }
+
+    /**
+     * Gets the ClassLoader of a game, i.e. the version of the ClassLoader
+     * which loaded the game. The messages of the game must be loaded by this
+     * ClassLoader.
+     *
+     * @param game The game.
+     * @return The ClassLoader of the game.
+     * @since v1.6
+     */
+    public static ClassLoader getClassLoaderOfGame(Game game) {
+        return game.getClass().getClassLoader();
+    }
+
+    /**
+     * Gets the current version of the ClassLoader of a game. If there is no
+     * ClassLoader yet, a new version is created: The jars are copied without
+     * holding a lock, the version is published with putIfAbsent. If another
+     * thread published a version first or versions were retired meanwhile,
+     * the created version is discarded.
+     *
+     * @param name The name/key to load a game's classes.
+     * @return The current version.
+     * @since v1.6
      */
-    public static URLClassLoader getClassLoaderByName(String name) {
+    private static LoaderVersion getCurrentVersion(String name) {
         // The mechanism is not case sensitive
         name = name.toLowerCase();
 
-        // Get the class loader, if there is no ClassLoader yet, create a new one.
-        if (allClassLoaders.containsKey(name)) {
-            return allClassLoaders.get(name);
-        } else {
-            URLClassLoader newClassLoader = createClassLoaderByName(name);
-            allClassLoaders.put(name, newClassLoader);
-            return newClassLoader;
+        while (true) {
+            LoaderVersion version = allClassLoaders.get(name);
+            if (version != null) {
+                return version;
+            }
+            int retirementsBefore = retirements;
+            // Get the class loader, if there is no ClassLoader yet, create a new one.
+            int number = lastVersion.incrementAndGet();
+            File directory = new File(getVersionsDirectory(), name + "-" + number);
+            URLClassLoader newClassLoader = createClassLoaderByName(name, directory);
+            LoaderVersion created = new LoaderVersion(name, number, newClassLoader, directory);
+            synchronized (loaderLock) {
+                if (retirements == retirementsBefore) {
+                    version = allClassLoaders.putIfAbsent(name, created);
+                    if (version == null) {
+                        allVersions.put(newClassLoader, created);
+                        LogRouter.log(GameLoader.class.getName(), LoggingLevel.system, "Loaded version {0} of the game {1}.", new Object[]{number, name});
+                        return created;
+                    }
+                }
+            }
+            // Not published, the jars may be outdated or another version is used
+            discardVersion(created);
+        }
+    }
 
+    /**
+     * Discards a created version which was never published (see
+     * {@link GameLoader#getCurrentVersion}). No classes of the ClassLoader
+     * were used, so no caches must be invalidated.
+     *
+     * @param version The version.
+     * @since v1.6
+     */
+    private static void discardVersion(LoaderVersion version) {
+        try {
+            version.loader.close();
+        } catch (IOException ex) {
+            LogRouter.log(GameLoader.class.getName(), LoggingLevel.waring, "Could not close the ClassLoader.", ex);
         }
+        deleteDirectory(version.directory);
+    }
+
+    /**
+     * Releases a version of a ClassLoader which is not used anymore. The
+     * cached contexts and classes are invalidated, the ClassLoader is closed
+     * and the copies of the jars are deleted.
+     *
+     * @param version The version (already removed from the versions).
+     * @since v1.6
+     */
+    private static void disposeVersion(LoaderVersion version) {
+        // The cached JAXB contexts, message classes and binary models still reference the old classes
+        XMLHelper.invalidateContexts(version.loader);
+        MessageDecoder.invalidateClasses(version.loader);
+        BinaryCodec.invalidateClasses(version.loader);
+        try {
+            version.loader.close();
+        } catch (IOException ex) {
+            LogRouter.log(GameLoader.class.getName(), LoggingLevel.waring, "Could not close the ClassLoader.", ex);
+        }
+        deleteDirectory(version.directory);
+        LogRouter.log(GameLoader.class.getName(), LoggingLevel.system, "Released version {0} of the game {1}.", new Object[]{version.version, version.name});
+    }
+
+    /**
+     * Gets the folder of the copied jars of all versions. The folder is
+     * emptied when it is used for the first time (versions of a previous run).
+     *
+     * @return The folder.
+     * @since v1.6
+     */
+    private static synchronized File getVersionsDirectory() {
+        File directory = new File(ServerConfiguration.getInstance().getGamelibsDirectory(), ".versions");
+        if (versionsDirectoryCleared == false) {
+            deleteDirectory(directory);
+            versionsDirectoryCleared = true;
+        }
+        return directory;
+    }
+
+    /**
+     * Deletes a folder with its content.
+     *
+     * @param directory The folder.
+     * @since v1.6
+     */
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory() == true) {
+                    deleteDirectory(file);
+                } else if (file.delete() == false) {
+                    LogRouter.log(GameLoader.class.getName(), LoggingLevel.waring, "Could not delete the file '" + file.getPath() + "'");
+                }
+            }
+        }
+        directory.delete();
     }
 
     /**
      * Returns a list of all Games in the GameLibs directory
+     * (see {@link GamePluginRegistry}, since v1.8)
      * @return Arraylist with game names
      * @since v1.1
      */
     public static ArrayList<String> getInstalledGames()
     {
         ArrayList<String> games = new ArrayList<>();
-        String gamelibsDirectory = ServerConfiguration.getInstance().getGamelibsDirectory();
-        if (GameLoader.checkFolderExists(gamelibsDirectory, true) == false)
+        for (GamePluginRegistry.GamePlugin plugin : GamePluginRegistry.getInstance().getInstalledGames())
         {
-            //LOG//Logger.getLogger(GameLoader.class.getName()).log(Level.SEVERE, "The gamelibs folder could not be created. Check the server installation!");
-            LogRouter.log(GameLoader.class.getName(), LoggingLevel.severe, "The gamelibs folder could not be created. Check the server installation!");
+            games.add(plugin.getGameJar().getName().substring(0, plugin.getGameJar().getName().length() - 4));
         }
-        File dir = new File(gamelibsDirectory);
-        File[] files = dir.listFiles();
-        int pos;
-        String name, ext;
-        for (int i = 0; i < files.length; i++)
-        {
-            if (files[i].isFile() == true)
-            {
-                name = files[i].getName();
-                pos = name.lastIndexOf(".");
-                if (pos > 0)
-                {
-                    ext = name.substring(pos);
-                    name = name.substring(0,pos);
-                    if (ext.toLowerCase().equals(".jar")) // Only Jars
-                    {
-                        if (name.toLowerCase().endsWith("server") || name.toLowerCase().endsWith("commons") || name.toLowerCase().endsWith("sources") || name.toLowerCase().endsWith("client"))
-                        {
-                            continue; // Skip other libraries (only __GAME__.jar will be listed)
-                        }
-                        games.add(name);
-                    }
-                }
-            }
+        return games;
+    }
 
+    /**
+     * Gets a description of an installed game with the metadata of its jar
+     * (name, version and minimum number of players, if defined).
+     * @param name The name of the game.
+     * @return The description or the name, if the game is not installed.
+     * @since v1.8
+     */
+    public static String getGameDescription(String name)
+    {
+        GamePluginRegistry.GamePlugin plugin = GamePluginRegistry.getInstance().getPlugin(name);
+        if (plugin == null)
+        {
+            return name;
         }
-        return games;
+        return plugin.toString();
     }
-    
+
     /**
-     * Creastes a new ClassLoader using the game's name as a key.
+     * Creastes a new ClassLoader using the game's name as a key. The jars of
+     * the game are copied into the folder of the version (since v1.6), so the
+     * original jars can be replaced while the ClassLoader is used.
      *
      * @param name The name/key to load a game's classes.
+     * @param versionDirectory The folder of the copied jars of this version.
      * @return A new URLClassLoader containing a reference to all of the game's
      * classes.
      */
-    private static URLClassLoader createClassLoaderByName(String name) {
+    private static URLClassLoader createClassLoaderByName(String name, File versionDirectory) {
         URLClassLoader newClassLoader;
 
-        // Load all jars in the gamelibs folder.
-        // File jarFolder = new File("gamelibs"); // DEPRECATED
-        String gamelibsDirectory = ServerConfiguration.getInstance().getGamelibsDirectory();
-        if (GameLoader.checkFolderExists(gamelibsDirectory, true) == false)
-        {
-            //LOG//Logger.getLogger(GameLoader.class.getName()).log(Level.SEVERE, "The gamelibs folder could not be created. Check the server installation!");
-            LogRouter.log(GameLoader.class.getName(), LoggingLevel.severe, "The gamelibs folder could not be created. Check the server installation!");
-        }
-        
-        File jarFolder = new File(gamelibsDirectory);
-        File[] files = jarFolder.listFiles();
+        // The jars of the game are registered in the plugin registry (since v1.8)
+        GamePluginRegistry.GamePlugin plugin = GamePluginRegistry.getInstance().getPlugin(name);
 
         URL gameJarURL = null;
         URL commonsJarURL = null;
@@ -138,31 +381,33 @@ public class GameLoader extends URLClassLoader {
 
 
         /*
-         * Go through all files. Then grab those files that end on "Server"
-         * or are identical with the provided game's name. This prevents the
-         * common mistake that a game logic module's name does not end on Server,
-         * e.g. instead of "TicTacToeServer" the name of the module is just 
-         * "TicTacToe". Then add these files to a collection. Also load the 
-         * AIGS Commons into every collection as the modules can make use of
-         * the commons too.
+         * The registry grabs the jar that ends on "Server" or is identical with
+         * the provided game's name. This prevents the common mistake that a
+         * game logic module's name does not end on Server, e.g. instead of
+         * "TicTacToeServer" the name of the module is just "TicTacToe". Also
+         * load the AIGS Commons into every collection as the modules can make
+         * use of the commons too.
          */
         try {
-            for (File file : files) {
-                String fileNameLC = file.getName().toLowerCase();
-                if (fileNameLC.equals(name + "server.jar") || fileNameLC.equals(name + ".jar"))
-                {
-                    //gameJarURL = new URL("file:gamelibs/" + file.getName()); // DEPRECATED
-                    gameJarURL = new URL("file:" + gamelibsDirectory + "/" + file.getName());
-                } else if (fileNameLC.equals(name + "commons.jar"))
+            versionDirectory.mkdirs();
+            if (plugin == null)
+            {
+                LogRouter.log(GameLoader.class.getName(), LoggingLevel.severe, "There is no jar of the game " + name);
+            }
+            else
+            {
+                gameJarURL = copyJar(plugin.getGameJar(), versionDirectory);
+                if (plugin.getCommonsJar() != null)
                 {
-                    //commonsJarURL = new URL("file:gamelibs/" + file.getName()); // DEPRECATED
-                    commonsJarURL = new URL("file:" + gamelibsDirectory + "/" + file.getName());
+                    commonsJarURL = copyJar(plugin.getCommonsJar(), versionDirectory);
                 }
             }
             aigsCommonsURL = new URL("file:lib/AIGS_Commons.jar");
         } catch (MalformedURLException ex) {
             //LOG//Logger.getLogger(GameLoader.class.getName()).log(Level.SEVERE, "Could not load jar.", ex);
             LogRouter.log(GameLoader.class.getName(), LoggingLevel.severe, "Could not load jar.", ex);
+        } catch (IOException ex) {
+            LogRouter.log(GameLoader.class.getName(), LoggingLevel.severe, "Could not copy jar.", ex);
         }
         catch (Exception ex) // All other exceptions
         {
@@ -212,12 +457,38 @@ public class GameLoader extends URLClassLoader {
     }
 
     /**
-     * Rebuilds all game jars using the ant build.xml. Also see:
+     * Copies a jar into the folder of a ClassLoader version.
+     *
+     * @param jar The jar in the gamelibs folder.
+     * @param versionDirectory The folder of the version.
+     * @return The URL of the copy.
+     * @throws IOException Thrown if the jar could not be copied.
+     * @since v1.6
+     */
+    private static URL copyJar(File jar, File versionDirectory) throws IOException {
+        File copy = new File(versionDirectory, jar.getName());
+        Files.copy(jar.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return copy.toURI().toURL();
+    }
+
+    /**
+     * Rebuilds the game jars. If a Java compiler is available, only the
+     * changed games are compiled in-process (see {@link GameCompiler}),
+     * otherwise all game jars are rebuilt using the ant build.xml. Also see:
      * http://stackoverflow.com/questions/6733684/run-ant-from-java Basically
-     * run the target "rebuildGames" from the build.xml-File.
+     * run the target "rebuildGames" from the build.xml-File.<br>
+     * The current ClassLoaders of the rebuilt games are retired by the
+     * {@link GamePluginRegistry} when it detects the changed jars: New games
+     * are loaded by a new version, the running and waiting games keep their
+     * version until they are terminated.
      * @return Returns true if compilation was successful, otherwise false 
      */
     public static boolean rebuildClasses() {
+        if (GameCompiler.isAvailable() == true) {
+            GameCompiler.Result result = GameCompiler.compileChangedGames();
+            GamePluginRegistry.getInstance().refresh();     // Retires the changed games without waiting for the watcher
+            return result.isSuccessful();
+        }
         boolean state = true;
         File buildFile = new File("build.xml");
         Project p = new Project();
@@ -234,10 +505,44 @@ public class GameLoader extends URLClassLoader {
             LogRouter.log(GameLoader.class.getName(), LoggingLevel.severe, "Could not load jar.", ex);
             state = false;
         }
-        allClassLoaders.clear();
+        GamePluginRegistry.getInstance().refresh();
         return state;
     }
 
+    /**
+     * Retires the current ClassLoaders of rebuilt games. The next game is
+     * loaded by a new version. Retired versions without games are disposed
+     * immediately, the others with their last game.
+     *
+     * @param gameNames The names of the rebuilt games (lower case).
+     * @since v1.7
+     */
+    static void retireVersions(List<String> gameNames) {
+        ArrayList<LoaderVersion> retired = new ArrayList<>();
+        synchronized (loaderLock) {
+            retirements++;                  // Versions created meanwhile are not published
+            Iterator<LoaderVersion> versions = allClassLoaders.values().iterator();
+            while (versions.hasNext() == true) {
+                LoaderVersion version = versions.next();
+                if (gameNames.contains(version.name) == true) {
+                    versions.remove();
+                    retired.add(version);
+                }
+            }
+        }
+        for (LoaderVersion version : retired) {
+            boolean disposed;
+            synchronized (version) {
+                version.retired = true;
+                disposed = version.games <= 0;
+            }
+            // Versions with games are disposed with their last game
+            if (disposed == true && allVersions.remove(version.loader, version) == true) {
+                disposeVersion(version);
+            }
+        }
+    }
+
     /**
      * Not sure about the need of this method (v1.1)
      * @deprecated 
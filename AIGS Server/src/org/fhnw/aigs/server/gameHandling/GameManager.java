@@ -5,6 +5,8 @@ import org.fhnw.aigs.commons.GameMode;
 import java.lang.reflect.*;
 import java.net.URLClassLoader;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 import org.fhnw.aigs.commons.*;
 import org.fhnw.aigs.commons.communication.*;
 import org.fhnw.aigs.server.common.LogRouter;
@@ -18,219 +20,219 @@ import org.fhnw.aigs.server.gui.ServerGUI;
  * v1.0 Initial release<br>
  * v1.1 Features added<br>
  * v1.2 Major changes in handlung and additional features<br>
- * v1.3 Changing of logging
+ * v1.3 Changing of logging<br>
+ * v1.4 Lock instead of synchronized join (usable with virtual threads),
+ * executors of terminated games are released (see {@link GameExecutor})<br>
+ * v1.5 Messages to all players on the server are only marshalled once<br>
+ * v1.6 Games are indexed in a {@link LobbyRegistry} instead of lists<br>
+ * v1.7 Matchmaking per game type, games are loaded and initialized outside
+ * of the join locks<br>
+ * v1.8 Users are released by reference-counted sessions instead of scanning
+ * all games (see {@link User#releaseSession()})<br>
+ * v1.9 Games keep the version of their ClassLoader until they are terminated
+ * (see {@link GameLoader#acquireClassLoader})
  *
  * @author Matthias Stöckli
- * @version v1.3 (Raphael Stoeckli, 24.02.2015)
+ * @version v1.9
  */
 public class GameManager {
 
     /**
-     * This list contains all running games.
+     * The registry of all waiting and running games.
+     * @since v1.6
      */
-    public static volatile ArrayList<Game> runningGames = new ArrayList<>();
+    private static final LobbyRegistry lobby = new LobbyRegistry();
     /**
-     * This list contains all games in which a player still waits for other
-     * players.
+     * Number of join locks (see {@link GameManager#joinLocks}).
+     * @since v1.7
      */
-    public static volatile ArrayList<Game> waitingGames = new ArrayList<>();
+    private static final int JOIN_LOCK_STRIPES = 32;
     /**
-     * This list contains a reference to all players on the server.
+     * Locks which serialize the matchmaking of the game types. The lock of a
+     * game type is selected by the hash code of the game name, so joins of
+     * different game types are independent of each other (e.g. a burst of
+     * TicTacToe joins does not block Minesweeper games). The locks are only
+     * held while players are added to the waiting games of the
+     * {@link LobbyRegistry} and while a game is removed from it (terminated),
+     * so no player joins a terminated game. Games are loaded, initialized and messages are
+     * sent without holding a lock. Locks are used instead of monitors, because
+     * a monitor pins virtual threads.
+     * @since v1.7
      */
-    public static volatile ArrayList<Player> allPlayers = new ArrayList<>();
+    private static final ReentrantLock[] joinLocks = new ReentrantLock[JOIN_LOCK_STRIPES];
+
+    static {
+        for (int i = 0; i < JOIN_LOCK_STRIPES; i++) {
+            joinLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Result of the matchmaking of a join request.
+     * @since v1.7
+     */
+    private static final class JoinResult {
+
+        /**
+         * The joined game or null if the join failed.
+         */
+        private final Game game;
+        /**
+         * True if the player has created the game.
+         */
+        private final boolean created;
+        /**
+         * True if the game has enough participants and has to be initialized
+         * by the joining thread.
+         */
+        private final boolean started;
+        /**
+         * The message to the player if the join failed.
+         */
+        private final String message;
+
+        /**
+         * Creates a result.
+         *
+         * @param game The joined game or null if the join failed.
+         * @param created True if the player has created the game.
+         * @param started True if the game has to be initialized.
+         * @param message The message to the player if the join failed.
+         */
+        private JoinResult(Game game, boolean created, boolean started, String message) {
+            this.game = game;
+            this.created = created;
+            this.started = started;
+            this.message = message;
+        }
+
+        /**
+         * Creates the result of a failed join.
+         *
+         * @param message The message to the player.
+         * @return The result.
+         */
+        private static JoinResult failed(String message) {
+            return new JoinResult(null, false, false, message);
+        }
+    }
 
     /**
      * This method initializes a game. As soon as a client sends a JoinMessage,
      * it is passed to the game manager. The manager will check whether there
      * are already games of the same type which could be joined. If that is not
      * the case, it starts a new party. If the game is a single player game, the
-     * game will also be started immediately.
+     * game will also be started immediately.<br>
+     * Only the matchmaking of the game type is serialized (see
+     * {@link GameManager#joinLocks}), the method can be called by several
+     * broker threads concurrently. The game is initialized by its
+     * {@link GameExecutor}, after the messages of the players which were
+     * queued before.
      *
      * @param joinMessage The JoinMessage sent by the player.
      * @param player A reference to the player who sent the JoinMessage.
      * @param partyName If desired, the player can join a named party.
      * @return The newly created game.
      */
-    public static synchronized Game joinGame(JoinMessage joinMessage, Player player, String partyName) {
-        Game joinedGame;
-        String gameName = joinMessage.getGameName();
+    public static Game joinGame(JoinMessage joinMessage, final Player player, String partyName) {
+        final String gameName = joinMessage.getGameName();
         GameMode gameMode = joinMessage.getGameMode();
-        JoinType joinType = joinMessage.getJoinType();
-        String message = "";
-        boolean gameCreated = false;
+        final JoinType joinType = joinMessage.getJoinType();
+        JoinResult result;
         
         if ((joinType == JoinType.CreateNewGame || joinType == JoinType.CreateNewPrivateGame) && gameMode != GameMode.SinglePlayer) // New (Multiplayer)
         {
-            Game existing = checkIfPartyAlreadyExists(gameName, partyName);
-            if (existing != null) // Game already exists
-            {
-                //LOG//Logger.getLogger(GameManager.class.getName()).log(Level.WARNING, "Can not create the party '{0}' of the type {1}, because this party already exists.", new Object[]{partyName, gameName});
-                LogRouter.log(GameManager.class.getName(), LoggingLevel.waring, "Can not create the party '{0}' of the type {1}, because this party already exists.", new Object[]{partyName, gameName});
-                JoinResponseMessage response = new JoinResponseMessage(joinType, gameMode, false, false, "The party '" + partyName + "' could not be created, because this party name already exists");
-                response.send(player.getSocket(), player);    
-               
-                return null; // Send Message to user: Game with this name can not be creted because it already exists
-            }
-            else
-            {
-                    joinedGame = createNewGame(gameName, gameMode, partyName, player);
-                    if (joinedGame != null)
-                    {
-                        if (joinType == JoinType.CreateNewPrivateGame)
-                        {
-                            joinedGame.setPrivateGame(true);
-                        }
-                        else
-                        {
-                            joinedGame.setPrivateGame(false);
-                        }
-                        joinedGame.addPlayer(player);
-                        //LOG//Logger.getLogger(GameManager.class.getName()).log(Level.INFO, "{0} created and joined a new {1} party with the name '{2}'!", new Object[]{player.toString(), gameName, partyName});
-                        LogRouter.log(GameManager.class.getName(), LoggingLevel.game, "{0} created and joined a new {1} party with the name '{2}'!", new Object[]{player.toString(), gameName, partyName});
-                        gameCreated = true;
-                    }
-            }
+            result = createParty(gameName, gameMode, partyName, joinType == JoinType.CreateNewPrivateGame, player);
         }
         else if (joinType == JoinType.JoinParticularGame && gameMode != GameMode.SinglePlayer) // Existing (Multiplayer) --> Private game
         {
-            Game existing = checkIfPartyAlreadyExists(gameName, partyName);
-            if (existing == null) // Game does not exist
-            {
-                boolean isRunning = checkIfPartyIsRunning(gameName, partyName);
-                JoinResponseMessage response = null;
-                if (isRunning == true)
-                {
-                    //LOG//Logger.getLogger(GameManager.class.getName()).log(Level.WARNING, "Can not join the party '{0}' of the type {1}, because this party has already started.", new Object[]{partyName, gameName});
-                    LogRouter.log(GameManager.class.getName(), LoggingLevel.waring, "Can not join the party '{0}' of the type {1}, because this party has already started.", new Object[]{partyName, gameName});
-                    response = new JoinResponseMessage(joinType, gameMode,false, false, "The party '" + partyName + "' could not be joined, because it has already started");     
-                }
-                else
-                {
-                    //LOG//Logger.getLogger(GameManager.class.getName()).log(Level.WARNING, "Can not join the party '{0}' of the type {1}, because this party does not exist.", new Object[]{partyName, gameName});
-                    LogRouter.log(GameManager.class.getName(), LoggingLevel.waring, "Can not join the party '{0}' of the type {1}, because this party does not exist.", new Object[]{partyName, gameName});
-                    response = new JoinResponseMessage(joinType, gameMode,false, false, "The party '" + partyName + "' could not be joined, because this party name does not exist");                
-                }
-                response.send(player.getSocket(), player);             
-                return null; // Send Message to user: No game with this name exists
-            }
-            else
-            {
-                joinedGame = joinParty(gameName, gameMode, player, partyName, false);
-                if (joinedGame != null)
-                {
-                    //LOG//Logger.getLogger(GameManager.class.getName()).log(Level.INFO, "{0} joined the existing {1} party with the name '{2}'!", new Object[]{player.toString(), gameName, partyName});
-                    LogRouter.log(GameManager.class.getName(), LoggingLevel.game, "{0} joined the existing {1} party with the name '{2}'!", new Object[]{player.toString(), gameName, partyName});
-                }
-                else
-                {
-                     message = "Could not join the party";
-                }
-            }            
+            result = joinParty(gameName, player, partyName);
         }
         else // Join or create (public game) + Singleplayer
         {
-            if (gameMode == GameMode.SinglePlayer || checkIfPartyIsWaiting(gameName, true) == false) 
-            {
-                partyName = getRandomPartyName(gameName, partyName);            // Update party name
-                joinedGame = createNewGame(gameName, gameMode, partyName, player);
-                if (joinedGame != null)
-                {
-                    joinedGame.addPlayer(player);
-                    if (gameMode == GameMode.SinglePlayer)
-                    {
-                        User aiDummy = new User(gameName + "-AI", "");          // Create a AI dummy for visual purpose
-                        aiDummy.setAI(true);
-                        User.addUserToUserList(aiDummy);                        // Add dummy AI user to User list
-                        joinedGame.setPrivateGame(true);                        // Single player is always private
-                    }
-                    else
-                    {
-                        joinedGame.setPrivateGame(false);                       // Create a public game
-                    }
-                    //LOG//Logger.getLogger(GameManager.class.getName()).log(Level.INFO, "{0} created and joined a new {1} party with the name '{2}'!", new Object[]{player.toString(), gameName, partyName});
-                    LogRouter.log(GameManager.class.getName(), LoggingLevel.game, "{0} created and joined a new {1} party with the name '{2}'!", new Object[]{player.toString(), gameName, partyName});
-                    gameCreated = true;
-                }
-                else
-                {
-                     message = "Could not create the party";
-                     gameCreated = false;
-                }
-            }
-            else // Multiplayer or waiting games (public)
-            {              
-                joinedGame = joinRandomGame(gameName, gameMode, player);
-                if (joinedGame != null)
-                {
-                    //LOG//Logger.getLogger(GameManager.class.getName()).log(Level.INFO, "{0} joined a random party in multiplayer {1}", new Object[]{player.getName(), gameName});
-                    LogRouter.log(GameManager.class.getName(), LoggingLevel.game, "{0} joined a random party in multiplayer {1}", new Object[]{player.getName(), gameName});
-                }
-                else
-                {
-                     message = "Could not join a random party";
-                }
-                gameCreated = false;
-            }
+            result = joinOrCreatePublicGame(gameName, gameMode, partyName, player);
         }
         
-        if (joinedGame == null)
+        final Game joinedGame = result.game;
+        final GameExecutor executor = joinedGame == null ? null : GameExecutor.getExecutor(joinedGame);
+        if (joinedGame != null && executor == null)
+        {
+            result = JoinResult.failed("The game was terminated.");        // Terminated in the meantime
+        }
+        if (executor == null)
         {
-            JoinResponseMessage response = new JoinResponseMessage(joinType, gameMode,false, false, message);                
+            JoinResponseMessage response = new JoinResponseMessage(joinType, gameMode,false, false, result.message);                
             response.send(player.getSocket(), player);             
             return null;
         }
-        // Check if the game has enough participants, if so, remove it from the
-        // waiting games list and add it to the running games list.
-        if (joinedGame.hasEnoughParticipants()) {
-            waitingGames.remove(joinedGame);
-            runningGames.add(joinedGame);
-
+        // Start the game if it has enough participants. It was already marked
+        // as running by the matchmaking and is only started once (by its executor).
+        if (result.started == true) {
             if(ServerConfiguration.getInstance().getIsConsoleMode() == false){
                 // Add the game to the GUI
                 ServerGUI.getInstance().addGameToList(joinedGame,false);
                 ServerGUI.getInstance().removeGameFromList(joinedGame, true);
             }
-            // If there is an exception in the initialization process, report it
-            try {
-                joinedGame.initialize();
-            } catch (Exception ex) {
-                //LOG//Logger.getLogger(GameManager.class.getName()).log(Level.SEVERE, "Could not initialize game.", ex);
-                LogRouter.log(GameManager.class.getName(), LoggingLevel.severe, "Could not initialize game.", ex);
-                ExceptionMessage exceptionMessage = new ExceptionMessage(ex);
-                exceptionMessage.send(player.getSocket(), player);
-            }
-            //LOG//Logger.getLogger(GameManager.class.getName()).log(Level.INFO, "Initialized {0} (ID {1})", new Object[]{gameName, joinedGame.getId()});
-            LogRouter.log(GameManager.class.getName(), LoggingLevel.info, "Initialized {0} (ID {1})", new Object[]{gameName, joinedGame.getId()});
+            final boolean created = result.created;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // If there is an exception in the initialization process, report it
+                    try {
+                        joinedGame.initialize();
+                    } catch (Exception ex) {
+                        //LOG//Logger.getLogger(GameManager.class.getName()).log(Level.SEVERE, "Could not initialize game.", ex);
+                        LogRouter.log(GameManager.class.getName(), LoggingLevel.severe, "Could not initialize game.", ex);
+                        ExceptionMessage exceptionMessage = new ExceptionMessage(ex);
+                        exceptionMessage.send(player.getSocket(), player);
+                    }
+                    //LOG//Logger.getLogger(GameManager.class.getName()).log(Level.INFO, "Initialized {0} (ID {1})", new Object[]{gameName, joinedGame.getId()});
+                    LogRouter.log(GameManager.class.getName(), LoggingLevel.info, "Initialized {0} (ID {1})", new Object[]{gameName, joinedGame.getId()});
+                    JoinResponseMessage response = new JoinResponseMessage(joinType, true, created);
+                    response.send(player.getSocket(), player);
+                }
+            });
+            return joinedGame;
         }
-        JoinResponseMessage response = new JoinResponseMessage(joinType, true, gameCreated);                
+        JoinResponseMessage response = new JoinResponseMessage(joinType, true, result.created);                
         response.send(player.getSocket(), player); 
         return joinedGame;
     }
 
     /**
-     * Joins the first public game in the list of waiting games with the same gameName.
+     * Creates a new (multiplayer) party with a defined party name.
      *
      * @param gameName The game's name.
      * @param gameMode The game mode.
-     * @param player The player who wants to join the game.
-     * @return The game to be joined.
+     * @param partyName The name of the party.
+     * @param privateGame If true, the party can only be joined by its name.
+     * @param player The player who creates the party.
+     * @return The result of the join.
+     * @since v1.7
      */
-    private static Game joinRandomGame(String gameName, GameMode gameMode, Player player)
+    private static JoinResult createParty(String gameName, GameMode gameMode, String partyName, boolean privateGame, Player player)
     {
-        for (int i = 0; i < waitingGames.size(); i++)
+        if (lobby.isPartyExisting(gameName, partyName) == false)
         {
-            Game waitingGame = waitingGames.get(i);
-            if (waitingGame.isPrivateGame() == true) // Skip all private games
+            Game newGame = loadGameFromJar(gameName, player);               // Reflection outside of any lock
+            if (newGame == null)
             {
-                continue;
+                return JoinResult.failed("Could not create the party");
             }
-            // Check for running games of specified type and join it, if it matches
-            if (waitingGame.getGameName().equals(gameName)) {
-                waitingGame.addPlayer(player);
-                return waitingGame;
+            newGame.setPrivateGame(privateGame);
+            JoinResult result = registerNewGame(newGame, gameMode, partyName, false, player);
+            if (result != null)
+            {
+                //LOG//Logger.getLogger(GameManager.class.getName()).log(Level.INFO, "{0} created and joined a new {1} party with the name '{2}'!", new Object[]{player.toString(), gameName, partyName});
+                LogRouter.log(GameManager.class.getName(), LoggingLevel.game, "{0} created and joined a new {1} party with the name '{2}'!", new Object[]{player.toString(), gameName, partyName});
+                return result;
             }
+            GameLoader.releaseClassLoader(GameLoader.getClassLoaderOfGame(newGame)); // Discarded game
         }
-        return null;                    // This should never happen.
+        // Game already exists (waiting or running)
+        //LOG//Logger.getLogger(GameManager.class.getName()).log(Level.WARNING, "Can not create the party '{0}' of the type {1}, because this party already exists.", new Object[]{partyName, gameName});
+        LogRouter.log(GameManager.class.getName(), LoggingLevel.waring, "Can not create the party '{0}' of the type {1}, because this party already exists.", new Object[]{partyName, gameName});
+        return JoinResult.failed("The party '" + partyName + "' could not be created, because this party name already exists");
     }
 
     /**
@@ -240,155 +242,239 @@ public class GameManager {
      * lobby-like environment.
      *
      * @param gameName The game's name.
-     * @param gameMode The game mode.
      * @param player The player who wants to join the party/game.
      * @param partyName The name of the party.
-     * @param createNew If true, a new game will be crated if the party with the defined party name was not found. Otherwise null will be returned
-     * @return The game to be joined or null if no game to join (see createNew) was found.
+     * @return The result of the join.
      */
-    private static Game joinParty(String gameName, GameMode gameMode, Player player, String partyName, boolean createNew) {
-        Game waitingGame = checkIfPartyAlreadyExists(gameName, partyName);       
-        if (waitingGame == null)
-        {
-            if (createNew == true)
-            {
-                return createNewGame(gameName, gameMode, partyName, player);
-            }
-            else
+    private static JoinResult joinParty(String gameName, Player player, String partyName) {
+        JoinResult result = null;
+        ReentrantLock lock = getJoinLock(gameName);
+        lock.lock();
+        try {
+            Game waitingGame = lobby.getWaitingParty(gameName, partyName);
+            if (waitingGame != null)
             {
-                return null;
+                result = new JoinResult(waitingGame, false, addPlayerLocked(waitingGame, player), null);
             }
+        } finally {
+            lock.unlock();
         }
-        else
+        if (result != null)
         {
-            waitingGame.addPlayer(player);
-            return waitingGame;
+            //LOG//Logger.getLogger(GameManager.class.getName()).log(Level.INFO, "{0} joined the existing {1} party with the name '{2}'!", new Object[]{player.toString(), gameName, partyName});
+            LogRouter.log(GameManager.class.getName(), LoggingLevel.game, "{0} joined the existing {1} party with the name '{2}'!", new Object[]{player.toString(), gameName, partyName});
+            return result;
         }
+        if (lobby.isPartyRunning(gameName, partyName) == true)
+        {
+            //LOG//Logger.getLogger(GameManager.class.getName()).log(Level.WARNING, "Can not join the party '{0}' of the type {1}, because this party has already started.", new Object[]{partyName, gameName});
+            LogRouter.log(GameManager.class.getName(), LoggingLevel.waring, "Can not join the party '{0}' of the type {1}, because this party has already started.", new Object[]{partyName, gameName});
+            return JoinResult.failed("The party '" + partyName + "' could not be joined, because it has already started");     
+        }
+        //LOG//Logger.getLogger(GameManager.class.getName()).log(Level.WARNING, "Can not join the party '{0}' of the type {1}, because this party does not exist.", new Object[]{partyName, gameName});
+        LogRouter.log(GameManager.class.getName(), LoggingLevel.waring, "Can not join the party '{0}' of the type {1}, because this party does not exist.", new Object[]{partyName, gameName});
+        return JoinResult.failed("The party '" + partyName + "' could not be joined, because this party name does not exist");                
     }
-    
-    
+
     /**
-     * Gets a free random game name
-     * @param gameName Name of the game (type)
-     * @param template Template to build the party name. A number will appended to the template
-     * @return A unique party name
+     * Joins the oldest open public game of the game type or creates a new
+     * public game if there is none. Single player games are always created
+     * (as private games).
+     *
+     * @param gameName The game's name.
+     * @param gameMode The game mode.
+     * @param partyName Template of the party name of a new game.
+     * @param player The player who wants to join the game.
+     * @return The result of the join.
+     * @since v1.7
      */
-    private static String getRandomPartyName(String gameName, String template)
+    private static JoinResult joinOrCreatePublicGame(String gameName, GameMode gameMode, String partyName, Player player)
     {
-        int counter = 1;
-        String name = template;
-        while(true)
+        if (gameMode != GameMode.SinglePlayer)
         {
-            if (checkIfPartyAlreadyExists(gameName, name)!= null) // waiting games
-            {
-                counter++;
-                name = template + "(" + Integer.toString(counter) + ")";
-                continue;
-            }
-            if (checkIfPartyIsRunning(gameName, name) == true) // running games
+            JoinResult result = joinRandomGame(gameName, player);
+            if (result != null)
             {
-                counter++;
-                name = template + "(" + Integer.toString(counter) + ")";
-                continue;
+                return result;
             }
-            break;
         }
-        return name;
+        Game newGame = loadGameFromJar(gameName, player);                   // Reflection outside of any lock
+        if (newGame == null)
+        {
+            return JoinResult.failed("Could not create the party");
+        }
+        if (gameMode == GameMode.SinglePlayer)
+        {
+            User.acquireAISession(getAIUserName(gameName));                // AI dummy for visual purpose
+            newGame.setPrivateGame(true);                                   // Single player is always private
+        }
+        else
+        {
+            newGame.setPrivateGame(false);                                  // Create a public game
+        }
+        JoinResult result = registerNewGame(newGame, gameMode, partyName, true, player);
+        if (result.created == true)
+        {
+            LogRouter.log(GameManager.class.getName(), LoggingLevel.game, "{0} created and joined a new {1} party with the name '{2}'!", new Object[]{player.toString(), gameName, newGame.getPartyName()});
+        }
+        else
+        {
+            GameLoader.releaseClassLoader(GameLoader.getClassLoaderOfGame(newGame)); // Discarded game
+            //LOG//Logger.getLogger(GameManager.class.getName()).log(Level.INFO, "{0} joined a random party in multiplayer {1}", new Object[]{player.getName(), gameName});
+            LogRouter.log(GameManager.class.getName(), LoggingLevel.game, "{0} joined a random party in multiplayer {1}", new Object[]{player.getName(), gameName});
+        }
+        return result;
     }
-    
+
     /**
-     * Method to check whether a party of the defined game type currently is waiting. This method is used to find random waiting games.
-     * @param gameName Name of the game (type)
-     * @param onlyPublicGames If true, only public parties will be considered, otherwise all games will be considered
-     * @return True, if at least one party is waiting, otherwise false
+     * Joins the oldest open public game with the same gameName.
+     *
+     * @param gameName The game's name.
+     * @param player The player who wants to join the game.
+     * @return The result of the join or null if there is no open public game.
      */
-    private static boolean checkIfPartyIsWaiting(String gameName, boolean onlyPublicGames)
+    private static JoinResult joinRandomGame(String gameName, Player player)
     {
-        if (waitingGames.isEmpty() == true) { return false; }
-        for (int i = 0; i < waitingGames.size(); i++) 
+        JoinResult result;
+        ReentrantLock lock = getJoinLock(gameName);
+        lock.lock();
+        try {
+            result = joinRandomGameLocked(gameName, player);
+        } finally {
+            lock.unlock();
+        }
+        if (result != null)
         {
-            if (onlyPublicGames == true && waitingGames.get(i).isPrivateGame() == true)
-            {
-                continue;
-            }
-          if (waitingGames.get(i).getGameName().equals(gameName))
-          {
-              return true;
-          }
+            LogRouter.log(GameManager.class.getName(), LoggingLevel.game, "{0} joined a random party in multiplayer {1}", new Object[]{player.getName(), gameName});
         }
-        return false;
-    }    
-    
+        return result;
+    }
+
     /**
-     * Method to check whether a party of the defined game type and party name currently is running
-     * @param gameName Name of the game (type)
-     * @param partyName Name of the party to check
-     * @return True, if a party with the defined name and type is running, otherwise false
+     * Implementation of {@link GameManager#joinRandomGame}. Must only be called
+     * while holding the join lock of the game type.
+     *
+     * @param gameName The game's name.
+     * @param player The player who wants to join the game.
+     * @return The result of the join or null if there is no open public game.
+     * @since v1.7
      */
-    private static boolean checkIfPartyIsRunning(String gameName, String partyName)
+    private static JoinResult joinRandomGameLocked(String gameName, Player player)
     {
-        for (int i = 0; i < runningGames.size(); i++) 
+        Game waitingGame = lobby.getOpenPublicGame(gameName);
+        if (waitingGame == null)
         {
-          if (runningGames.get(i).getGameName().equals(gameName) && runningGames.get(i).getPartyName().equals(partyName) )
-          {
-              return true;
-          }
+            return null;
         }
-        return false;
+        return new JoinResult(waitingGame, false, addPlayerLocked(waitingGame, player), null);
     }
-    
+
     /**
-     * Method to check whether a party of the defined game type and name is waiting
-     * @param gameName Name of the game (type)
-     * @param partyName Name of the party to check
-     * @return The game object of the defined type and party name if existing (waiting), otherwise null
+     * Registers a newly created game as waiting game and adds the creating
+     * player. Public games are offered to the players who join randomly.
+     *
+     * @param newGame The newly created game.
+     * @param gameMode The game mode.
+     * @param partyName The name of the party.
+     * @param randomPartyName If true, the party name is only a template and
+     * a free party name is chosen. In this case, the player joins an open
+     * public game of the same type instead, if one was opened by another player
+     * in the meantime (the new game is discarded).
+     * @param player The player who creates the game.
+     * @return The result of the join or null if the party name is already used.
+     * @since v1.7
      */
-    private static Game checkIfPartyAlreadyExists(String gameName, String partyName)
+    private static JoinResult registerNewGame(Game newGame, GameMode gameMode, String partyName, boolean randomPartyName, Player player)
     {
-        Game waitingGame;
-          for (int i = 0; i < waitingGames.size(); i++) 
-          {
-            waitingGame = waitingGames.get(i);
-
-            // Check for running games of specified type and party name and
-            // join it, if it matches.
-            if (waitingGame.getGameName().equals(gameName) && waitingGame.getPartyName().equals(partyName)) 
+        newGame.setGameMode(gameMode);
+        ReentrantLock lock = getJoinLock(newGame.getGameName());
+        lock.lock();
+        try {
+            if (randomPartyName == true)
             {
-                return waitingGame;
+                if (newGame.isPrivateGame() == false)
+                {
+                    JoinResult result = joinRandomGameLocked(newGame.getGameName(), player);
+                    if (result != null)
+                    {
+                        return result;
+                    }
+                }
+                partyName = getRandomPartyName(newGame.getGameName(), partyName);      // Update party name
+            }
+            newGame.setPartyName(partyName);
+            if (lobby.addWaitingGame(newGame) == false)
+            {
+                return null;
+            }
+            if(ServerConfiguration.getInstance().getIsConsoleMode() == false){
+                // Add the game to the GUI
+                ServerGUI.getInstance().addGameToList(newGame,true);
             }
-           } 
-          return null;
+            boolean started = addPlayerLocked(newGame, player);
+            lobby.openPublicGame(newGame);
+            return new JoinResult(newGame, true, started, null);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * Creates a new game based on the game's name, game mode and a party name
-     * and adds it to the waiting games list.
+     * Adds a player to a waiting game. If the game has enough participants
+     * afterwards, it is marked as running. Must only be called while holding
+     * the join lock of the game type.
      *
-     * @param gameName The game's name.
-     * @param gameMode The game mode.
-     * @param partyname The name of a party (can be null).
-     * @param player The player who creates the game.
-     * @return The newly creasted game.
+     * @param game The waiting game.
+     * @param player The player who joins the game.
+     * @return True if the game has enough participants and has to be started.
+     * @since v1.7
      */
-    private static Game createNewGame(String gameName, GameMode gameMode, String partyname, Player player) {
-        Game newGame = loadGameFromJar(gameName, player);
-        if (newGame == null) {
-            return null;
-        }          // <-- For exception handling purposes.
-        newGame.setGameMode(gameMode);
-        newGame.setPartyName(partyname);
-        waitingGames.add(newGame);
-        
-        if(ServerConfiguration.getInstance().getIsConsoleMode() == false){
-            // Add the game to the GUI
-            ServerGUI.getInstance().addGameToList(newGame,true);
-        }        
-        return newGame;
+    private static boolean addPlayerLocked(Game game, Player player)
+    {
+        game.addPlayer(player);
+        lobby.addPlayer(player, game);
+        User.acquireSessionByName(player.getLoginName());
+        return game.hasEnoughParticipants() == true && lobby.markRunning(game) == true;
+    }
+
+    /**
+     * Gets the join lock of a game type.
+     *
+     * @param gameName Name of the game (type)
+     * @return The lock.
+     * @since v1.7
+     */
+    private static ReentrantLock getJoinLock(String gameName)
+    {
+        int hash = gameName == null ? 0 : gameName.hashCode();
+        hash ^= (hash >>> 16);
+        return joinLocks[(hash & 0x7fffffff) % JOIN_LOCK_STRIPES];
+    }
+    
+    /**
+     * Gets a free random game name. Must only be called while holding the
+     * join lock of the game type.
+     * @param gameName Name of the game (type)
+     * @param template Template to build the party name. A number will appended to the template
+     * @return A unique party name
+     */
+    private static String getRandomPartyName(String gameName, String template)
+    {
+        int counter = 1;
+        String name = template;
+        while (lobby.isPartyExisting(gameName, name) == true) // waiting or running games
+        {
+            counter++;
+            name = template + "(" + Integer.toString(counter) + ")";
+        }
+        return name;
     }
 
     /**
      * Loads a game from a jar file. This method is being called if a new game
      * is created. The method will use an URLClassLoader to load the class.
+     * The version of the ClassLoader is acquired by the game and must be
+     * released if the game is discarded or terminated (since v1.9).
      *
      * @param gameName The game's name.
      * @param player The player who creates the game.
@@ -401,9 +487,9 @@ public class GameManager {
         // Get the class loader of the game (if there is any) and load the class
         // "GameLogic". If there is no classloader yet, the GameLoader will create
         // a new one.
+        URLClassLoader loader = GameLoader.acquireClassLoader(gameName);
         try {
             // Load the GameLogic class.
-            URLClassLoader loader = GameLoader.getClassLoaderByName(gameName);
             Class<Game> gameClazz;
             gameClazz = (Class<Game>) Class.forName("org.fhnw.aigs." + gameName + ".server.GameLogic", true, loader); // Changed package order v1.1
 
@@ -436,6 +522,9 @@ public class GameManager {
             forceCloseMessage.send(player.getSocket(), player);
         }
 
+        if (loadedGame == null) {
+            GameLoader.releaseClassLoader(loader);
+        }
         return loadedGame;
     }
 
@@ -450,43 +539,64 @@ public class GameManager {
      * responsible for the end of a game.
      * @param reason The reason why the game has to be terminated.
      */
-    public static void terminateGame(Game game, Player terminatingPlayer, String reason) {
+    public static void terminateGame(final Game game, final Player terminatingPlayer, final String reason) {
         if (game != null) {
-            if (runningGames.contains(game)) {
-                runningGames.remove(game);
-
-                // Log off all users.
-                for (int i = 0; i < game.getPlayers().size(); i++) {
-                    Player player = game.getPlayers().get(i);
-                    User.logOffUserByName(player.getName());
-                }
-
+            final ArrayList<Player> players;
+            final Boolean wasRunning;
+            // No player can join while the game is removed
+            ReentrantLock lock = getJoinLock(game.getGameName());
+            lock.lock();
+            try {
+                players = new ArrayList<>(game.getPlayers());
+                wasRunning = lobby.remove(game);
+            } finally {
+                lock.unlock();
+            }
+            if (wasRunning == null) {
+                GameExecutor.terminate(game, new Runnable() {
+                    @Override
+                    public void run() {
+                        // Already terminated
+                    }
+                });
+                return;
+            }
+            if (wasRunning == Boolean.TRUE) {
                 if(ServerConfiguration.getInstance().getIsConsoleMode() == false){
                     // Refresh GUI
                     ServerGUI.getInstance().removeGameFromList(game, false);
                     //LOG//Logger.getLogger(ServerMessageBroker.class.getName()).log(Level.INFO, "Removed the game {0} from the running games list.", game.toString());
                     LogRouter.log(GameManager.class.getName(), LoggingLevel.game, "Removed the game {0} from the running games list.", game.toString());
                 }
-
-                // Remove the player who is the reason on why the game has to be
-                // closed from the game. He or she will then not receive a
-                // ForceCloseMessage. This done because the player could not receive
-                // it anyway and this would just cause other exceptions.
-                game.removePlayer(terminatingPlayer);
-                ForceCloseMessage forceCloseMessage = new ForceCloseMessage(reason);
-                game.sendMessageToAllPlayers(forceCloseMessage);
             } //Do the same steps if the game is in the list of the waiting games.
-            else if (waitingGames.contains(game)) {
-                waitingGames.remove(game);
+            else {
                 // Refresh GUI
                 ServerGUI.getInstance().removeGameFromList(game, true);
                 //LOG//Logger.getLogger(ServerMessageBroker.class.getName()).log(Level.INFO, "Removed the game {0} from the waiting games list.", game.toString());
                 LogRouter.log(GameManager.class.getName(), LoggingLevel.game, "Removed the game {0} from the waiting games list.", game.toString());
-                game.removePlayer(terminatingPlayer);
-                ForceCloseMessage forceCloseMessage = new ForceCloseMessage(reason);
-                game.sendMessageToAllPlayers(forceCloseMessage);
             }
-            GameManager.cleanUpUsers();                                         // Clean up user list
+            // The players are notified after the queued tasks of the game
+            GameExecutor.terminate(game, new Runnable() {
+                @Override
+                public void run() {
+                    if (wasRunning == Boolean.TRUE) {
+                        // Log off all users.
+                        for (int i = 0; i < players.size(); i++) {
+                            User.logOffUserByName(players.get(i).getLoginName());
+                        }
+                    }
+
+                    // Remove the player who is the reason on why the game has to be
+                    // closed from the game. He or she will then not receive a
+                    // ForceCloseMessage. This done because the player could not receive
+                    // it anyway and this would just cause other exceptions.
+                    game.removePlayer(terminatingPlayer);
+                    ForceCloseMessage forceCloseMessage = new ForceCloseMessage(reason);
+                    game.sendMessageToAllPlayers(forceCloseMessage);
+                    releaseSessions(game, players);                                 // Clean up user list
+                    GameLoader.releaseClassLoader(GameLoader.getClassLoaderOfGame(game));
+                }
+            });
         }
     }
 
@@ -498,40 +608,98 @@ public class GameManager {
      * @param game The game to be terminated.
      * @param reason The reason why the game has to be terminated.
      */
-    public static void terminateGame(Game game, String reason) {
+    public static void terminateGame(final Game game, final String reason) {
 
         // If the game is null, don't terminate the game.
         if (game == null) {
             return;
         }
 
-        // Create a ForceCloseMessage and send it to all players.
-        ForceCloseMessage forceCloseMessage = new ForceCloseMessage(reason);
-        game.sendMessageToAllPlayers(forceCloseMessage);
-
-        // Log off all users.
-        for (int i = 0; i < game.getPlayers().size(); i++) {
-            Player player = game.getPlayers().get(i);
-            User.logOffUserByName(player.getName());
+        // End game if it is a running game. No player can join while the game
+        // is removed.
+        final Boolean wasRunning;
+        ReentrantLock lock = getJoinLock(game.getGameName());
+        lock.lock();
+        try {
+            wasRunning = lobby.remove(game);
+        } finally {
+            lock.unlock();
         }
-
-        // End game if it is a running game.
-        if (runningGames.contains(game)) {
-            runningGames.remove(game);
+        if (wasRunning == Boolean.TRUE) {
             if(ServerConfiguration.getInstance().getIsConsoleMode() == false){
                 ServerGUI.getInstance().removeGameFromList(game, false);
             }
             //LOG//Logger.getLogger(ServerMessageBroker.class.getName()).log(Level.INFO, "Removed the game {0} from the running games list.", game.toString());
             LogRouter.log(GameManager.class.getName(), LoggingLevel.game, "Removed the game {0} from the running games list.", game.toString());
         } // End game if it is a waiting game.
-        else if (waitingGames.contains(game)) {
-            waitingGames.remove(game);
+        else if (wasRunning == Boolean.FALSE) {
             if(ServerConfiguration.getInstance().getIsConsoleMode() == false){
                 ServerGUI.getInstance().removeGameFromList(game, true);
             }
             //LOG//Logger.getLogger(ServerMessageBroker.class.getName()).log(Level.INFO, "Removed the game {0} from the waiting games list.", game.toString());
             LogRouter.log(GameManager.class.getName(), LoggingLevel.game, "Removed the game {0} from the waiting games list.", game.toString());
         }
+
+        // The players are notified after the queued tasks of the game
+        GameExecutor.terminate(game, new Runnable() {
+            @Override
+            public void run() {
+                // Create a ForceCloseMessage and send it to all players.
+                ForceCloseMessage forceCloseMessage = new ForceCloseMessage(reason);
+                game.sendMessageToAllPlayers(forceCloseMessage);
+
+                if (wasRunning != null) {
+                    // Log off all users (only once, the game may have been terminated already).
+                    for (int i = 0; i < game.getPlayers().size(); i++) {
+                        Player player = game.getPlayers().get(i);
+                        User.logOffUserByName(player.getLoginName());
+                    }
+                    releaseSessions(game, game.getPlayers());                   // Clean up user list
+                    GameLoader.releaseClassLoader(GameLoader.getClassLoaderOfGame(game));
+                }
+            }
+        });
+    }
+
+    /**
+     * Checks whether a game is still waiting or running, i.e. it was not yet
+     * terminated.
+     *
+     * @param game The game.
+     * @return True if the game is waiting or running.
+     * @since v1.4
+     */
+    static boolean isActive(Game game) {
+        return lobby.getGame(game.getId()) == game;
+    }
+
+    /**
+     * Closes the sessions of the users of a terminated game. Non-persistent
+     * users without further sessions are removed from the static user list
+     * (see {@link User#releaseSession()}).
+     *
+     * @param game The terminated game.
+     * @param players The players of the game.
+     * @since v1.8
+     */
+    private static void releaseSessions(Game game, List<Player> players) {
+        for (Player player : players) {
+            User.releaseSessionByName(player.getLoginName());
+        }
+        if (game.getGameMode() == GameMode.SinglePlayer) {
+            User.releaseSessionByName(getAIUserName(game.getGameName()));
+        }
+    }
+
+    /**
+     * Gets the name of the AI dummy user of a single player game.
+     *
+     * @param gameName Name of the game (type)
+     * @return The name of the AI dummy.
+     * @since v1.8
+     */
+    private static String getAIUserName(String gameName) {
+        return gameName + "-AI";
     }
 
     /**
@@ -541,12 +709,38 @@ public class GameManager {
      * @return The game with the specified ID.
      */
     public static Game getRunningGameById(long id) {
-        for (Game game : runningGames) {
-            if (game.getId() == id) {
-                return game;
-            }
-        }
-        return null;
+        return lobby.getRunningGame(id);
+    }
+
+    /**
+     * Get a waiting or running game by it's ID.
+     *
+     * @param id The game's ID.
+     * @return The game with the specified ID or null if there is no such game.
+     * @since v1.6
+     */
+    public static Game getGameById(long id) {
+        return lobby.getGame(id);
+    }
+
+    /**
+     * Gets all games in which a player still waits for other players.
+     *
+     * @return A snapshot of the waiting games.
+     * @since v1.6
+     */
+    public static ArrayList<Game> getWaitingGames() {
+        return lobby.getWaitingGames();
+    }
+
+    /**
+     * Gets all running games.
+     *
+     * @return A snapshot of the running games.
+     * @since v1.6
+     */
+    public static ArrayList<Game> getRunningGames() {
+        return lobby.getRunningGames();
     }
 
     /**
@@ -557,100 +751,9 @@ public class GameManager {
      * @return True if the name is already in use, false if not.
      */
     public static boolean checkIfNameAlreadyExists(String name) {
-        // Go through all the running games' players
-        for (Game game : runningGames) {
-            for (Player player : game.getPlayers()) {
-                if (player.getName().equals(name)) {
-                    return true;
-                }
-            }
-        }
-
-        // Go through all the waiting games
-        for (Game game : waitingGames) {
-            for (Player player : game.getPlayers()) {
-                if (player.getName().equals(name)) {
-                    return true;
-                }
-            }
-        }
-
-        // If there is no player with that name, return false
-        return false;
+        return lobby.getGameOfPlayer(name) != null;
     }
     
-    /**
-     * Method to clean up users. All users which are not in a waiting or running 
-     * game will be removed from the static user list
-     */
-    public static void cleanUpUsers()
-    {
-        ArrayList<User> tempUsers = new ArrayList<User>();
-        boolean found;
-        int len = User.users.size(); // This is more efficient than dynamic peeked in for
-        int lenW = waitingGames.size(); // "
-        int lenR = runningGames.size(); // "
-        Game g;
-        User u;
-        String loginName;
-        int j, k, lenP;
-        for(int i = 0; i < len; i++)
-        {
-            u = User.users.get(i);
-            if (u.isNonPersistentUser() == false) { continue; }     // Only remove non persistent users
-            loginName = u.getUserName();
-            found = false;
-            for(j = 0; j < lenW; j++) // Wating games
-            {
-                g = waitingGames.get(j);
-                lenP = g.getPlayers().size();
-                for(k = 0; k < lenP; k++)
-                {
-                    if (g.getPlayers().get(k).getLoginName().equals(loginName))
-                    {
-                       found = true;
-                       break;
-                    }
-                }
-                if (found == true) // No further check needed -> User still active
-                {
-                    break;
-                }
-            }
-            if (found == true) // No further check needed -> User still active
-            {
-                continue;
-            }
-            for(j = 0; j < lenR; j++) // Running games
-            {
-                g = runningGames.get(j);
-                lenP = g.getPlayers().size();
-                for(k = 0; k < lenP; k++)
-                {
-                    if (g.getPlayers().get(k).getLoginName().equals(loginName))
-                    {
-                       found = true;
-                       break;
-                    }
-                }
-                if (found == true) // No further check needed -> User still active
-                {
-                    break;
-                }
-            }
-            if (found == false)
-            {
-                tempUsers.add(u); // Mark the user with this index to remove
-            }
-        }
-        len = tempUsers.size();
-        for(int i = 0; i < len; i++)
-        {
-            u = tempUsers.get(i);
-            User.removeUserFromUserList(u);
-        }
-    }
-
     /**
      * Sends a message to all players on the server. It is not adviced to use
      * this method.
@@ -659,11 +762,14 @@ public class GameManager {
      */
     public static void sendMessageToAllPlayersOnServer(Message message) {
         ArrayList<Game> allGames = new ArrayList<>();
-        allGames.addAll(GameManager.runningGames);
-        allGames.addAll(GameManager.waitingGames);
+        allGames.addAll(lobby.getRunningGames());
+        allGames.addAll(lobby.getWaitingGames());
 
+        // Collect the players of all games, the message is marshalled only once
+        ArrayList<Player> recipients = new ArrayList<>();
         for (Game game : allGames) {
-            game.sendMessageToAllPlayers(message);
+            recipients.addAll(game.getRecipients());
         }
+        message.broadcast(recipients);
     }
 }
@@ -0,0 +1,453 @@
+package org.fhnw.aigs.server.gameHandling;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import org.fhnw.aigs.server.common.LogRouter;
+import org.fhnw.aigs.server.common.LoggingLevel;
+import org.fhnw.aigs.server.common.ServerConfiguration;
+
+/**
+ * Registry of the game plugins (jars) in the gamelibs folder. The folder is
+ * scanned once and then watched with a {@link WatchService}, so that lookups
+ * of the {@link GameLoader} do not list the folder. If a jar of a game is
+ * added, replaced or removed, the registry is updated and the current
+ * ClassLoader version of the game is retired (new games are loaded with the
+ * new jar).<br>
+ * A game consists of the jar __GAME__.jar or __GAME__Server.jar and the
+ * optional jar __GAME__Commons.jar. The metadata of a game is read from the
+ * manifest of its jar (all attributes are optional):
+ * <ul>
+ * <li>AIGS-Game-Name: Display name of the game</li>
+ * <li>AIGS-Game-Version: Version of the game</li>
+ * <li>AIGS-Min-Players: Minimum number of players</li>
+ * </ul>
+ * v1.0 Initial release
+ *
+ * @version 1.0
+ */
+final class GamePluginRegistry {
+
+    /**
+     * Manifest attribute of the display name.
+     */
+    static final Attributes.Name NAME_ATTRIBUTE = new Attributes.Name("AIGS-Game-Name");
+    /**
+     * Manifest attribute of the version.
+     */
+    static final Attributes.Name VERSION_ATTRIBUTE = new Attributes.Name("AIGS-Game-Version");
+    /**
+     * Manifest attribute of the minimum number of players.
+     */
+    static final Attributes.Name MIN_PLAYERS_ATTRIBUTE = new Attributes.Name("AIGS-Min-Players");
+    /**
+     * Time in ms to wait for further changes before the folder is rescanned
+     * (a copied jar causes several events).
+     */
+    private static final long SETTLE_TIME = 200;
+
+    /**
+     * The instance (null before the first use).
+     */
+    private static GamePluginRegistry instance;
+
+    /**
+     * A game plugin (the jars and metadata of a game).
+     */
+    static final class GamePlugin {
+
+        /**
+         * The name of the game (lower case), used as key.
+         */
+        private final String key;
+        /**
+         * The display name of the game.
+         */
+        private final String name;
+        /**
+         * The version of the game or null if unknown.
+         */
+        private final String version;
+        /**
+         * The minimum number of players or 0 if unknown.
+         */
+        private final int minPlayers;
+        /**
+         * The jar with the game logic.
+         */
+        private final File gameJar;
+        /**
+         * The commons jar of the game or null if there is none.
+         */
+        private final File commonsJar;
+        /**
+         * Indicates whether the game is listed as installed game (the game
+         * jar is __GAME__.jar).
+         */
+        private final boolean listed;
+        /**
+         * State (modification time and size) of the jars, used to detect
+         * changes.
+         */
+        private final String state;
+
+        /**
+         * Creates a plugin and reads the metadata from the manifest of the
+         * game jar.
+         *
+         * @param key The name of the game (lower case).
+         * @param fileName The name of the game according to the jar name.
+         * @param gameJar The jar with the game logic.
+         * @param commonsJar The commons jar or null.
+         * @param listed True if the game jar is __GAME__.jar.
+         */
+        private GamePlugin(String key, String fileName, File gameJar, File commonsJar, boolean listed) {
+            this.key = key;
+            this.gameJar = gameJar;
+            this.commonsJar = commonsJar;
+            this.listed = listed;
+            this.state = createState(gameJar, commonsJar);
+            String manifestName = null;
+            String manifestVersion = null;
+            int manifestMinPlayers = 0;
+            try (JarFile jar = new JarFile(gameJar)) {
+                Manifest manifest = jar.getManifest();
+                if (manifest != null) {
+                    Attributes attributes = manifest.getMainAttributes();
+                    manifestName = attributes.getValue(NAME_ATTRIBUTE);
+                    manifestVersion = attributes.getValue(VERSION_ATTRIBUTE);
+                    String minPlayersValue = attributes.getValue(MIN_PLAYERS_ATTRIBUTE);
+                    if (minPlayersValue != null) {
+                        manifestMinPlayers = Integer.parseInt(minPlayersValue.trim());
+                    }
+                }
+            } catch (IOException | NumberFormatException ex) {
+                LogRouter.log(GamePluginRegistry.class.getName(), LoggingLevel.waring, "Could not read the manifest of the jar '" + gameJar.getName() + "'", ex);
+            }
+            this.name = manifestName == null ? fileName : manifestName;
+            this.version = manifestVersion;
+            this.minPlayers = manifestMinPlayers;
+        }
+
+        /**
+         * Gets the display name of the game.
+         *
+         * @return The name.
+         */
+        String getName() {
+            return name;
+        }
+
+        /**
+         * Gets the version of the game.
+         *
+         * @return The version or null if unknown.
+         */
+        String getVersion() {
+            return version;
+        }
+
+        /**
+         * Gets the minimum number of players.
+         *
+         * @return The number of players or 0 if unknown.
+         */
+        int getMinPlayers() {
+            return minPlayers;
+        }
+
+        /**
+         * Gets the jar with the game logic.
+         *
+         * @return The jar.
+         */
+        File getGameJar() {
+            return gameJar;
+        }
+
+        /**
+         * Gets the commons jar of the game.
+         *
+         * @return The jar or null if there is none.
+         */
+        File getCommonsJar() {
+            return commonsJar;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(name);
+            if (version != null || minPlayers > 0) {
+                text.append(" (");
+                if (version != null) {
+                    text.append(version);
+                }
+                if (minPlayers > 0) {
+                    text.append(version != null ? ", " : "").append("min. ").append(minPlayers).append(" players");
+                }
+                text.append(")");
+            }
+            return text.toString();
+        }
+    }
+
+    /**
+     * The plugins, mapped by the name of the game (lower case).
+     */
+    private final ConcurrentHashMap<String, GamePlugin> plugins = new ConcurrentHashMap<>();
+    /**
+     * The watched gamelibs folder.
+     */
+    private final File directory;
+
+    /**
+     * Creates the registry, scans the gamelibs folder and starts watching it.
+     */
+    private GamePluginRegistry() {
+        String gamelibsDirectory = ServerConfiguration.getInstance().getGamelibsDirectory();
+        if (GameLoader.checkFolderExists(gamelibsDirectory, true) == false)
+        {
+            LogRouter.log(GamePluginRegistry.class.getName(), LoggingLevel.severe, "The gamelibs folder could not be created. Check the server installation!");
+        }
+        directory = new File(gamelibsDirectory);
+        scan();
+        startWatching();
+    }
+
+    /**
+     * Gets the registry. The registry is created with the first call.
+     *
+     * @return The registry.
+     */
+    static synchronized GamePluginRegistry getInstance() {
+        if (instance == null) {
+            instance = new GamePluginRegistry();
+        }
+        return instance;
+    }
+
+    /**
+     * Gets the plugin of a game.
+     *
+     * @param gameName The name of the game (not case sensitive).
+     * @return The plugin or null if the game is not installed.
+     */
+    GamePlugin getPlugin(String gameName) {
+        return plugins.get(gameName.toLowerCase());
+    }
+
+    /**
+     * Gets the installed games (only games with a jar __GAME__.jar are
+     * listed).
+     *
+     * @return The installed games, sorted by name.
+     */
+    ArrayList<GamePlugin> getInstalledGames() {
+        ArrayList<GamePlugin> games = new ArrayList<>();
+        for (GamePlugin plugin : plugins.values()) {
+            if (plugin.listed == true) {
+                games.add(plugin);
+            }
+        }
+        Collections.sort(games, new Comparator<GamePlugin>() {
+            @Override
+            public int compare(GamePlugin first, GamePlugin second) {
+                return first.key.compareTo(second.key);
+            }
+        });
+        return games;
+    }
+
+    /**
+     * Scans the gamelibs folder and updates the plugins. The ClassLoader
+     * versions of changed or removed games are retired.
+     */
+    private synchronized void scan() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        HashMap<String, File> gameJars = new HashMap<>();
+        HashMap<String, File> serverJars = new HashMap<>();
+        HashMap<String, File> commonsJars = new HashMap<>();
+        HashMap<String, String> fileNames = new HashMap<>();
+        for (File file : files) {
+            String fileName = file.getName();
+            if (file.isFile() == false || fileName.toLowerCase().endsWith(".jar") == false) {
+                continue;
+            }
+            String name = fileName.substring(0, fileName.length() - 4);
+            String nameLC = name.toLowerCase();
+            if (nameLC.endsWith("server") == true) {
+                serverJars.put(nameLC.substring(0, nameLC.length() - 6), file);
+            } else if (nameLC.endsWith("commons") == true) {
+                commonsJars.put(nameLC.substring(0, nameLC.length() - 7), file);
+            } else if (nameLC.endsWith("sources") == false && nameLC.endsWith("client") == false) {
+                gameJars.put(nameLC, file);
+                fileNames.put(nameLC, name);
+            }
+        }
+
+        HashMap<String, GamePlugin> scanned = new HashMap<>();
+        for (Map.Entry<String, File> entry : serverJars.entrySet()) {
+            String name = entry.getValue().getName();
+            scanned.put(entry.getKey(), createPlugin(entry.getKey(), name.substring(0, name.length() - 10), entry.getValue(), commonsJars.get(entry.getKey()), false));
+        }
+        for (Map.Entry<String, File> entry : gameJars.entrySet()) {
+            scanned.put(entry.getKey(), createPlugin(entry.getKey(), fileNames.get(entry.getKey()), entry.getValue(), commonsJars.get(entry.getKey()), true));
+        }
+
+        ArrayList<String> changedGames = new ArrayList<>();
+        for (GamePlugin plugin : plugins.values()) {
+            GamePlugin newPlugin = scanned.get(plugin.key);
+            if (newPlugin == null) {
+                plugins.remove(plugin.key);
+                changedGames.add(plugin.key);
+                LogRouter.log(GamePluginRegistry.class.getName(), LoggingLevel.system, "Removed the game {0}.", plugin.getName());
+            } else if (newPlugin.state.equals(plugin.state) == true) {
+                scanned.remove(plugin.key);         // Unchanged
+            } else {
+                changedGames.add(plugin.key);
+            }
+        }
+        for (GamePlugin plugin : scanned.values()) {
+            plugins.put(plugin.key, plugin);
+            LogRouter.log(GamePluginRegistry.class.getName(), LoggingLevel.system, "Registered the game {0}.", plugin.toString());
+        }
+        if (changedGames.isEmpty() == false) {
+            GameLoader.retireVersions(changedGames);
+        }
+    }
+
+    /**
+     * Creates a plugin if the jars were not already registered unchanged.
+     *
+     * @param key The name of the game (lower case).
+     * @param fileName The name of the game according to the jar name.
+     * @param gameJar The jar with the game logic.
+     * @param commonsJar The commons jar or null.
+     * @param listed True if the game jar is __GAME__.jar.
+     * @return The plugin.
+     */
+    private GamePlugin createPlugin(String key, String fileName, File gameJar, File commonsJar, boolean listed) {
+        GamePlugin plugin = plugins.get(key);
+        if (plugin != null && plugin.state.equals(createState(gameJar, commonsJar)) == true && plugin.gameJar.equals(gameJar) == true) {
+            return plugin;                  // Do not read the manifest again
+        }
+        return new GamePlugin(key, fileName, gameJar, commonsJar, listed);
+    }
+
+    /**
+     * Creates the state (modification time and size) of the jars of a game.
+     *
+     * @param gameJar The jar with the game logic.
+     * @param commonsJar The commons jar or null.
+     * @return The state.
+     */
+    private static String createState(File gameJar, File commonsJar) {
+        return gameJar.lastModified() + ":" + gameJar.length()
+                + (commonsJar == null ? "" : "/" + commonsJar.lastModified() + ":" + commonsJar.length());
+    }
+
+    /**
+     * Starts the thread which watches the gamelibs folder. If the folder
+     * cannot be watched, the registry is only updated by
+     * {@link GamePluginRegistry#refresh}.
+     */
+    private void startWatching() {
+        final WatchService watchService;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            directory.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException ex) {
+            LogRouter.log(GamePluginRegistry.class.getName(), LoggingLevel.waring, "The gamelibs folder cannot be watched.", ex);
+            return;
+        }
+        Thread watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch(watchService);
+            }
+        });
+        watcher.setName("GamePluginWatcherThread");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Watches the gamelibs folder until the folder is not accessible anymore.
+     * Events are collected until the folder settled, then the folder is
+     * rescanned once.
+     *
+     * @param watchService The watch service of the folder.
+     */
+    private void watch(WatchService watchService) {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                while (key != null) {
+                    changed |= isRelevant(key);
+                    if (key.reset() == false) {
+                        LogRouter.log(GamePluginRegistry.class.getName(), LoggingLevel.waring, "The gamelibs folder is not watched anymore.");
+                        return;
+                    }
+                    key = watchService.poll(SETTLE_TIME, TimeUnit.MILLISECONDS);
+                }
+                if (changed == true) {
+                    scan();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // Server stops
+        }
+        catch (Exception ex) // All other exceptions
+        {
+            LogRouter.log(GamePluginRegistry.class.getName(), LoggingLevel.severe, "The watcher of the gamelibs folder failed.", ex);
+        }
+    }
+
+    /**
+     * Checks whether the events of a watch key concern jars.
+     *
+     * @param key The watch key.
+     * @return True if a jar was changed or events were lost, otherwise false.
+     */
+    private static boolean isRelevant(WatchKey key) {
+        boolean relevant = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                relevant = true;
+            } else if (event.context() instanceof Path
+                    && event.context().toString().toLowerCase().endsWith(".jar") == true) {
+                relevant = true;
+            }
+        }
+        return relevant;
+    }
+
+    /**
+     * Rescans the gamelibs folder immediately (e.g. after the games were
+     * rebuilt, without waiting for the watcher).
+     */
+    void refresh() {
+        scan();
+    }
+}
@@ -3,8 +3,14 @@ package org.fhnw.aigs.server.gameHandling;
 import org.fhnw.aigs.server.common.ServerConfiguration;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
-import org.fhnw.aigs.commons.Game;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.fhnw.aigs.commons.Player;
 import org.fhnw.aigs.commons.communication.KeepAliveMessage;
 import org.fhnw.aigs.server.common.LogRouter;
@@ -12,12 +18,25 @@ import org.fhnw.aigs.server.common.LoggingLevel;
 
 /**
  * This class helps detecting idle clients.<br>
- * It runs a <b>KeepAliveMessage</b> in a predefined interval.<br>
- * This interval is stored in the attribute <b>keepAliveTimeOut</b> and is
- * defined in the ServerConfiguration. It can be changed, when needed. The
- * server must be restarted to use the new interval. Every client is obliged to
- * send a response to the KeepAliveMessage within that time frame. If it does
- * not, the clients will be disconnected and therefore the game will end.
+ * Every logged in connection (players of running and waiting games, and
+ * players which have not yet joined a game) has its own heartbeat with a
+ * deadline. If a client has not sent anything within the interval stored in
+ * the attribute <b>keepAliveTimeOut</b> of the ServerConfiguration, it
+ * receives a <b>KeepAliveMessage</b>. Every client is obliged to send a
+ * response (or any other message) within the same time frame. If it does not,
+ * the client will be disconnected and therefore the game will end. Clients
+ * which sent messages recently are only sent a KeepAliveMessage every
+ * {@link KeepAliveManager#LATENCY_SAMPLE_FACTOR} intervals, to measure their
+ * round-trip time (see {@link LatencyMonitor}).<br>
+ * The deadlines are managed by a hashed timer wheel: The wheel consists of
+ * {@link KeepAliveManager#WHEEL_SIZE} buckets, and every tick only the
+ * heartbeats of one bucket are checked. The heartbeats are therefore spread
+ * over the whole interval instead of being sent in one burst, and the costs
+ * of a tick do not depend on the number of connections. The timeout actions
+ * (closing of connections) are executed by a separate thread, so that the
+ * timer thread is never blocked.<br>
+ * The interval can be changed in the ServerConfiguration, when needed. The
+ * server must be restarted to use the new interval.<br>
  * <b>Please note:</b> Do not use a low keepAliveTimeOut. If the user debugs the
  * project, the break point may block the communication between Client and
  * Server, therefore the signals cannot reach the KeepAliveManager. The server
@@ -26,105 +45,389 @@ import org.fhnw.aigs.server.common.LoggingLevel;
  * to turn of the KeepAliveManager by setting "UseKeepAliveManager" in the
  * Server Configuration to "false".<br>
  * v1.0 Initial release<br>
- * v1.1 Changing of logging
+ * v1.1 Changing of logging<br>
+ * v1.2 Lock instead of synchronized methods (usable with virtual threads)<br>
+ * v1.3 Hashed timer wheel with a heartbeat per connection instead of a
+ * periodic scan of the running games<br>
+ * v1.4 Measurement of the round-trip times (see {@link LatencyMonitor})
  *
  * @author Matthias Stöckli (v1.0)
- * @version v1.1 (Raphael Stoeckli 24.02.2015)
+ * @version v1.4
  */
 public class KeepAliveManager implements Runnable {
 
     /**
-     * A list with all players (identified by their name) that still need to
-     * send a response to the KeepAliveMessage
+     * Number of buckets of the timer wheel (power of two).
+     * @since v1.3
      */
-    private static HashMap<String, Player> duePlayers = new HashMap<String, Player>();
+    private static final int WHEEL_SIZE = 256;
     /**
-     * A list with games that needs to be closed due to a time out
+     * Minimum duration of a tick in milliseconds.
+     * @since v1.3
      */
-    private static ArrayList<Game> gamesToBeClosed = new ArrayList<Game>();
+    private static final long MIN_TICK_DURATION = 10;
     /**
-     * The interval between a KeepAliveMessage and the expected answer
+     * Number of intervals after which an active client (which does not need
+     * a KeepAliveMessage) gets one anyway, to measure its round-trip time.
+     * @since v1.4
      */
-    private int keepAliveTimeOut;
+    private static final int LATENCY_SAMPLE_FACTOR = 4;
+
+    /**
+     * Indicates whether a KeepAliveManager is running. Heartbeats are only
+     * registered if this is the case.
+     * @since v1.3
+     */
+    private static final AtomicBoolean running = new AtomicBoolean(false);
+    /**
+     * New and rescheduled heartbeats, which are put into the wheel with the
+     * next tick. Heartbeats are only put into the wheel by the timer thread.
+     * @since v1.3
+     */
+    private static final ConcurrentLinkedQueue<Heartbeat> pendingHeartbeats = new ConcurrentLinkedQueue<>();
+    /**
+     * Thread which executes the timeout actions of the heartbeats.
+     * @since v1.3
+     */
+    private static final ExecutorService timeoutExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task);
+            thread.setName("KeepAliveTimeoutThread");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    /**
+     * The interval between a KeepAliveMessage and the expected answer in
+     * nanoseconds (also used as maximum idle time of a connection).
+     */
+    private long keepAliveTimeOut;
+    /**
+     * The buckets of the timer wheel. Only accessed by the timer thread.
+     * @since v1.3
+     */
+    private final ArrayList<ArrayList<Heartbeat>> wheel = new ArrayList<>(WHEEL_SIZE);
+    /**
+     * The duration of a tick in nanoseconds.
+     * @since v1.3
+     */
+    private long tickDuration;
+    /**
+     * The start time of the wheel (System.nanoTime).
+     * @since v1.3
+     */
+    private long startTime;
+    /**
+     * The next tick to be processed.
+     * @since v1.3
+     */
+    private long tick;
+
+    /**
+     * Heartbeat of one connection. It is created with
+     * {@link KeepAliveManager#register} after the login and must be notified
+     * about every received message ({@link Heartbeat#touch}).
+     * @since v1.3
+     */
+    public static final class Heartbeat {
+
+        /**
+         * The player of the connection.
+         */
+        private final Player player;
+        /**
+         * Action which is executed if the client does not answer in time
+         * (e.g. terminates the game and closes the connection).
+         */
+        private final Runnable onTimeout;
+        /**
+         * Time (System.nanoTime) of the last received message.
+         */
+        private volatile long lastActivity;
+        /**
+         * Indicates whether the connection was closed.
+         */
+        private volatile boolean cancelled;
+        /**
+         * Indicates whether the heartbeat was already put into the wheel. Only
+         * accessed by the timer thread.
+         */
+        private boolean scheduled;
+        /**
+         * The time (System.nanoTime) at which the heartbeat has to be checked.
+         * Only accessed by the timer thread.
+         */
+        private long deadline;
+        /**
+         * Number of remaining rotations of the wheel until the deadline. Only
+         * accessed by the timer thread.
+         */
+        private long remainingRounds;
+        /**
+         * Indicates whether a KeepAliveMessage was sent and not yet answered.
+         * Only accessed by the timer thread.
+         */
+        private boolean awaitingAnswer;
+        /**
+         * The time (System.nanoTime) when the last KeepAliveMessage was sent.
+         */
+        private volatile long pingTime;
+        /**
+         * The sent time of the last KeepAliveMessage (in milliseconds), which
+         * is returned by the client with the answer.
+         */
+        private volatile long pingSentTime;
+        /**
+         * The name of the game of the player (null if the player has not yet
+         * joined a game).
+         */
+        private volatile String gameName;
+
+        /**
+         * Creates a heartbeat.
+         *
+         * @param player The player of the connection.
+         * @param onTimeout Action which is executed if the client does not
+         * answer in time.
+         */
+        private Heartbeat(Player player, Runnable onTimeout) {
+            this.player = player;
+            this.onTimeout = onTimeout;
+            this.lastActivity = System.nanoTime();
+            this.pingTime = lastActivity;
+        }
+
+        /**
+         * Notifies the heartbeat about a received message. Every message
+         * (not only answers to KeepAliveMessages) proves that the client is
+         * alive.
+         */
+        public void touch() {
+            lastActivity = System.nanoTime();
+        }
+
+        /**
+         * Sets the game of the player, whose game type collects the measured
+         * round-trip times from now on.
+         *
+         * @param gameName The name of the game.
+         */
+        public void setGameName(String gameName) {
+            this.gameName = gameName;
+        }
+
+        /**
+         * Stops the heartbeat (e.g. the connection was closed). The heartbeat
+         * is removed from the wheel with the next check.
+         */
+        public void cancel() {
+            if (cancelled == false) {
+                cancelled = true;
+                LatencyMonitor.removePlayer(player.getName());
+            }
+        }
+    }
+
+    /**
+     * Registers the heartbeat of a connection.
+     *
+     * @param player The player of the connection.
+     * @param onTimeout Action which is executed if the client does not answer
+     * in time.
+     * @return The heartbeat, or null if the KeepAliveManager is not running.
+     * @since v1.3
+     */
+    public static Heartbeat register(Player player, Runnable onTimeout) {
+        if (running.get() == false) {
+            return null;
+        }
+        Heartbeat heartbeat = new Heartbeat(player, onTimeout);
+        pendingHeartbeats.add(heartbeat);
+        return heartbeat;
+    }
 
     /**
      * This method will be called from the ServerMessageBroker in order to
-     * inform the KeepAliveManager of an incoming response.
+     * inform the KeepAliveManager of an incoming response. If the response
+     * answers the last KeepAliveMessage of the connection (same sent time),
+     * the round-trip time is recorded by the {@link LatencyMonitor}.
      *
+     * @param heartbeat The heartbeat of the connection (can be null if the
+     * KeepAliveManager is not running).
      * @param keepAliveResponse The response of a client in the form of a
      * KeepAliveMessage
+     * @return True if the game of the player has to be terminated due to a
+     * too high latency (see {@link LatencyMonitor#record}).
      */
-    public static synchronized void handleResponse(KeepAliveMessage keepAliveResponse) {
-        if (keepAliveResponse.getPlayer() != null) {
-            String name = keepAliveResponse.getPlayer().getName();
-            if (duePlayers.containsKey(name)) {
-                duePlayers.remove(name);
-            }
+    public static boolean handleResponse(Heartbeat heartbeat, KeepAliveMessage keepAliveResponse) {
+        if (heartbeat == null) {
+            return false;
         }
+        heartbeat.touch();
+        long sentTime = heartbeat.pingSentTime;
+        if (keepAliveResponse.getSentTime() == null || keepAliveResponse.getSentTime().getTime() != sentTime) {
+            return false;       // Unknown or outdated KeepAliveMessage
+        }
+        long roundTripTime = heartbeat.lastActivity - heartbeat.pingTime;
+        heartbeat.pingSentTime = 0;     // Only measured once
+        return LatencyMonitor.record(heartbeat.player.getName(), heartbeat.gameName, roundTripTime);
     }
 
     /**
-     * Starts {@link KeepAliveManager#startKeepAliveLoop}.
+     * Starts {@link KeepAliveManager#startKeepAliveLoop}. Only one
+     * KeepAliveManager can run at the same time.
      */
     @Override
     public void run() {
+        if (running.compareAndSet(false, true) == false) {
+            LogRouter.log(KeepAliveManager.class.getName(), LoggingLevel.system, "The KeepAliveManager is already running.");
+            return;
+        }
         startKeepAliveLoop();
     }
 
     /**
-     * This method starts the KeepAlive loop. It iterates through every active
-     * game and sends a {@link KeepAliveMessage} to all players (except AI).
-     * Then the players are put on a list. Now all client's will receive a
-     * message to which they must provide an answer (a message of the same
-     * type). It they do so, the players will be removed from the list. After a
-     * predefined interval, the list will be checked again. Those players who
-     * did not send an answer will be regarded as inactive. The games they are
-     * in will then be closed. Then the list is cleared, and so the process
-     * begins anew.
+     * This method starts the KeepAlive loop. With every tick, the new
+     * heartbeats are put into the wheel and the heartbeats of the current
+     * bucket whose deadline was reached are checked (see
+     * {@link KeepAliveManager#check}).
      */
-    private synchronized void startKeepAliveLoop() {
-        keepAliveTimeOut = ServerConfiguration.getInstance().getKeepAliveTimeOut();
+    private void startKeepAliveLoop() {
+        keepAliveTimeOut = TimeUnit.MILLISECONDS.toNanos(ServerConfiguration.getInstance().getKeepAliveTimeOut());
+        tickDuration = Math.max(TimeUnit.MILLISECONDS.toNanos(MIN_TICK_DURATION), keepAliveTimeOut / WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new ArrayList<Heartbeat>());
+        }
+        startTime = System.nanoTime();
+        tick = 0;
         while (true) {
-            // Go through all the running games
-            for (Game game : GameManager.runningGames) {
-                for (Player player : game.getPlayers()) {
-                    if (player.isAi()) {
-                        continue;
-                    }
-                    KeepAliveMessage keepAliveMessage = new KeepAliveMessage();
-                    keepAliveMessage.setSentTime(new Date());
-                    game.sendMessageToPlayer(keepAliveMessage, player);
-                    duePlayers.put(player.getName(), player);
-                    //LOG//Logger.getLogger(KeepAliveManager.class.getName()).log(Level.FINE, "Sent KeepAlive to {0}", player.getName());
-                    LogRouter.log(KeepAliveManager.class.getName(), LoggingLevel.info, "Sent KeepAlive to {0}", player.getName());
+            // Wait until the end of the current tick
+            long sleepTime = startTime + (tick + 1) * tickDuration - System.nanoTime();
+            if (sleepTime > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepTime);
+                } catch (InterruptedException ex) {
+                    //LOG//Logger.getLogger(KeepAliveManager.class.getName()).log(Level.SEVERE, null, ex);
+                    LogRouter.log(KeepAliveManager.class.getName(), LoggingLevel.severe, null, ex);
                 }
             }
+            transferPendingHeartbeats();
 
-            // Wait for the amount of time defined in the keepAliveTimeOut
-            // See ServerConfiguration.xml for that.
-            try {
-                Thread.sleep(keepAliveTimeOut);
-            } catch (InterruptedException ex) {
-                //LOG//Logger.getLogger(KeepAliveManager.class.getName()).log(Level.SEVERE, null, ex);
-                LogRouter.log(KeepAliveManager.class.getName(), LoggingLevel.severe, null, ex);
+            // Check the heartbeats of the current bucket
+            ArrayList<Heartbeat> expired = new ArrayList<>();
+            Iterator<Heartbeat> i = wheel.get((int) (tick & (WHEEL_SIZE - 1))).iterator();
+            while (i.hasNext()) {
+                Heartbeat heartbeat = i.next();
+                if (heartbeat.cancelled == true) {
+                    i.remove();
+                } else if (heartbeat.remainingRounds <= 0) {
+                    i.remove();
+                    expired.add(heartbeat);
+                } else {
+                    heartbeat.remainingRounds--;
+                }
             }
-
-            // Iterate through all games again and check whether an inactive player
-            // is in. If this is the case, close the game.
-            for (Game game : GameManager.runningGames) {
-                for (Player player : game.getPlayers()) {
-                    if (duePlayers.containsKey(player.getName())) {
-                        gamesToBeClosed.add(game);
-                    }
+            for (Heartbeat heartbeat : expired) {
+                try {
+                    check(heartbeat);
+                } catch (Exception ex) // All exceptions, the timer thread must not stop
+                {
+                    LogRouter.log(KeepAliveManager.class.getName(), LoggingLevel.severe, "Could not check the heartbeat of the player " + heartbeat.player.getName(), ex);
+                    timeout(heartbeat);
                 }
             }
+            tick++;
+        }
+    }
+
+    /**
+     * Puts the new and rescheduled heartbeats into the bucket of their
+     * deadline. The first check of a new heartbeat is randomly spread over the
+     * second half of the interval, so that clients which logged in at the
+     * same time are not checked at the same time.
+     * @since v1.3
+     */
+    private void transferPendingHeartbeats() {
+        Heartbeat heartbeat;
+        while ((heartbeat = pendingHeartbeats.poll()) != null) {
+            if (heartbeat.cancelled == true) {
+                continue;
+            }
+            if (heartbeat.scheduled == false) {
+                heartbeat.scheduled = true;
+                heartbeat.deadline = heartbeat.lastActivity + keepAliveTimeOut / 2 + ThreadLocalRandom.current().nextLong(keepAliveTimeOut / 2 + 1);
+            }
+            long deadlineTick = (heartbeat.deadline - startTime) / tickDuration;
+            heartbeat.remainingRounds = (deadlineTick - tick) / WHEEL_SIZE;
+            // Deadlines in the past are checked with the current tick
+            long bucketTick = Math.max(deadlineTick, tick);
+            wheel.get((int) (bucketTick & (WHEEL_SIZE - 1))).add(heartbeat);
+        }
+    }
 
-            // Close the games.
-            for (Game game : gamesToBeClosed) {
-                GameManager.terminateGame(game, "One of the players did not answer.");
+    /**
+     * Checks a heartbeat whose deadline was reached:<br><ul>
+     * <li>If a KeepAliveMessage was sent and the client did not send anything
+     * since then, the timeout action is executed.</li>
+     * <li>If the client sent a message within the interval, no
+     * KeepAliveMessage is needed. The next check is one interval after that
+     * message.</li>
+     * <li>Otherwise a KeepAliveMessage is sent, and the client must answer
+     * within the interval.</li></ul>
+     *
+     * @param heartbeat The heartbeat.
+     * @since v1.3
+     */
+    private void check(Heartbeat heartbeat) {
+        long now = System.nanoTime();
+        long lastActivity = heartbeat.lastActivity;
+        if (heartbeat.awaitingAnswer == true) {
+            if (lastActivity - heartbeat.pingTime < 0) {
+                LogRouter.log(KeepAliveManager.class.getName(), LoggingLevel.game, "The player {0} did not answer.", heartbeat.player.getName());
+                timeout(heartbeat);
+                return;
             }
-            // Clear the list.
-            gamesToBeClosed.clear();
+            heartbeat.awaitingAnswer = false;
+        }
+        if (now - lastActivity < keepAliveTimeOut && now - heartbeat.pingTime < LATENCY_SAMPLE_FACTOR * keepAliveTimeOut) {
+            heartbeat.deadline = Math.min(lastActivity, heartbeat.pingTime + (LATENCY_SAMPLE_FACTOR - 1) * keepAliveTimeOut) + keepAliveTimeOut;
+        } else {
+            KeepAliveMessage keepAliveMessage = new KeepAliveMessage();
+            Date sentTime = new Date();
+            keepAliveMessage.setSentTime(sentTime);
+            heartbeat.awaitingAnswer = true;
+            heartbeat.pingTime = now;
+            heartbeat.pingSentTime = sentTime.getTime();
+            heartbeat.deadline = now + keepAliveTimeOut;
+            keepAliveMessage.send(heartbeat.player.getSocket(), heartbeat.player);
+            LogRouter.log(KeepAliveManager.class.getName(), LoggingLevel.info, "Sent KeepAlive to {0}", heartbeat.player.getName());
         }
+        pendingHeartbeats.add(heartbeat);
+    }
+
+    /**
+     * Cancels a heartbeat and executes its timeout action, both on the
+     * timeout thread. The heartbeat must not be in the wheel anymore.
+     *
+     * @param heartbeat The heartbeat.
+     * @since v1.3
+     */
+    private static void timeout(final Heartbeat heartbeat) {
+        if (heartbeat.cancelled == true) {
+            return;
+        }
+        timeoutExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    heartbeat.cancel();
+                    heartbeat.onTimeout.run();
+                } catch (Exception ex) // All exceptions
+                {
+                    LogRouter.log(KeepAliveManager.class.getName(), LoggingLevel.severe, "Could not terminate the connection of an idle client.", ex);
+                }
+            }
+        });
     }
 }
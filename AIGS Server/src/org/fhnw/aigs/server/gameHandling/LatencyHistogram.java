@@ -0,0 +1,147 @@
+package org.fhnw.aigs.server.gameHandling;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies (in microseconds) with a fixed, logarithmic bucket
+ * layout: Values below 128 are counted exactly, larger values in buckets of
+ * 64 sub-buckets per power of two (relative error below 1.6%). Values up to
+ * about 71 minutes are distinguished, larger values are counted as maximum.<br>
+ * Recording a value does not allocate any memory and does not block, the
+ * histogram can therefore be updated by several threads concurrently. The
+ * percentiles are calculated from a (not atomic) snapshot of the counters.<br>
+ * v1.0 Initial release
+ *
+ * @version 1.0
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of bits of the sub-bucket index.
+     */
+    private static final int SUB_BUCKET_BITS = 7;
+    /**
+     * Number of exactly counted values (and sub-buckets of the first bucket).
+     */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /**
+     * Number of sub-buckets of the further buckets (one per power of two).
+     */
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+    /**
+     * Number of bits of the largest distinguished value.
+     */
+    private static final int MAX_VALUE_BITS = 32;
+    /**
+     * The largest distinguished value.
+     */
+    private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+    /**
+     * Number of counters.
+     */
+    private static final int COUNTS_LENGTH = SUB_BUCKET_COUNT + (MAX_VALUE_BITS - SUB_BUCKET_BITS) * SUB_BUCKET_HALF_COUNT;
+
+    /**
+     * The counters of the (sub-)buckets.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(COUNTS_LENGTH);
+    /**
+     * Number of recorded values.
+     */
+    private final AtomicLong totalCount = new AtomicLong();
+    /**
+     * The largest recorded value.
+     */
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * Records a value.
+     *
+     * @param value The value in microseconds.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        } else if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        counts.incrementAndGet(indexOf(value));
+        totalCount.incrementAndGet();
+        long max = maxValue.get();
+        while (value > max && maxValue.compareAndSet(max, value) == false) {
+            max = maxValue.get();
+        }
+    }
+
+    /**
+     * Gets the number of recorded values.
+     *
+     * @return The number of values.
+     */
+    public long getTotalCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * Gets the largest recorded value.
+     *
+     * @return The largest value in microseconds (0 if empty).
+     */
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    /**
+     * Gets the value below which the passed percentage of the recorded values
+     * lie (upper bound of the respective bucket).
+     *
+     * @param percentile The percentile (0 to 100), e.g. 99.
+     * @return The value in microseconds (0 if empty).
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = totalCount.get();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * total));
+        long sum = 0;
+        for (int i = 0; i < COUNTS_LENGTH; i++) {
+            sum += counts.get(i);
+            if (sum >= target) {
+                return Math.min(highestValueOf(i), maxValue.get());
+            }
+        }
+        return maxValue.get();
+    }
+
+    /**
+     * Gets the index of the counter of a value.
+     *
+     * @param value The value (0 to {@link LatencyHistogram#MAX_VALUE}).
+     * @return The index.
+     */
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // The value is shifted so that its highest bit is the highest bit of a sub-bucket
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT + (int) (value >>> shift) - SUB_BUCKET_HALF_COUNT;
+    }
+
+    /**
+     * Gets the highest value which is counted by a counter.
+     *
+     * @param index The index of the counter.
+     * @return The highest value.
+     */
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+        long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
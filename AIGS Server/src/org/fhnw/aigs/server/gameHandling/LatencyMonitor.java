@@ -0,0 +1,174 @@
+package org.fhnw.aigs.server.gameHandling;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.fhnw.aigs.server.common.HighLatencyPolicy;
+import org.fhnw.aigs.server.common.LogRouter;
+import org.fhnw.aigs.server.common.LoggingLevel;
+import org.fhnw.aigs.server.common.ServerConfiguration;
+
+/**
+ * Collects the round-trip times of the connections, which are measured with
+ * the {@link org.fhnw.aigs.commons.communication.KeepAliveMessage}s of the
+ * {@link KeepAliveManager}. The times are recorded in a
+ * {@link LatencyHistogram} per player and per game type. The statistics
+ * (median, 99th percentile and maximum) can be shown in the console (command
+ * "latency") and in the GUI.<br>
+ * If a maximum latency is defined in the {@link ServerConfiguration}, players
+ * whose median round-trip time exceeds it are handled according to the
+ * {@link HighLatencyPolicy}.<br>
+ * v1.0 Initial release
+ *
+ * @version 1.0
+ */
+public class LatencyMonitor {
+
+    /**
+     * Minimum number of samples of a player before the maximum latency is
+     * checked (single outliers are ignored).
+     */
+    private static final int MIN_SAMPLES = 5;
+
+    /**
+     * The histograms of the connected players, mapped by the player name.
+     */
+    private static final ConcurrentHashMap<String, LatencyHistogram> playerHistograms = new ConcurrentHashMap<>();
+    /**
+     * The histograms of the game types, mapped by the game name.
+     */
+    private static final ConcurrentHashMap<String, LatencyHistogram> gameHistograms = new ConcurrentHashMap<>();
+    /**
+     * The names of the players whose latency exceeded the maximum.
+     */
+    private static final Set<String> flaggedPlayers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private LatencyMonitor() {
+    }
+
+    /**
+     * Records a round-trip time.
+     *
+     * @param playerName The name of the player.
+     * @param gameName The name of the game of the player, or null if the
+     * player has not yet joined a game.
+     * @param roundTripTime The round-trip time in nanoseconds.
+     * @return True if the game of the player has to be terminated due to a
+     * too high latency (see {@link HighLatencyPolicy#terminateGame}).
+     */
+    public static boolean record(String playerName, String gameName, long roundTripTime) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(roundTripTime);
+        LatencyHistogram playerHistogram = getHistogram(playerHistograms, playerName);
+        playerHistogram.record(micros);
+        if (gameName != null) {
+            getHistogram(gameHistograms, gameName).record(micros);
+        }
+
+        int maxLatency = ServerConfiguration.getInstance().getMaxLatency();
+        if (maxLatency <= 0 || playerHistogram.getTotalCount() < MIN_SAMPLES) {
+            return false;
+        }
+        long median = playerHistogram.getValueAtPercentile(50);
+        if (median <= TimeUnit.MILLISECONDS.toMicros(maxLatency)) {
+            flaggedPlayers.remove(playerName);
+            return false;
+        }
+        if (flaggedPlayers.add(playerName) == true) {
+            LogRouter.log(LatencyMonitor.class.getName(), LoggingLevel.game, "The latency of the player {0} is too high (median {1} ms).", new Object[]{playerName, formatMillis(median)});
+        }
+        return ServerConfiguration.getInstance().getHighLatencyPolicy() == HighLatencyPolicy.terminateGame;
+    }
+
+    /**
+     * Removes the statistics of a player (e.g. the connection was closed).
+     * The statistics of the game type are kept.
+     *
+     * @param playerName The name of the player.
+     */
+    public static void removePlayer(String playerName) {
+        playerHistograms.remove(playerName);
+        flaggedPlayers.remove(playerName);
+    }
+
+    /**
+     * Creates a report of the round-trip times of all game types and players.
+     *
+     * @return The report (several lines).
+     */
+    public static String getReport() {
+        StringBuilder sb = new StringBuilder();
+        String header = String.format("%-30s %8s %10s %10s %10s%n", "", "Samples", "p50 [ms]", "p99 [ms]", "max [ms]");
+        sb.append("Round-trip times by game type:").append(System.lineSeparator());
+        sb.append(header);
+        appendHistograms(sb, gameHistograms, false);
+        sb.append(System.lineSeparator());
+        sb.append("Round-trip times by player:").append(System.lineSeparator());
+        sb.append(header);
+        appendHistograms(sb, playerHistograms, true);
+        return sb.toString();
+    }
+
+    /**
+     * Appends one line per histogram (sorted by name) to a report.
+     *
+     * @param sb The report.
+     * @param histograms The histograms.
+     * @param markFlagged If true, players with a too high latency are marked.
+     */
+    private static void appendHistograms(StringBuilder sb, Map<String, LatencyHistogram> histograms, boolean markFlagged) {
+        ArrayList<String> names = new ArrayList<>(histograms.keySet());
+        Collections.sort(names);
+        if (names.isEmpty() == true) {
+            sb.append("(no samples)").append(System.lineSeparator());
+        }
+        for (String name : names) {
+            LatencyHistogram histogram = histograms.get(name);
+            if (histogram == null) {
+                continue;
+            }
+            String label = name;
+            if (markFlagged == true && flaggedPlayers.contains(name) == true) {
+                label = name + " (!)";
+            }
+            sb.append(String.format("%-30s %8d %10s %10s %10s%n", label, histogram.getTotalCount(),
+                    formatMillis(histogram.getValueAtPercentile(50)),
+                    formatMillis(histogram.getValueAtPercentile(99)),
+                    formatMillis(histogram.getMax())));
+        }
+    }
+
+    /**
+     * Gets the histogram with the passed name or creates it.
+     *
+     * @param histograms The histograms.
+     * @param name The name.
+     * @return The histogram.
+     */
+    private static LatencyHistogram getHistogram(ConcurrentHashMap<String, LatencyHistogram> histograms, String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(name, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Formats microseconds as milliseconds.
+     *
+     * @param micros The value in microseconds.
+     * @return The formatted value.
+     */
+    private static String formatMillis(long micros) {
+        return String.format("%.1f", micros / 1000.0);
+    }
+}
@@ -0,0 +1,318 @@
+package org.fhnw.aigs.server.gameHandling;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.fhnw.aigs.commons.Game;
+import org.fhnw.aigs.commons.Player;
+
+/**
+ * Registry of all waiting and running games of the {@link GameManager}. The
+ * games are indexed by their id, by game type and party name, by the player
+ * names and (for the matchmaking) by the open public games of each game type.
+ * All lookups, registrations and removals are done without scanning the games
+ * and without a global lock, the registry can therefore be used by several
+ * broker threads concurrently.<br>
+ * Party names are unique per game type among the waiting and the running
+ * games.<br>
+ * v1.0 Initial release
+ *
+ * @version 1.0
+ */
+class LobbyRegistry {
+
+    /**
+     * Key of the party index (game type and party name).
+     */
+    private static final class PartyKey {
+
+        /**
+         * The name of the game (type).
+         */
+        private final String gameName;
+        /**
+         * The name of the party.
+         */
+        private final String partyName;
+
+        /**
+         * Creates a key.
+         *
+         * @param gameName The name of the game (type).
+         * @param partyName The name of the party.
+         */
+        private PartyKey(String gameName, String partyName) {
+            this.gameName = gameName;
+            this.partyName = partyName;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof PartyKey == false) {
+                return false;
+            }
+            PartyKey other = (PartyKey) obj;
+            return gameName.equals(other.gameName) && partyName.equals(other.partyName);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * gameName.hashCode() + partyName.hashCode();
+        }
+    }
+
+    /**
+     * The waiting games, mapped by their id.
+     */
+    private final ConcurrentHashMap<Long, Game> waitingGames = new ConcurrentHashMap<>();
+    /**
+     * The running games, mapped by their id.
+     */
+    private final ConcurrentHashMap<Long, Game> runningGames = new ConcurrentHashMap<>();
+    /**
+     * The waiting and running games, mapped by game type and party name.
+     */
+    private final ConcurrentHashMap<PartyKey, Game> parties = new ConcurrentHashMap<>();
+    /**
+     * The waiting public games which can be joined randomly, per game type
+     * in the order of their creation.
+     */
+    private final ConcurrentHashMap<String, ConcurrentLinkedQueue<Game>> openPublicGames = new ConcurrentHashMap<>();
+    /**
+     * The games of the players, mapped by the player name.
+     */
+    private final ConcurrentHashMap<String, Game> gamesByPlayer = new ConcurrentHashMap<>();
+
+    /**
+     * Registers a new waiting game. The party name of the game must be set.
+     *
+     * @param game The game.
+     * @return True if the game was registered, false if a party with the same
+     * game type and party name already exists.
+     */
+    boolean addWaitingGame(Game game) {
+        if (parties.putIfAbsent(getPartyKey(game), game) != null) {
+            return false;
+        }
+        waitingGames.put(game.getId(), game);
+        return true;
+    }
+
+    /**
+     * Adds a waiting public game to the games which can be joined randomly.
+     * Must be called after the game is marked as public.
+     *
+     * @param game The game.
+     */
+    void openPublicGame(Game game) {
+        if (game.isPrivateGame() == true || waitingGames.containsKey(game.getId()) == false) {
+            return;
+        }
+        ConcurrentLinkedQueue<Game> games = openPublicGames.get(game.getGameName());
+        if (games == null) {
+            openPublicGames.putIfAbsent(game.getGameName(), new ConcurrentLinkedQueue<Game>());
+            games = openPublicGames.get(game.getGameName());
+        }
+        games.add(game);
+    }
+
+    /**
+     * Gets the oldest open public game of a game type.
+     *
+     * @param gameName The name of the game (type).
+     * @return The game or null if there is no open public game.
+     */
+    Game getOpenPublicGame(String gameName) {
+        ConcurrentLinkedQueue<Game> games = openPublicGames.get(gameName);
+        if (games == null) {
+            return null;
+        }
+        Game game;
+        while ((game = games.peek()) != null) {
+            if (waitingGames.containsKey(game.getId()) == true) {
+                return game;
+            }
+            games.remove(game);             // Outdated entry (already started)
+        }
+        return null;
+    }
+
+    /**
+     * Registers a player of a game.
+     *
+     * @param player The player.
+     * @param game The game of the player.
+     */
+    void addPlayer(Player player, Game game) {
+        gamesByPlayer.put(player.getName(), game);
+    }
+
+    /**
+     * Marks a waiting game as running. The game is no longer offered to
+     * joining players.
+     *
+     * @param game The game.
+     * @return True if the game was marked, false if it was not waiting (e.g.
+     * already terminated).
+     */
+    boolean markRunning(Game game) {
+        if (waitingGames.remove(game.getId(), game) == false) {
+            return false;
+        }
+        runningGames.put(game.getId(), game);
+        removeOpenPublicGame(game);
+        return true;
+    }
+
+    /**
+     * Removes a game and its players from the registry.
+     *
+     * @param game The game.
+     * @return True if the game was running, false if it was waiting, null if
+     * the game was not registered (e.g. already removed).
+     */
+    Boolean remove(Game game) {
+        Boolean wasRunning;
+        if (runningGames.remove(game.getId(), game) == true) {
+            wasRunning = true;
+        } else if (waitingGames.remove(game.getId(), game) == true) {
+            wasRunning = false;
+            removeOpenPublicGame(game);
+        } else {
+            return null;
+        }
+        parties.remove(getPartyKey(game), game);
+        for (Player player : game.getPlayers()) {
+            gamesByPlayer.remove(player.getName(), game);
+        }
+        return wasRunning;
+    }
+
+    /**
+     * Gets a waiting game by its game type and party name.
+     *
+     * @param gameName The name of the game (type).
+     * @param partyName The name of the party.
+     * @return The game or null if there is no such waiting party.
+     */
+    Game getWaitingParty(String gameName, String partyName) {
+        Game game = getParty(gameName, partyName);
+        if (game == null || waitingGames.containsKey(game.getId()) == false) {
+            return null;
+        }
+        return game;
+    }
+
+    /**
+     * Checks whether a party of the defined game type and party name is
+     * running.
+     *
+     * @param gameName The name of the game (type).
+     * @param partyName The name of the party.
+     * @return True if the party is running, otherwise false.
+     */
+    boolean isPartyRunning(String gameName, String partyName) {
+        Game game = getParty(gameName, partyName);
+        return game != null && runningGames.containsKey(game.getId()) == true;
+    }
+
+    /**
+     * Checks whether a party of the defined game type and party name exists
+     * (waiting or running).
+     *
+     * @param gameName The name of the game (type).
+     * @param partyName The name of the party.
+     * @return True if the party exists, otherwise false.
+     */
+    boolean isPartyExisting(String gameName, String partyName) {
+        return getParty(gameName, partyName) != null;
+    }
+
+    /**
+     * Gets a running game by its id.
+     *
+     * @param id The id of the game.
+     * @return The game or null if there is no running game with this id.
+     */
+    Game getRunningGame(long id) {
+        return runningGames.get(id);
+    }
+
+    /**
+     * Gets a waiting or running game by its id.
+     *
+     * @param id The id of the game.
+     * @return The game or null if there is no game with this id.
+     */
+    Game getGame(long id) {
+        Game game = runningGames.get(id);
+        if (game == null) {
+            game = waitingGames.get(id);
+        }
+        return game;
+    }
+
+    /**
+     * Gets the game of a player.
+     *
+     * @param playerName The name of the player.
+     * @return The game or null if the player is in no game.
+     */
+    Game getGameOfPlayer(String playerName) {
+        return gamesByPlayer.get(playerName);
+    }
+
+    /**
+     * Gets a snapshot of the waiting games.
+     *
+     * @return The waiting games.
+     */
+    ArrayList<Game> getWaitingGames() {
+        return new ArrayList<>(waitingGames.values());
+    }
+
+    /**
+     * Gets a snapshot of the running games.
+     *
+     * @return The running games.
+     */
+    ArrayList<Game> getRunningGames() {
+        return new ArrayList<>(runningGames.values());
+    }
+
+    /**
+     * Removes a game from the open public games of its type.
+     *
+     * @param game The game.
+     */
+    private void removeOpenPublicGame(Game game) {
+        ConcurrentLinkedQueue<Game> games = openPublicGames.get(game.getGameName());
+        if (games != null) {
+            games.remove(game);             // The game is usually the head of the queue
+        }
+    }
+
+    /**
+     * Gets a waiting or running game by its game type and party name.
+     *
+     * @param gameName The name of the game (type).
+     * @param partyName The name of the party.
+     * @return The game or null if there is no such party.
+     */
+    private Game getParty(String gameName, String partyName) {
+        if (gameName == null) {
+            return null;
+        }
+        return parties.get(new PartyKey(gameName, String.valueOf(partyName)));
+    }
+
+    /**
+     * Gets the party key of a game.
+     *
+     * @param game The game.
+     * @return The key.
+     */
+    private static PartyKey getPartyKey(Game game) {
+        return new PartyKey(game.getGameName(), String.valueOf(game.getPartyName()));
+    }
+}
@@ -9,20 +9,24 @@ import java.util.Vector;
 import javax.swing.JList;
 import org.fhnw.aigs.server.common.LogRouter;
 import org.fhnw.aigs.server.common.LoggingLevel;
-import org.fhnw.aigs.server.gui.ServerGUI;
 
 /**
  * Recompile and reloads all the game classes. Reloading means it recompiles and distributes
  * them using several custom ant targets. Use this function whenever you changed
- * the game logic of your games. This method sends a ForceCloseMessage to all
- * clients and terminates all games.
+ * the game logic of your games. New games are created with the reloaded
+ * classes, the waiting and running games keep their classes until they are
+ * terminated (see {@link GameLoader#rebuildClasses}).
  * <br>v1.0 Origin Name 'ReloadClassesAction'
  * <br>v1.1 Refactored to 'RecompileClassesAction'
  * <br>v1.2 Bugfixes
  * <br>v1.3 Added some error handling to the compiling process
  * <br>v1.4 Minor changes due to changes on the GUI
  * <br>v1.5 Changing of logging
- * @version 1.5 (Raphael Stoeckli, 24.02.2015)
+ * <br>v1.6 Games are terminated from snapshots of the {@link GameManager}
+ * <br>v1.7 Games are not terminated anymore (versioned ClassLoaders)
+ * <br>v1.8 The Ant setup is only checked if the games cannot be compiled
+ * in-process (see {@link GameCompiler})
+ * @version 1.8
  */
 public class RecompileClassesAction implements ActionListener {
 
@@ -67,7 +71,8 @@ public class RecompileClassesAction implements ActionListener {
     /**
      * Recomplie and Reloads all games/classes. This means that all .jar files in the 
      * folder "games" will be unloaded and reloaded.
-     * This causes the termination of all running and waiting games.
+     * The running and waiting games are not terminated, they keep the old
+     * classes until they end.
      */
     public void recompileClasses(){
         
@@ -107,20 +112,6 @@ public class RecompileClassesAction implements ActionListener {
             //LOG//Logger.getLogger(RecompileClassesAction.class.getName()).log(Level.SEVERE, "An error occurred while compiling. Check appearance of the AIGS Commons project, appearance of the bin folder in the AIGS Commons project and the validiy of AIGS Common or the projects in the games folder.");
             LogRouter.log(RecompileClassesAction.class.getName(), LoggingLevel.severe, "An error occurred while compiling. Check appearance of the AIGS Commons project, appearance of the bin folder in the AIGS Commons project and the validiy of AIGS Common or the projects in the games folder.");
         }
-        for (int i = 0; i < GameManager.waitingGames.size(); i++) {
-            if(ServerConfiguration.getInstance().getIsConsoleMode() == false){
-                ServerGUI.getInstance().removeGameFromList(GameManager.waitingGames.get(i), true);                
-            }
-            GameManager.terminateGame(GameManager.waitingGames.get(i), "Server restarts.");
-
-        }
-        for (int i = 0; i < GameManager.runningGames.size(); i++) {
-            if(ServerConfiguration.getInstance().getIsConsoleMode() == false){
-                ServerGUI.getInstance().removeGameFromList(GameManager.runningGames.get(i), false);
-            }
-            GameManager.terminateGame(GameManager.runningGames.get(i), "Server restarts.");
-        }
-        User.removeAllNonPersistentUsers();                                     // Removes all previously created users
     }
   
     /**
@@ -144,6 +135,10 @@ public class RecompileClassesAction implements ActionListener {
      */
     private boolean checkSetup()
     {
+        if (GameCompiler.isAvailable() == true)
+        {
+            return true; // Compiled in-process, Ant is not needed (since v1.8)
+        }
         boolean state = true;
         String commonsPath = "../AIGS Commons";
         if (GameLoader.checkFolderExists(commonsPath, false) == false)
@@ -8,8 +8,7 @@ import java.io.InputStreamReader;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.xml.bind.JAXB;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.annotation.XmlElement;
@@ -28,10 +27,16 @@ import org.fhnw.aigs.server.common.ServerConfiguration;
  * v1.0 Initial release<br>
  * v1.1 Major changes in handling<br>
  * v1.1.1 Bugfixes<br>
- * v1.2 Changing of logging
+ * v1.2 Changing of logging<br>
+ * v1.3 Reference-counted sessions, non-persistent users are removed as soon
+ * as they are in no game anymore<br>
+ * v1.4 Users are looked up in a {@link UserDirectory} instead of scanning the
+ * user list<br>
+ * v1.5 Users are persisted in a journaled {@link UserStore} (only changes are
+ * written)
  *
  * @author Matthias Stöckli
- * @version 1.2 (Raphael Stoeckli, 24.02.2015)
+ * @version 1.5
  */
 @XmlRootElement(name = "User")
 public class User {
@@ -49,6 +54,25 @@ public class User {
      */
     @XmlTransient
     public static UserList users;
+    /**
+     * Index of the static user list by user name. Will not be marshalled.
+     * @since v1.4
+     */
+    @XmlTransient
+    private static final UserDirectory directory = new UserDirectory();
+    /**
+     * Lock of the modifications of the static user list. Will not be marshalled.
+     * @since v1.4
+     */
+    @XmlTransient
+    private static final Object listLock = new Object();
+    /**
+     * Persistent storage of the users (snapshot conf/usersXml.xml and journal
+     * conf/usersJournal.log). Will not be marshalled.
+     * @since v1.5
+     */
+    @XmlTransient
+    private static final UserStore store = new UserStore(new File("conf/usersXml.xml"), new File("conf/usersJournal.log"));
     /**
      * The user's unique ID.
      */
@@ -89,6 +113,15 @@ public class User {
      */
     @XmlTransient       
     private boolean aiUser;
+    
+    /**
+     * Number of games in which the user currently plays (sessions). A
+     * non-persistent user is removed from the static user list as soon as the
+     * count returns to zero, the count is then set to -1. Will not be marshalled.
+     * @since v1.3
+     */
+    @XmlTransient
+    private final AtomicInteger sessionCount = new AtomicInteger();
 
     /**
      * See {@link User#id}.
@@ -215,23 +248,13 @@ public class User {
     }  
     
     /**
-     * Calculates the next free user ID from the static user list
+     * Allocates the next free user ID
      * @since v1.1
      * @return Next free user ID
      */
     private static long getNextID()
     {
-        User.userCount = User.users.size();
-        long id = -1;
-        for (int i = 0; i < User.userCount; i++)
-        {
-            if (User.users.get(i).getId() > id)
-            {
-                id = User.users.get(i).getId();
-            }
-        }
-        id++;
-        return id;
+        return directory.nextId();
     }    
     
     /**
@@ -241,12 +264,7 @@ public class User {
      * @return The user with the specified name or null if there is none.
      */
     public static User getUserByName(String userName) {
-        for (User user : users) {
-            if (user.userName.equals(userName)) {
-                return user;
-            }
-        }
-        return null;
+        return directory.get(userName);
     }
     
     /**
@@ -255,7 +273,12 @@ public class User {
      */
     public static void addUserToUserList(User user)
     {
-        users.add(user);
+        directory.put(user);
+        synchronized (listLock)
+        {
+            users.add(user);
+            userCount = users.size();
+        }
         if (ServerConfiguration.getInstance().getIsAnonymousLoginAllowed() == true)
         {
             if (user.isNonPersistentUser() == true)
@@ -267,8 +290,6 @@ public class User {
         {
             ServerGUI.getInstance().addUserToList(user); // Add all users
         }
-        
-        userCount = users.size();
     }
     
     /**
@@ -278,11 +299,15 @@ public class User {
      */
     public static void removeUserFromUserList(User user)
     {
+        directory.remove(user);
         try
         {
         ServerGUI.getInstance().removeUserFromList(user);
-        users.remove(user);
-        userCount = users.size();                                                          // Update user Count 
+        synchronized (listLock)
+        {
+            users.remove(user);
+            userCount = users.size();                                                      // Update user Count 
+        }
         }
         catch(Exception e)
         {
@@ -301,8 +326,7 @@ public class User {
         {
             if (users.get(i).isNonPersistentUser() == true)
             {
-                removeUserFromUserList(users.get(i));
-                users.remove(i);
+                removeUserFromUserList(users.get(i));                          // Removes the user also from the directory
             }
         }
         if (users.size() == 0)
@@ -333,6 +357,140 @@ public class User {
     }
     
 
+    /**
+     * Opens a session of the user (the user joined a game).
+     * @return True if the session was opened, false if the user was already
+     * removed from the static user list (last session closed)
+     * @since v1.3
+     */
+    public boolean acquireSession()
+    {
+        while (true)
+        {
+            int count = sessionCount.get();
+            if (count < 0)
+            {
+                return false;
+            }
+            if (sessionCount.compareAndSet(count, count + 1) == true)
+            {
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Closes a session of the user (the game of the user has ended). If it was
+     * the last session of a non-persistent user, the user is removed from the
+     * static user list.
+     * @since v1.3
+     */
+    public void releaseSession()
+    {
+        while (true)
+        {
+            int count = sessionCount.get();
+            if (count <= 0)
+            {
+                return;                                                         // No open session
+            }
+            if (sessionCount.compareAndSet(count, count - 1) == true)
+            {
+                if (count == 1 && this.isNonPersistentUser() == true && sessionCount.compareAndSet(0, -1) == true)
+                {
+                    removeUserFromUserList(this);
+                }
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Removes a non-persistent user from the static user list if he or she
+     * has no open session (is in no game), e.g. after logging off or after the
+     * connection was closed without joining a game. Users in a game are
+     * removed when their last session is closed (see {@link User#releaseSession()}).
+     * @param userName The user's name.
+     * @since v1.3
+     */
+    public static void reclaimUserByName(String userName)
+    {
+        User user = directory.get(userName);
+        if (user != null && user.isNonPersistentUser() == true && user.isAI() == false && user.sessionCount.compareAndSet(0, -1) == true)
+        {
+            removeUserFromUserList(user);
+        }
+    }
+    
+    /**
+     * Opens a session of the user with the passed name (see {@link User#acquireSession()})
+     * @param userName The user's name.
+     * @since v1.3
+     */
+    public static void acquireSessionByName(String userName)
+    {
+        User user = getUserWithSessionByName(userName);
+        if (user != null)
+        {
+            user.acquireSession();
+        }
+    }
+    
+    /**
+     * Closes a session of the user with the passed name (see {@link User#releaseSession()})
+     * @param userName The user's name.
+     * @since v1.3
+     */
+    public static void releaseSessionByName(String userName)
+    {
+        User user = getUserWithSessionByName(userName);
+        if (user != null)
+        {
+            user.releaseSession();
+        }
+    }
+    
+    /**
+     * Opens a session of the AI dummy user with the passed name. The dummy is
+     * created if it does not exist yet and is shared by all games of the same
+     * type. It is removed as soon as the last of these games has ended.
+     * @param userName The name of the AI dummy.
+     * @since v1.3
+     */
+    public static synchronized void acquireAISession(String userName)
+    {
+        User aiDummy = getUserWithSessionByName(userName);
+        if (aiDummy != null && aiDummy.isAI() == true && aiDummy.acquireSession() == true)
+        {
+            return;
+        }
+        aiDummy = directory.get(userName);
+        if (aiDummy != null && aiDummy.isAI() == true)
+        {
+            directory.remove(aiDummy);                                          // Removed after its last session (still in the list)
+        }
+        aiDummy = new User(userName, "");                                       // Create a AI dummy for visual purpose
+        aiDummy.setAI(true);
+        aiDummy.acquireSession();
+        User.addUserToUserList(aiDummy);                                        // Add dummy AI user to User list
+    }
+    
+    /**
+     * Gets a user by his or her name, which was not yet removed after its last
+     * session
+     * @param userName The user's name.
+     * @return The user with the specified name or null if there is none.
+     * @since v1.3
+     */
+    private static User getUserWithSessionByName(String userName)
+    {
+        User user = directory.get(userName);
+        if (user != null && user.sessionCount.get() >= 0) {
+            return user;
+        }
+        return null;
+    }
+
     /**
      * Generates a password or identification code based on the specified
      * length. It consists of alphebetic values (a-Z).
@@ -379,6 +537,7 @@ public class User {
         try (BufferedReader reader = new BufferedReader(inputStreamReader)) {
             String input = "";
             users = new User.UserList();
+            directory.reset(users);
 
             // Read file line by line
             while ((input = reader.readLine()) != null) {
@@ -418,30 +577,21 @@ public class User {
         IdentificationResponseMessage loginMessage;
        if (ServerConfiguration.getInstance().getIsAnonymousLoginAllowed() == true) // No password or Username required
        {
-           User adHoc = null;
            String tempUsername = userName;
            if (tempUsername.length() == 0)
            {
                tempUsername = "Player";
            }
            String tempPassword = password;
-           while (true) // Check until a valid user is determined
+           loginMessage = User.checkCredentials(tempUsername, tempPassword, isMultiLoginAllowed);
+           if (loginMessage.getLoginSuccessful() == false) // A user with these credentials already exists -> choose other name and password
            {
-                loginMessage = User.checkCredentials(tempUsername, tempPassword, isMultiLoginAllowed);
-                if (loginMessage.getLoginSuccessful() == false) // A user with these credentials already exists -> choose other name and password
-                {
-                    tempUsername = getUnusedUsername(tempUsername);
-                    tempPassword = User.generateRandomPassword(8);
-                    adHoc = new User(tempUsername, tempPassword);
-                    adHoc.setAnonymousUser(true);
-                    //User.users.add(adHoc);
-                    User.addUserToUserList(adHoc);
-                    continue; 
-                }
-                else
-                {
-                  break;
-                }
+               tempPassword = User.generateRandomPassword(8);
+               User adHoc = new User(tempUsername, tempPassword);
+               adHoc.setAnonymousUser(true);
+               directory.addWithUnusedName(adHoc, tempUsername);               // Reserves an unused name
+               User.addUserToUserList(adHoc);
+               loginMessage = User.checkCredentials(adHoc.getUserName(), tempPassword, isMultiLoginAllowed);
            }
            loginMessage.setPassword(tempPassword);
        }
@@ -454,38 +604,6 @@ public class User {
        return loginMessage;
     }
     
-    /**
-     * Returns an unused user name. This method is importatnt for anonymous login (Ad-hoc users)
-     * @param template The initial username to check
-     * @return A currently not used user name
-     * @since v1.1
-     */
-    private static String getUnusedUsername(String template)
-    {
-        int counter = 1;
-        boolean match = false;
-        String userName = template;
-        while(true)
-        {
-           match = false;
-           for(User user : User.users)
-            {
-                if (user.getUserName().equals(userName) == true)
-                {
-                    match = true;
-                    counter++;
-                    userName = template + Integer.toString(counter);
-                    break;
-                }
-            }
-           if (match == false)
-           {
-               break;
-           }
-        }
-        return userName;
-    }
-
     /**
      * Checks whether a login attempt was successful of not and generates a
      * IdentificiationResponseMessage based on the result.
@@ -501,48 +619,37 @@ public class User {
     private static IdentificationResponseMessage checkCredentials(String userName, String identificationCode, boolean isMultiLoginAllowed) {
         IdentificationResponseMessage identificationResponseMessage = new IdentificationResponseMessage();
 
-        // Iterate through all users
-        for (User user : User.users) {
-            // Check for correct user name and password. If the name and the
-            // identification code do not match, set the respective flags 
-            // in the IdentificationResponseMessage
-            if (user.getUserName().equals(userName) == false || user.getIdentificationCode().equals(identificationCode) == false) {
-                identificationResponseMessage.setLoginSuccessful(false);
-                identificationResponseMessage.setReason("User name or password is incorrect.");
-                // Check if the user is not logged in. If so, the login attempt
-                // is successful.
-            } else {
-                if (user.isLoggedIn() == false) {
-                    user.setLoggedIn(true);
-                    identificationResponseMessage.setLoginName(user.getUserName());
-                    identificationResponseMessage.setLoginSuccessful(true);
-                    identificationResponseMessage.setReason("Login successful.");
-                    break;
-
-                    // If the user is already logged in, check whether multi login
-                    // is allowed. If so, generate a "doppelganger", a copy of the
-                    // current user with a number added to the name.
-                } else {
-                    if (isMultiLoginAllowed) {
-                        User newUser = User.generateDoppelganger(user);
-                        newUser.setDoppelganger(true);
-                        identificationResponseMessage.setLoginName(newUser.getUserName());
-                        identificationResponseMessage.setLoginSuccessful(true);
-                        identificationResponseMessage.setReason("Created doppelganger. Login successful.");
-                        User.addUserToUserList(newUser);
-                        break;
-
-                        // If the user is already logged in and multi login is not
-                        // allowed, set the flags accordingly.
-                    } else {
-                        user.setLoggedIn(true);
-                        identificationResponseMessage.setLoginName(user.getUserName());
-                        identificationResponseMessage.setLoginSuccessful(false);
-                        identificationResponseMessage.setReason("User is already logged in.");
-                        return identificationResponseMessage;
-                    }
-                }
-            }
+        // Check for correct user name and password. If the name and the
+        // identification code do not match, set the respective flags 
+        // in the IdentificationResponseMessage
+        User user = directory.get(userName);
+        if (user == null || user.getIdentificationCode().equals(identificationCode) == false) {
+            identificationResponseMessage.setLoginSuccessful(false);
+            identificationResponseMessage.setReason("User name or password is incorrect.");
+            // Check if the user is not logged in. If so, the login attempt
+            // is successful.
+        } else if (user.logIn() == true) {
+            identificationResponseMessage.setLoginName(user.getUserName());
+            identificationResponseMessage.setLoginSuccessful(true);
+            identificationResponseMessage.setReason("Login successful.");
+
+            // If the user is already logged in, check whether multi login
+            // is allowed. If so, generate a "doppelganger", a copy of the
+            // current user with a number added to the name.
+        } else if (isMultiLoginAllowed) {
+            User newUser = User.generateDoppelganger(user);
+            newUser.setDoppelganger(true);
+            identificationResponseMessage.setLoginName(newUser.getUserName());
+            identificationResponseMessage.setLoginSuccessful(true);
+            identificationResponseMessage.setReason("Created doppelganger. Login successful.");
+            User.addUserToUserList(newUser);
+
+            // If the user is already logged in and multi login is not
+            // allowed, set the flags accordingly.
+        } else {
+            identificationResponseMessage.setLoginName(user.getUserName());
+            identificationResponseMessage.setLoginSuccessful(false);
+            identificationResponseMessage.setReason("User is already logged in.");
         }
 
         return identificationResponseMessage;
@@ -550,33 +657,56 @@ public class User {
     }
 
     /**
-     * Remove a player from the list of active players/users. The user will not be removed 
+     * Marks the user as logged in.
+     * @return True if the user was logged in, false if he or she was already
+     * logged in
+     * @since v1.4
+     */
+    private synchronized boolean logIn() {
+        if (loggedIn == true) {
+            return false;
+        }
+        loggedIn = true;
+        return true;
+    }
+
+    /**
+     * Remove a player from the list of active players/users. A persistent user will not be removed 
      * from the static user list. Use method {@link User#removeUserFromUserList(org.fhnw.aigs.server.gameHandling.User)} 
-     * if a user must be removed from the static user list.
+     * if a user must be removed from the static user list. A non-persistent user without open session
+     * is removed (see {@link User#reclaimUserByName(java.lang.String)}).
      *
      * @param name The name of the player to be logged off.
      */
     public static void logOffUserByName(String name) {
-        for (int i = 0; i < users.size(); i++) {
-            User user = users.get(i);
-            if (user.getUserName().equals(name)) {
-                users.get(i).loggedIn = false;
-                //LOG//Logger.getLogger(User.class.getName()).log(Level.INFO, "Marked player " + user.getUserName() + " as being offline.", users.size());
-                LogRouter.log(User.class.getName(), LoggingLevel.info, "Marked player " + user.getUserName() + " as being offline.", users.size());
+        User user = directory.get(name);
+        if (user != null) {
+            synchronized (user) {
+                user.loggedIn = false;
             }
+            //LOG//Logger.getLogger(User.class.getName()).log(Level.INFO, "Marked player " + user.getUserName() + " as being offline.", users.size());
+            LogRouter.log(User.class.getName(), LoggingLevel.info, "Marked player " + user.getUserName() + " as being offline.", users.size());
+            reclaimUserByName(name);
         }
     }
 
     /**
-     * Returns a list of stored users from the file conf/usersXml.xml
+     * Returns a list of stored users from the file conf/usersXml.xml and the
+     * journal conf/usersJournal.log (see {@link UserStore})
      * @return List of registred users
      */
     public static UserList readUsersFromXml() {
-        // Load the users config file and check for the existance
-        File userConfigFile = new File("conf/usersXml.xml");
-        if (userConfigFile.exists()) {
-            // Parse the user configuration file's content directly using JAXB
-            users = (User.UserList) JAXB.unmarshal(userConfigFile, User.UserList.class);
+        UserList storedUsers = null;
+        try
+        {
+            storedUsers = store.load();
+        }
+        catch(Exception ex) // All other exceptions
+        {
+            LogRouter.log(User.class.getName(), LoggingLevel.waring, "User configuration file could not be read.", ex);
+        }
+        if (storedUsers != null) {
+            users = storedUsers;
             //LOG//Logger.getLogger(User.class.getName()).log(Level.INFO, "Read user configuration.");
             LogRouter.log(User.class.getName(), LoggingLevel.system, "Read user configuration.");
         } else {
@@ -584,27 +714,26 @@ public class User {
             LogRouter.log(User.class.getName(), LoggingLevel.system, "User configuration file could not be read. Creating an empty user list.");
             users = new UserList();
         }
+        directory.reset(users);
         return users;
     }
     
     /**
-     * Saves the static user list to the file conf/usersXml.xml
+     * Saves the static user list to the file conf/usersXml.xml. Only the
+     * changes since the last save are appended to the journal
+     * conf/usersJournal.log, the journal is compacted into the XML file from
+     * time to time (see {@link UserStore}).
      * @since v1.1
      */
     public static void writeUsersToXml(){
         UserList tempList = new UserList();
-        for(int i = 0; i < users.size(); i++)
+        synchronized (listLock)
         {
-            if (users.get(i).isNonPersistentUser() == true)
-            {
-                continue; // Skip non-persistent users
-            }
-            tempList.add(users.get(i));
+            tempList.addAll(users);                                             // Non-persistent users are skipped by the store
         }
-        File userConfigFile = new File("conf/usersXml.xml");
         try
         {
-            JAXB.marshal(tempList, userConfigFile);
+            store.save(tempList);
             //LOG//Logger.getLogger(User.class.getName()).log(Level.INFO, "Write user configuration.");
             LogRouter.log(User.class.getName(), LoggingLevel.system, "Write user configuration.");
         }
@@ -616,6 +745,16 @@ public class User {
     }
     
 
+    /**
+     * Closes the user journal (see {@link UserStore}). Called when the server
+     * shuts down.
+     * @since v1.5
+     */
+    public static void closeUserStore()
+    {
+        store.close();
+    }
+
     /**
      * Reads users from a text file and writes it to an xml file.
      *
@@ -635,40 +774,14 @@ public class User {
      * @param loggedInUser The "original" user.
      * @return The "doppelganger".
      */
-    public static synchronized User generateDoppelganger(User loggedInUser) {
+    public static User generateDoppelganger(User loggedInUser) {
         // Create a new user with the same identification
         User doppelganger = new User();
-        doppelganger.setId(userCount++);
+        doppelganger.setId(getNextID());
         doppelganger.setIdentificationCode(loggedInUser.getIdentificationCode());
 
-        // Get the old name
-        String newName = "";
-        String loggedInUserName = loggedInUser.getUserName();
-        ArrayList<User> existingDoppelgangers = new ArrayList<>();
-
-        for (User user : users) {
-            if (user.getUserName().startsWith(loggedInUserName)) {
-                existingDoppelgangers.add(user);
-            }
-        }
-        if (existingDoppelgangers.size() > 0) {
-            // The last doppelganger must be the newest one
-            User newestDoppelganger = existingDoppelgangers.get(existingDoppelgangers.size() - 1);
-            // Check if he or she has a number at the end of the user name
-            Pattern p = Pattern.compile("(\\w*\\.\\w*)(\\d)");
-            Matcher m = p.matcher(newestDoppelganger.getUserName());
-            if (m.find()) {
-                String lastNumber = m.group(2);
-
-                // Try to add 1 to the user name.
-                int parsedLastNumber = Integer.parseInt(lastNumber) + 1;
-                newName = m.group(1) + parsedLastNumber++;
-            } else {
-                newName = loggedInUserName + "1";
-            }
-            doppelganger.setUserName(newName);
-        }
-
+        // Use the old name with the next free number
+        directory.addWithUnusedName(doppelganger, loggedInUser.getUserName());
         return doppelganger;
     }
 
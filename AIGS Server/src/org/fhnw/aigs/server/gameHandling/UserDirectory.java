@@ -0,0 +1,186 @@
+package org.fhnw.aigs.server.gameHandling;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Index of the users of the static user list ({@link User#users}) by their
+ * user name. The directory is used by the static methods of {@link User}, so
+ * that a login, a logoff or the creation of an anonymous user does not depend
+ * on the number of registered users. It also allocates the user IDs and
+ * unused user names without scanning the users.<br>
+ * All methods can be called by several threads concurrently.<br>
+ * v1.0 Initial release
+ *
+ * @version 1.0
+ */
+class UserDirectory {
+
+    /**
+     * The users, mapped by their user name.
+     */
+    private final ConcurrentHashMap<String, User> usersByName = new ConcurrentHashMap<>();
+    /**
+     * The allocated suffixes of each name template (see
+     * {@link UserDirectory#addWithUnusedName}).
+     */
+    private final ConcurrentHashMap<String, NameCounter> nameCounters = new ConcurrentHashMap<>();
+    /**
+     * The templates of the names allocated by {@link UserDirectory#addWithUnusedName},
+     * mapped by the allocated name. Used to free the suffix of a removed user.
+     */
+    private final ConcurrentHashMap<String, String> generatedNames = new ConcurrentHashMap<>();
+    /**
+     * The next free user ID.
+     */
+    private final AtomicLong nextId = new AtomicLong();
+
+    /**
+     * Replaces the content of the directory by the passed users (e.g. after
+     * the user list was loaded).
+     *
+     * @param users The users.
+     */
+    void reset(List<User> users) {
+        usersByName.clear();
+        nameCounters.clear();
+        generatedNames.clear();
+        nextId.set(0);
+        for (User user : users) {
+            put(user);
+        }
+    }
+
+    /**
+     * Gets a user by his or her name.
+     *
+     * @param userName The user's name.
+     * @return The user or null if there is none.
+     */
+    User get(String userName) {
+        if (userName == null) {
+            return null;
+        }
+        return usersByName.get(userName);
+    }
+
+    /**
+     * Adds a user. An existing user with the same name is replaced.
+     *
+     * @param user The user.
+     */
+    void put(User user) {
+        usersByName.put(user.getUserName(), user);
+        reserveId(user.getId());
+    }
+
+    /**
+     * Adds a user with an unused name. If the template is already used, the
+     * lowest free number is appended (e.g. "Player2", "Player3"). Numbers of
+     * removed users are reused.
+     *
+     * @param user The user. The user name is set by this method.
+     * @param template The template of the name.
+     */
+    void addWithUnusedName(User user, String template) {
+        user.setUserName(template);
+        if (usersByName.putIfAbsent(template, user) == null) {
+            return;
+        }
+        NameCounter counter = nameCounters.get(template);
+        if (counter == null) {
+            nameCounters.putIfAbsent(template, new NameCounter());
+            counter = nameCounters.get(template);
+        }
+        while (true) {
+            String userName = template + Integer.toString(counter.allocate());
+            user.setUserName(userName);
+            if (usersByName.putIfAbsent(userName, user) == null) {
+                generatedNames.put(userName, template);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes a user. If the name was allocated by {@link UserDirectory#addWithUnusedName},
+     * its number is freed.
+     *
+     * @param user The user.
+     */
+    void remove(User user) {
+        String userName = user.getUserName();
+        if (usersByName.remove(userName, user) == false) {
+            return;
+        }
+        String template = generatedNames.remove(userName);
+        if (template != null) {
+            NameCounter counter = nameCounters.get(template);
+            if (counter != null) {
+                counter.free(Integer.parseInt(userName.substring(template.length())));
+            }
+        }
+    }
+
+    /**
+     * Allocates a new user ID.
+     *
+     * @return The ID.
+     */
+    long nextId() {
+        return nextId.getAndIncrement();
+    }
+
+    /**
+     * Ensures that an ID of an existing user is not allocated again.
+     *
+     * @param id The ID of an existing user.
+     */
+    private void reserveId(long id) {
+        long current = nextId.get();
+        while (id >= current && nextId.compareAndSet(current, id + 1) == false) {
+            current = nextId.get();
+        }
+    }
+
+    /**
+     * Allocator of the numbers appended to a name template. Freed numbers are
+     * allocated again before new ones, the lowest first.
+     */
+    private static final class NameCounter {
+
+        /**
+         * The highest allocated number.
+         */
+        private final AtomicInteger highest = new AtomicInteger(1);
+        /**
+         * The freed numbers (lower than {@link NameCounter#highest}).
+         */
+        private final ConcurrentSkipListSet<Integer> freed = new ConcurrentSkipListSet<>();
+
+        /**
+         * Allocates the lowest free number.
+         *
+         * @return The number (at least 2).
+         */
+        int allocate() {
+            Integer number = freed.pollFirst();
+            if (number != null) {
+                return number;
+            }
+            return highest.incrementAndGet();
+        }
+
+        /**
+         * Frees a number, so that it can be allocated again.
+         *
+         * @param number The number.
+         */
+        void free(int number) {
+            freed.add(number);
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package org.fhnw.aigs.server.gameHandling;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32;
+import javax.xml.bind.JAXB;
+import org.fhnw.aigs.server.common.LogRouter;
+import org.fhnw.aigs.server.common.LoggingLevel;
+
+/**
+ * Persistent storage of the (persistent) users. The users are stored in a
+ * snapshot (the XML file conf/usersXml.xml, see {@link User.UserList}) and an
+ * append-only journal (conf/usersJournal.log) of the changes since the
+ * snapshot. A save only appends the changed and removed users to the journal,
+ * as soon as the journal is larger than the snapshot, it is compacted into a
+ * new snapshot.<br>
+ * Crash safety: The records of one save are written as one batch with a
+ * commit record (number of records and CRC32) and forced to the disk with one
+ * fsync. Incomplete batches at the end of the journal (e.g. after a crash)
+ * are ignored and truncated when the users are loaded. A new snapshot is
+ * written to a temporary file and atomically renamed before the journal is
+ * truncated, so that the journal can be replayed on every snapshot.<br>
+ * Journal format (one record per line, fields separated by tabs and URL
+ * encoded):
+ * <ul>
+ * <li>P id userName [identificationCode] (user added or changed, the
+ * identification code is omitted if it is null)</li>
+ * <li>D id (user removed)</li>
+ * <li>C count crc (commit of the preceding records)</li>
+ * </ul>
+ * v1.0 Initial release
+ *
+ * @version 1.0
+ */
+class UserStore {
+
+    /**
+     * Minimum number of journal records before the journal is compacted.
+     */
+    private static final int COMPACTION_THRESHOLD = 1000;
+
+    /**
+     * The snapshot file.
+     */
+    private final File snapshotFile;
+    /**
+     * The journal file.
+     */
+    private final File journalFile;
+    /**
+     * The stored state of the users (user name and identification code),
+     * mapped by the user ID in the order of the snapshot.
+     */
+    private final LinkedHashMap<Long, String[]> storedUsers = new LinkedHashMap<>();
+    /**
+     * Number of records in the journal.
+     */
+    private int journalRecords;
+    /**
+     * The open journal (null before the first save).
+     */
+    private FileChannel journal;
+
+    /**
+     * Creates a store.
+     *
+     * @param snapshotFile The snapshot file.
+     * @param journalFile The journal file.
+     */
+    UserStore(File snapshotFile, File journalFile) {
+        this.snapshotFile = snapshotFile;
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Loads the users from the snapshot and replays the journal.
+     *
+     * If the users could not be loaded, the stored state is empty, so that a
+     * following save does not remove the stored users.
+     *
+     * @return The users or null if neither a snapshot nor a journal exists.
+     * @throws IOException Thrown if the journal could not be read.
+     */
+    synchronized User.UserList load() throws IOException {
+        storedUsers.clear();
+        journalRecords = 0;
+        if (snapshotFile.exists() == false && journalFile.exists() == false) {
+            return null;
+        }
+        try {
+            if (snapshotFile.exists() == true) {
+                User.UserList snapshot = JAXB.unmarshal(snapshotFile, User.UserList.class);
+                for (User user : snapshot) {
+                    storedUsers.put(user.getId(), new String[]{user.getUserName(), user.getIdentificationCode()});
+                }
+            }
+            if (journalFile.exists() == true) {
+                replayJournal();
+            }
+        } catch (IOException | RuntimeException ex) {
+            storedUsers.clear();
+            throw ex;
+        }
+
+        User.UserList users = new User.UserList();
+        for (Map.Entry<Long, String[]> entry : storedUsers.entrySet()) {
+            User user = new User();
+            user.setId(entry.getKey());
+            user.setUserName(entry.getValue()[0]);
+            user.setIdentificationCode(entry.getValue()[1]);
+            users.add(user);
+        }
+        return users;
+    }
+
+    /**
+     * Saves the persistent users. Only the differences to the stored state are
+     * appended to the journal (in one batch with one fsync).
+     *
+     * @param users The users (non-persistent users are skipped).
+     * @throws IOException Thrown if the journal could not be written.
+     */
+    synchronized void save(List<User> users) throws IOException {
+        StringBuilder batch = new StringBuilder();
+        int count = 0;
+        LinkedHashMap<Long, String[]> current = new LinkedHashMap<>();
+        for (User user : users) {
+            if (user.isNonPersistentUser() == true) {
+                continue; // Skip non-persistent users
+            }
+            String[] state = new String[]{user.getUserName(), user.getIdentificationCode()};
+            current.put(user.getId(), state);
+            String[] stored = storedUsers.get(user.getId());
+            if (stored == null || Objects.equals(stored[0], state[0]) == false || Objects.equals(stored[1], state[1]) == false) {
+                if (state[1] == null) {
+                    appendRecord(batch, "P", Long.toString(user.getId()), state[0]);
+                } else {
+                    appendRecord(batch, "P", Long.toString(user.getId()), state[0], state[1]);
+                }
+                count++;
+            }
+        }
+        for (Long id : storedUsers.keySet()) {
+            if (current.containsKey(id) == false) {
+                appendRecord(batch, "D", Long.toString(id));
+                count++;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        byte[] records = batch.toString().getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(records, 0, records.length);
+        appendRecord(batch, "C", Integer.toString(count), Long.toHexString(crc.getValue()));
+
+        openJournal();
+        ByteBuffer buffer = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining() == true) {
+            journal.write(buffer);
+        }
+        journal.force(false);
+        journalRecords += count;
+        storedUsers.clear();
+        storedUsers.putAll(current);
+
+        if (journalRecords > Math.max(COMPACTION_THRESHOLD, storedUsers.size())) {
+            compact();
+        }
+    }
+
+    /**
+     * Closes the journal.
+     */
+    synchronized void close() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ex) {
+                LogRouter.log(UserStore.class.getName(), LoggingLevel.waring, "The user journal could not be closed.", ex);
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * Writes the stored state into a new snapshot and truncates the journal.
+     *
+     * @throws IOException Thrown if the snapshot could not be written.
+     */
+    private void compact() throws IOException {
+        User.UserList snapshot = new User.UserList();
+        for (Map.Entry<Long, String[]> entry : storedUsers.entrySet()) {
+            User user = new User();
+            user.setId(entry.getKey());
+            user.setUserName(entry.getValue()[0]);
+            user.setIdentificationCode(entry.getValue()[1]);
+            snapshot.add(user);
+        }
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            JAXB.marshal(snapshot, out);
+            out.flush();
+            out.getFD().sync();
+        }
+        Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // The journal is replayable on the new snapshot, a crash before the truncation does no harm
+        openJournal();
+        journal.truncate(0);
+        journal.force(true);
+        journalRecords = 0;
+        LogRouter.log(UserStore.class.getName(), LoggingLevel.system, "Compacted the user journal into a new snapshot.");
+    }
+
+    /**
+     * Applies the committed batches of the journal to the stored state. An
+     * incomplete or corrupt batch at the end is truncated.
+     *
+     * @throws IOException Thrown if the journal could not be read.
+     */
+    private void replayJournal() throws IOException {
+        byte[] content = Files.readAllBytes(journalFile.toPath());
+        ArrayList<String[]> pending = new ArrayList<>();
+        int batchStart = 0;
+        int committedEnd = 0;
+        int lineStart = 0;
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] != '\n') {
+                continue;
+            }
+            String[] fields = parseRecord(new String(content, lineStart, i - lineStart, StandardCharsets.UTF_8));
+            lineStart = i + 1;
+            if (fields == null) {
+                break;
+            }
+            if (fields[0].equals("C") == false) {
+                pending.add(fields);
+                continue;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(content, batchStart, committedEndOfRecords(content, batchStart, pending.size()) - batchStart);
+            if (isValidCommit(fields, pending.size(), crc.getValue()) == false) {
+                break; // Torn or corrupt batch
+            }
+            for (String[] record : pending) {
+                applyRecord(record);
+            }
+            journalRecords += pending.size();
+            pending.clear();
+            batchStart = lineStart;
+            committedEnd = lineStart;
+        }
+        if (committedEnd < content.length) {
+            LogRouter.log(UserStore.class.getName(), LoggingLevel.waring, "Discarded an incomplete batch at the end of the user journal.");
+            try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(committedEnd);
+                channel.force(true);
+            }
+        }
+        LogRouter.log(UserStore.class.getName(), LoggingLevel.system, "Replayed {0} records of the user journal.", journalRecords);
+    }
+
+    /**
+     * Checks whether a commit record matches the preceding records of its
+     * batch.
+     *
+     * @param fields The fields of the commit record.
+     * @param records The number of preceding records.
+     * @param crc The CRC32 of the preceding records.
+     * @return True if the commit record is valid and matches the records.
+     */
+    private static boolean isValidCommit(String[] fields, int records, long crc) {
+        if (fields.length != 3) {
+            return false;
+        }
+        try {
+            return Integer.parseInt(fields[1]) == records && Long.parseLong(fields[2], 16) == crc;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Gets the end of a number of records (lines) in the journal.
+     *
+     * @param content The content of the journal.
+     * @param start The start of the first record.
+     * @param records The number of records.
+     * @return The offset after the last record.
+     */
+    private static int committedEndOfRecords(byte[] content, int start, int records) {
+        int offset = start;
+        for (int i = 0; i < records; i++) {
+            while (content[offset] != '\n') {
+                offset++;
+            }
+            offset++;
+        }
+        return offset;
+    }
+
+    /**
+     * Applies one record to the stored state.
+     *
+     * @param record The fields of the record.
+     */
+    private void applyRecord(String[] record) {
+        long id = Long.parseLong(record[1]);
+        if (record[0].equals("P") == true && (record.length == 3 || record.length == 4)) {
+            storedUsers.put(id, new String[]{record[2], record.length == 4 ? record[3] : null});
+        } else if (record[0].equals("D") == true) {
+            storedUsers.remove(id);
+        }
+    }
+
+    /**
+     * Parses one record.
+     *
+     * @param line The line of the record.
+     * @return The decoded fields or null if the record is invalid.
+     */
+    private static String[] parseRecord(String line) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length < 2) {
+            return null;
+        }
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = URLDecoder.decode(fields[i], "UTF-8");
+            }
+            if (fields[0].equals("C") == false) {
+                Long.parseLong(fields[1]);
+            }
+        } catch (IllegalArgumentException | UnsupportedEncodingException ex) {
+            return null;
+        }
+        return fields;
+    }
+
+    /**
+     * Appends a record (one line) to a batch.
+     *
+     * @param batch The batch.
+     * @param fields The fields of the record.
+     */
+    private static void appendRecord(StringBuilder batch, String... fields) {
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                if (i > 0) {
+                    batch.append('\t');
+                }
+                batch.append(URLEncoder.encode(fields[i] == null ? "" : fields[i], "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);    // UTF-8 is always supported
+        }
+        batch.append('\n');
+    }
+
+    /**
+     * Opens the journal for appending (if not already open).
+     *
+     * @throws IOException Thrown if the journal could not be opened.
+     */
+    private void openJournal() throws IOException {
+        if (journal == null) {
+            journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        journal.position(journal.size());
+    }
+}
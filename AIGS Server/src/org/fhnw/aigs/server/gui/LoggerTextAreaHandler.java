@@ -1,53 +1,153 @@
 package org.fhnw.aigs.server.gui;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.ErrorManager;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import javax.swing.JTextArea;
-import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import org.fhnw.aigs.server.common.ServerConfiguration;
 
 /**
  * Custom logger for JTextArea. Slightly modified. See
  * http://stackoverflow.com/questions/10785560/write-logger-message-to-file-and-textarea-while-maintaining-default-behaviour-in
+ * <br>
+ * The log lines are prepared by the logging thread and buffered. The buffer is
+ * written to the text area at most every {@link LoggerTextAreaHandler#FLUSH_INTERVAL} ms
+ * with one single insert. Excess lines (see {@link ServerConfiguration#getLinesToLog()})
+ * are removed with one single removal afterwards. Thus, the event queue is not
+ * flooded if thousands of records are logged per second.<br>
+ * v1.1 Batched rendering of the log records
  *
  * @author Matthias Stöckli, Edwin Dalorzo
- * @version v1.0
+ * @version v1.1
  */
 public class LoggerTextAreaHandler extends java.util.logging.Handler {
 
+    /**
+     * Minimum time in ms between two updates of the text area (25 updates per second)
+     * @since v1.1
+     */
+    private static final int FLUSH_INTERVAL = 40;
+
+    /**
+     * Prepared log lines, not written to the text area yet
+     * @since v1.1
+     */
+    private final ConcurrentLinkedQueue<String> pendingLines = new ConcurrentLinkedQueue<>();
+    /**
+     * Number of entries in {@link LoggerTextAreaHandler#pendingLines}
+     * @since v1.1
+     */
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    /**
+     * True if an update of the text area is scheduled
+     * @since v1.1
+     */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    /**
+     * Timer (single shot) to write the pending lines on the event dispatch thread
+     * @since v1.1
+     */
+    private final Timer flushTimer;
+
     public LoggerTextAreaHandler(final JTextArea textArea) {
         setLevel(Level.ALL);
         this.textArea = textArea;
+        this.flushTimer = new Timer(FLUSH_INTERVAL, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                writePendingLines();
+            }
+        });
+        this.flushTimer.setRepeats(false);
     }
     private JTextArea textArea;
 
     @Override
     public void publish(final LogRecord record) {
-        SwingUtilities.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                String text = textArea.getText();
-                text = (textArea.getText());
-                String output = record.getMessage();
+        if (isLoggable(record) == false) {
+            return;
+        }
+        String output = record.getMessage();
 
-                // Delete the following parts:
-                // <?xml version="1.0" encoding="UTF-8"?>
-                // xmlns:aigs="https://ol19ns11008.fhnw.ch/
-                // This information is not really needed.
+        // Delete the following parts:
+        // <?xml version="1.0" encoding="UTF-8"?>
+        // xmlns:aigs="https://ol19ns11008.fhnw.ch/
+        // This information is not really needed.
 
-                if (record.getParameters() != null) {
-                    for (int i = 0; i < record.getParameters().length; i++) {
-                        output = output.replace("{" + i + "}", record.getParameters()[i].toString());
-                    }
-                }
-                // Remove other bloaty xml elements.
-                output = output.replace("<?xml version=\"1.0\" encoding=\"UTF-8\"?>", "");
-                output = output.replace("xmlns:aigs=\"https://ol19ns11008.fhnw.ch/", "");
+        if (record.getParameters() != null) {
+            for (int i = 0; i < record.getParameters().length; i++) {
+                output = output.replace("{" + i + "}", String.valueOf(record.getParameters()[i]));
+            }
+        }
+        // Remove other bloaty xml elements.
+        output = output.replace("<?xml version=\"1.0\" encoding=\"UTF-8\"?>", "");
+        output = output.replace("xmlns:aigs=\"https://ol19ns11008.fhnw.ch/", "");
 
-                text = text + output + "\n";
+        pendingLines.offer(output);
+        // Lines beyond the limit would be removed immediately after the insert
+        if (pendingCount.incrementAndGet() > getLineLimit() && pendingLines.poll() != null) {
+            pendingCount.decrementAndGet();
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Schedules an update of the text area if none is scheduled yet
+     * @since v1.1
+     */
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true) == true) {
+            flushTimer.restart();
+        }
+    }
 
-                textArea.setText(text);
+    /**
+     * Writes all pending lines with one insert into the text area and removes
+     * the excess lines at the beginning with one removal. Must be called on
+     * the event dispatch thread
+     * @since v1.1
+     */
+    private void writePendingLines() {
+        flushScheduled.set(false);
+        StringBuilder sb = new StringBuilder();
+        String line;
+        while ((line = pendingLines.poll()) != null) {
+            pendingCount.decrementAndGet();
+            sb.append(line).append('\n');
+        }
+        if (sb.length() == 0) {
+            return;
+        }
+        Document document = textArea.getDocument();
+        try {
+            document.insertString(document.getLength(), sb.toString(), null);
+            // The root element holds the offsets of all lines
+            Element root = document.getDefaultRootElement();
+            int excessLines = root.getElementCount() - getLineLimit();
+            if (excessLines > 0) {
+                document.remove(0, root.getElement(excessLines - 1).getEndOffset());
             }
-        });
+        } catch (BadLocationException ex) {
+            reportError(null, ex, ErrorManager.WRITE_FAILURE);
+        }
+    }
+
+    /**
+     * Gets the maximum number of lines of the text area
+     * @return Number of lines (at least 1)
+     * @since v1.1
+     */
+    private int getLineLimit() {
+        return Math.max(ServerConfiguration.getInstance().getLinesToLog(), 1);
     }
 
     public JTextArea getTextArea() {
@@ -56,9 +156,13 @@ public class LoggerTextAreaHandler extends java.util.logging.Handler {
 
     @Override
     public void flush() {
+        if (pendingCount.get() > 0) {
+            scheduleFlush();
+        }
     }
 
     @Override
     public void close() throws SecurityException {
+        flushTimer.stop();
     }
-}
\ No newline at end of file
+}
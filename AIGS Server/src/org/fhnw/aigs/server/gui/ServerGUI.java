@@ -42,6 +42,7 @@ import org.fhnw.aigs.server.common.LogRouter;
 import org.fhnw.aigs.server.common.LoggingLevel;
 import org.fhnw.aigs.server.communication.ServerCommunication;
 import org.fhnw.aigs.server.gameHandling.GameManager;
+import org.fhnw.aigs.server.gameHandling.LatencyMonitor;
 import org.fhnw.aigs.server.gameHandling.RecompileClassesAction;
 import org.fhnw.aigs.server.gameHandling.ReloadClassesAction;
 import org.fhnw.aigs.server.common.ServerConfiguration;
@@ -78,8 +79,9 @@ import org.fhnw.aigs.server.gameHandling.User;
  * <br>v1.1 New functions and fixes
  * <br>v1.2 New functions (settings and user management) and change from static to singleton
  * <br>v1.3 Changing of logging
+ * <br>v1.4 Display of the round-trip times of the players
  * @author Matthias Stöckli
- * @version v1.3 (Raphael Stoeckli, 24.02.2015)
+ * @version v1.4
  */
 public class ServerGUI extends JFrame {
     
@@ -124,6 +126,7 @@ public class ServerGUI extends JFrame {
     private JButton showLogsButton;
     private JButton reloadClassesButton;
     private JButton recompileClassesButton;
+    private JButton latencyButton;
     private JButton settingsButton;
     private JButton userManagementButton;
     private JLabel statusLabel;
@@ -144,16 +147,6 @@ public class ServerGUI extends JFrame {
     private JLabel ipLabel;
     private JButton endGameButton;
     
-    private LimitLinesDocumentListener  logListener;
-
-    public LimitLinesDocumentListener getLogListener() {
-        return logListener;
-    }
-
-    public void setLogListener(LimitLinesDocumentListener logListener) {
-        this.logListener = logListener;
-    }
-    
     /**
      * Constructor of GUI class
      */
@@ -401,7 +394,7 @@ public class ServerGUI extends JFrame {
         topPanel = new JPanel(new GridLayout(2, 1));
         topPanel.setBorder( new EmptyBorder( 10, 10, 10, 10 ) );
         statusPanel = new JPanel(new GridLayout(1,4));
-        buttonPanel = new JPanel(new GridLayout(1,5));
+        buttonPanel = new JPanel(new GridLayout(1,6));
         settingsPanel = new JPanel(new GridLayout(1,2));
         settingsPanel.setBorder( new EmptyBorder( 10, 200, 10, 0 ));
         
@@ -448,6 +441,10 @@ public class ServerGUI extends JFrame {
 
         recompileClassesButton = new JButton("Recompile and load classes");
         
+        latencyButton = new JButton("Latency");
+        latencyButton.addActionListener(new LatencyAction());
+        latencyButton.setToolTipText("Shows the round-trip times of the game types and players");
+        
         statusPanel.add(logoLabel);
         statusPanel.add(statusLabel);
         statusPanel.add(ipLabel);
@@ -458,6 +455,7 @@ public class ServerGUI extends JFrame {
         buttonPanel.add(showLogsButton);
         buttonPanel.add(reloadClassesButton);
         buttonPanel.add(recompileClassesButton);
+        buttonPanel.add(latencyButton);
         
         topPanel.add(statusPanel);
         topPanel.add(buttonPanel);
@@ -537,12 +535,10 @@ public class ServerGUI extends JFrame {
         logTextArea.setEditable(false);
         logTextArea.setFont(new Font("Dialog", Font.PLAIN, 12));
         logTextArea.setWrapStyleWord(true);
-        this.logListener = new LimitLinesDocumentListener(ServerConfiguration.getInstance().getLinesToLog());
-        logTextArea.getDocument().addDocumentListener(this.logListener); // Limits the number of lines
         logTextAreaScrollPane = new JScrollPane(logTextArea);
         logTextAreaScrollPane.setBorder(BorderFactory.createTitledBorder(new MetalBorders.TextFieldBorder(), "Server Log"));
         Logger rootLogger = Logger.getLogger("");
-        rootLogger.addHandler(new LoggerTextAreaHandler(logTextArea));        
+        rootLogger.addHandler(new LoggerTextAreaHandler(logTextArea));      // Also limits the number of lines
     }
 
     /**
@@ -642,6 +638,23 @@ public class ServerGUI extends JFrame {
     
 }
     
+    /**
+     * Handles the click on the latency button. Shows the round-trip times of
+     * the game types and players (see {@link LatencyMonitor})
+     */
+    private class LatencyAction implements ActionListener {
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            JTextArea reportTextArea = new JTextArea(LatencyMonitor.getReport());
+            reportTextArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
+            reportTextArea.setEditable(false);
+            JScrollPane reportScrollPane = new JScrollPane(reportTextArea);
+            reportScrollPane.setPreferredSize(new Dimension(720, 400));
+            JOptionPane.showMessageDialog(null, reportScrollPane, "Round-trip times", JOptionPane.PLAIN_MESSAGE);
+        }
+    }
+    
     /**
      * Handles the click event on the close button
      */
@@ -564,11 +564,7 @@ public class SettingsWindow extends JDialog{
           ServerConfiguration.getInstance().setTempLogsDirectory(backupLoggerDirectory); // Write current location back for runtime purpose. Will be changed after restart 
       }
       
-      LogRouter.updateRules(); // Update Logging-Rules
-      if (ServerGUI.getInstance() != null) // GUI handling
-      {
-          ServerGUI.getInstance().getLogListener().setLimitLines(ServerConfiguration.getInstance().getLinesToLog()); // Update Lines to Log
-      }
+      LogRouter.updateRules(); // Update Logging-Rules (the lines to log are read by the LoggerTextAreaHandler)
       
     }
     
@@ -0,0 +1,279 @@
+package org.fhnw.aigs.server.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the {@link AsyncLogBuffer}: Order of the written entries and the
+ * overflow policies if the buffer is full.
+ */
+public class AsyncLogBufferTest {
+
+    /**
+     * Name of the logger of the published entries.
+     */
+    private static final String LOGGER_NAME = AsyncLogBufferTest.class.getName();
+    /**
+     * Capacity of the tested buffers.
+     */
+    private static final int CAPACITY = 4;
+    /**
+     * Maximum time in ms to wait for the consumer.
+     */
+    private static final long TIMEOUT = 5000;
+
+    /**
+     * The loggers of the test and of the buffer (strongly referenced, so
+     * that their configuration is not lost by a garbage collection).
+     */
+    private final Logger[] loggers = new Logger[]{Logger.getLogger(LOGGER_NAME), Logger.getLogger(AsyncLogBuffer.class.getName())};
+    /**
+     * The tested buffer (null until created by the test).
+     */
+    private AsyncLogBuffer buffer;
+    /**
+     * Messages of the written entries (of both loggers).
+     */
+    private final List<String> written = new ArrayList<>();
+    /**
+     * Released to let the consumer write the first entry, until then the
+     * consumer blocks and the buffer fills up.
+     */
+    private final CountDownLatch release = new CountDownLatch(1);
+    /**
+     * Counted down as soon as the consumer blocks in the first entry.
+     */
+    private final CountDownLatch blocked = new CountDownLatch(1);
+    /**
+     * Handler which records the entries and blocks on the first one.
+     */
+    private final Handler handler = new Handler() {
+        @Override
+        public void publish(LogRecord record) {
+            blocked.countDown();
+            try {
+                release.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            String message = record.getMessage();
+            if (record.getParameters() != null) {
+                message = message.replace("{0}", String.valueOf(record.getParameters()[0]));
+            }
+            synchronized (written) {
+                written.add(message);
+                written.notifyAll();
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /**
+     * Logs all levels and records the entries of the test and of the buffer.
+     */
+    @Before
+    public void setUp() {
+        LogRouter.updateRules(LoggingThreshold.all, LoggingStyle.compressed);
+        for (Logger logger : loggers) {
+            logger.setUseParentHandlers(false);
+            logger.addHandler(handler);
+        }
+    }
+
+    /**
+     * Removes the handler and restores the rules of the server configuration.
+     * The consumer has to be idle before, otherwise it could pass an entry to
+     * the parent handlers after they are restored.
+     */
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (buffer != null) {
+            buffer.publish(LOGGER_NAME, LoggingLevel.info, "end", null);
+            buffer.flush(TIMEOUT);
+        }
+        for (Logger logger : loggers) {
+            logger.removeHandler(handler);
+            logger.setUseParentHandlers(true);
+        }
+        LogRouter.updateRules();
+    }
+
+    /**
+     * Creates the tested buffer.
+     *
+     * @param capacity The minimum number of entries.
+     * @param overflowPolicy The policy if the buffer is full.
+     * @return The buffer.
+     */
+    private AsyncLogBuffer createBuffer(int capacity, LogOverflowPolicy overflowPolicy) {
+        buffer = new AsyncLogBuffer(capacity, overflowPolicy);
+        return buffer;
+    }
+
+    /**
+     * Fills the buffer while the consumer blocks in the first entry (which
+     * keeps its place in the buffer until it is written).
+     *
+     * @param buffer The buffer.
+     * @throws InterruptedException Thrown if the test was interrupted.
+     */
+    private void fill(AsyncLogBuffer buffer) throws InterruptedException {
+        buffer.publish(LOGGER_NAME, LoggingLevel.info, "entry 0", null);
+        assertTrue(blocked.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        for (int i = 1; i < CAPACITY; i++) {
+            buffer.publish(LOGGER_NAME, LoggingLevel.info, "entry " + i, null);
+        }
+    }
+
+    /**
+     * Creates the messages of a number of entries.
+     *
+     * @param count The number of entries.
+     * @return The messages "entry 0" to "entry count-1".
+     */
+    private static List<String> entries(int count) {
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            expected.add("entry " + i);
+        }
+        return expected;
+    }
+
+    /**
+     * Publishes an entry in a new thread.
+     *
+     * @param buffer The buffer.
+     * @param level The logging level.
+     * @param message The message.
+     * @return The started thread.
+     */
+    private static Thread publishAsync(final AsyncLogBuffer buffer, final LoggingLevel level, final String message) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                buffer.publish(LOGGER_NAME, level, message, null);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Waits until the passed number of entries is written.
+     *
+     * @param count The number of entries.
+     * @return The written entries.
+     * @throws InterruptedException Thrown if the test was interrupted.
+     */
+    private List<String> awaitWritten(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        synchronized (written) {
+            while (written.size() < count && System.currentTimeMillis() < deadline) {
+                written.wait(10);
+            }
+            return new ArrayList<>(written);
+        }
+    }
+
+    /**
+     * The capacity is rounded up to a power of two, the entries are written
+     * in the order they were published (also if the buffer wraps around).
+     */
+    @Test
+    public void testEntriesAreWrittenInOrder() throws Exception {
+        release.countDown();
+        AsyncLogBuffer buffer = createBuffer(3, LogOverflowPolicy.block);
+        for (int i = 0; i < 100; i++) {
+            buffer.publish(LOGGER_NAME, LoggingLevel.info, "entry " + i, null);
+        }
+
+        assertTrue(buffer.flush(TIMEOUT));
+        assertEquals(entries(100), awaitWritten(100));
+    }
+
+    /**
+     * With the policy block, a publisher waits until there is room in the
+     * buffer, no entry is lost.
+     */
+    @Test
+    public void testBlockWaitsForRoom() throws Exception {
+        AsyncLogBuffer buffer = createBuffer(CAPACITY, LogOverflowPolicy.block);
+        fill(buffer);
+
+        Thread publisher = publishAsync(buffer, LoggingLevel.info, "blocked");
+        publisher.join(200);
+        assertTrue(publisher.isAlive());
+
+        release.countDown();
+        publisher.join(TIMEOUT);
+        assertFalse(publisher.isAlive());
+        assertTrue(buffer.flush(TIMEOUT));
+        List<String> expected = entries(CAPACITY);
+        expected.add("blocked");
+        assertEquals(expected, awaitWritten(expected.size()));
+    }
+
+    /**
+     * With the policy drop, entries of all levels are dropped while the
+     * buffer is full and the number of dropped entries is logged after the
+     * buffer is drained.
+     */
+    @Test
+    public void testDropCountsDroppedEntries() throws Exception {
+        AsyncLogBuffer buffer = createBuffer(CAPACITY, LogOverflowPolicy.drop);
+        fill(buffer);
+
+        buffer.publish(LOGGER_NAME, LoggingLevel.info, "dropped", null);
+        buffer.publish(LOGGER_NAME, LoggingLevel.severe, "dropped", null);
+        buffer.publish(LOGGER_NAME, LoggingLevel.waring, "dropped", null);
+
+        release.countDown();
+        List<String> expected = entries(CAPACITY);
+        expected.add("3 log entries were dropped, because the log buffer was full.");
+        assertEquals(expected, awaitWritten(expected.size()));
+    }
+
+    /**
+     * With the policy dropUnimportant, only severe entries and warnings wait
+     * until there is room in the buffer.
+     */
+    @Test
+    public void testDropUnimportantKeepsWarnings() throws Exception {
+        AsyncLogBuffer buffer = createBuffer(CAPACITY, LogOverflowPolicy.dropUnimportant);
+        fill(buffer);
+
+        buffer.publish(LOGGER_NAME, LoggingLevel.info, "dropped", null);
+        buffer.publish(LOGGER_NAME, LoggingLevel.system, "dropped", null);
+        Thread publisher = publishAsync(buffer, LoggingLevel.waring, "warning");
+        publisher.join(200);
+        assertTrue(publisher.isAlive());
+
+        release.countDown();
+        publisher.join(TIMEOUT);
+        assertFalse(publisher.isAlive());
+        List<String> written = awaitWritten(CAPACITY + 2);
+        assertEquals(CAPACITY + 2, written.size());
+        assertEquals(entries(CAPACITY), written.subList(0, CAPACITY));
+        assertTrue(written.contains("warning"));
+        assertTrue(written.contains("2 log entries were dropped, because the log buffer was full."));
+    }
+}
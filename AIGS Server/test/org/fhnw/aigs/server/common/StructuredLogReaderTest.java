@@ -0,0 +1,218 @@
+package org.fhnw.aigs.server.common;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the {@link StructuredLogReader}: Records written by the
+ * {@link StructuredLogHandler} and the handling of corrupt records.
+ */
+public class StructuredLogReaderTest {
+
+    /**
+     * Name of the written segments.
+     */
+    private static final String NAME = "test";
+
+    /**
+     * Folder of the segments.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Creates a log record.
+     *
+     * @param message The message.
+     * @param params The parameters of the message.
+     * @return The log record.
+     */
+    private static LogRecord createRecord(String message, Object... params) {
+        LogRecord record = new LogRecord(Level.INFO, message);
+        record.setSourceClassName(StructuredLogReaderTest.class.getName());
+        record.setParameters(params);
+        record.setMillis(1234567L);
+        record.setThreadID(7);
+        return record;
+    }
+
+    /**
+     * Appends a record to a segment which is built by the test.
+     *
+     * @param segment The segment.
+     * @param direction The direction field.
+     * @param messageLength The length field of the message (the message has
+     * one byte).
+     */
+    private static void putRecord(ByteBuffer segment, byte direction, int messageLength) {
+        int start = segment.position();
+        segment.putInt(0);
+        segment.putLong(1234567L);
+        segment.putInt(7);
+        segment.putInt(Level.INFO.intValue());
+        segment.put(direction);
+        segment.putLong(42);
+        for (int i = 0; i < 4; i++) {
+            segment.putShort((short) (i == 3 ? messageLength : 1));
+            segment.put((byte) 'a');
+        }
+        segment.putInt(start, segment.position() - start);
+    }
+
+    /**
+     * Writes a segment with a valid record, the passed corrupt record and
+     * another valid record.
+     *
+     * @param direction The direction field of the corrupt record.
+     * @param messageLength The length field of the message of the corrupt
+     * record.
+     * @return The segment file.
+     * @throws IOException Thrown if the segment could not be written.
+     */
+    private File writeCorruptSegment(byte direction, int messageLength) throws IOException {
+        ByteBuffer segment = ByteBuffer.allocate(4096);
+        segment.putInt(StructuredLogHandler.MAGIC);
+        segment.putShort(StructuredLogHandler.FORMAT_VERSION);
+        segment.putShort((short) 0);
+        putRecord(segment, (byte) 1, 1);
+        putRecord(segment, direction, messageLength);
+        putRecord(segment, (byte) 2, 1);
+        File file = folder.newFile();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(segment.array());
+        }
+        return file;
+    }
+
+    /**
+     * Records of messages and of the game traffic are read with all their
+     * fields, the unused rest of the segment is ignored.
+     */
+    @Test
+    public void testReadWrittenRecords() throws Exception {
+        StructuredLogHandler handler = new StructuredLogHandler(folder.getRoot(), NAME, 0, 1);
+        handler.publish(createRecord("Hello {0}", "Wörld"));
+        handler.publish(createRecord("=> {0}", "a.b.Msg", new TrafficRecord(TrafficDirection.outgoing, 42, "Alice", "a.b.Msg")));
+        handler.close();
+
+        List<StructuredLogReader.Entry> entries = StructuredLogReader.read(new File(folder.getRoot(), NAME + "-000001" + StructuredLogHandler.FILE_EXTENSION));
+
+        assertEquals(2, entries.size());
+        StructuredLogReader.Entry message = entries.get(0);
+        assertEquals(1234567L, message.getMillis());
+        assertEquals(7, message.getThreadId());
+        assertEquals(Level.INFO, message.getLevel());
+        assertNull(message.getDirection());
+        assertEquals(StructuredLogReaderTest.class.getName(), message.getLoggingClass());
+        assertEquals("Hello Wörld", message.getMessage());
+        StructuredLogReader.Entry traffic = entries.get(1);
+        assertEquals(TrafficDirection.outgoing, traffic.getDirection());
+        assertEquals(42, traffic.getGameId());
+        assertEquals("Alice", traffic.getPlayer());
+        assertEquals("a.b.Msg", traffic.getMessageClass());
+        assertEquals("", traffic.getMessage());
+    }
+
+    /**
+     * The records of all segments are complete after the segments were
+     * rotated.
+     */
+    @Test
+    public void testReadRotatedSegments() throws Exception {
+        StructuredLogHandler handler = new StructuredLogHandler(folder.getRoot(), NAME, 0, 10);
+        char[] padding = new char[100];
+        Arrays.fill(padding, 'x');
+        int count = 30000;
+        for (int i = 0; i < count; i++) {
+            handler.publish(createRecord("{0} " + new String(padding), Integer.toString(i)));
+        }
+        handler.close();
+
+        int read = 0;
+        File segment;
+        for (int i = 1; (segment = new File(folder.getRoot(), String.format("%s-%06d%s", NAME, i, StructuredLogHandler.FILE_EXTENSION))).exists(); i++) {
+            for (StructuredLogReader.Entry entry : StructuredLogReader.read(segment)) {
+                assertEquals(read + " " + new String(padding), entry.getMessage());
+                read++;
+            }
+        }
+        assertEquals(count, read);
+    }
+
+    /**
+     * The reading stops at a record with an unknown direction.
+     */
+    @Test
+    public void testUnknownDirectionStopsReading() throws Exception {
+        assertEquals(1, StructuredLogReader.read(writeCorruptSegment((byte) 9, 1)).size());
+        assertEquals(1, StructuredLogReader.read(writeCorruptSegment((byte) -3, 1)).size());
+    }
+
+    /**
+     * The reading stops at a record with a field beyond the end of the
+     * record.
+     */
+    @Test
+    public void testFieldBeyondRecordStopsReading() throws Exception {
+        assertEquals(1, StructuredLogReader.read(writeCorruptSegment((byte) 0, 60000)).size());
+    }
+
+    /**
+     * Without corrupt record, all records of the test segment are read.
+     */
+    @Test
+    public void testValidTestSegment() throws Exception {
+        List<StructuredLogReader.Entry> entries = StructuredLogReader.read(writeCorruptSegment((byte) 0, 1));
+
+        assertEquals(3, entries.size());
+        assertNull(entries.get(1).getDirection());
+        assertEquals(TrafficDirection.incoming, entries.get(0).getDirection());
+        assertEquals(TrafficDirection.outgoing, entries.get(2).getDirection());
+    }
+
+    /**
+     * The reading stops at a record which is longer than the rest of the
+     * file.
+     */
+    @Test
+    public void testTruncatedRecordStopsReading() throws Exception {
+        File file = writeCorruptSegment((byte) 0, 1);
+        byte[] content = Arrays.copyOf(Files.readAllBytes(file.toPath()), StructuredLogHandler.HEADER_SIZE + 2 * (StructuredLogHandler.FIXED_RECORD_SIZE + 4) + 10);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+
+        assertEquals(2, StructuredLogReader.read(file).size());
+    }
+
+    /**
+     * A file without the header of a segment is rejected.
+     */
+    @Test
+    public void testInvalidHeaderIsRejected() throws Exception {
+        File file = folder.newFile();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("Not a segment of the structured log".getBytes(StandardCharsets.UTF_8));
+        }
+        try {
+            StructuredLogReader.read(file);
+            fail("The file is not a segment");
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package org.fhnw.aigs.server.gameHandling;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.fhnw.aigs.commons.Player;
+import org.fhnw.aigs.server.common.ServerConfiguration;
+import org.junit.AfterClass;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests of the hashed timer wheel of the {@link KeepAliveManager}: Silent
+ * clients expire after a KeepAliveMessage was not answered, active and
+ * cancelled heartbeats do not expire.
+ */
+public class KeepAliveManagerTest {
+
+    /**
+     * The keep-alive interval of the tests in ms.
+     */
+    private static final int TIME_OUT = 200;
+
+    /**
+     * The server socket which accepts the connections of the test players.
+     */
+    private static ServerSocket serverSocket;
+    /**
+     * The sockets of the tests (both ends), closed after the tests.
+     */
+    private static final ArrayList<Socket> sockets = new ArrayList<>();
+
+    /**
+     * Starts the KeepAliveManager (only once, it runs until the end of the
+     * JVM).
+     */
+    @BeforeClass
+    public static void startKeepAliveManager() throws IOException {
+        ServerConfiguration.getInstance().setKeepAliveTimeOut(TIME_OUT);
+        Thread thread = new Thread(new KeepAliveManager());
+        thread.setDaemon(true);
+        thread.start();
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Closes the sockets of the tests.
+     */
+    @AfterClass
+    public static void closeSockets() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        serverSocket.close();
+    }
+
+    /**
+     * Creates a player with a connected socket, so that KeepAliveMessages can
+     * be sent to it (the messages are never read).
+     *
+     * @param name The name of the player.
+     * @return The player.
+     */
+    private static Player createPlayer(String name) throws IOException {
+        Socket client = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+        Socket server = serverSocket.accept();
+        sockets.add(client);
+        sockets.add(server);
+        Player player = new Player(name, name, false);
+        player.setSocket(server);
+        return player;
+    }
+
+    /**
+     * Registers a heartbeat. The heartbeats of new connections are put into
+     * the wheel with the next tick, the manager may not yet be running.
+     *
+     * @param player The player.
+     * @param timedOut Counted down by the timeout action.
+     * @return The heartbeat.
+     */
+    private static KeepAliveManager.Heartbeat register(Player player, final CountDownLatch timedOut) throws InterruptedException {
+        KeepAliveManager.Heartbeat heartbeat = null;
+        for (int i = 0; i < 100 && heartbeat == null; i++) {
+            heartbeat = KeepAliveManager.register(player, new Runnable() {
+                @Override
+                public void run() {
+                    timedOut.countDown();
+                }
+            });
+            if (heartbeat == null) {
+                Thread.sleep(10);
+            }
+        }
+        assertNotNull("The KeepAliveManager is not running", heartbeat);
+        return heartbeat;
+    }
+
+    /**
+     * A silent client is sent a KeepAliveMessage after at least half an
+     * interval and expires one interval later.
+     */
+    @Test
+    public void testSilentClientExpires() throws Exception {
+        CountDownLatch timedOut = new CountDownLatch(1);
+        long start = System.nanoTime();
+        register(createPlayer("silent"), timedOut);
+
+        assertTrue("The client did not expire", timedOut.await(10 * TIME_OUT, TimeUnit.MILLISECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Expired after " + elapsed + " ms", elapsed >= TIME_OUT / 2 + TIME_OUT - 20);
+    }
+
+    /**
+     * A client which sends messages (touches its heartbeat) does not expire.
+     */
+    @Test
+    public void testActiveClientDoesNotExpire() throws Exception {
+        CountDownLatch timedOut = new CountDownLatch(1);
+        KeepAliveManager.Heartbeat heartbeat = register(createPlayer("active"), timedOut);
+
+        for (int i = 0; i < 20; i++) {
+            Thread.sleep(TIME_OUT / 4);
+            heartbeat.touch();
+            assertFalse("An active client expired", timedOut.getCount() == 0);
+        }
+        heartbeat.cancel();
+    }
+
+    /**
+     * A cancelled heartbeat (closed connection) is removed from the wheel
+     * without executing the timeout action.
+     */
+    @Test
+    public void testCancelledHeartbeatDoesNotExpire() throws Exception {
+        CountDownLatch timedOut = new CountDownLatch(1);
+        KeepAliveManager.Heartbeat heartbeat = register(createPlayer("cancelled"), timedOut);
+        heartbeat.cancel();
+
+        assertFalse("A cancelled heartbeat expired", timedOut.await(4 * TIME_OUT, TimeUnit.MILLISECONDS));
+    }
+}
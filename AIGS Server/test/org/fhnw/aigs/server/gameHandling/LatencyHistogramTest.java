@@ -0,0 +1,135 @@
+package org.fhnw.aigs.server.gameHandling;
+
+import java.util.ArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests of the percentiles of the {@link LatencyHistogram}: Small values are
+ * counted exactly, larger values with a relative error below 1.6%.
+ */
+public class LatencyHistogramTest {
+
+    /**
+     * The largest distinguished value (about 71 minutes in microseconds).
+     */
+    private static final long MAX_VALUE = (1L << 32) - 1;
+
+    /**
+     * An empty histogram returns 0 for all percentiles.
+     */
+    @Test
+    public void testEmptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getTotalCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(0, histogram.getValueAtPercentile(100));
+    }
+
+    /**
+     * Values below 128 are counted exactly, the percentiles are the exact
+     * ranks.
+     */
+    @Test
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int value = 1; value <= 100; value++) {
+            histogram.record(value);
+        }
+
+        assertEquals(100, histogram.getTotalCount());
+        assertEquals(1, histogram.getValueAtPercentile(0));
+        assertEquals(1, histogram.getValueAtPercentile(1));
+        assertEquals(50, histogram.getValueAtPercentile(50));
+        assertEquals(90, histogram.getValueAtPercentile(90));
+        assertEquals(99, histogram.getValueAtPercentile(99));
+        assertEquals(100, histogram.getValueAtPercentile(100));
+        assertEquals(100, histogram.getValueAtPercentile(150));
+    }
+
+    /**
+     * A percentile of large values is the upper bound of the bucket of the
+     * value, at most 1.6% above the value, and never above the maximum.
+     */
+    @Test
+    public void testLargeValuesWithinRelativeError() {
+        for (long value = 128; value < MAX_VALUE; value = value * 3 / 2 + 7) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value);
+            histogram.record(MAX_VALUE);
+
+            long percentile = histogram.getValueAtPercentile(50);
+            assertTrue(value + " -> " + percentile, percentile >= value);
+            assertTrue(value + " -> " + percentile, percentile <= value + value / 62);
+        }
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000000);
+        assertEquals("The maximum bounds the percentile", 1000000, histogram.getValueAtPercentile(99.9));
+    }
+
+    /**
+     * Neighbouring bucket bounds increase strictly, i.e. the buckets of two
+     * powers of two do not overlap.
+     */
+    @Test
+    public void testBucketBoundsIncrease() {
+        long previous = -1;
+        for (long value = 0; value < 1 << 20; value++) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value);
+            histogram.record(MAX_VALUE);
+            long bound = histogram.getValueAtPercentile(50);
+            assertTrue(value + " -> " + bound, bound >= previous && bound >= value);
+            previous = bound;
+            if (value > 4096) {
+                value += value / 100;   // Sample the larger values
+            }
+        }
+    }
+
+    /**
+     * Negative values are counted as 0, values above the range as the largest
+     * distinguished value.
+     */
+    @Test
+    public void testValuesOutOfRangeAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(MAX_VALUE, histogram.getValueAtPercentile(100));
+        assertEquals(MAX_VALUE, histogram.getMax());
+    }
+
+    /**
+     * Values recorded by several threads concurrently are all counted.
+     */
+    @Test
+    public void testConcurrentRecording() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int offset = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        histogram.record(i % 1000 + offset);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(40000, histogram.getTotalCount());
+        assertEquals(1002, histogram.getMax());
+    }
+}
@@ -0,0 +1,180 @@
+package org.fhnw.aigs.server.gameHandling;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.fhnw.aigs.commons.Game;
+import org.fhnw.aigs.commons.Player;
+import org.fhnw.aigs.commons.communication.Message;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests of the {@link LobbyRegistry}: Matchmaking of the open public games
+ * per game type, the party index and the removal of games.
+ */
+public class LobbyRegistryTest {
+
+    /**
+     * A game without logic.
+     */
+    private static final class TestGame extends Game {
+
+        /**
+         * Creates a game.
+         *
+         * @param gameName The name of the game (type).
+         * @param partyName The name of the party.
+         * @param privateGame True if the game cannot be joined randomly.
+         */
+        private TestGame(String gameName, String partyName, boolean privateGame) {
+            super(gameName, 2);
+            setPartyName(partyName);
+            setPrivateGame(privateGame);
+        }
+
+        @Override
+        public void initialize() {
+        }
+
+        @Override
+        public void processGameLogic(Message message, Player sendingPlayer) {
+        }
+
+        @Override
+        public void checkForWinningCondition() {
+        }
+    }
+
+    /**
+     * Registers a waiting public game.
+     *
+     * @param registry The registry.
+     * @param gameName The name of the game (type).
+     * @param partyName The name of the party.
+     * @return The game.
+     */
+    private static Game openGame(LobbyRegistry registry, String gameName, String partyName) {
+        Game game = new TestGame(gameName, partyName, false);
+        assertTrue(registry.addWaitingGame(game));
+        registry.openPublicGame(game);
+        return game;
+    }
+
+    /**
+     * The open public games of a game type are offered in the order of their
+     * creation, started games are not offered anymore.
+     */
+    @Test
+    public void testOldestOpenGameIsOffered() {
+        LobbyRegistry registry = new LobbyRegistry();
+        Game first = openGame(registry, "TicTacToe", "A");
+        Game second = openGame(registry, "TicTacToe", "B");
+        openGame(registry, "TicTacToe", "C");
+
+        assertSame(first, registry.getOpenPublicGame("TicTacToe"));
+        assertTrue(registry.markRunning(first));
+        assertSame(second, registry.getOpenPublicGame("TicTacToe"));
+        assertFalse(registry.markRunning(first));
+    }
+
+    /**
+     * Only games of the requested type are offered, private games never.
+     */
+    @Test
+    public void testMatchmakingPerGameType() {
+        LobbyRegistry registry = new LobbyRegistry();
+        Game secret = new TestGame("TicTacToe", "Secret", true);
+        assertTrue(registry.addWaitingGame(secret));
+        registry.openPublicGame(secret);
+        Game minesweeper = openGame(registry, "Minesweeper", "A");
+
+        assertNull(registry.getOpenPublicGame("TicTacToe"));
+        assertSame(minesweeper, registry.getOpenPublicGame("Minesweeper"));
+        assertNull(registry.getOpenPublicGame("Unknown"));
+        assertSame(secret, registry.getWaitingParty("TicTacToe", "Secret"));
+    }
+
+    /**
+     * Party names are unique per game type among the waiting and running
+     * games, and can be used again after the game was removed.
+     */
+    @Test
+    public void testPartyNamesAreUniquePerGameType() {
+        LobbyRegistry registry = new LobbyRegistry();
+        Game game = openGame(registry, "TicTacToe", "Friends");
+
+        assertFalse(registry.addWaitingGame(new TestGame("TicTacToe", "Friends", false)));
+        assertTrue(registry.addWaitingGame(new TestGame("Minesweeper", "Friends", false)));
+
+        assertTrue(registry.markRunning(game));
+        assertTrue(registry.isPartyRunning("TicTacToe", "Friends"));
+        assertNull(registry.getWaitingParty("TicTacToe", "Friends"));
+        assertFalse(registry.addWaitingGame(new TestGame("TicTacToe", "Friends", false)));
+
+        assertEquals(Boolean.TRUE, registry.remove(game));
+        assertFalse(registry.isPartyExisting("TicTacToe", "Friends"));
+        assertTrue(registry.addWaitingGame(new TestGame("TicTacToe", "Friends", false)));
+    }
+
+    /**
+     * A removed game is no longer found by its id, its party or its players;
+     * a second removal has no effect.
+     */
+    @Test
+    public void testRemoveGame() {
+        LobbyRegistry registry = new LobbyRegistry();
+        Game game = openGame(registry, "TicTacToe", "A");
+        Player player = new Player("alice", "Alice", false);
+        game.addPlayer(player);
+        registry.addPlayer(player, game);
+
+        assertSame(game, registry.getGameOfPlayer("Alice"));
+        assertSame(game, registry.getGame(game.getId()));
+        assertEquals(Boolean.FALSE, registry.remove(game));
+        assertNull(registry.remove(game));
+        assertNull(registry.getGame(game.getId()));
+        assertNull(registry.getGameOfPlayer("Alice"));
+        assertNull(registry.getOpenPublicGame("TicTacToe"));
+        assertTrue(registry.getWaitingGames().isEmpty());
+    }
+
+    /**
+     * If several threads start the same waiting game, only one succeeds.
+     */
+    @Test
+    public void testGameIsStartedOnce() throws InterruptedException {
+        final LobbyRegistry registry = new LobbyRegistry();
+        final Game game = openGame(registry, "TicTacToe", "A");
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger started = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    if (registry.markRunning(game) == true) {
+                        started.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, started.get());
+        assertSame(game, registry.getRunningGame(game.getId()));
+        assertEquals(1, registry.getRunningGames().size());
+    }
+}
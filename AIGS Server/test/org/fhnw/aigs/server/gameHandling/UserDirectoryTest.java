@@ -0,0 +1,150 @@
+package org.fhnw.aigs.server.gameHandling;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+/**
+ * Tests of the {@link UserDirectory}: Allocation and reuse of generated user
+ * names and of the user IDs.
+ */
+public class UserDirectoryTest {
+
+    /**
+     * Creates a user without allocating an ID of the static user list.
+     *
+     * @param userName The user name (null for users with a generated name).
+     * @param id The ID.
+     * @return The user.
+     */
+    private static User createUser(String userName, long id) {
+        User user = new User();
+        user.setUserName(userName);
+        user.setId(id);
+        return user;
+    }
+
+    /**
+     * Adds a user with a generated name.
+     *
+     * @param directory The directory.
+     * @param template The template of the name.
+     * @return The user.
+     */
+    private static User addAnonymous(UserDirectory directory, String template) {
+        User user = createUser(null, directory.nextId());
+        directory.addWithUnusedName(user, template);
+        return user;
+    }
+
+    /**
+     * The template is used as it is, then the numbers from 2 upwards are
+     * appended.
+     */
+    @Test
+    public void testNamesAreNumbered() {
+        UserDirectory directory = new UserDirectory();
+
+        assertEquals("Player", addAnonymous(directory, "Player").getUserName());
+        assertEquals("Player2", addAnonymous(directory, "Player").getUserName());
+        assertEquals("Player3", addAnonymous(directory, "Player").getUserName());
+        assertEquals("Guest", addAnonymous(directory, "Guest").getUserName());
+    }
+
+    /**
+     * The numbers of removed users are reused, the lowest first.
+     */
+    @Test
+    public void testLowestFreedNumberIsReused() {
+        UserDirectory directory = new UserDirectory();
+        User template = addAnonymous(directory, "Player");
+        User second = addAnonymous(directory, "Player");
+        User third = addAnonymous(directory, "Player");
+        User fourth = addAnonymous(directory, "Player");
+
+        directory.remove(fourth);
+        directory.remove(second);
+        directory.remove(third);
+        assertNull(directory.get("Player3"));
+
+        assertEquals("Player2", addAnonymous(directory, "Player").getUserName());
+        assertEquals("Player3", addAnonymous(directory, "Player").getUserName());
+        assertEquals("Player4", addAnonymous(directory, "Player").getUserName());
+        assertEquals("Player5", addAnonymous(directory, "Player").getUserName());
+
+        directory.remove(template);
+        assertEquals("Player", addAnonymous(directory, "Player").getUserName());
+    }
+
+    /**
+     * Names of registered users are skipped, removing a user which was
+     * replaced by another user of the same name has no effect.
+     */
+    @Test
+    public void testRegisteredNamesAreSkipped() {
+        UserDirectory directory = new UserDirectory();
+        User registered = createUser("Player2", directory.nextId());
+        directory.put(registered);
+        addAnonymous(directory, "Player");
+
+        assertEquals("Player3", addAnonymous(directory, "Player").getUserName());
+
+        User replaced = createUser("Player2", directory.nextId());
+        directory.remove(replaced);
+        assertSame(registered, directory.get("Player2"));
+    }
+
+    /**
+     * The IDs of loaded users are not allocated again.
+     */
+    @Test
+    public void testIdsOfLoadedUsersAreReserved() {
+        UserDirectory directory = new UserDirectory();
+        directory.reset(Arrays.asList(createUser("Alice", 5), createUser("Bob", 3)));
+
+        assertEquals(6, directory.nextId());
+        assertEquals(7, directory.nextId());
+        assertEquals(3, directory.get("Bob").getId());
+    }
+
+    /**
+     * Names allocated by several threads concurrently are unique.
+     */
+    @Test
+    public void testConcurrentAllocationIsUnique() throws InterruptedException {
+        final UserDirectory directory = new UserDirectory();
+        final Set<String> names = ConcurrentHashMap.newKeySet();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100; i++) {
+                        User user = addAnonymous(directory, "Player");
+                        names.add(user.getUserName());
+                        if (i % 3 == 0) {
+                            names.remove(user.getUserName());
+                            directory.remove(user);
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (String name : names) {
+            assertSame(name, directory.get(name).getUserName());
+        }
+        assertEquals(8 * 66, names.size());
+    }
+}
@@ -0,0 +1,241 @@
+package org.fhnw.aigs.server.gameHandling;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the {@link UserStore}: Replay of the journal on the snapshot,
+ * truncation of torn batches and the compaction of the journal.
+ */
+public class UserStoreTest {
+
+    /**
+     * Folder of the snapshot and the journal.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    /**
+     * The snapshot file.
+     */
+    private File snapshotFile;
+    /**
+     * The journal file.
+     */
+    private File journalFile;
+    /**
+     * The store which writes the files.
+     */
+    private UserStore store;
+
+    /**
+     * Creates the store.
+     */
+    @Before
+    public void setUp() {
+        snapshotFile = new File(folder.getRoot(), "usersXml.xml");
+        journalFile = new File(folder.getRoot(), "usersJournal.log");
+        store = new UserStore(snapshotFile, journalFile);
+    }
+
+    /**
+     * Closes the store.
+     */
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    /**
+     * Creates a persistent user without allocating an ID of the static user
+     * list.
+     *
+     * @param id The ID.
+     * @param userName The user name.
+     * @param identificationCode The identification code.
+     * @return The user.
+     */
+    private static User createUser(long id, String userName, String identificationCode) {
+        User user = new User();
+        user.setId(id);
+        user.setUserName(userName);
+        user.setIdentificationCode(identificationCode);
+        return user;
+    }
+
+    /**
+     * Loads the users with a new store (like after a restart).
+     *
+     * @return The loaded users.
+     * @throws IOException Thrown if the journal could not be read.
+     */
+    private User.UserList reload() throws IOException {
+        UserStore reloaded = new UserStore(snapshotFile, journalFile);
+        try {
+            return reloaded.load();
+        } finally {
+            reloaded.close();
+        }
+    }
+
+    /**
+     * Formats the loaded users for comparisons.
+     *
+     * @param users The users.
+     * @return One entry "id:userName:identificationCode" per user.
+     */
+    private static List<String> describe(List<User> users) {
+        List<String> result = new ArrayList<>();
+        for (User user : users) {
+            result.add(user.getId() + ":" + user.getUserName() + ":" + user.getIdentificationCode());
+        }
+        return result;
+    }
+
+    /**
+     * Without snapshot and journal no users are loaded.
+     */
+    @Test
+    public void testNothingStored() throws Exception {
+        assertNull(store.load());
+    }
+
+    /**
+     * Additions, changes and removals are replayed from the journal, special
+     * characters and missing identification codes are retained.
+     */
+    @Test
+    public void testJournalReplay() throws Exception {
+        List<User> users = new ArrayList<>();
+        users.add(createUser(1, "Alice", "secret"));
+        users.add(createUser(2, "Bob\tthe\nbuilder", null));
+        users.add(createUser(3, "Carol", "pw"));
+        User anonymous = createUser(4, "Player", null);
+        anonymous.setAnonymousUser(true);
+        users.add(anonymous);
+        store.save(users);
+
+        users.get(0).setIdentificationCode("changed");
+        users.remove(2);
+        store.save(users);
+
+        List<String> expected = new ArrayList<>();
+        expected.add("1:Alice:changed");
+        expected.add("2:Bob\tthe\nbuilder:null");
+        assertEquals(expected, describe(reload()));
+        assertFalse(snapshotFile.exists());
+    }
+
+    /**
+     * A batch without its commit record is discarded and truncated, the
+     * following saves are appended after the last complete batch.
+     */
+    @Test
+    public void testTornBatchIsTruncated() throws Exception {
+        List<User> users = new ArrayList<>();
+        users.add(createUser(1, "Alice", "secret"));
+        store.save(users);
+        long committed = journalFile.length();
+        users.add(createUser(2, "Bob", "pw"));
+        store.save(users);
+        store.close();
+        try (RandomAccessFile journal = new RandomAccessFile(journalFile, "rw")) {
+            journal.setLength(journal.length() - 3);
+        }
+
+        UserStore reloaded = new UserStore(snapshotFile, journalFile);
+        try {
+            List<String> expected = new ArrayList<>();
+            expected.add("1:Alice:secret");
+            assertEquals(expected, describe(reloaded.load()));
+            assertEquals(committed, journalFile.length());
+
+            reloaded.save(users);
+        } finally {
+            reloaded.close();
+        }
+        assertEquals(2, reload().size());
+    }
+
+    /**
+     * A batch whose records do not match the CRC of its commit record is
+     * discarded with all following batches.
+     */
+    @Test
+    public void testCorruptBatchIsDiscarded() throws Exception {
+        List<User> users = new ArrayList<>();
+        users.add(createUser(1, "Alice", "secret"));
+        store.save(users);
+        long committed = journalFile.length();
+        users.add(createUser(2, "Bob", "pw"));
+        store.save(users);
+        users.add(createUser(3, "Carol", "pw"));
+        store.save(users);
+        store.close();
+        try (RandomAccessFile journal = new RandomAccessFile(journalFile, "rw")) {
+            journal.seek(committed + "P\t2\t".length());
+            journal.write('X');
+        }
+
+        assertEquals(1, reload().size());
+        assertEquals(committed, journalFile.length());
+    }
+
+    /**
+     * A line of garbage (e.g. a partially written record) ends the replay.
+     */
+    @Test
+    public void testGarbageIsTruncated() throws Exception {
+        List<User> users = new ArrayList<>();
+        users.add(createUser(1, "Alice", "secret"));
+        store.save(users);
+        long committed = journalFile.length();
+        store.close();
+        try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+            out.write("P\tnot-a-number\tBob\n".getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertEquals(1, reload().size());
+        assertEquals(committed, journalFile.length());
+    }
+
+    /**
+     * A journal with more records than the compaction threshold and the
+     * number of users is compacted into a snapshot, later saves are replayed
+     * on the snapshot.
+     */
+    @Test
+    public void testCompaction() throws Exception {
+        List<User> users = new ArrayList<>();
+        for (int i = 1; i <= 1001; i++) {
+            users.add(createUser(i, "User" + i, "pw" + i));
+        }
+        store.save(users);
+        assertFalse(snapshotFile.exists());
+
+        users.get(0).setUserName("Renamed");
+        store.save(users);
+        assertTrue(snapshotFile.exists());
+        assertEquals(0, journalFile.length());
+
+        users.remove(1000);
+        store.save(users);
+        assertTrue(journalFile.length() > 0);
+
+        User.UserList loaded = reload();
+        assertEquals(describe(users), describe(loaded));
+    }
+}
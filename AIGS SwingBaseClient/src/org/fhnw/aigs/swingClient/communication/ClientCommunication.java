@@ -12,6 +12,7 @@ import java.util.logging.Logger;
 import org.fhnw.aigs.swingClient.GUI.SettingsWindow;
 import org.fhnw.aigs.swingClient.gameHandling.ClientGame;
 import org.fhnw.aigs.commons.communication.IdentificationMessage;
+import org.fhnw.aigs.commons.communication.MessageEncoding;
 import org.fhnw.aigs.commons.communication.IdentificationResponseMessage;
 
 /**
@@ -21,10 +22,12 @@ import org.fhnw.aigs.commons.communication.IdentificationResponseMessage;
  * to an instance, use <b>getInstance()</b> instead.<br>
  * v1.0 Initial release<br>
  * v1.1 Functional changes<br>
- * v1.1.1 Minor changes due to changes in other clssses (dependencies)
+ * v1.1.1 Minor changes due to changes in other clssses (dependencies)<br>
+ * v1.2 Offers the supported message encodings during the login<br>
+ * v1.3 Reconnection and resumption of the session after a lost connection
  * 
  * @author Matthias Stöckli (v1.0)
- * @version v1.1.1 (Raphael Stoeckli, 22.10.2014)
+ * @version v1.3
  */
 public class ClientCommunication implements Runnable {
 
@@ -60,6 +63,32 @@ public class ClientCommunication implements Runnable {
      */
     private ClientGame clientGame;
 
+    /**
+     * Number of connection attempts after a lost connection (see
+     * {@link ClientCommunication#reconnect}).
+     * @since v1.3
+     */
+    private static final int RECONNECT_ATTEMPTS = 5;
+    /**
+     * Delay between two connection attempts in milliseconds.
+     * @since v1.3
+     */
+    private static final int RECONNECT_DELAY = 2000;
+
+    /**
+     * The session token of the last login (see
+     * {@link IdentificationResponseMessage#getSessionToken}). Is null if the
+     * server does not support resumable sessions.
+     * @since v1.3
+     */
+    private volatile String sessionToken;
+    /**
+     * Indicates whether the client reconnected and waits for the resumption
+     * of its session.
+     * @since v1.3
+     */
+    private volatile boolean resuming;
+
     /**
      * Private constructor to prevent instantiation
      */
@@ -112,6 +141,22 @@ public class ClientCommunication implements Runnable {
         return socket;
     }
 
+    /**
+     * See {@link ClientCommunication#sessionToken}.
+     * @since v1.3
+     */
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
+    /**
+     * See {@link ClientCommunication#resuming}.
+     * @since v1.3
+     */
+    public boolean isResuming() {
+        return resuming;
+    }
+
     /**
      * See {@link ClientCommunication#port}.
      */
@@ -133,6 +178,22 @@ public class ClientCommunication implements Runnable {
         this.clientGame = clientGame;
     }
 
+    /**
+     * See {@link ClientCommunication#sessionToken}.
+     * @since v1.3
+     */
+    public void setSessionToken(String sessionToken) {
+        this.sessionToken = sessionToken;
+    }
+
+    /**
+     * See {@link ClientCommunication#resuming}.
+     * @since v1.3
+     */
+    public void setResuming(boolean resuming) {
+        this.resuming = resuming;
+    }
+
     /**
      * Usually there is no need to use this method as the connection process
      * takes place automatically. See {@link ClientCommunication#socket}.
@@ -261,6 +322,48 @@ public class ClientCommunication implements Runnable {
 
     }
 
+    /**
+     * Reconnects to the server after the connection was lost and resumes the
+     * session of the last login. The server keeps the game for a while, so
+     * that the player can continue the game without a new join. The result of
+     * the resumption is handled by the
+     * {@link ClientMessageBroker#handleIdentificationResponseMessage}.
+     *
+     * @return True if a new connection was established, false if there is no
+     * session to resume or the server could not be reached.
+     * @since v1.3
+     */
+    public boolean reconnect() {
+        if (sessionToken == null) {
+            return false;
+        }
+        for (int i = 0; i < RECONNECT_ATTEMPTS; i++) {
+            try {
+                socket = new Socket(host, port);
+                resuming = true;
+                Logger.getLogger(ClientCommunication.class.getName()).log(Level.INFO, "Connection to server re-established!");
+                ClientMessageBroker clientMessageBroker = new ClientMessageBroker(socket, clientGame);
+                Thread clientMessageBrokerThread = new Thread(clientMessageBroker);
+                clientMessageBrokerThread.setName("ClientMessageBrokerThread");
+                clientMessageBrokerThread.start();
+
+                // Sent directly, the game may not allow interactions at the moment
+                ClientMessageBroker.sendMessage(createIdentificationMessage());
+                Logger.getLogger(ClientCommunication.class.getName()).log(Level.INFO, "Sent identification with session token!");
+                return true;
+            } catch (IOException ex) {
+                Logger.getLogger(ClientCommunication.class.getName()).log(Level.WARNING, "Could not reconnect to {0}:{1}", new Object[]{host, port});
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY);
+            } catch (InterruptedException ex) {
+                Logger.getLogger(ClientCommunication.class.getName()).log(Level.SEVERE, null, ex);
+                return false;
+            }
+        }
+        return false;
+    }
+
     /**
      * This method looks whether an instance of the Setting class existing.
      * If not available, the settings window will be showed.<br>
@@ -281,10 +384,27 @@ public class ClientCommunication implements Runnable {
             Settings.tryLoadSettings(true); // Opens the settings window if no settings available
         }
             // Sends an identification to the Server over the new connection
-            IdentificationMessage identificationMessage = new IdentificationMessage(Settings.getInstance().getUsername(), Settings.getInstance().getPassword(),Settings.getInstance().getDisplayname());
+            IdentificationMessage identificationMessage = createIdentificationMessage();
             
             clientGame.sendMessageToServer(identificationMessage);
             Logger.getLogger(ClientCommunication.class.getName()).log(Level.INFO, "Sent identification!");        
 
     }
+
+    /**
+     * Creates the {@link IdentificationMessage} with the credentials of the
+     * settings. While reconnecting, the session token is added.
+     *
+     * @return The identification.
+     * @since v1.3
+     */
+    private IdentificationMessage createIdentificationMessage() {
+        IdentificationMessage identificationMessage = new IdentificationMessage(Settings.getInstance().getUsername(), Settings.getInstance().getPassword(),Settings.getInstance().getDisplayname());
+        // The server decides which encoding is used after the login
+        identificationMessage.setSupportedEncodings(new MessageEncoding[]{MessageEncoding.binary, MessageEncoding.framedXml, MessageEncoding.xml});
+        if (resuming == true) {
+            identificationMessage.setSessionToken(sessionToken);
+        }
+        return identificationMessage;
+    }
 }